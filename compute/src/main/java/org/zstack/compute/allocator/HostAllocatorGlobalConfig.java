@@ -16,6 +16,8 @@ public class HostAllocatorGlobalConfig {
     public static GlobalConfig CLUSTER_LEVEL_RESERVE_CAPACITY = new GlobalConfig(CATEGORY, "reservedCapacity.clusterLevel");
     @GlobalConfigValidation
     public static GlobalConfig HOST_LEVEL_RESERVE_CAPACITY = new GlobalConfig(CATEGORY, "reservedCapacity.hostLevel");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig RESERVED_CAPACITY_CACHE_TTL = new GlobalConfig(CATEGORY, "reservedCapacity.cacheTTL");
     @GlobalConfigValidation
     public static GlobalConfig USE_PAGINATION = new GlobalConfig(CATEGORY, "usePagination");
     @GlobalConfigValidation
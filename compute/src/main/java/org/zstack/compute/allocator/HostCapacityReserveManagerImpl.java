@@ -1,20 +1,33 @@
 package org.zstack.compute.allocator;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zstack.compute.cluster.ClusterSystemTags;
 import org.zstack.compute.host.HostSystemTags;
 import org.zstack.compute.zone.ZoneSystemTags;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.componentloader.PluginRegistry;
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.header.Component;
+import org.zstack.header.allocator.HostCapacityCanonicalEvents;
+import org.zstack.header.allocator.HostCapacityCanonicalEvents.ReservedCapacityChangedData;
 import org.zstack.header.allocator.HostCapacityOverProvisioningManager;
 import org.zstack.header.allocator.HostReservedCapacityExtensionPoint;
 import org.zstack.header.allocator.ReservedHostCapacity;
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.host.HostCanonicalEvents;
+import org.zstack.header.host.HostCanonicalEvents.HostDeletedData;
 import org.zstack.header.host.HostVO;
 import org.zstack.header.host.HostVO_;
+import org.zstack.header.tag.SystemTagInventory;
+import org.zstack.header.tag.SystemTagLifeCycleListener;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.SizeUtils;
 import org.zstack.utils.Utils;
@@ -24,8 +37,16 @@ import org.zstack.utils.logging.CLogger;
 import javax.persistence.Tuple;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * reserved capacity of hosts is kept in a ledger once computed from host, cluster and zone system tags.
+ *
+ * An entry of the ledger is dropped when a reserved capacity tag of the host, its cluster or its zone changes on any
+ * node (reported by RESERVED_CAPACITY_CHANGED_PATH after the tag transaction completes), when a reservedCapacity.*
+ * global config changes, when the host is deleted, or after reservedCapacity.cacheTTL seconds as a safety bound.
  */
 public class HostCapacityReserveManagerImpl implements HostCapacityReserveManager, Component {
     private static final CLogger logger = Utils.getLogger(HostCapacityReserveManagerImpl.class);
@@ -36,9 +57,25 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
     private PluginRegistry pluginRgty;
     @Autowired
     private HostCapacityOverProvisioningManager ratioMgr;
+    @Autowired
+    private EventFacade evtf;
 
     private Map<String, HostReservedCapacityExtensionPoint> exts = new HashMap<String, HostReservedCapacityExtensionPoint>();
 
+    private static class LedgerEntry {
+        // -1 if not reserved by any tag
+        long reservedCpu;
+        long reservedMemory;
+        String hypervisorType;
+        String clusterUuid;
+        String zoneUuid;
+        long expiredTime;
+    }
+
+    private final Map<String, LedgerEntry> ledger = new ConcurrentHashMap<String, LedgerEntry>();
+    // bumped by every invalidation, so a finder started before it doesn't put stale capacity into the ledger
+    private final AtomicLong ledgerVersion = new AtomicLong();
+
     private void populateExtensions() {
         for (HostReservedCapacityExtensionPoint extp : pluginRgty.getExtensionList(HostReservedCapacityExtensionPoint.class)) {
             HostReservedCapacityExtensionPoint ext = exts.get(extp.getHypervisorTypeForHostReserveCapacityExtension());
@@ -51,9 +88,118 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
         }
     }
 
+    private void invalidateLedger() {
+        ledgerVersion.incrementAndGet();
+        ledger.clear();
+    }
+
+    private void invalidateLedger(Collection<String> hostUuids) {
+        ledgerVersion.incrementAndGet();
+        for (String huuid : hostUuids) {
+            ledger.remove(huuid);
+        }
+    }
+
+    // the uuids may be of hosts, clusters, zones or any other resources
+    private void invalidateLedgerByResources(Collection<String> resourceUuids) {
+        ledgerVersion.incrementAndGet();
+        Set<String> uuids = new HashSet<String>(resourceUuids);
+        Iterator<Map.Entry<String, LedgerEntry>> it = ledger.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, LedgerEntry> e = it.next();
+            if (uuids.contains(e.getKey()) || uuids.contains(e.getValue().clusterUuid) || uuids.contains(e.getValue().zoneUuid)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void fireReservedCapacityChanged(Collection<String> resourceUuids) {
+        ReservedCapacityChangedData data = new ReservedCapacityChangedData();
+        data.setResourceUuids(new ArrayList<String>(resourceUuids));
+        evtf.fire(HostCapacityCanonicalEvents.RESERVED_CAPACITY_CHANGED_PATH, data);
+    }
+
+    private void reservedCapacityChanged(String resourceUuid) {
+        final List<String> resourceUuids = Arrays.asList(resourceUuid);
+        invalidateLedgerByResources(resourceUuids);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // the tag is not visible to others until the transaction completes, invalidate again then
+            // so nobody keeps what they computed in between
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    invalidateLedgerByResources(resourceUuids);
+                    fireReservedCapacityChanged(resourceUuids);
+                }
+            });
+        } else {
+            fireReservedCapacityChanged(resourceUuids);
+        }
+    }
+
+    private void installLedgerInvalidators() {
+        SystemTagLifeCycleListener tagListener = new SystemTagLifeCycleListener() {
+            @Override
+            public void tagCreated(SystemTagInventory tag) {
+                reservedCapacityChanged(tag.getResourceUuid());
+            }
+
+            @Override
+            public void tagDeleted(SystemTagInventory tag) {
+                reservedCapacityChanged(tag.getResourceUuid());
+            }
+
+            @Override
+            public void tagUpdated(SystemTagInventory old, SystemTagInventory newTag) {
+                reservedCapacityChanged(newTag.getResourceUuid());
+            }
+        };
+
+        HostSystemTags.RESERVED_CPU_CAPACITY.installLifeCycleListener(tagListener);
+        HostSystemTags.RESERVED_MEMORY_CAPACITY.installLifeCycleListener(tagListener);
+        ClusterSystemTags.HOST_RESERVED_CPU_CAPACITY.installLifeCycleListener(tagListener);
+        ClusterSystemTags.HOST_RESERVED_MEMORY_CAPACITY.installLifeCycleListener(tagListener);
+        ZoneSystemTags.HOST_RESERVED_CPU_CAPACITY.installLifeCycleListener(tagListener);
+        ZoneSystemTags.HOST_RESERVED_MEMORY_CAPACITY.installLifeCycleListener(tagListener);
+
+        GlobalConfigUpdateExtensionPoint configListener = new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                invalidateLedger();
+            }
+        };
+
+        HostAllocatorGlobalConfig.HOST_LEVEL_RESERVE_CAPACITY.installUpdateExtension(configListener);
+        HostAllocatorGlobalConfig.CLUSTER_LEVEL_RESERVE_CAPACITY.installUpdateExtension(configListener);
+        HostAllocatorGlobalConfig.ZONE_LEVEL_RESERVE_CAPACITY.installUpdateExtension(configListener);
+        HostAllocatorGlobalConfig.RESERVED_CAPACITY_CACHE_TTL.installUpdateExtension(configListener);
+
+        evtf.on(HostCapacityCanonicalEvents.RESERVED_CAPACITY_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                if (Platform.getManagementServerId().equals(tokens.get(EventFacade.META_DATA_MANAGEMENT_NODE_ID))) {
+                    return;
+                }
+
+                ReservedCapacityChangedData d = (ReservedCapacityChangedData) data;
+                invalidateLedgerByResources(d.getResourceUuids());
+            }
+        });
+
+        evtf.on(HostCanonicalEvents.HOST_DELETED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                HostDeletedData d = (HostDeletedData) data;
+                ledger.remove(d.getHostUuid());
+            }
+        });
+    }
+
     @Override
     public boolean start() {
         populateExtensions();
+        installLedgerInvalidators();
         return true;
     }
 
@@ -191,31 +337,6 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
             }
         }
 
-        private void findReservedCapacityByHypervisorType() {
-            SimpleQuery<HostVO> hq = dbf.createQuery(HostVO.class);
-            hq.select(HostVO_.uuid, HostVO_.hypervisorType);
-            hq.add(HostVO_.uuid, Op.IN, hostUuids);
-            List<Tuple> tuples = hq.listTuple();
-
-            for (Tuple t : tuples) {
-                String huuid = t.get(0, String.class);
-                String hvType = t.get(1, String.class);
-
-                HostReservedCapacityExtensionPoint ext = exts.get(hvType);
-                if (ext == null) {
-                    continue;
-                }
-
-                ReservedHostCapacity hc = result.get(huuid);
-                if (hc.getReservedMemoryCapacity() == -1) {
-                    hc.setReservedMemoryCapacity(ext.getReservedHostCapacity().getReservedMemoryCapacity());
-                }
-                if (hc.getReservedCpuCapacity() == -1) {
-                    hc.setReservedCpuCapacity(ext.getReservedHostCapacity().getReservedCpuCapacity());
-                }
-            }
-        }
-
         private void squeeze() {
             for (Map.Entry<String, ReservedHostCapacity> e : result.entrySet()) {
                 if (e.getValue().getReservedCpuCapacity() != -1 && e.getValue().getReservedMemoryCapacity() != -1) {
@@ -224,18 +345,10 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
             }
         }
 
-        private void done() {
-            for (ReservedHostCapacity hc : result.values()) {
-                if (hc.getReservedCpuCapacity() == -1) {
-                    hc.setReservedCpuCapacity(0);
-                }
-                if (hc.getReservedMemoryCapacity() == -1) {
-                    hc.setReservedMemoryCapacity(0);
-                }
-            }
-        }
-
-        Map<String, ReservedHostCapacity> find() {
+        /**
+         * finds capacity reserved by host, cluster and zone tags, -1 if not reserved by any tag
+         */
+        Map<String, ReservedHostCapacity> findByTags() {
             if (hostUuids.isEmpty()) {
                 return result;
             }
@@ -261,27 +374,104 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
 
             findReservedCapacityByZoneTag();
             squeeze();
-            if (hostUuids.isEmpty()) {
-                return result;
+            return result;
+        }
+    }
+
+    private ReservedHostCapacity toReservedHostCapacity(LedgerEntry e) {
+        // reserved capacity of hypervisors is from global configs, it's not cached
+        HostReservedCapacityExtensionPoint ext = e.hypervisorType == null ? null : exts.get(e.hypervisorType);
+        ReservedHostCapacity hc = new ReservedHostCapacity();
+        if (e.reservedCpu != -1) {
+            hc.setReservedCpuCapacity(e.reservedCpu);
+        } else {
+            hc.setReservedCpuCapacity(ext == null ? 0 : ext.getReservedHostCapacity().getReservedCpuCapacity());
+        }
+        if (e.reservedMemory != -1) {
+            hc.setReservedMemoryCapacity(e.reservedMemory);
+        } else {
+            hc.setReservedMemoryCapacity(ext == null ? 0 : ext.getReservedHostCapacity().getReservedMemoryCapacity());
+        }
+        return hc;
+    }
+
+    private Map<String, LedgerEntry> buildLedgerEntries(List<String> hostUuids, long expiredTime) {
+        ReservedCapacityFinder finder = new ReservedCapacityFinder();
+        finder.hostUuids = new ArrayList<String>(hostUuids);
+        Map<String, ReservedHostCapacity> byTags = finder.findByTags();
+
+        SimpleQuery<HostVO> hq = dbf.createQuery(HostVO.class);
+        hq.select(HostVO_.uuid, HostVO_.hypervisorType, HostVO_.clusterUuid, HostVO_.zoneUuid);
+        hq.add(HostVO_.uuid, Op.IN, hostUuids);
+        Map<String, Tuple> hosts = new HashMap<String, Tuple>();
+        for (Tuple t : hq.listTuple()) {
+            hosts.put(t.get(0, String.class), t);
+        }
+
+        Map<String, LedgerEntry> entries = new HashMap<String, LedgerEntry>(hostUuids.size());
+        for (String huuid : hostUuids) {
+            ReservedHostCapacity hc = byTags.get(huuid);
+            LedgerEntry e = new LedgerEntry();
+            e.reservedCpu = hc.getReservedCpuCapacity();
+            e.reservedMemory = hc.getReservedMemoryCapacity();
+            Tuple t = hosts.get(huuid);
+            if (t != null) {
+                e.hypervisorType = t.get(1, String.class);
+                e.clusterUuid = t.get(2, String.class);
+                e.zoneUuid = t.get(3, String.class);
+            }
+            e.expiredTime = expiredTime;
+            entries.put(huuid, e);
+        }
+        return entries;
+    }
+
+    private Map<String, ReservedHostCapacity> findReservedCapacity(List<String> hostUuids) {
+        Map<String, ReservedHostCapacity> result = new HashMap<String, ReservedHostCapacity>(hostUuids.size());
+        List<String> missed = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        for (String huuid : hostUuids) {
+            LedgerEntry e = ledger.get(huuid);
+            if (e == null || e.expiredTime < now) {
+                missed.add(huuid);
+                continue;
             }
 
-            findReservedCapacityByHypervisorType();
-            done();
+            result.put(huuid, toReservedHostCapacity(e));
+        }
+
+        if (missed.isEmpty()) {
+            return result;
+        }
+
+        long version = ledgerVersion.get();
+        long ttl = TimeUnit.SECONDS.toMillis(HostAllocatorGlobalConfig.RESERVED_CAPACITY_CACHE_TTL.value(Long.class));
+        Map<String, LedgerEntry> entries = buildLedgerEntries(missed, now + ttl);
+        for (Map.Entry<String, LedgerEntry> e : entries.entrySet()) {
+            result.put(e.getKey(), toReservedHostCapacity(e.getValue()));
+        }
+
+        if (ttl <= 0) {
             return result;
         }
+
+        ledger.putAll(entries);
+        if (ledgerVersion.get() != version) {
+            // invalidated while building the entries, they may be stale
+            invalidateLedger(entries.keySet());
+        }
+
+        return result;
     }
 
     @Override
     public List<HostVO> filterOutHostsByReservedCapacity(List<HostVO> candidates, long requiredCpu, long requiredMemory) {
-        ReservedCapacityFinder finder = new ReservedCapacityFinder();
-        finder.hostUuids = CollectionUtils.transformToList(candidates, new Function<String, HostVO>() {
+        Map<String, ReservedHostCapacity> reserves = findReservedCapacity(CollectionUtils.transformToList(candidates, new Function<String, HostVO>() {
             @Override
             public String call(HostVO arg) {
                 return arg.getUuid();
             }
-        });
-
-        Map<String, ReservedHostCapacity> reserves = finder.find();
+        }));
         List<HostVO> ret = new ArrayList<HostVO>(candidates.size());
         for (HostVO hvo : candidates) {
             ReservedHostCapacity hc = reserves.get(hvo.getUuid());
@@ -321,9 +511,7 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
             return ret;
         }
 
-        ReservedCapacityFinder finder = new ReservedCapacityFinder();
-        finder.hostUuids = huuids;
-        Collection<ReservedHostCapacity> col = finder.find().values();
+        Collection<ReservedHostCapacity> col = findReservedCapacity(huuids).values();
         for (ReservedHostCapacity rc : col) {
             ret.setReservedMemoryCapacity(ret.getReservedMemoryCapacity() + rc.getReservedMemoryCapacity());
             ret.setReservedCpuCapacity(ret.getReservedCpuCapacity() + rc.getReservedCpuCapacity());
@@ -346,9 +534,7 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
             return ret;
         }
 
-        ReservedCapacityFinder finder = new ReservedCapacityFinder();
-        finder.hostUuids = huuids;
-        Collection<ReservedHostCapacity> col = finder.find().values();
+        Collection<ReservedHostCapacity> col = findReservedCapacity(huuids).values();
         for (ReservedHostCapacity rc : col) {
             ret.setReservedMemoryCapacity(ret.getReservedMemoryCapacity() + rc.getReservedMemoryCapacity());
             ret.setReservedCpuCapacity(ret.getReservedCpuCapacity() + rc.getReservedCpuCapacity());
@@ -359,8 +545,6 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
 
     @Override
     public ReservedHostCapacity getReservedHostCapacityByHosts(List<String> hostUuids) {
-        ReservedCapacityFinder finder = new ReservedCapacityFinder();
-        finder.hostUuids = hostUuids;
-        return finder.find().values().iterator().next();
+        return findReservedCapacity(hostUuids).values().iterator().next();
     }
 }
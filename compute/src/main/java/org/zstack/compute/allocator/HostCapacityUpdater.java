@@ -11,11 +11,17 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.LockModeType;
+import javax.persistence.Query;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.util.List;
 
 /**
  * Created by frank on 11/2/2015.
+ *
+ * When the host uuid is known, the capacity is first updated optimistically: read without a lock, then written
+ * only if the row still has the values read. Only if another updater changed the row in between, the row is
+ * locked and the runnable called again, so parallel allocations don't queue up on the row lock.
  */
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class HostCapacityUpdater {
@@ -96,8 +102,89 @@ public class HostCapacityUpdater {
         logCapacityChange();
     }
 
+    private static HostCapacityVO copyCapacity(HostCapacityVO cap) {
+        HostCapacityVO c = new HostCapacityVO();
+        c.setUuid(cap.getUuid());
+        c.setTotalCpu(cap.getTotalCpu());
+        c.setAvailableCpu(cap.getAvailableCpu());
+        c.setTotalMemory(cap.getTotalMemory());
+        c.setAvailableMemory(cap.getAvailableMemory());
+        c.setTotalPhysicalMemory(cap.getTotalPhysicalMemory());
+        c.setAvailablePhysicalMemory(cap.getAvailablePhysicalMemory());
+        return c;
+    }
+
+    private enum OptimisticResult {
+        Updated,
+        NotUpdated,
+        Conflict,
+    }
+
+    private OptimisticResult updateOptimistically(HostCapacityUpdaterRunnable runnable) {
+        String sql = "select c.totalCpu, c.availableCpu, c.totalMemory, c.availableMemory, c.totalPhysicalMemory, c.availablePhysicalMemory" +
+                " from HostCapacityVO c where c.uuid = :uuid";
+        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        q.setParameter("uuid", hostUuid);
+        List<Tuple> ts = q.getResultList();
+        if (ts.isEmpty()) {
+            logDeletedHost();
+            return OptimisticResult.NotUpdated;
+        }
+
+        Tuple t = ts.get(0);
+        originalCopy = new HostCapacityVO();
+        originalCopy.setUuid(hostUuid);
+        originalCopy.setTotalCpu(t.get(0, Long.class));
+        originalCopy.setAvailableCpu(t.get(1, Long.class));
+        originalCopy.setTotalMemory(t.get(2, Long.class));
+        originalCopy.setAvailableMemory(t.get(3, Long.class));
+        originalCopy.setTotalPhysicalMemory(t.get(4, Long.class));
+        originalCopy.setAvailablePhysicalMemory(t.get(5, Long.class));
+
+        HostCapacityVO cap = runnable.call(copyCapacity(originalCopy));
+        if (cap == null) {
+            return OptimisticResult.NotUpdated;
+        }
+
+        sql = "update HostCapacityVO c set c.totalCpu = :totalCpu, c.availableCpu = :availCpu, c.totalMemory = :totalMem," +
+                " c.availableMemory = :availMem, c.totalPhysicalMemory = :totalPMem, c.availablePhysicalMemory = :availPMem" +
+                " where c.uuid = :uuid and c.totalCpu = :oTotalCpu and c.availableCpu = :oAvailCpu and c.totalMemory = :oTotalMem" +
+                " and c.availableMemory = :oAvailMem and c.totalPhysicalMemory = :oTotalPMem and c.availablePhysicalMemory = :oAvailPMem";
+        Query uq = dbf.getEntityManager().createQuery(sql);
+        uq.setParameter("totalCpu", cap.getTotalCpu());
+        uq.setParameter("availCpu", cap.getAvailableCpu());
+        uq.setParameter("totalMem", cap.getTotalMemory());
+        uq.setParameter("availMem", cap.getAvailableMemory());
+        uq.setParameter("totalPMem", cap.getTotalPhysicalMemory());
+        uq.setParameter("availPMem", cap.getAvailablePhysicalMemory());
+        uq.setParameter("uuid", hostUuid);
+        uq.setParameter("oTotalCpu", originalCopy.getTotalCpu());
+        uq.setParameter("oAvailCpu", originalCopy.getAvailableCpu());
+        uq.setParameter("oTotalMem", originalCopy.getTotalMemory());
+        uq.setParameter("oAvailMem", originalCopy.getAvailableMemory());
+        uq.setParameter("oTotalPMem", originalCopy.getTotalPhysicalMemory());
+        uq.setParameter("oAvailPMem", originalCopy.getAvailablePhysicalMemory());
+        if (uq.executeUpdate() == 0) {
+            return OptimisticResult.Conflict;
+        }
+
+        capacityVO = cap;
+        logCapacityChange();
+        return OptimisticResult.Updated;
+    }
+
     @Transactional
     public boolean run(HostCapacityUpdaterRunnable runnable) {
+        if (hostUuid != null) {
+            // a conflict is not retried optimistically, a read in the same transaction may see the same snapshot
+            OptimisticResult ret = updateOptimistically(runnable);
+            if (ret != OptimisticResult.Conflict) {
+                return ret == OptimisticResult.Updated;
+            }
+
+            logger.debug(String.format("[Host Capacity] capacity of the host[uuid:%s] changed by others while updating, lock and update it again", hostUuid));
+        }
+
         if (!lockCapacity()) {
             logDeletedHost();
             return false;
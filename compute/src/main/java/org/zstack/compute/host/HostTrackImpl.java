@@ -3,7 +3,6 @@ package org.zstack.compute.host;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
-import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.cloudbus.CloudBusSteppingCallback;
 import org.zstack.core.cloudbus.ResourceDestinationMaker;
 import org.zstack.core.config.GlobalConfig;
@@ -21,18 +20,34 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * pings hosts managed by this management node.
+ *
+ * Every host has its own ping time, spread randomly over the ping interval when the host is tracked and moved
+ * by the interval plus a little jitter after each ping, so hosts are not pinged in one burst per interval. A ticker
+ * running every second sends pings of due hosts, never having more than ping.parallelismDegree pings in flight;
+ * hosts over the limit stay due and go with the next tick. Replies are queued and handled in batches on the next
+ * tick, reconnects found in a batch are sent in one go.
  */
 public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener, Component {
     private final static CLogger logger = Utils.getLogger(HostTrackImpl.class);
 
-    private final List<String> hostUuids = Collections.synchronizedList(new ArrayList<String>());
+    // the jitter added to the interval of each host, in percentage of the interval
+    private static final int PING_JITTER_PERCENTAGE = 10;
+
+    // host uuid -> the next time to ping the host, in milliseconds
+    private final Map<String, Long> hostUuids = new LinkedHashMap<String, Long>();
     private Set<String> hostInTracking = Collections.synchronizedSet(new HashSet<String>());
     private Future<Void> trackerThread = null;
     private final List<String> inReconnectingHost = Collections.synchronizedList(new ArrayList<String>());
+    private final Queue<PingResult> pingResults = new ConcurrentLinkedQueue<PingResult>();
+    // hosts found unreachable by the last ping, only connection changes are reported
+    private final Set<String> unreachableHosts = Collections.synchronizedSet(new HashSet<String>());
+    private final Random random = new Random();
 
     @Autowired
     private DatabaseFacade dbf;
@@ -43,6 +58,30 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     @Autowired
     private ThreadFacade thdf;
 
+    private static class PingResult {
+        String hostUuid;
+        MessageReply reply;
+
+        PingResult(String hostUuid, MessageReply reply) {
+            this.hostUuid = hostUuid;
+            this.reply = reply;
+        }
+    }
+
+    private long getIntervalInMillis() {
+        return TimeUnit.SECONDS.toMillis(HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class));
+    }
+
+    private long firstPingTime() {
+        return System.currentTimeMillis() + (long) (random.nextDouble() * getIntervalInMillis());
+    }
+
+    private long nextPingTime(long now) {
+        long interval = getIntervalInMillis();
+        long jitter = interval * PING_JITTER_PERCENTAGE / 100;
+        return now + interval + (jitter == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitter));
+    }
+
     private class Tracker implements PeriodicTask {
         @Override
         public TimeUnit getTimeUnit() {
@@ -51,7 +90,7 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
         @Override
         public long getInterval() {
-            return HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class);
+            return 1;
         }
 
         @Override
@@ -59,21 +98,28 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
             return "hostTrack-for-managementNode-" + Platform.getManagementServerId();
         }
 
-        private void handleReply(final String hostUuid, MessageReply reply) {
+        private boolean needReconnect(final String hostUuid, MessageReply reply) {
             if (!reply.isSuccess()) {
                 logger.warn(String.format("[Host Tracker]: unable track host[uuid:%s], %s", hostUuid, reply.getError()));
-                return;
+                return false;
             }
 
             boolean needReconnect = false;
             final PingHostReply r = reply.castReply();
+            boolean lost = false;
+            if (r.isConnected()) {
+                unreachableHosts.remove(hostUuid);
+            } else {
+                lost = unreachableHosts.add(hostUuid);
+            }
+
             if (!r.isConnected() && HostStatus.Connected.toString().equals(r.getCurrentHostStatus()) && HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.value(Boolean.class)) {
                 // cannot ping, but host is in Connected status
                 needReconnect = true;
             } else if (r.isConnected() && HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.value(Boolean.class) && HostStatus.Disconnected.toString().equals(r.getCurrentHostStatus())) {
                 // can ping, but host is in Disconnected status
                 needReconnect = true;
-            } else if (!r.isConnected()) {
+            } else if (lost) {
                 logger.debug(String.format("[Host Tracker]: detected host[uuid:%s] connection lost, but connection.autoReconnectOnError is set to false, no reconnect will issue", hostUuid));
             }
 
@@ -83,31 +129,58 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
                 inReconnectingHost.add(hostUuid);
                 logger.debug(String.format("[Host Tracker]: detected host[uuid:%s] connection lost, issue a reconnect because %s is set to true",
                         hostUuid, HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.getCanonicalName()));
-                ReconnectHostMsg msg = new ReconnectHostMsg();
-                msg.setHostUuid(hostUuid);
-                msg.setSkipIfHostConnected(true);
-                bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
-                bus.send(msg, new CloudBusCallBack() {
-                    @Override
-                    public void run(MessageReply reply) {
-                        inReconnectingHost.remove(hostUuid);
+                return true;
+            }
 
-                        if (!reply.isSuccess()) {
-                            logger.warn(String.format("host[uuid:%s] failed to reconnect, %s", hostUuid, reply.getError()));
-                        }
-                    }
-                });
+            return false;
+        }
+
+        private void handleReplies() {
+            List<ReconnectHostMsg> msgs = new ArrayList<ReconnectHostMsg>();
+            PingResult res;
+            while ((res = pingResults.poll()) != null) {
+                if (needReconnect(res.hostUuid, res.reply)) {
+                    ReconnectHostMsg msg = new ReconnectHostMsg();
+                    msg.setHostUuid(res.hostUuid);
+                    msg.setSkipIfHostConnected(true);
+                    bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, res.hostUuid);
+                    msgs.add(msg);
+                }
+            }
+
+            if (msgs.isEmpty()) {
+                return;
             }
+
+            bus.send(msgs, msgs.size(), new CloudBusSteppingCallback() {
+                @Override
+                public void run(NeedReplyMessage msg, MessageReply reply) {
+                    String hostUuid = ((ReconnectHostMsg) msg).getHostUuid();
+                    inReconnectingHost.remove(hostUuid);
+
+                    if (!reply.isSuccess()) {
+                        logger.warn(String.format("host[uuid:%s] failed to reconnect, %s", hostUuid, reply.getError()));
+                    }
+                }
+            });
         }
 
         @Override
         public void run() {
             try {
-                List<PingHostMsg> msgs;
+                handleReplies();
+
+                List<PingHostMsg> msgs = new ArrayList<PingHostMsg>();
+                long now = System.currentTimeMillis();
                 synchronized (hostUuids) {
-                    msgs = new ArrayList<PingHostMsg>();
-                    for (String huuid : hostUuids) {
-                        if (hostInTracking.contains(huuid)) {
+                    int quota = HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.value(Integer.class) - hostInTracking.size();
+                    for (Map.Entry<String, Long> e : hostUuids.entrySet()) {
+                        if (msgs.size() >= quota) {
+                            break;
+                        }
+
+                        String huuid = e.getKey();
+                        if (e.getValue() > now || hostInTracking.contains(huuid)) {
                             continue;
                         }
 
@@ -116,6 +189,7 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
                         bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, huuid);
                         msgs.add(msg);
                         hostInTracking.add(huuid);
+                        e.setValue(nextPingTime(now));
                     }
                 }
 
@@ -123,11 +197,11 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
                     return;
                 }
 
-                bus.send(msgs, HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.value(Integer.class), new CloudBusSteppingCallback() {
+                bus.send(msgs, msgs.size(), new CloudBusSteppingCallback() {
                     @Override
                     public void run(NeedReplyMessage msg, MessageReply reply) {
                         PingHostMsg pmsg = (PingHostMsg)msg;
-                        handleReply(pmsg.getHostUuid(), reply);
+                        pingResults.offer(new PingResult(pmsg.getHostUuid(), reply));
                         hostInTracking.remove(pmsg.getHostUuid());
                     }
                 });
@@ -139,8 +213,8 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
     public void trackHost(String hostUuid) {
         synchronized (hostUuids) {
-            if (!hostUuids.contains(hostUuid)) {
-                hostUuids.add(hostUuid);
+            if (!hostUuids.containsKey(hostUuid)) {
+                hostUuids.put(hostUuid, firstPingTime());
                 logger.debug(String.format("start tracking host[uuid:%s]", hostUuid));
             }
         }
@@ -150,6 +224,7 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     public void untrackHost(String hostUuid) {
         synchronized (hostUuids) {
             hostUuids.remove(hostUuid);
+            unreachableHosts.remove(hostUuid);
             logger.debug(String.format("stop tracking host[uuid:%s]", hostUuid));
         }
     }
@@ -158,8 +233,8 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     public void trackHost(Collection<String> huuids) {
         synchronized (hostUuids) {
             for (String huuid : huuids) {
-                if (!hostUuids.contains(huuid)) {
-                    hostUuids.add(huuid);
+                if (!hostUuids.containsKey(huuid)) {
+                    hostUuids.put(huuid, firstPingTime());
                     logger.debug(String.format("start tracking host[uuid:%s]", huuid));
                 }
             }
@@ -171,14 +246,23 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
         synchronized (hostUuids) {
             for (String huuid : huuids) {
                 hostUuids.remove(huuid);
+                unreachableHosts.remove(huuid);
                 logger.debug(String.format("stop tracking host[uuid:%s]", huuid));
             }
         }
     }
 
+    private void respreadHosts() {
+        synchronized (hostUuids) {
+            for (Map.Entry<String, Long> e : hostUuids.entrySet()) {
+                e.setValue(firstPingTime());
+            }
+        }
+    }
+
     private void reScanHost() {
         synchronized (hostUuids) {
-            hostUuids.clear();
+            Set<String> managed = new HashSet<String>();
 
             long count = dbf.count(HostVO.class);
             int times = (int)count / 10000 + (count%10000 == 0 ? 0 : 1);
@@ -191,12 +275,21 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
                 List<String> huuids = q.listValue();
                 for (String h : huuids) {
                     if (destMaker.isManagedByUs(h)) {
-                        hostUuids.add(h);
+                        managed.add(h);
                     }
                 }
 
                 offset += 10000;
             }
+
+            // hosts still managed by us keep their ping time
+            hostUuids.keySet().retainAll(managed);
+            unreachableHosts.retainAll(managed);
+            for (String h : managed) {
+                if (!hostUuids.containsKey(h)) {
+                    hostUuids.put(h, firstPingTime());
+                }
+            }
         }
     }
 
@@ -234,9 +327,9 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
         HostGlobalConfig.PING_HOST_INTERVAL.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
             @Override
             public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
-                logger.debug(String.format("%s change from %s to %s, restart tracker thread",
+                logger.debug(String.format("%s change from %s to %s, spread hosts over the new interval",
                         oldConfig.getCanonicalName(), oldConfig.value(), newConfig.value()));
-                startTracker();
+                respreadHosts();
             }
         });
     }
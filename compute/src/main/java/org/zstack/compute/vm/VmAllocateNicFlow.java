@@ -16,6 +16,7 @@ import org.zstack.header.core.workflow.FlowRollback;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
 import org.zstack.header.network.l3.*;
 import org.zstack.header.vm.*;
 import org.zstack.identity.AccountManager;
@@ -23,10 +24,7 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.network.NetworkUtils;
 
-import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VmAllocateNicFlow implements Flow {
@@ -84,18 +82,40 @@ public class VmAllocateNicFlow implements Flow {
     @Override
     public void run(final FlowTrigger trigger, final Map data) {
         final VmInstanceSpec spec = (VmInstanceSpec) data.get(VmInstanceConstant.Params.VmInstanceSpec.toString());
-        List<AllocateIpMsg> msgs = new ArrayList<AllocateIpMsg>();
-        for (final L3NetworkInventory nw : spec.getL3Networks()) {
-            AllocateIpMsg msg = new AllocateIpMsg();
+        Map<String, Integer> nicNums = new HashMap<String, Integer>();
+        for (L3NetworkInventory nw : spec.getL3Networks()) {
+            Integer num = nicNums.get(nw.getUuid());
+            nicNums.put(nw.getUuid(), num == null ? 1 : num + 1);
+        }
 
+        List<NeedReplyMessage> msgs = new ArrayList<NeedReplyMessage>();
+        Set<String> bulkL3Uuids = new HashSet<String>();
+        for (final L3NetworkInventory nw : spec.getL3Networks()) {
+            String requiredIp = null;
             List<Map<String, String>> tokenList = VmSystemTags.STATIC_IP.getTokensOfTagsByResourceUuid(spec.getVmInventory().getUuid());
             for (Map<String, String> tokens : tokenList) {
                 String l3Uuid = tokens.get(VmSystemTags.STATIC_IP_L3_UUID_TOKEN);
                 if (l3Uuid.equals(nw.getUuid())) {
-                    msg.setRequiredIp(tokens.get(VmSystemTags.STATIC_IP_TOKEN));
+                    requiredIp = tokens.get(VmSystemTags.STATIC_IP_TOKEN);
+                }
+            }
+
+            int num = nicNums.get(nw.getUuid());
+            if (num > 1 && requiredIp == null) {
+                // ips of all nics on the same l3 network are allocated in one go
+                if (bulkL3Uuids.add(nw.getUuid())) {
+                    AllocateIpsMsg msg = new AllocateIpsMsg();
+                    msg.setNum(num);
+                    msg.setL3NetworkUuid(nw.getUuid());
+                    msg.setAllocateStrategy(spec.getIpAllocatorStrategy());
+                    bus.makeTargetServiceIdByResourceUuid(msg, L3NetworkConstant.SERVICE_ID, nw.getUuid());
+                    msgs.add(msg);
                 }
+                continue;
             }
 
+            AllocateIpMsg msg = new AllocateIpMsg();
+            msg.setRequiredIp(requiredIp);
             msg.setL3NetworkUuid(nw.getUuid());
             msg.setAllocateStrategy(spec.getIpAllocatorStrategy());
             bus.makeTargetServiceIdByResourceUuid(msg, L3NetworkConstant.SERVICE_ID, nw.getUuid());
@@ -112,29 +132,58 @@ public class VmAllocateNicFlow implements Flow {
             @Override
             public void run(List<MessageReply> replies) {
                 ErrorCode err = null;
+                // allocated ips of each l3 network in the order of the replies
+                Map<String, LinkedList<UsedIpInventory>> ipsByL3 = new HashMap<String, LinkedList<UsedIpInventory>>();
                 for (MessageReply r : replies) {
                     if (r.isSuccess()) {
-                        int deviceId = deviceIdBitmap.nextClearBit(0);
-                        deviceIdBitmap.set(deviceId);
-                        AllocateIpReply areply = r.castReply();
-                        VmNicInventory nic = new VmNicInventory();
-                        nic.setUuid(Platform.getUuid());
-                        nic.setIp(areply.getIpInventory().getIp());
-                        nic.setUsedIpUuid(areply.getIpInventory().getUuid());
-                        nic.setVmInstanceUuid(spec.getVmInventory().getUuid());
-                        nic.setL3NetworkUuid(areply.getIpInventory().getL3NetworkUuid());
-                        assert nic.getL3NetworkUuid() != null;
-                        nic.setMac(NetworkUtils.generateMacWithDeviceId((short) deviceId));
-                        nic.setDeviceId(deviceId);
-                        nic.setNetmask(areply.getIpInventory().getNetmask());
-                        nic.setGateway(areply.getIpInventory().getGateway());
-                        nic.setInternalName(VmNicVO.generateNicInternalName(spec.getVmInventory().getInternalId(), nic.getDeviceId()));
-                        spec.getDestNics().add(nic);
+                        List<UsedIpInventory> ips;
+                        if (r instanceof AllocateIpsReply) {
+                            ips = ((AllocateIpsReply) r).getIpInventories();
+                        } else {
+                            AllocateIpReply areply = r.castReply();
+                            ips = Arrays.asList(areply.getIpInventory());
+                        }
+
+                        for (UsedIpInventory ip : ips) {
+                            LinkedList<UsedIpInventory> l3Ips = ipsByL3.get(ip.getL3NetworkUuid());
+                            if (l3Ips == null) {
+                                l3Ips = new LinkedList<UsedIpInventory>();
+                                ipsByL3.put(ip.getL3NetworkUuid(), l3Ips);
+                            }
+                            l3Ips.add(ip);
+                        }
                     } else {
                         err = r.getError();
                     }
                 }
 
+                // device ids follow the order of l3 networks of the vm no matter how the ips are allocated, so
+                // nics get the same device ids and macs as when they were allocated one by one. On failure nics
+                // are still made for allocated ips, the rollback returns them
+                for (L3NetworkInventory nw : spec.getL3Networks()) {
+                    LinkedList<UsedIpInventory> l3Ips = ipsByL3.get(nw.getUuid());
+                    UsedIpInventory ip = l3Ips == null ? null : l3Ips.poll();
+                    if (ip == null) {
+                        continue;
+                    }
+
+                    int deviceId = deviceIdBitmap.nextClearBit(0);
+                    deviceIdBitmap.set(deviceId);
+                    VmNicInventory nic = new VmNicInventory();
+                    nic.setUuid(Platform.getUuid());
+                    nic.setIp(ip.getIp());
+                    nic.setUsedIpUuid(ip.getUuid());
+                    nic.setVmInstanceUuid(spec.getVmInventory().getUuid());
+                    nic.setL3NetworkUuid(ip.getL3NetworkUuid());
+                    assert nic.getL3NetworkUuid() != null;
+                    nic.setMac(NetworkUtils.generateMacWithDeviceId((short) deviceId));
+                    nic.setDeviceId(deviceId);
+                    nic.setNetmask(ip.getNetmask());
+                    nic.setGateway(ip.getGateway());
+                    nic.setInternalName(VmNicVO.generateNicInternalName(spec.getVmInventory().getInternalId(), nic.getDeviceId()));
+                    spec.getDestNics().add(nic);
+                }
+
                 if (err != null) {
                     trigger.fail(err);
                 } else {
@@ -4,11 +4,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.db.DatabaseFacade;
-import org.zstack.core.thread.SyncTask;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.MessageReply;
 import org.zstack.header.vm.*;
 import org.zstack.header.vm.VmTracerCanonicalEvents.StrangerVmFoundData;
 import org.zstack.utils.Utils;
@@ -16,13 +19,20 @@ import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 import static org.zstack.utils.CollectionDSL.list;
 
 /**
+ * reconciles vm states reported by hosts with states in the database.
+ *
+ * Reports are queued per host, a newer report of a host replaces the one not yet handled. At most
+ * VmTracer.parallelismDegree reconcilers run; each takes reports of at most VmTracer.batchSize hosts, loads the
+ * management side states of all of them in one query and diffs them in memory. A host is never diffed by two
+ * reconcilers at the same time. Messages fixing mismatches are queued and sent VmTracer.mismatchParallelismDegree
+ * at a time by all reconcilers, so a reconnecting rack doesn't flood vm queues; a reconciler doesn't wait for their
+ * replies, the hosts and the reconciler are released once the diff is done. A vm already changed by an earlier
+ * message is left alone as its state no longer matches the state at the tracing moment.
  */
 public abstract class VmTracer {
     private static final CLogger logger = Utils.getLogger(VmTracer.class);
@@ -36,133 +46,301 @@ public abstract class VmTracer {
     @Autowired
     private EventFacade evtf;
 
-    private class Tracer {
-        String hostUuid;
-        Map<String, VmInstanceState> hostSideStates;
-        Map<String, VmInstanceState> mgmtSideStates;
+    private static final VmTracerStatistic statistic = new VmTracerStatistic();
+
+    // host uuid -> vm states reported by the host and not reconciled yet
+    private final Map<String, Map<String, VmInstanceState>> pendingReports = new LinkedHashMap<String, Map<String, VmInstanceState>>();
+    private final Set<String> hostsInReconciliation = new HashSet<String>();
+    private int reconcilerNum;
+
+    public static VmTracerStatistic getStatistic() {
+        return statistic.copy();
+    }
+
+    private class Reconciliation {
+        Map<String, Map<String, VmInstanceState>> hostSideStates;
+        // host uuid -> (vm uuid -> state)
+        Map<String, Map<String, VmInstanceState>> mgmtSideStates = new HashMap<String, Map<String, VmInstanceState>>();
+        List<VmStateChangedOnHostMsg> msgs = new ArrayList<VmStateChangedOnHostMsg>();
+        int vmNum;
+        int strangerNum;
+        long startTime;
 
         @Transactional(readOnly = true)
         private void buildManagementServerSideVmStates() {
-            mgmtSideStates = new HashMap<String, VmInstanceState>();
+            for (String hostUuid : hostSideStates.keySet()) {
+                mgmtSideStates.put(hostUuid, new HashMap<String, VmInstanceState>());
+            }
 
-            String sql = "select vm.uuid, vm.state from VmInstanceVO vm where vm.hostUuid = :huuid or (vm.hostUuid is null and vm.lastHostUuid = :huuid)" +
-                    " and vm.state not in (:vmstates)";
+            String sql = "select vm.uuid, vm.state, vm.hostUuid, vm.lastHostUuid from VmInstanceVO vm where vm.hostUuid in (:huuids)" +
+                    " or (vm.hostUuid is null and vm.lastHostUuid in (:huuids)) and vm.state not in (:vmstates)";
             TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-            q.setParameter("huuid", hostUuid);
+            q.setParameter("huuids", new ArrayList<String>(hostSideStates.keySet()));
             q.setParameter("vmstates", list(VmInstanceState.Destroyed, VmInstanceState.Destroying));
             List<Tuple> ts = q.getResultList();
 
             for (Tuple t : ts) {
-                mgmtSideStates.put(t.get(0, String.class), t.get(1, VmInstanceState.class));
+                String hostUuid = t.get(2, String.class);
+                if (hostUuid == null) {
+                    hostUuid = t.get(3, String.class);
+                }
+                mgmtSideStates.get(hostUuid).put(t.get(0, String.class), t.get(1, VmInstanceState.class));
             }
         }
 
+        @Transactional(readOnly = true)
+        private Map<String, VmInstanceState> findVmStates(Collection<String> vmUuids) {
+            Map<String, VmInstanceState> ret = new HashMap<String, VmInstanceState>();
+            if (vmUuids.isEmpty()) {
+                return ret;
+            }
+
+            String sql = "select vm.uuid, vm.state from VmInstanceVO vm where vm.uuid in (:uuids)";
+            TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+            q.setParameter("uuids", new ArrayList<String>(vmUuids));
+            for (Tuple t : q.getResultList()) {
+                ret.put(t.get(0, String.class), t.get(1, VmInstanceState.class));
+            }
+            return ret;
+        }
+
         private void checkFromHostSide() {
-            for (Map.Entry<String, VmInstanceState> e : hostSideStates.entrySet()) {
-                String vmUuid = e.getKey();
-                VmInstanceState actualState = e.getValue();
-
-                VmInstanceState expectedState = mgmtSideStates.get(vmUuid);
-                if (expectedState == null) {
-                    // an anonymous vm showing on this host
-                    handleAnonymousVm(vmUuid, actualState, expectedState);
-                } else if (actualState != expectedState) {
-                    // vm state changed on host side
-                    handleStateChangeOnHostSide(vmUuid, actualState, expectedState);
+            // vm uuid -> host uuid of vms not in the database as on the host
+            Map<String, String> anonymousVms = new HashMap<String, String>();
+            for (Map.Entry<String, Map<String, VmInstanceState>> he : hostSideStates.entrySet()) {
+                String hostUuid = he.getKey();
+                Map<String, VmInstanceState> mgmtStates = mgmtSideStates.get(hostUuid);
+                vmNum += he.getValue().size();
+
+                for (Map.Entry<String, VmInstanceState> e : he.getValue().entrySet()) {
+                    String vmUuid = e.getKey();
+                    VmInstanceState actualState = e.getValue();
+
+                    VmInstanceState expectedState = mgmtStates.get(vmUuid);
+                    if (expectedState == null) {
+                        // an anonymous vm showing on this host
+                        anonymousVms.put(vmUuid, hostUuid);
+                    } else if (actualState != expectedState) {
+                        // vm state changed on host side
+                        handleStateChangeOnHostSide(hostUuid, vmUuid, actualState, expectedState);
+                    }
                 }
             }
+
+            Map<String, VmInstanceState> existing = findVmStates(anonymousVms.keySet());
+            for (Map.Entry<String, String> e : anonymousVms.entrySet()) {
+                handleAnonymousVm(e.getValue(), e.getKey(), hostSideStates.get(e.getValue()).get(e.getKey()), existing.containsKey(e.getKey()));
+            }
         }
 
-        private void handleStateChangeOnHostSide(final String vmUuid, final VmInstanceState actualState, VmInstanceState expected) {
+        private void handleStateChangeOnHostSide(String hostUuid, String vmUuid, VmInstanceState actualState, VmInstanceState expected) {
             VmStateChangedOnHostMsg msg = new VmStateChangedOnHostMsg();
             msg.setVmStateAtTracingMoment(expected);
             msg.setVmInstanceUuid(vmUuid);
             msg.setStateOnHost(actualState);
             msg.setHostUuid(hostUuid);
             bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vmUuid);
-            bus.send(msg);
+            msgs.add(msg);
         }
 
-        private void handleAnonymousVm(final String vmUuid, final VmInstanceState actualState, VmInstanceState expected) {
-            final VmInstanceVO vm = dbf.findByUuid(vmUuid, VmInstanceVO.class);
-            if (vm == null) {
+        private void handleAnonymousVm(String hostUuid, String vmUuid, VmInstanceState actualState, boolean inDatabase) {
+            if (!inDatabase) {
                 logger.debug(String.format("[Vm Tracer] detects stranger vm[identity:%s, state:%s]", vmUuid, actualState));
                 StrangerVmFoundData data = new StrangerVmFoundData();
                 data.setVmIdentity(vmUuid);
                 data.setVmState(actualState);
                 data.setHostUuid(hostUuid);
                 evtf.fire(VmTracerCanonicalEvents.STRANGER_VM_FOUND_PATH, data);
+                strangerNum ++;
                 return;
             }
 
-            handleStateChangeOnHostSide(vmUuid, actualState, expected);
+            handleStateChangeOnHostSide(hostUuid, vmUuid, actualState, null);
         }
 
         private void checkFromManagementServerSide() {
             // from mgmt server we only check missing vm, vm state change has been updated by host side check
-            for (Map.Entry<String, VmInstanceState> e : mgmtSideStates.entrySet()) {
-                String vmUuid = e.getKey();
-                VmInstanceState expectedState = e.getValue();
-                if (expectedState != VmInstanceState.Stopped && !hostSideStates.containsKey(vmUuid)) {
-                    handleMissingVm(vmUuid, expectedState);
+            for (Map.Entry<String, Map<String, VmInstanceState>> he : mgmtSideStates.entrySet()) {
+                String hostUuid = he.getKey();
+                Map<String, VmInstanceState> hostStates = hostSideStates.get(hostUuid);
+                for (Map.Entry<String, VmInstanceState> e : he.getValue().entrySet()) {
+                    String vmUuid = e.getKey();
+                    VmInstanceState expectedState = e.getValue();
+                    if (expectedState != VmInstanceState.Stopped && !hostStates.containsKey(vmUuid)) {
+                        handleMissingVm(hostUuid, vmUuid, expectedState);
+                    }
                 }
             }
         }
 
-        private void handleMissingVm(final String vmUuid, final VmInstanceState expectedState) {
+        private void handleMissingVm(String hostUuid, String vmUuid, VmInstanceState expectedState) {
             VmStateChangedOnHostMsg msg = new VmStateChangedOnHostMsg();
             msg.setVmStateAtTracingMoment(expectedState);
             msg.setHostUuid(hostUuid);
             msg.setVmInstanceUuid(vmUuid);
             msg.setStateOnHost(VmInstanceState.Stopped);
             bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vmUuid);
-            bus.send(msg);
+            msgs.add(msg);
         }
 
-        void trace() {
+        private void done() {
+            long time = System.currentTimeMillis() - startTime;
+            statistic.addStatistic(hostSideStates.size(), vmNum, msgs.size(), strangerNum, time);
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[Vm Tracer] reconciled vm states on %s hosts, %s vms, %s mismatches, %s stranger vms in %s ms",
+                        hostSideStates.size(), vmNum, msgs.size(), strangerNum, time));
+            }
+        }
+
+        void reconcile() {
+            startTime = System.currentTimeMillis();
             buildManagementServerSideVmStates();
             checkFromHostSide();
             checkFromManagementServerSide();
+            done();
+
+            for (VmStateChangedOnHostMsg msg : msgs) {
+                fixMismatch(msg);
+            }
         }
     }
 
-    protected void reportVmState(final String hostUuid, final Map<String, VmInstanceState> vmStates) {
-        for (VmInstanceState state : vmStates.values()) {
-            if (state != VmInstanceState.Running && state != VmInstanceState.Stopped) {
-                throw new CloudRuntimeException(String.format("host can only report vm state as Running or Stopped, got %s", state));
+    private void fixMismatch(final VmStateChangedOnHostMsg msg) {
+        thdf.chainSubmit(new ChainTask() {
+            @Override
+            public String getSyncSignature() {
+                return "vm-tracer-fix-mismatch";
+            }
+
+            @Override
+            public int getSyncLevel() {
+                return CoreGlobalProperty.VM_TRACER_MISMATCH_PARALLELISM_DEGREE;
+            }
+
+            @Override
+            public void run(final SyncTaskChain chain) {
+                bus.send(msg, new CloudBusCallBack(chain) {
+                    @Override
+                    public void run(MessageReply reply) {
+                        if (!reply.isSuccess()) {
+                            logger.warn(String.format("[Vm Tracer] failed to change state of the vm[uuid:%s] to %s reported by the host[uuid:%s], %s",
+                                    msg.getVmInstanceUuid(), msg.getStateOnHost(), msg.getHostUuid(), reply.getError()));
+                        }
+
+                        chain.next();
+                    }
+                });
+            }
+
+            @Override
+            public String getName() {
+                return String.format("fix-state-of-vm-%s-reported-by-host-%s", msg.getVmInstanceUuid(), msg.getHostUuid());
+            }
+        });
+    }
+
+    private Map<String, Map<String, VmInstanceState>> takeReports() {
+        Map<String, Map<String, VmInstanceState>> reports = new HashMap<String, Map<String, VmInstanceState>>();
+        synchronized (pendingReports) {
+            Iterator<Map.Entry<String, Map<String, VmInstanceState>>> it = pendingReports.entrySet().iterator();
+            while (it.hasNext() && reports.size() < CoreGlobalProperty.VM_TRACER_BATCH_SIZE) {
+                Map.Entry<String, Map<String, VmInstanceState>> e = it.next();
+                if (hostsInReconciliation.contains(e.getKey())) {
+                    continue;
+                }
+
+                reports.put(e.getKey(), e.getValue());
+                hostsInReconciliation.add(e.getKey());
+                it.remove();
+            }
+
+            if (reports.isEmpty()) {
+                reconcilerNum --;
             }
         }
 
-        if (!CoreGlobalProperty.VM_TRACER_ON) {
-            logger.debug(String.format("vm tracer is off, skip reporting vm state on host[uuid:%s]", hostUuid));
+        return reports;
+    }
+
+    private void reconcile(final SyncTaskChain chain) {
+        final Map<String, Map<String, VmInstanceState>> reports = takeReports();
+        if (reports.isEmpty()) {
+            chain.next();
             return;
         }
 
-        thdf.syncSubmit(new SyncTask<Object>() {
+        Reconciliation r = new Reconciliation();
+        r.hostSideStates = reports;
+        try {
+            r.reconcile();
+        } catch (Throwable t) {
+            logger.warn(String.format("[Vm Tracer] unhandled exception when reconciling vm states on hosts%s", reports.keySet()), t);
+        }
+
+        synchronized (pendingReports) {
+            hostsInReconciliation.removeAll(reports.keySet());
+            reconcilerNum --;
+        }
+
+        chain.next();
+        // reports of the hosts may have come during the reconciliation, or been skipped by other reconcilers
+        startReconcilerIfNeeded();
+    }
+
+    private void startReconcilerIfNeeded() {
+        synchronized (pendingReports) {
+            if (pendingReports.isEmpty() || reconcilerNum >= CoreGlobalProperty.VM_TRACER_PARALLELISM_DEGREE) {
+                return;
+            }
+            reconcilerNum ++;
+        }
+
+        startReconciler();
+    }
+
+    private void startReconciler() {
+        thdf.chainSubmit(new ChainTask() {
             @Override
             public String getSyncSignature() {
-                return String.format("trace-vm-state-on-host-%s", hostUuid);
+                return "vm-tracer";
             }
 
             @Override
             public int getSyncLevel() {
-                return 1;
+                return CoreGlobalProperty.VM_TRACER_PARALLELISM_DEGREE;
             }
 
             @Override
-            public String getName() {
-                return String.format("trace-vm-state-on-host-%s", hostUuid);
+            public void run(SyncTaskChain chain) {
+                reconcile(chain);
             }
 
             @Override
-            public Object call() throws Exception {
-                Tracer t = new Tracer();
-                t.hostUuid = hostUuid;
-                t.hostSideStates = vmStates;
-                t.trace();
-                return null;
+            public String getName() {
+                return "reconcile-vm-states";
             }
         });
     }
 
+    protected void reportVmState(final String hostUuid, final Map<String, VmInstanceState> vmStates) {
+        for (VmInstanceState state : vmStates.values()) {
+            if (state != VmInstanceState.Running && state != VmInstanceState.Stopped) {
+                throw new CloudRuntimeException(String.format("host can only report vm state as Running or Stopped, got %s", state));
+            }
+        }
+
+        if (!CoreGlobalProperty.VM_TRACER_ON) {
+            logger.debug(String.format("vm tracer is off, skip reporting vm state on host[uuid:%s]", hostUuid));
+            return;
+        }
+
+        synchronized (pendingReports) {
+            // a newer report replaces the one not reconciled yet
+            pendingReports.remove(hostUuid);
+            pendingReports.put(hostUuid, vmStates);
+        }
+
+        startReconcilerIfNeeded();
+    }
+
 }
@@ -0,0 +1,81 @@
+package org.zstack.compute.vm;
+
+/**
+ * counters of the vm tracer since the management node started.
+ *
+ * A reconciliation diffs the vm states reported by a batch of hosts against the database in one query.
+ */
+public class VmTracerStatistic {
+    private long reconciliationCount;
+    private long hostCount;
+    private long vmCount;
+    private long mismatchCount;
+    private long strangerCount;
+    private long totalTime;
+    private long maxTime;
+    private long lastTime;
+
+    public long getReconciliationCount() {
+        return reconciliationCount;
+    }
+
+    public long getHostCount() {
+        return hostCount;
+    }
+
+    public long getVmCount() {
+        return vmCount;
+    }
+
+    public long getMismatchCount() {
+        return mismatchCount;
+    }
+
+    public long getStrangerCount() {
+        return strangerCount;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    synchronized void addStatistic(int hosts, int vms, int mismatches, int strangers, long time) {
+        reconciliationCount ++;
+        hostCount += hosts;
+        vmCount += vms;
+        mismatchCount += mismatches;
+        strangerCount += strangers;
+        totalTime += time;
+        maxTime = Math.max(maxTime, time);
+        lastTime = time;
+    }
+
+    synchronized VmTracerStatistic copy() {
+        VmTracerStatistic s = new VmTracerStatistic();
+        s.reconciliationCount = reconciliationCount;
+        s.hostCount = hostCount;
+        s.vmCount = vmCount;
+        s.mismatchCount = mismatchCount;
+        s.strangerCount = strangerCount;
+        s.totalTime = totalTime;
+        s.maxTime = maxTime;
+        s.lastTime = lastTime;
+        return s;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("VmTracer: reconciliations: %s, hosts: %s, vms: %s, mismatches: %s, stranger vms: %s, " +
+                        "average time: %s ms, max time: %s ms",
+                reconciliationCount, hostCount, vmCount, mismatchCount, strangerCount,
+                reconciliationCount == 0 ? 0 : totalTime / reconciliationCount, maxTime);
+    }
+}
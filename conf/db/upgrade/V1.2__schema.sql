@@ -2,3 +2,6 @@ UPDATE GlobalConfigVO set defaultValue = 'none' where category ='kvm' and name =
 UPDATE GlobalConfigVO set value = 'none' where category ='kvm' and name = 'vm.cacheMode' and value = '0';
 UPDATE GlobalConfigVO set value = 'writethrough' where category ='kvm' and name = 'vm.cacheMode' and value = '1';
 UPDATE GlobalConfigVO set value = 'writeback' where category ='kvm' and name = 'vm.cacheMode' and value = '2';
+
+ALTER TABLE `zstack`.`ImageCacheVO` ADD COLUMN `hitCount` bigint unsigned DEFAULT 0;
+ALTER TABLE `zstack`.`ImageCacheVO` ADD COLUMN `lastUsedDate` timestamp NULL DEFAULT NULL;
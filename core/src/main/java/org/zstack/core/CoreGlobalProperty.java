@@ -10,10 +10,18 @@ public class CoreGlobalProperty {
     public static String BEAN_REF_CONTEXT_CONF;
     @GlobalProperty(name="vmTracerOn", defaultValue = "true")
     public static boolean VM_TRACER_ON ;
+    @GlobalProperty(name="VmTracer.batchSize", defaultValue = "50")
+    public static int VM_TRACER_BATCH_SIZE;
+    @GlobalProperty(name="VmTracer.parallelismDegree", defaultValue = "4")
+    public static int VM_TRACER_PARALLELISM_DEGREE;
+    @GlobalProperty(name="VmTracer.mismatchParallelismDegree", defaultValue = "10")
+    public static int VM_TRACER_MISMATCH_PARALLELISM_DEGREE;
     @GlobalProperty(name="profiler.workflow", defaultValue = "false")
     public static boolean PROFILER_WORKFLOW ;
     @GlobalProperty(name="profiler.httpCall", defaultValue = "false")
     public static boolean PROFILER_HTTP_CALL;
+    @GlobalProperty(name="profiler.glock", defaultValue = "false")
+    public static boolean PROFILER_GLOCK;
     @GlobalProperty(name="exitJVMOnBootFailure", defaultValue = "true")
     public static boolean EXIT_JVM_ON_BOOT_FAILURE;
     @GlobalProperty(name="checkBoxTypeInInventory", defaultValue = "false")
@@ -34,4 +42,10 @@ public class CoreGlobalProperty {
     public static int REST_FACADE_READ_TIMEOUT;
     @GlobalProperty(name="RESTFacade.connectTimeout", defaultValue = "300000")
     public static int REST_FACADE_CONNECT_TIMEOUT;
+    @GlobalProperty(name="RESTFacade.maxPerRoute", defaultValue = "20")
+    public static int REST_FACADE_MAX_PER_ROUTE;
+    @GlobalProperty(name="RESTFacade.maxTotal", defaultValue = "1000")
+    public static int REST_FACADE_MAX_TOTAL;
+    @GlobalProperty(name="Cascade.parallelismDegree", defaultValue = "1")
+    public static int CASCADE_PARALLELISM_DEGREE;
 }
@@ -1,14 +1,13 @@
 package org.zstack.core.cascade;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.componentloader.PluginRegistry;
-import org.zstack.core.workflow.*;
+import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.Component;
 import org.zstack.header.core.Completion;
-import org.zstack.header.core.workflow.*;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.exception.CloudRuntimeException;
-import org.zstack.utils.Bucket;
 import org.zstack.utils.DebugUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
@@ -55,8 +54,27 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
         private HashSet<TreeNode> leafs;
     }
 
+    /**
+     * a step of an async cascade, the cascade of a node of the traversing tree with the action from its parent.
+     *
+     * A step waits for the steps before it in the post order of the tree that cascade any of the resources it
+     * covers(itself and its children), so children go before parents and resources of the same type are cascaded
+     * in the original order; branches covering different resources are independent and run in parallel.
+     */
+    private class Step {
+        Node node;
+        CascadeAction action;
+        int index;
+        Set<String> resources = new HashSet<String>();
+        List<Step> dependents = new ArrayList<Step>();
+        int dependencies;
+        boolean completed;
+    }
+
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private ErrorFacade errf;
 
     private Map<String, Node> nodes = new HashMap<String, Node>();
     private Map<String, TreeNode> cascadeTree = new HashMap<String, TreeNode>();
@@ -120,7 +138,7 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
         }
     }
 
-    private void collectPathsForAsyncCascade(TreeNode treeNode, boolean init, boolean fullTraverse, CascadeAction action, List<Bucket> result) {
+    private Step collectPathsForAsyncCascade(TreeNode treeNode, boolean init, boolean fullTraverse, CascadeAction action, List<Step> result) {
         CascadeAction currentAction;
         Node node = treeNode.node;
         if (!init) {
@@ -129,6 +147,7 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
             currentAction = action;
         }
 
+        Step step = new Step();
         if (fullTraverse) {
             if (currentAction == null) {
                 currentAction = new CascadeAction();
@@ -140,19 +159,158 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
             }
 
             for (TreeNode tn : treeNode.leafs) {
-                collectPathsForAsyncCascade(tn, false, true, currentAction, result);
+                step.resources.addAll(collectPathsForAsyncCascade(tn, false, true, currentAction, result).resources);
             }
         } else {
             if (currentAction != null) {
                 checkForNullElement(node, currentAction);
 
                 for (TreeNode tn : treeNode.leafs) {
-                    collectPathsForAsyncCascade(tn, false, false, currentAction, result);
+                    step.resources.addAll(collectPathsForAsyncCascade(tn, false, false, currentAction, result).resources);
                 }
             }
         }
 
-        result.add(Bucket.newBucket(node, action));
+        step.node = node;
+        step.action = action;
+        step.index = result.size();
+        step.resources.add(node.getName());
+        result.add(step);
+        return step;
+    }
+
+    private void resolveDependencies(List<Step> steps) {
+        Map<String, Step> lastSteps = new HashMap<String, Step>();
+        for (Step step : steps) {
+            Set<Step> deps = new HashSet<Step>();
+            for (String r : step.resources) {
+                Step last = lastSteps.get(r);
+                if (last != null) {
+                    deps.add(last);
+                }
+                lastSteps.put(r, step);
+            }
+
+            for (Step dep : deps) {
+                dep.dependents.add(step);
+            }
+            step.dependencies = deps.size();
+        }
+    }
+
+    private class AsyncCascadeRunner {
+        List<Step> steps;
+        int parallelismDegree;
+        CascadeAction action;
+        Completion completion;
+
+        PriorityQueue<Step> readySteps = new PriorityQueue<Step>(11, new Comparator<Step>() {
+            @Override
+            public int compare(Step o1, Step o2) {
+                return o1.index - o2.index;
+            }
+        });
+        int running;
+        int done;
+        ErrorCode error;
+        boolean finished;
+        long startTime = System.currentTimeMillis();
+
+        void start() {
+            for (Step step : steps) {
+                if (step.dependencies == 0) {
+                    readySteps.add(step);
+                }
+            }
+            schedule();
+        }
+
+        void schedule() {
+            List<Step> toRun = new ArrayList<Step>();
+            boolean finish = false;
+            ErrorCode err;
+            synchronized (this) {
+                while (error == null && running < parallelismDegree && !readySteps.isEmpty()) {
+                    toRun.add(readySteps.poll());
+                    running ++;
+                }
+
+                if (!finished && running == 0 && (error != null || done == steps.size())) {
+                    finished = true;
+                    finish = true;
+                }
+                err = error;
+            }
+
+            if (finish) {
+                if (err == null) {
+                    logger.debug(String.format("[Async cascade (%s)]: %s steps of %s finished in %s ms", action.getActionCode(),
+                            steps.size(), action.getRootIssuer(), System.currentTimeMillis() - startTime));
+                    completion.success();
+                } else {
+                    completion.fail(err);
+                }
+                return;
+            }
+
+            for (Step step : toRun) {
+                run(step);
+            }
+        }
+
+        void run(final Step step) {
+            final CascadeAction caction = step.action;
+            final long stepStartTime = System.currentTimeMillis();
+            logger.debug(String.format("[Async cascade (%s)]: %s --> %s", caction.getActionCode(), caction.getParentIssuer(), step.node.getName()));
+            Completion stepCompletion = new Completion() {
+                @Override
+                public void success() {
+                    int num;
+                    synchronized (AsyncCascadeRunner.this) {
+                        if (step.completed) {
+                            return;
+                        }
+                        step.completed = true;
+                        running --;
+                        num = ++ done;
+                        for (Step d : step.dependents) {
+                            if (-- d.dependencies == 0) {
+                                readySteps.add(d);
+                            }
+                        }
+                    }
+
+                    logger.debug(String.format("[Async cascade (%s)]: %s --> %s done in %s ms, progress: %s/%s", caction.getActionCode(),
+                            caction.getParentIssuer(), step.node.getName(), System.currentTimeMillis() - stepStartTime, num, steps.size()));
+                    schedule();
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    synchronized (AsyncCascadeRunner.this) {
+                        if (step.completed) {
+                            return;
+                        }
+                        step.completed = true;
+                        running --;
+                        if (error == null) {
+                            error = errorCode;
+                        }
+                    }
+
+                    logger.debug(String.format("[Async cascade (%s)]: %s --> %s failed, %s", caction.getActionCode(),
+                            caction.getParentIssuer(), step.node.getName(), errorCode));
+                    schedule();
+                }
+            };
+
+            try {
+                step.node.getExtension().asyncCascade(caction, stepCompletion);
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception when cascading %s --> %s", caction.getParentIssuer(), step.node.getName()), t);
+                stepCompletion.fail(errf.throwableToInternalError(t));
+            }
+        }
     }
 
     @Override
@@ -178,42 +336,16 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
 
         TreeNode root = cascadeTree.get(action.getRootIssuer());
         DebugUtils.Assert(root!=null, String.format("found no CascadeExtension for %s", action.getRootIssuer()));
-        List<Bucket> paths = new ArrayList<Bucket>();
-        collectPathsForAsyncCascade(root, true, action.isFullTraverse(), action, paths);
-        FlowChain chain = FlowChainBuilder.newSimpleFlowChain();
-        for (Bucket path : paths) {
-            final Node node = path.get(0);
-            final CascadeAction caction = path.get(1);
-            chain.then(new NoRollbackFlow() {
-                @Override
-                public void run(final FlowTrigger trigger, Map data) {
-                    logger.debug(String.format("[Async cascade (%s)]: %s --> %s", caction.getActionCode(), caction.getParentIssuer(), node.getName()));
-                    node.getExtension().asyncCascade(caction, new Completion() {
-                        @Override
-                        public void success() {
-                            trigger.next();
-                        }
-
-                        @Override
-                        public void fail(ErrorCode errorCode) {
-                            trigger.fail(errorCode);
-                        }
-                    });
-                }
-            });
-        }
-
-        chain.done(new FlowDoneHandler() {
-            @Override
-            public void handle(Map data) {
-                completion.success();
-            }
-        }).error(new FlowErrorHandler() {
-            @Override
-            public void handle(ErrorCode errCode, Map data) {
-                completion.fail(errCode);
-            }
-        }).setName(String.format("Cascade: %s", action.getActionCode())).start();
+        List<Step> steps = new ArrayList<Step>();
+        collectPathsForAsyncCascade(root, true, action.isFullTraverse(), action, steps);
+        resolveDependencies(steps);
+
+        AsyncCascadeRunner runner = new AsyncCascadeRunner();
+        runner.steps = steps;
+        runner.parallelismDegree = Math.max(CoreGlobalProperty.CASCADE_PARALLELISM_DEGREE, 1);
+        runner.action = action;
+        runner.completion = completion;
+        runner.start();
     }
 
     @Override
@@ -0,0 +1,545 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.GsonTransient;
+import org.zstack.header.message.Message;
+import org.zstack.utils.FieldUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * a compact binary codec.
+ *
+ * Fields of a class are introspected once and cached, the encoding carries the runtime class of every
+ * object so polymorphic fields are restored without the JSON schema walk. Field names of a class are
+ * written once per message and matched by name on decoding, fields unknown to the receiver are dropped,
+ * so nodes of different versions can still talk.
+ *
+ * Classes that can't be instantiated reflectively (no default constructor, anonymous classes, classes out of
+ * org.zstack), EnumMap/EnumSet and cyclic object graphs make the codec refuse the message class, which then
+ * falls back to JSON.
+ *
+ * A class named on the wire is only loaded and instantiated if it's what the encoder could have written: a
+ * Message at the top, a supported org.zstack class for objects, an enum, an array or one of the collections
+ * the encoder substitutes. Anything else fails the decoding before the class is initialized.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    private static final CLogger logger = Utils.getLogger(BinaryMessageCodec.class);
+
+    public static final String NAME = "binary";
+
+    private static final byte VERSION = 1;
+
+    private static final byte T_NULL = 0;
+    private static final byte T_STRING = 1;
+    private static final byte T_INT = 2;
+    private static final byte T_LONG = 3;
+    private static final byte T_BOOLEAN = 4;
+    private static final byte T_DOUBLE = 5;
+    private static final byte T_FLOAT = 6;
+    private static final byte T_SHORT = 7;
+    private static final byte T_BYTE = 8;
+    private static final byte T_CHAR = 9;
+    private static final byte T_ENUM = 10;
+    private static final byte T_DATE = 11;
+    private static final byte T_TIMESTAMP = 12;
+    private static final byte T_BYTES = 13;
+    private static final byte T_ARRAY = 14;
+    private static final byte T_COLLECTION = 15;
+    private static final byte T_MAP = 16;
+    private static final byte T_OBJECT = 17;
+
+    private static final int NEW_CLASS = -1;
+    private static final String CHARSET = "UTF-8";
+    private static final String SUPPORTED_PACKAGE = "org.zstack.";
+
+    private static final Set<Class> instantiableCollections = new HashSet<Class>();
+
+    static {
+        instantiableCollections.add(ArrayList.class);
+        instantiableCollections.add(LinkedList.class);
+        instantiableCollections.add(HashSet.class);
+        instantiableCollections.add(LinkedHashSet.class);
+        instantiableCollections.add(TreeSet.class);
+        instantiableCollections.add(HashMap.class);
+        instantiableCollections.add(LinkedHashMap.class);
+        instantiableCollections.add(TreeMap.class);
+        instantiableCollections.add(ConcurrentHashMap.class);
+    }
+
+    private static class UnsupportedTypeException extends IOException {
+        UnsupportedTypeException(String message) {
+            super(message);
+        }
+    }
+
+    private static class ClassCodec {
+        Class clazz;
+        Constructor constructor;
+        Field[] fields;
+        Map<String, Field> fieldsByName = new HashMap<String, Field>();
+
+        ClassCodec(Class clazz) {
+            this.clazz = clazz;
+
+            if (!clazz.isEnum() && !clazz.isArray() && !Collection.class.isAssignableFrom(clazz) && !Map.class.isAssignableFrom(clazz)) {
+                try {
+                    constructor = clazz.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    constructor = null;
+                }
+            }
+
+            List<Field> fs = new ArrayList<Field>();
+            if (constructor != null) {
+                for (Field f : FieldUtils.getAllFields(clazz)) {
+                    int mod = f.getModifiers();
+                    if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic() || f.isAnnotationPresent(GsonTransient.class)) {
+                        continue;
+                    }
+
+                    if (fieldsByName.containsKey(f.getName())) {
+                        // a field hidden by a subclass, gson refuses such classes as well
+                        constructor = null;
+                        break;
+                    }
+
+                    f.setAccessible(true);
+                    fs.add(f);
+                    fieldsByName.put(f.getName(), f);
+                }
+            }
+
+            fields = fs.toArray(new Field[fs.size()]);
+        }
+
+        boolean isObjectSupported() {
+            return constructor != null && !clazz.isAnonymousClass() && !clazz.isLocalClass()
+                    && clazz.getName().startsWith(SUPPORTED_PACKAGE);
+        }
+    }
+
+    private static class ClassRef {
+        Class clazz;
+        // fields in the order of the sender, null if unknown to this node
+        Field[] fields;
+    }
+
+    private final Map<Class, ClassCodec> classCodecs = new ConcurrentHashMap<Class, ClassCodec>();
+    private final Map<String, Class> classes = new ConcurrentHashMap<String, Class>();
+    private final Map<Class, Boolean> unsupportedMessages = new ConcurrentHashMap<Class, Boolean>();
+
+    private ClassCodec getClassCodec(Class clz) {
+        ClassCodec c = classCodecs.get(clz);
+        if (c == null) {
+            c = new ClassCodec(clz);
+            classCodecs.put(clz, c);
+        }
+        return c;
+    }
+
+    private Class loadClass(String name) throws IOException {
+        Class clz = classes.get(name);
+        if (clz == null) {
+            try {
+                // not initialized, the class is checked before anything of it runs
+                clz = Class.forName(name, false, BinaryMessageCodec.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IOException(String.format("unable to decode class[%s]", name), e);
+            }
+            classes.put(name, clz);
+        }
+        return clz;
+    }
+
+    private class Encoder {
+        DataOutputStream out;
+        Map<Class, Integer> classIndex = new HashMap<Class, Integer>();
+        // objects being written on the path from the message to the current value
+        Set<Object> path = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        Encoder(OutputStream os) {
+            out = new DataOutputStream(os);
+        }
+
+        void writeString(String s) throws IOException {
+            byte[] b = s.getBytes(CHARSET);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        ClassCodec writeClassRef(Class clz, boolean withFields) throws IOException {
+            ClassCodec codec = withFields ? getClassCodec(clz) : null;
+            Integer idx = classIndex.get(clz);
+            if (idx != null) {
+                out.writeInt(idx);
+                return codec;
+            }
+
+            classIndex.put(clz, classIndex.size());
+            out.writeInt(NEW_CLASS);
+            writeString(clz.getName());
+            if (withFields) {
+                out.writeInt(codec.fields.length);
+                for (Field f : codec.fields) {
+                    writeString(f.getName());
+                }
+            }
+            return codec;
+        }
+
+        void enter(Object v) throws IOException {
+            if (!path.add(v)) {
+                throw new UnsupportedTypeException(String.format("a cyclic reference to %s is not supported by the binary codec", v.getClass().getName()));
+            }
+        }
+
+        Class concreteCollectionClass(Object v) throws IOException {
+            Class clz = v.getClass();
+            if (instantiableCollections.contains(clz)) {
+                return clz;
+            } else if (v instanceof EnumMap || v instanceof EnumSet) {
+                // decoded as a LinkedHashMap/LinkedHashSet, they couldn't be set to the field
+                throw new UnsupportedTypeException(String.format("%s is not supported by the binary codec", clz.getName()));
+            } else if (v instanceof Map) {
+                return LinkedHashMap.class;
+            } else if (v instanceof SortedSet) {
+                return TreeSet.class;
+            } else if (v instanceof Set) {
+                return LinkedHashSet.class;
+            } else {
+                return ArrayList.class;
+            }
+        }
+
+        void writeValue(Object v) throws IOException {
+            if (v == null) {
+                out.writeByte(T_NULL);
+                return;
+            }
+
+            Class clz = v.getClass();
+            if (clz == String.class) {
+                out.writeByte(T_STRING);
+                writeString((String) v);
+            } else if (clz == Integer.class) {
+                out.writeByte(T_INT);
+                out.writeInt((Integer) v);
+            } else if (clz == Long.class) {
+                out.writeByte(T_LONG);
+                out.writeLong((Long) v);
+            } else if (clz == Boolean.class) {
+                out.writeByte(T_BOOLEAN);
+                out.writeBoolean((Boolean) v);
+            } else if (clz == Double.class) {
+                out.writeByte(T_DOUBLE);
+                out.writeDouble((Double) v);
+            } else if (clz == Float.class) {
+                out.writeByte(T_FLOAT);
+                out.writeFloat((Float) v);
+            } else if (clz == Short.class) {
+                out.writeByte(T_SHORT);
+                out.writeShort((Short) v);
+            } else if (clz == Byte.class) {
+                out.writeByte(T_BYTE);
+                out.writeByte((Byte) v);
+            } else if (clz == Character.class) {
+                out.writeByte(T_CHAR);
+                out.writeChar((Character) v);
+            } else if (v instanceof Enum) {
+                out.writeByte(T_ENUM);
+                writeClassRef(((Enum) v).getDeclaringClass(), false);
+                writeString(((Enum) v).name());
+            } else if (clz == Timestamp.class) {
+                out.writeByte(T_TIMESTAMP);
+                out.writeLong(((Timestamp) v).getTime());
+                out.writeInt(((Timestamp) v).getNanos());
+            } else if (clz == Date.class) {
+                out.writeByte(T_DATE);
+                out.writeLong(((Date) v).getTime());
+            } else if (clz == byte[].class) {
+                byte[] b = (byte[]) v;
+                out.writeByte(T_BYTES);
+                out.writeInt(b.length);
+                out.write(b);
+            } else if (clz.isArray()) {
+                enter(v);
+                out.writeByte(T_ARRAY);
+                writeClassRef(clz, false);
+                int len = Array.getLength(v);
+                out.writeInt(len);
+                for (int i = 0; i < len; i++) {
+                    writeValue(Array.get(v, i));
+                }
+                path.remove(v);
+            } else if (v instanceof Collection) {
+                Class concrete = concreteCollectionClass(v);
+                enter(v);
+                Collection col = (Collection) v;
+                out.writeByte(T_COLLECTION);
+                writeClassRef(concrete, false);
+                out.writeInt(col.size());
+                for (Object item : col) {
+                    writeValue(item);
+                }
+                path.remove(v);
+            } else if (v instanceof Map) {
+                Class concrete = concreteCollectionClass(v);
+                enter(v);
+                Map<Object, Object> map = (Map<Object, Object>) v;
+                out.writeByte(T_MAP);
+                writeClassRef(concrete, false);
+                out.writeInt(map.size());
+                for (Map.Entry<Object, Object> e : map.entrySet()) {
+                    writeValue(e.getKey());
+                    writeValue(e.getValue());
+                }
+                path.remove(v);
+            } else {
+                ClassCodec codec = getClassCodec(clz);
+                if (!codec.isObjectSupported()) {
+                    throw new UnsupportedTypeException(String.format("class[%s] is not supported by the binary codec", clz.getName()));
+                }
+
+                enter(v);
+                out.writeByte(T_OBJECT);
+                writeClassRef(clz, true);
+                try {
+                    for (Field f : codec.fields) {
+                        writeValue(f.get(v));
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new CloudRuntimeException(e);
+                }
+                path.remove(v);
+            }
+        }
+    }
+
+    private class Decoder {
+        DataInputStream in;
+        List<ClassRef> classRefs = new ArrayList<ClassRef>();
+
+        Decoder(InputStream is) {
+            in = new DataInputStream(is);
+        }
+
+        String readString() throws IOException {
+            byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            return new String(b, CHARSET);
+        }
+
+        ClassRef readClassRef(boolean withFields) throws IOException {
+            int idx = in.readInt();
+            if (idx != NEW_CLASS) {
+                if (idx < 0 || idx >= classRefs.size()) {
+                    throw new IOException(String.format("unknown class reference[%s]", idx));
+                }
+
+                ClassRef ref = classRefs.get(idx);
+                if (withFields != (ref.fields != null)) {
+                    throw new IOException(String.format("class[%s] is referred as a different type", ref.clazz.getName()));
+                }
+                return ref;
+            }
+
+            ClassRef ref = new ClassRef();
+            ref.clazz = loadClass(readString());
+            if (withFields) {
+                if (!getClassCodec(ref.clazz).isObjectSupported()) {
+                    throw new IOException(String.format("class[%s] is not allowed to be decoded", ref.clazz.getName()));
+                }
+
+                ClassCodec codec = getClassCodec(ref.clazz);
+                ref.fields = new Field[in.readInt()];
+                for (int i = 0; i < ref.fields.length; i++) {
+                    ref.fields[i] = codec.fieldsByName.get(readString());
+                }
+            }
+
+            classRefs.add(ref);
+            return ref;
+        }
+
+        Object newInstance(Class clz) throws IOException {
+            ClassCodec codec = getClassCodec(clz);
+            if (codec.constructor == null) {
+                throw new UnsupportedTypeException(String.format("class[%s] has no default constructor", clz.getName()));
+            }
+
+            try {
+                return codec.constructor.newInstance();
+            } catch (Exception e) {
+                throw new IOException(String.format("unable to instantiate class[%s]", clz.getName()), e);
+            }
+        }
+
+        Object readValue() throws IOException {
+            byte type = in.readByte();
+            switch (type) {
+                case T_NULL:
+                    return null;
+                case T_STRING:
+                    return readString();
+                case T_INT:
+                    return in.readInt();
+                case T_LONG:
+                    return in.readLong();
+                case T_BOOLEAN:
+                    return in.readBoolean();
+                case T_DOUBLE:
+                    return in.readDouble();
+                case T_FLOAT:
+                    return in.readFloat();
+                case T_SHORT:
+                    return in.readShort();
+                case T_BYTE:
+                    return in.readByte();
+                case T_CHAR:
+                    return in.readChar();
+                case T_ENUM: {
+                    Class clz = readClassRef(false).clazz;
+                    if (!clz.isEnum()) {
+                        throw new IOException(String.format("class[%s] is not an enum", clz.getName()));
+                    }
+                    return Enum.valueOf(clz, readString());
+                }
+                case T_TIMESTAMP: {
+                    Timestamp ts = new Timestamp(in.readLong());
+                    ts.setNanos(in.readInt());
+                    return ts;
+                }
+                case T_DATE:
+                    return new Date(in.readLong());
+                case T_BYTES: {
+                    byte[] b = new byte[in.readInt()];
+                    in.readFully(b);
+                    return b;
+                }
+                case T_ARRAY: {
+                    Class clz = readClassRef(false).clazz;
+                    if (!clz.isArray()) {
+                        throw new IOException(String.format("class[%s] is not an array", clz.getName()));
+                    }
+                    int len = in.readInt();
+                    Object arr = Array.newInstance(clz.getComponentType(), len);
+                    for (int i = 0; i < len; i++) {
+                        Array.set(arr, i, readValue());
+                    }
+                    return arr;
+                }
+                case T_COLLECTION: {
+                    Collection col = (Collection) newCollection(readClassRef(false).clazz);
+                    int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        col.add(readValue());
+                    }
+                    return col;
+                }
+                case T_MAP: {
+                    Map map = (Map) newCollection(readClassRef(false).clazz);
+                    int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        Object key = readValue();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                }
+                case T_OBJECT:
+                    return readObject(readClassRef(true));
+                default:
+                    throw new IOException(String.format("unknown type tag[%s]", type));
+            }
+        }
+
+        Object newCollection(Class clz) throws IOException {
+            if (!instantiableCollections.contains(clz)) {
+                throw new IOException(String.format("class[%s] is not allowed to be decoded as a collection", clz.getName()));
+            }
+
+            try {
+                return clz.newInstance();
+            } catch (Exception e) {
+                throw new IOException(String.format("unable to instantiate collection[%s]", clz.getName()), e);
+            }
+        }
+
+        Message readMessage() throws IOException {
+            byte type = in.readByte();
+            if (type != T_OBJECT) {
+                throw new IOException(String.format("the encoded value is not a message but of type tag[%s]", type));
+            }
+
+            ClassRef ref = readClassRef(true);
+            if (!Message.class.isAssignableFrom(ref.clazz)) {
+                throw new IOException(String.format("class[%s] is not a message", ref.clazz.getName()));
+            }
+            return (Message) readObject(ref);
+        }
+
+        Object readObject(ClassRef ref) throws IOException {
+            Object obj = newInstance(ref.clazz);
+            for (Field f : ref.fields) {
+                Object value = readValue();
+                if (f == null) {
+                    continue;
+                }
+
+                try {
+                    f.set(obj, value);
+                } catch (IllegalArgumentException e) {
+                    // the field type differs between versions of the class, leave it as default
+                    logger.warn(String.format("unable to set field[%s] of class[%s], %s", f.getName(), ref.clazz.getName(), e.getMessage()));
+                } catch (IllegalAccessException e) {
+                    throw new CloudRuntimeException(e);
+                }
+            }
+            return obj;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canEncode(Message msg) {
+        return !unsupportedMessages.containsKey(msg.getClass());
+    }
+
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+        bos.write(VERSION);
+        try {
+            new Encoder(bos).writeValue(msg);
+        } catch (UnsupportedTypeException e) {
+            unsupportedMessages.put(msg.getClass(), Boolean.TRUE);
+            throw e;
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] data) throws IOException {
+        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        int version = bis.read();
+        if (version != VERSION) {
+            throw new IOException(String.format("unsupported binary codec version[%s]", version));
+        }
+
+        return new Decoder(bis).readMessage();
+    }
+}
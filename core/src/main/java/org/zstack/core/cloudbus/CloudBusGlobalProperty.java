@@ -41,4 +41,20 @@ public class CloudBusGlobalProperty {
     public static int CHANNEL_POOL_SIZE;
     @GlobalProperty(name="CloudBus.messageTTL", defaultValue = "300")
     public static int MESSAGE_TTL;
+    /**
+     * codec used to encode non-API messages and events, replies always use the codec the requester accepts.
+     * Keep "json" until all management nodes are upgraded to a version that knows the codec
+     */
+    @GlobalProperty(name="CloudBus.messageCodec", defaultValue = "json")
+    public static String MESSAGE_CODEC;
+    /**
+     * "pool": every send borrows a channel from the channel pool;
+     * "batch": messages sent in a row (e.g. send(List)) are published together on one pooled channel
+     */
+    @GlobalProperty(name="CloudBus.publisherMode", defaultValue = "pool")
+    public static String PUBLISHER_MODE;
+    @GlobalProperty(name="CloudBus.publisherConfirm", defaultValue = "false")
+    public static boolean PUBLISHER_CONFIRM;
+    @GlobalProperty(name="CloudBus.publisherConfirmTimeout", defaultValue = "30")
+    public static int PUBLISHER_CONFIRM_TIMEOUT;
 }
@@ -44,6 +44,7 @@ import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.map;
@@ -102,6 +103,10 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private final String DEAD_LETTER = "dead-message";
 
     private final String AMQP_PROPERTY_HEADER__COMPRESSED = "compressed";
+    private final String AMQP_PROPERTY_HEADER__CODEC = "codec";
+    private final String AMQP_PROPERTY_HEADER__ACCEPT_CODEC = "acceptCodec";
+
+    private static final String PUBLISHER_MODE_BATCH = "batch";
 
     private String SERVICE_ID = makeLocalServiceId("cloudbus");
 
@@ -144,8 +149,98 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     }
 
 
+    private class PublisherCounter {
+        final long startTime = System.currentTimeMillis();
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong totalLatency = new AtomicLong();
+        final AtomicLong maxLatency = new AtomicLong();
+
+        void count(int num, long latencyInNano, boolean success) {
+            messages.addAndGet(num);
+            batches.incrementAndGet();
+            if (!success) {
+                failures.incrementAndGet();
+            }
+
+            totalLatency.addAndGet(latencyInNano);
+            long max = maxLatency.get();
+            while (latencyInNano > max && !maxLatency.compareAndSet(max, latencyInNano)) {
+                max = maxLatency.get();
+            }
+        }
+
+        PublisherStatistic toStatistic() {
+            long msgNum = messages.get();
+            long batchNum = batches.get();
+            long seconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+            return new PublisherStatistic(
+                    CloudBusGlobalProperty.PUBLISHER_MODE,
+                    CloudBusGlobalProperty.PUBLISHER_CONFIRM,
+                    msgNum,
+                    batchNum,
+                    failures.get(),
+                    batchNum == 0 ? 0 : msgNum / batchNum,
+                    batchNum == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatency.get() / batchNum),
+                    TimeUnit.NANOSECONDS.toMicros(maxLatency.get()),
+                    msgNum / seconds
+            );
+        }
+    }
+
+    private final PublisherCounter publisherCounter = new PublisherCounter();
+
+    /**
+     * collects the confirms of messages published on a channel in confirm mode. A channel is held by one publisher
+     * at a time, so the confirms are of the messages published by the current holder
+     */
+    private static class PublisherConfirmListener implements ConfirmListener {
+        private final SortedSet<Long> unconfirmed = new TreeSet<Long>();
+        private final Set<Long> nacked = new HashSet<Long>();
+
+        synchronized void published(long seqNo) {
+            unconfirmed.add(seqNo);
+        }
+
+        private void confirm(long deliveryTag, boolean multiple, boolean ack) {
+            Collection<Long> tags = multiple ? new ArrayList<Long>(unconfirmed.headSet(deliveryTag + 1)) : Collections.singletonList(deliveryTag);
+            for (Long tag : tags) {
+                // confirms of messages published by a former holder which gave up waiting are ignored
+                if (unconfirmed.remove(tag) && !ack) {
+                    nacked.add(tag);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void handleAck(long deliveryTag, boolean multiple) throws IOException {
+            confirm(deliveryTag, multiple, true);
+        }
+
+        @Override
+        public synchronized void handleNack(long deliveryTag, boolean multiple) throws IOException {
+            confirm(deliveryTag, multiple, false);
+        }
+
+        /**
+         * @return sequence numbers of messages nacked or not confirmed yet; the listener is reset for the next holder
+         */
+        synchronized Set<Long> takeFailures() {
+            Set<Long> ret = new HashSet<Long>(nacked);
+            ret.addAll(unconfirmed);
+            nacked.clear();
+            unconfirmed.clear();
+            return ret;
+        }
+    }
+
     private class ChannelPool {
         BlockingQueue<Channel> pool;
+        Connection connection;
+        // pooled channels switched to confirm mode, which is done when a publisher first acquires them with
+        // publisher confirms on
+        Map<Channel, PublisherConfirmListener> confirmListeners = new ConcurrentHashMap<Channel, PublisherConfirmListener>();
 
         @AsyncThread
         private void retry(Message msg) {
@@ -162,39 +257,44 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
+        private Channel createChannel() throws IOException {
+            Channel chan = connection.createChannel();
+            chan.addReturnListener(new ReturnListener() {
+                @Override
+                public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+                    try {
+                        Message msg = wire.toMessage(bytes, basicProperties);
+                        if (msg instanceof NeedReplyMessage) {
+                            Envelope e = envelopes.get(msg.getId());
+                            if (e == null) {
+                                retry(msg);
+                                logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
+                                        msg.getServiceId(), wire.dumpMessage(msg)));
+                            } else {
+                                MessageReply reply = new MessageReply();
+                                reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
+                                        String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if any consumers on that queue", msg.getServiceId())));
+                                e.ack(reply);
+                            }
+                        } else {
+                            retry(msg);
+                            logger.warn(String.format("unable to deliver an event; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
+                                    wire.dumpMessage(msg)));
+                        }
+                    } catch (Throwable t) {
+                        logger.warn("unhandled throwable", t);
+                    }
+                }
+            });
+            return chan;
+        }
+
         ChannelPool(int size, Connection connection) {
+            this.connection = connection;
             try {
                 pool = new ArrayBlockingQueue<Channel>(size);
                 for (int i = 0; i < size; i++) {
-                    Channel chan = connection.createChannel();
-                    pool.add(chan);
-                    chan.addReturnListener(new ReturnListener() {
-                        @Override
-                        public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
-                            try {
-                                Message msg = wire.toMessage(bytes, basicProperties);
-                                if (msg instanceof NeedReplyMessage) {
-                                    Envelope e = envelopes.get(msg.getId());
-                                    if (e == null) {
-                                        retry(msg);
-                                        logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
-                                                msg.getServiceId(), wire.dumpMessage(msg)));
-                                    } else {
-                                        MessageReply reply = new MessageReply();
-                                        reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
-                                                String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if any consumers on that queue", msg.getServiceId())));
-                                        e.ack(reply);
-                                    }
-                                } else {
-                                    retry(msg);
-                                    logger.warn(String.format("unable to deliver an event; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
-                                            wire.dumpMessage(msg)));
-                                }
-                            } catch (Throwable t) {
-                                logger.warn("unhandled throwable", t);
-                            }
-                        }
-                    });
+                    pool.add(createChannel());
                 }
                 logger.debug(String.format("created channel pool with size[%s]", CloudBusGlobalProperty.CHANNEL_POOL_SIZE));
             } catch (Exception e) {
@@ -216,6 +316,43 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             pool.add(chan);
         }
 
+        boolean isBatchMode() {
+            return PUBLISHER_MODE_BATCH.equals(CloudBusGlobalProperty.PUBLISHER_MODE);
+        }
+
+        /**
+         * publishers of both modes take channels from the pool, a batch holds one channel until all its messages
+         * are published and confirmed, so the number of channels never grows with publishing threads
+         */
+        Channel acquirePublisher() {
+            Channel chan = acquire();
+            if (CloudBusGlobalProperty.PUBLISHER_CONFIRM && !confirmListeners.containsKey(chan)) {
+                try {
+                    chan.confirmSelect();
+                } catch (IOException e) {
+                    returnChannel(chan);
+                    throw new CloudRuntimeException(e);
+                }
+
+                PublisherConfirmListener l = new PublisherConfirmListener();
+                chan.addConfirmListener(l);
+                confirmListeners.put(chan, l);
+            }
+
+            return chan;
+        }
+
+        /**
+         * @return null if publisher confirms are off
+         */
+        PublisherConfirmListener getConfirmListener(Channel chan) {
+            return CloudBusGlobalProperty.PUBLISHER_CONFIRM ? confirmListeners.get(chan) : null;
+        }
+
+        void returnPublisher(Channel chan) {
+            returnChannel(chan);
+        }
+
         void destruct() throws IOException {
             for (Channel chan : pool) {
                 try {
@@ -389,6 +526,91 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 }
         }).create();
 
+        private class JsonCodec implements MessageCodec {
+            @Override
+            public String getName() {
+                return JSON_CODEC;
+            }
+
+            @Override
+            public boolean canEncode(Message msg) {
+                return true;
+            }
+
+            @Override
+            public byte[] encode(Message msg) {
+                buildSchema(msg);
+                return gson.toJson(msg, Message.class).getBytes();
+            }
+
+            @Override
+            public Message decode(byte[] data) {
+                Message msg = gson.fromJson(new String(data), Message.class);
+                try {
+                    restoreFromSchema(msg, data);
+                } catch (ClassNotFoundException e) {
+                    throw new CloudRuntimeException(e);
+                }
+                return msg;
+            }
+        }
+
+        private static final String JSON_CODEC = "json";
+        private final MessageCodec jsonCodec = new JsonCodec();
+        private final Map<String, MessageCodec> codecs = new ConcurrentHashMap<String, MessageCodec>();
+
+        {
+            registerCodec(jsonCodec);
+            registerCodec(new BinaryMessageCodec());
+        }
+
+        void registerCodec(MessageCodec codec) {
+            MessageCodec old = codecs.get(codec.getName());
+            if (old != null && old != codec) {
+                throw new CloudRuntimeException(String.format("duplicate message codec[%s], %s and %s", codec.getName(),
+                        old.getClass().getName(), codec.getClass().getName()));
+            }
+            codecs.put(codec.getName(), codec);
+        }
+
+        void checkPreferredCodec(String name) {
+            if (!codecs.containsKey(name)) {
+                throw new CloudConfigureFailException(CloudBusImpl2.class, String.format("unknown message codec[%s], valid codecs are %s", name, codecs.keySet()));
+            }
+            logger.info(String.format("use message codec[%s]", name));
+        }
+
+        private MessageCodec getPreferredCodec() {
+            // read on every send like the publisher mode, so the codec can be switched once all nodes are upgraded
+            MessageCodec codec = codecs.get(CloudBusGlobalProperty.MESSAGE_CODEC);
+            return codec == null ? jsonCodec : codec;
+        }
+
+        private MessageCodec selectCodec(Message msg) {
+            if (msg instanceof APIMessage || msg instanceof APIEvent || msg instanceof APIReply) {
+                // API messages are also consumed by clients outside management nodes
+                return jsonCodec;
+            }
+
+            MessageCodec codec;
+            if (msg instanceof MessageReply) {
+                // a reply is encoded by the codec the requester accepts; nodes not knowing codecs only accept JSON
+                Object name = msg.getAMQPHeaders().get(AMQP_PROPERTY_HEADER__CODEC);
+                codec = name == null ? jsonCodec : codecs.get(name.toString());
+            } else {
+                codec = getPreferredCodec();
+            }
+
+            return codec == null || !codec.canEncode(msg) ? jsonCodec : codec;
+        }
+
+        private class PublishBatch {
+            int depth;
+            List<RecoverableSend> sends = new ArrayList<RecoverableSend>();
+        }
+
+        private final ThreadLocal<PublishBatch> publishBatch = new ThreadLocal<PublishBatch>();
+
         private class RecoverableSend {
             Channel chan;
             byte[] data;
@@ -396,18 +618,24 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             Message msg;
             BusExchange exchange;
 
-            RecoverableSend(Channel chan, Message msg, String serviceId, BusExchange exchange) throws IOException {
+            RecoverableSend(Message msg, String serviceId, BusExchange exchange) throws IOException {
                 data = compressMessageIfNeeded(msg);
-                this.chan = chan;
                 this.serviceId = serviceId;
                 this.msg = msg;
                 this.exchange = exchange;
             }
 
-            void send() throws IOException {
+            private boolean isMandatory() {
+                // with publisher confirms, unroutable P2P messages go to the alternate exchange NO_ROUTE
+                // and are handled by NoRouteEndPoint; the BROADCAST exchange has no alternate exchange
+                return !CloudBusGlobalProperty.PUBLISHER_CONFIRM || exchange == BusExchange.BROADCAST;
+            }
+
+            void send(Channel chan) throws IOException {
+                this.chan = chan;
                 try {
                     chan.basicPublish(exchange.toString(), serviceId,
-                            true, msg.getAMQPProperties(), data);
+                            isMandatory(), msg.getAMQPProperties(), data);
                 } catch (ShutdownSignalException e) {
                     if (!(conn instanceof AutorecoveringConnection) || serverIps.size() <= 1 || !Platform.IS_RUNNING) {
                         // the connection is not recoverable
@@ -423,13 +651,42 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 }
             }
 
+            private byte[] encodeMessage(Message msg) throws IOException {
+                MessageCodec codec = selectCodec(msg);
+                byte[] data = null;
+                if (codec != jsonCodec) {
+                    try {
+                        data = codec.encode(msg);
+                        msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__CODEC, codec.getName());
+                    } catch (IOException e) {
+                        logger.debug(String.format("unable to encode %s with the codec[%s], fall back to JSON; %s",
+                                msg.getClass().getName(), codec.getName(), e.getMessage()));
+                    }
+                }
+
+                if (data == null) {
+                    msg.getAMQPHeaders().remove(AMQP_PROPERTY_HEADER__CODEC);
+                    data = jsonCodec.encode(msg);
+                }
+
+                MessageCodec preferredCodec = getPreferredCodec();
+                if (preferredCodec != jsonCodec && msg instanceof NeedReplyMessage && !(msg instanceof APIMessage)) {
+                    msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__ACCEPT_CODEC, preferredCodec.getName());
+                } else {
+                    msg.getAMQPHeaders().remove(AMQP_PROPERTY_HEADER__ACCEPT_CODEC);
+                }
+
+                return data;
+            }
+
             private byte[] compressMessageIfNeeded(Message msg) throws IOException {
+                byte[] data = encodeMessage(msg);
                 if (!CloudBusGlobalProperty.COMPRESS_NON_API_MESSAGE || msg instanceof APIEvent || msg instanceof APIMessage) {
-                    return gson.toJson(msg, Message.class).getBytes();
+                    return data;
                 }
 
                 msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__COMPRESSED, "true");
-                return Compresser.deflate(gson.toJson(msg, Message.class).getBytes());
+                return Compresser.deflate(data);
             }
 
             private boolean recoverSend() throws IOException {
@@ -459,7 +716,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
                     try {
                         chan.basicPublish(exchange.toString(), serviceId,
-                                true, msg.getAMQPProperties(), data);
+                                isMandatory(), msg.getAMQPProperties(), data);
                         return true;
                     } catch (ShutdownSignalException e) {
                         logger.warn(String.format("recoverable send fails %s times, will continue to retry %s times; %s",
@@ -529,58 +786,140 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         }
 
         public void send(final Message msg, boolean makeQueueName) {
-            /*
-            StopWatch watch = new StopWatch();
-            watch.start();
-            */
             String serviceId = msg.getServiceId();
             if (makeQueueName) {
                 serviceId = makeMessageQueueName(serviceId);
             }
 
-            buildSchema(msg);
-
             if (logger.isTraceEnabled() && logMessage(msg)) {
                 logger.trace(String.format("[msg send]: %s", wire.dumpMessage(msg)));
             }
 
-            Channel chan = channelPool.acquire();
+            publish(msg, serviceId, outboundQueue.getBusExchange());
+        }
+
+        public void publish(Event evt) {
+            if (logger.isTraceEnabled() && logMessage(evt)) {
+                logger.trace(String.format("[event publish]: %s", wire.dumpMessage(evt)));
+            }
+
+            publish(evt, evt.getType().toString(), BusExchange.BROADCAST);
+        }
+
+        private void publish(Message msg, String routingKey, BusExchange exchange) {
+            RecoverableSend rs;
             try {
-                new RecoverableSend(chan, msg, serviceId, outboundQueue.getBusExchange()).send();
-                /*
-                watch.stop();
-                logger.debug(String.mediaType("sending %s cost %sms", msg.getClass().getName(), watch.getTime()));
-                */
+                rs = new RecoverableSend(msg, routingKey, exchange);
             } catch (IOException e) {
                 throw new CloudRuntimeException(e);
-            } finally {
-                channelPool.returnChannel(chan);
             }
-        }
 
-        public void publish(Event evt) {
-            /*
-            StopWatch watch = new StopWatch();
-            watch.start();
-            */
+            PublishBatch batch = publishBatch.get();
+            if (batch != null) {
+                batch.sends.add(rs);
+                return;
+            }
 
-            buildSchema(evt);
+            List<RecoverableSend> sends = new ArrayList<RecoverableSend>(1);
+            sends.add(rs);
+            publish(sends);
+        }
 
-            if (logger.isTraceEnabled() && logMessage(evt)) {
-                logger.trace(String.format("[event publish]: %s", wire.dumpMessage(evt)));
+        private void failUnconfirmedMessage(Message msg, String reason) {
+            if (msg instanceof NeedReplyMessage) {
+                Envelope e = envelopes.get(msg.getId());
+                if (e != null) {
+                    MessageReply reply = new MessageReply();
+                    reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR, reason));
+                    e.ack(reply);
+                    return;
+                }
             }
 
-            Channel chan = channelPool.acquire();
+            logger.warn(String.format("%s; message dump:\n%s", reason, dumpMessage(msg)));
+        }
+
+        private void publish(List<RecoverableSend> sends) {
+            long start = System.nanoTime();
+            boolean success = false;
+            Channel chan = channelPool.acquirePublisher();
             try {
-                new RecoverableSend(chan, evt, evt.getType().toString(), BusExchange.BROADCAST).send();
-                /*
-                watch.stop();
-                logger.debug(String.mediaType("sending %s cost %sms", evt.getClass().getName(), watch.getTime()));
-                */
+                PublisherConfirmListener confirms = channelPool.getConfirmListener(chan);
+                Map<Long, RecoverableSend> seqNos = confirms == null ? null : new HashMap<Long, RecoverableSend>(sends.size());
+                for (RecoverableSend rs : sends) {
+                    if (confirms != null) {
+                        // register before publishing, the confirm may come back before basicPublish() returns
+                        long seqNo = chan.getNextPublishSeqNo();
+                        confirms.published(seqNo);
+                        seqNos.put(seqNo, rs);
+                    }
+                    rs.send(chan);
+                }
+
+                if (confirms == null) {
+                    success = true;
+                    return;
+                }
+
+                String reason = "the message broker refused the message";
+                try {
+                    chan.waitForConfirms(TimeUnit.SECONDS.toMillis(CloudBusGlobalProperty.PUBLISHER_CONFIRM_TIMEOUT));
+                } catch (TimeoutException e) {
+                    reason = String.format("the message broker refused or didn't confirm the message in %s seconds",
+                            CloudBusGlobalProperty.PUBLISHER_CONFIRM_TIMEOUT);
+                }
+
+                // only messages nacked or unconfirmed fail, the others of the batch are delivered
+                Set<Long> failures = confirms.takeFailures();
+                for (Long seqNo : failures) {
+                    RecoverableSend rs = seqNos.get(seqNo);
+                    if (rs != null) {
+                        failUnconfirmedMessage(rs.msg, reason);
+                    }
+                }
+
+                success = failures.isEmpty();
             } catch (IOException e) {
                 throw new CloudRuntimeException(e);
+            } catch (InterruptedException e) {
+                throw new CloudRuntimeException(e);
             } finally {
-                channelPool.returnChannel(chan);
+                channelPool.returnPublisher(chan);
+                publisherCounter.count(sends.size(), System.nanoTime() - start, success);
+            }
+        }
+
+        /**
+         * in the 'batch' publisher mode, messages sent by the current thread are held until
+         * the outermost flushBatch() and then published together on one channel
+         */
+        void beginBatch() {
+            if (!channelPool.isBatchMode()) {
+                return;
+            }
+
+            PublishBatch batch = publishBatch.get();
+            if (batch == null) {
+                batch = new PublishBatch();
+                publishBatch.set(batch);
+            }
+            batch.depth ++;
+        }
+
+        void flushBatch() {
+            PublishBatch batch = publishBatch.get();
+            if (batch == null) {
+                return;
+            }
+
+            batch.depth --;
+            if (batch.depth > 0) {
+                return;
+            }
+
+            publishBatch.remove();
+            if (!batch.sends.isEmpty()) {
+                publish(batch.sends);
             }
         }
 
@@ -642,7 +981,31 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
-        private void tryBestToReplyError(byte[] binary, String errMsg) {
+        private void tryBestToReplyError(byte[] binary, AMQP.BasicProperties basicProperties, String codecName, String errMsg) {
+            // a message needing a reply carries its id and reply-to in the metadata header, which is readable
+            // whatever codec the body is encoded by
+            Map<String, Object> headers = basicProperties.getHeaders();
+            Object metaData = headers == null ? null : headers.get(MESSAGE_META_DATA);
+            if (metaData != null) {
+                try {
+                    String metaStr = metaData instanceof LongString ? new String(((LongString) metaData).getBytes()) : metaData.toString();
+                    Map m = JSONObjectUtil.toObject(metaStr, LinkedHashMap.class);
+                    RequestMessageMetaData meta = JSONObjectUtil.rehashObject(m, RequestMessageMetaData.class);
+                    if (meta.msgId != null && (meta.needApiEvent || meta.replyTo != null)) {
+                        replyErrorByMetaData(meta, errf.stringToInvalidArgumentError(
+                                String.format("unable to decode the message[%s] by the codec[%s], %s", meta.messageName, codecName, errMsg)
+                        ));
+                        return;
+                    }
+                } catch (Exception e) {
+                    logger.warn(String.format("unable to read the metadata of an undecodable message: %s", metaData), e);
+                }
+            }
+
+            if (!jsonCodec.getName().equals(codecName)) {
+                return;
+            }
+
             // try best to reply an error message to invalid JSON formed message
             String msgStr = new String(binary);
             try {
@@ -678,23 +1041,28 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             StopWatch watch = new StopWatch();
             watch.start();
             */
+            Map<String, Object> headers = basicProperties.getHeaders();
+            String codecName = jsonCodec.getName();
             try {
+                MessageCodec codec = jsonCodec;
+                if (headers != null && headers.containsKey(AMQP_PROPERTY_HEADER__CODEC)) {
+                    codecName = headers.get(AMQP_PROPERTY_HEADER__CODEC).toString();
+                    codec = codecs.get(codecName);
+                    if (codec == null) {
+                        throw new CloudRuntimeException(String.format("unknown message codec[%s], the sender may be a newer management node", codecName));
+                    }
+                }
+
                 byte[] data;
-                if (basicProperties.getHeaders() != null && basicProperties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__COMPRESSED)) {
+                if (headers != null && headers.containsKey(AMQP_PROPERTY_HEADER__COMPRESSED)) {
                     data = Compresser.inflate(binary);
                 } else {
                     data = binary;
                 }
 
-                Message msg = gson.fromJson(new String(data), Message.class);
+                Message msg = codec.decode(data);
                 msg.setAMQPProperties(basicProperties);
 
-                try {
-                    restoreFromSchema(msg, data);
-                } catch (ClassNotFoundException e) {
-                    throw new CloudRuntimeException(e);
-                }
-
             /*
             watch.stop();
             logger.debug(String.mediaType("receive %s cost %sms", msg.getClass().getName(), watch.getTime()));
@@ -702,9 +1070,10 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 return msg;
             } catch (RuntimeException je) {
                 logger.warn(je.getMessage(), je);
-                tryBestToReplyError(binary, je.getMessage());
+                tryBestToReplyError(binary, basicProperties, codecName, je.getMessage());
                 throw je;
             } catch (IOException e) {
+                tryBestToReplyError(binary, basicProperties, codecName, e.getMessage());
                 throw new CloudRuntimeException(e);
             }
         }
@@ -1102,22 +1471,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                         logger.warn(String.format("management node[uuid:%s] becomes unavailable, reply %s to message[%s]. Message metadata dump: %s",
                                 mgmtNodeId, err, rmeta.messageName, JSONObjectUtil.toJsonString(rmeta)));
 
-                        if (rmeta.needApiEvent) {
-                            APIEvent evt = new APIEvent(rmeta.msgId);
-                            eventProperty(evt);
-                            evt.setErrorCode(err);
-                            wire.publish(evt);
-                        } else {
-                            MessageReply reply = new MessageReply();
-                            reply.setError(err);
-                            AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
-                            reply.setAMQPProperties(builder.deliveryMode(1).build());
-                            reply.getHeaders().put(IS_MESSAGE_REPLY, Boolean.TRUE.toString());
-                            reply.putHeaderEntry(CORRELATION_ID, rmeta.msgId);
-                            reply.setServiceId(rmeta.replyTo);
-                            wire.send(reply, false);
-                        }
-
+                        replyErrorByMetaData(rmeta, err);
                         dismiss();
                     }
 
@@ -1258,6 +1612,24 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         event.setAMQPProperties(builder.deliveryMode(1).expiration(String.valueOf(TimeUnit.SECONDS.toMillis(CloudBusGlobalProperty.MESSAGE_TTL))).build());
     }
 
+    private void replyErrorByMetaData(RequestMessageMetaData meta, ErrorCode err) {
+        if (meta.needApiEvent) {
+            APIEvent evt = new APIEvent(meta.msgId);
+            eventProperty(evt);
+            evt.setErrorCode(err);
+            wire.publish(evt);
+        } else {
+            MessageReply reply = new MessageReply();
+            reply.setError(err);
+            AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
+            reply.setAMQPProperties(builder.deliveryMode(1).build());
+            reply.getHeaders().put(IS_MESSAGE_REPLY, Boolean.TRUE.toString());
+            reply.putHeaderEntry(CORRELATION_ID, meta.msgId);
+            reply.setServiceId(meta.replyTo);
+            wire.send(reply, false);
+        }
+    }
+
     private void buildRequestMessageMetaData(Message msg) {
         if (msg instanceof APIMessage || (msg instanceof NeedReplyMessage && !Boolean.valueOf((String)msg.getHeaderEntry(NO_NEED_REPLY_MSG)))) {
             RequestMessageMetaData metaData;
@@ -1312,8 +1684,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     @Override
     public <T extends Message> void send(List<T> msgs) {
-        for (Message msg : msgs) {
-            send(msg, true);
+        wire.beginBatch();
+        try {
+            for (Message msg : msgs) {
+                send(msg, true);
+            }
+        } finally {
+            wire.flushBatch();
         }
     }
 
@@ -1496,8 +1873,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             envelopes.put(msg.getId(), e);
         }
 
-        for (NeedReplyMessage msg : msgs) {
-            send(msg, false);
+        wire.beginBatch();
+        try {
+            for (NeedReplyMessage msg : msgs) {
+                send(msg, false);
+            }
+        } finally {
+            wire.flushBatch();
         }
     }
 
@@ -1549,47 +1931,52 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         final Iterator<NeedReplyMessage> it = copy.iterator();
         final List<MessageReply> replies = new ArrayList<MessageReply>();
         final int retNum = msgs.size();
-        for (NeedReplyMessage nmsg : init) {
-            send(nmsg, new CloudBusCallBack() {
-
-                private MessageReply findReply(final Message msg) {
-                    return CollectionUtils.find(replies, new Function<MessageReply, MessageReply>() {
-                        @Override
-                        public MessageReply call(MessageReply arg) {
-                            return arg.getHeaderEntry(CORRELATION_ID).equals(msg.getId()) ? arg : null;
-                        }
-                    });
-                }
+        wire.beginBatch();
+        try {
+            for (NeedReplyMessage nmsg : init) {
+                send(nmsg, new CloudBusCallBack() {
 
-                private List<MessageReply> sortReplies() {
-                    List<MessageReply> ret = new ArrayList<MessageReply>();
-                    for (final Message m : msgs) {
-                        MessageReply r = findReply(m);
-                        DebugUtils.Assert(r != null, String.format("cannot find reply for message:%s", wire.dumpMessage(m)));
-                        ret.add(r);
+                    private MessageReply findReply(final Message msg) {
+                        return CollectionUtils.find(replies, new Function<MessageReply, MessageReply>() {
+                            @Override
+                            public MessageReply call(MessageReply arg) {
+                                return arg.getHeaderEntry(CORRELATION_ID).equals(msg.getId()) ? arg : null;
+                            }
+                        });
                     }
 
-                    return ret;
-                }
-
-                @Override
-                public void run(MessageReply reply) {
-                    synchronized (replies) {
-                        replies.add(reply);
-                        if (replies.size() == retNum) {
-                            callBack.run(sortReplies());
-                            return;
+                    private List<MessageReply> sortReplies() {
+                        List<MessageReply> ret = new ArrayList<MessageReply>();
+                        for (final Message m : msgs) {
+                            MessageReply r = findReply(m);
+                            DebugUtils.Assert(r != null, String.format("cannot find reply for message:%s", wire.dumpMessage(m)));
+                            ret.add(r);
                         }
 
-                        parallelSend(it, replies, retNum, new NoErrorCompletion() {
-                            @Override
-                            public void done() {
+                        return ret;
+                    }
+
+                    @Override
+                    public void run(MessageReply reply) {
+                        synchronized (replies) {
+                            replies.add(reply);
+                            if (replies.size() == retNum) {
                                 callBack.run(sortReplies());
+                                return;
                             }
-                        });
+
+                            parallelSend(it, replies, retNum, new NoErrorCompletion() {
+                                @Override
+                                public void done() {
+                                    callBack.run(sortReplies());
+                                }
+                            });
+                        }
                     }
-                }
-            });
+                });
+            }
+        } finally {
+            wire.flushBatch();
         }
     }
 
@@ -1634,24 +2021,34 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         sub.clear();
 
         final Iterator<NeedReplyMessage> it = copy.iterator();
-        for (final NeedReplyMessage msg : init) {
-            send(msg, new CloudBusCallBack() {
-                @Override
-                public void run(MessageReply reply) {
-                    try {
-                        steppingSend(it, callback);
-                    } finally {
-                        callback.run(msg, reply);
+        wire.beginBatch();
+        try {
+            for (final NeedReplyMessage msg : init) {
+                send(msg, new CloudBusCallBack() {
+                    @Override
+                    public void run(MessageReply reply) {
+                        try {
+                            steppingSend(it, callback);
+                        } finally {
+                            callback.run(msg, reply);
+                        }
                     }
-                }
-            });
+                });
+            }
+        } finally {
+            wire.flushBatch();
         }
     }
 
     @Override
     public void route(List<Message> msgs) {
-        for (Message msg : msgs) {
-            route(msg);
+        wire.beginBatch();
+        try {
+            for (Message msg : msgs) {
+                route(msg);
+            }
+        } finally {
+            wire.flushBatch();
         }
     }
 
@@ -1707,6 +2104,10 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         reply.getHeaders().put(IS_MESSAGE_REPLY, Boolean.TRUE.toString());
         reply.putHeaderEntry(CORRELATION_ID, request.getId());
         reply.setServiceId((String) request.getHeaderEntry(REPLY_TO));
+        Object acceptCodec = request.getAMQPHeaders().get(AMQP_PROPERTY_HEADER__ACCEPT_CODEC);
+        if (acceptCodec != null) {
+            reply.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__CODEC, acceptCodec.toString());
+        }
 
         buildResponseMessageMetaData(reply);
         callReplyPreSendingExtensions(reply);
@@ -1715,8 +2116,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     @Override
     public void publish(List<Event> events) {
-        for (Event e : events) {
-            publish(e);
+        wire.beginBatch();
+        try {
+            for (Event e : events) {
+                publish(e);
+            }
+        } finally {
+            wire.flushBatch();
         }
     }
 
@@ -2372,6 +2778,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private void populateExtension() {
         services = pluginRgty.getExtensionList(Service.class);
+        for (MessageCodec codec : pluginRgty.getExtensionList(MessageCodec.class)) {
+            wire.registerCodec(codec);
+        }
+        wire.checkPreferredCodec(CloudBusGlobalProperty.MESSAGE_CODEC);
+
         for (ReplyMessagePreSendingExtensionPoint extp : pluginRgty.getExtensionList(ReplyMessagePreSendingExtensionPoint.class)) {
             List<Class> clazzs = extp.getReplyMessageClassForPreSendingExtensionPoint();
             if (clazzs == null || clazzs.isEmpty()) {
@@ -2503,6 +2914,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         return ret;
     }
 
+    @Override
+    public PublisherStatistic getPublisherStatistic() {
+        return publisherCounter.toStatistic();
+    }
+
     @Override
     public WaitingMessageSummaryStatistic getWaitingReplyMessageSummaryStatistic() {
         List<WaitingReplyMessageStatistic> ret = getWaitingReplyMessageStatistic();
@@ -0,0 +1,25 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.message.Message;
+
+import java.io.IOException;
+
+/**
+ * encodes messages to the bytes put on the wire and back.
+ *
+ * The name of the codec a message is encoded with travels in the AMQP header "codec"; a message
+ * without that header is JSON encoded, which is what nodes not knowing codecs send and expect.
+ * Codecs other than the built-in ones can be plugged by declaring an extension of this interface.
+ */
+public interface MessageCodec {
+    String getName();
+
+    /**
+     * @return false if the codec cannot encode the message, the message is then sent as JSON
+     */
+    boolean canEncode(Message msg);
+
+    byte[] encode(Message msg) throws IOException;
+
+    Message decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,67 @@
+package org.zstack.core.cloudbus;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * latency is in microseconds, throughput is in messages per second since the bus started
+ */
+public class PublisherStatistic {
+    private String mode;
+    private boolean confirm;
+    private long publishedMessages;
+    private long publishBatches;
+    private long failedBatches;
+    private long averageBatchSize;
+    private long averageLatency;
+    private long maxLatency;
+    private long throughput;
+
+    @ConstructorProperties({"mode", "confirm", "publishedMessages", "publishBatches", "failedBatches", "averageBatchSize", "averageLatency", "maxLatency", "throughput"})
+    public PublisherStatistic(String mode, boolean confirm, long publishedMessages, long publishBatches, long failedBatches, long averageBatchSize, long averageLatency, long maxLatency, long throughput) {
+        this.mode = mode;
+        this.confirm = confirm;
+        this.publishedMessages = publishedMessages;
+        this.publishBatches = publishBatches;
+        this.failedBatches = failedBatches;
+        this.averageBatchSize = averageBatchSize;
+        this.averageLatency = averageLatency;
+        this.maxLatency = maxLatency;
+        this.throughput = throughput;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public boolean isConfirm() {
+        return confirm;
+    }
+
+    public long getPublishedMessages() {
+        return publishedMessages;
+    }
+
+    public long getPublishBatches() {
+        return publishBatches;
+    }
+
+    public long getFailedBatches() {
+        return failedBatches;
+    }
+
+    public long getAverageBatchSize() {
+        return averageBatchSize;
+    }
+
+    public long getAverageLatency() {
+        return averageLatency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public long getThroughput() {
+        return throughput;
+    }
+}
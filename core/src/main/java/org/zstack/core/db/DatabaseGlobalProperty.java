@@ -19,4 +19,8 @@ public class DatabaseGlobalProperty {
     public static String DbIdleConnectionTestPeriod;
     @GlobalProperty(name="DB.maxIdleTime")
     public static String DbMaxIdleTime;
+    @GlobalProperty(name="GLock.maxLocalHandoffs", defaultValue = "10")
+    public static int GLOCK_MAX_LOCAL_HANDOFFS;
+    @GlobalProperty(name="GLock.leaseTime", defaultValue = "1000")
+    public static long GLOCK_LEASE_TIME;
 }
@@ -3,6 +3,7 @@ package org.zstack.core.db;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.CoreGlobalProperty;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.utils.DebugUtils;
 import org.zstack.utils.Utils;
@@ -17,21 +18,32 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * a lock across management nodes, backed by MySQL get_lock().
+ *
+ * Threads of this management node acquiring the same lock wait in memory first, only the one that gets the
+ * local lock goes to the database. When it unlocks with other local threads waiting, it hands the database lock
+ * to the next one instead of releasing it, so threads of the same node don't pay a get_lock()/release_lock() round
+ * trip each; the database lock is released after GLock.maxLocalHandoffs handoffs or after being held by this node
+ * for GLock.leaseTime milliseconds, to give other management nodes their turns.
  */
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class GLock {
     private static final CLogger logger = Utils.getLogger(GLock.class);
 
-    private static final Map<String, ReentrantLock> memLocks = new HashMap<String, ReentrantLock>();
+    private static final Map<String, NodeLock> nodeLocks = new HashMap<String, NodeLock>();
+    private static final Map<String, GLockStatistic> statistics = new ConcurrentHashMap<String, GLockStatistic>();
 
     private DataSource dataSource;
-    private Connection conn;
+    private NodeLock nodeLock;
     private final String name;
     private final long timeout;
     private boolean success = false;
+    private long lockTime;
+    private long waitTime;
     private static final ThreadLocal<List<String>> isLocked = new ThreadLocal<List<String>>() {
         @Override
         protected List<String> initialValue()
@@ -45,12 +57,78 @@ public class GLock {
     @Autowired
     private DatabaseFacade dbf;
 
+    /**
+     * the lock of a name in this management node, the holder of it is the only one in this node that may hold
+     * the database lock
+     */
+    private static class NodeLock {
+        final String name;
+        // threads holding or waiting for the lock, guarded by nodeLocks
+        int refs;
+        boolean owned;
+        int waiters;
+        // the connection holding the database lock, null if this node doesn't hold it
+        Connection conn;
+        long dbLockTime;
+        int handoffs;
+
+        NodeLock(String name) {
+            this.name = name;
+        }
+
+        synchronized boolean lock(long timeoutInMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutInMillis;
+            waiters ++;
+            try {
+                while (owned) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+
+                owned = true;
+                return true;
+            } finally {
+                waiters --;
+                if (!owned && waiters == 0 && conn != null) {
+                    // the database lock was handed to us, but we have given up, nobody else is going to take it
+                    try {
+                        releaseDbLock(this);
+                    } catch (CloudRuntimeException e) {
+                        logger.warn(e.getMessage(), e);
+                    }
+                }
+            }
+        }
+
+        synchronized void unlock() {
+            try {
+                boolean handoff = conn != null && waiters > 0 && handoffs < DatabaseGlobalProperty.GLOCK_MAX_LOCAL_HANDOFFS
+                        && System.currentTimeMillis() - dbLockTime < DatabaseGlobalProperty.GLOCK_LEASE_TIME;
+                if (handoff) {
+                    handoffs ++;
+                } else if (conn != null) {
+                    releaseDbLock(this);
+                }
+            } finally {
+                owned = false;
+                notify();
+            }
+        }
+    }
+
     public GLock(String name, long timeout) {
         this.name = name;
         this.timeout = timeout;
         dataSource = dbf.getDataSource();
     }
 
+    public static Map<String, GLockStatistic> getStatistics() {
+        return statistics;
+    }
+
     public boolean isSeparateThreadEnabled() {
         return separateThreadEnabled;
     }
@@ -73,78 +151,144 @@ public class GLock {
         locks.remove(name);
     }
 
-    public void lock() {
-        if (separateThreadEnabled) {
-            checkInThread();
+    private NodeLock refNodeLock() {
+        synchronized (nodeLocks) {
+            NodeLock nl = nodeLocks.get(name);
+            if (nl == null) {
+                nl = new NodeLock(name);
+                nodeLocks.put(name, nl);
+            }
+            nl.refs ++;
+            return nl;
         }
+    }
 
-        ReentrantLock mlock = null;
-        if (separateThreadEnabled) {
-            synchronized (memLocks) {
-                mlock = memLocks.get(name);
-                if (mlock == null) {
-                    mlock = new ReentrantLock();
-                    memLocks.put(name, mlock);
-                }
-
-                if (memLocks.size() > 100) {
-                    logger.warn(String.format("there are more than 100 GLocks[num:%s] are created, something must be wrong in our program", memLocks.size()));
-                }
+    private void unrefNodeLock(NodeLock nl) {
+        synchronized (nodeLocks) {
+            nl.refs --;
+            if (nl.refs == 0) {
+                nodeLocks.remove(name);
             }
         }
+    }
 
+    private void acquireDbLock(NodeLock nl, long timeoutInSeconds) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
         try {
-            if (logger.isTraceEnabled()) {
-                logger.trace(String.format("[GLock]: thread[%s] is acquiring lock[%s]", Thread.currentThread().getName(), name));
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(true);
+            pstmt = conn.prepareStatement(String.format("select get_lock('%s', %s)", name, timeoutInSeconds));
+            ResultSet rs = pstmt.executeQuery();
+            if (rs == null) {
+                String err = "Unable to get DB lock: " + name + ", internal database error happened";
+                throw new CloudRuntimeException(err);
+            } else if (rs.first() && rs.getInt(1) == 0) {
+                throw new CloudRuntimeException(String.format("lock[%s] failed, timeout after %s seconds", name, timeout));
             }
 
-            if (separateThreadEnabled) {
-                mlock.lock();
-                if (logger.isTraceEnabled()) {
-                    logger.trace(String.format("[GLock Memory Lock]: thread[%s] got memory lock[%s]", Thread.currentThread().getName(), name));
+            nl.conn = conn;
+            nl.dbLockTime = System.currentTimeMillis();
+            nl.handoffs = 0;
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[GLock DB Lock]: thread: %s got DB lock[%s], during timeout[%s secs]", Thread.currentThread().getName(), name, timeout));
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException(String.format("[GLock Error]: cannon get DB connection for lock[%s]", name), e);
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException e) {
+                    logger.warn("Unable to close PreparedStatement for lock: " + name, e);
                 }
             }
 
-            PreparedStatement pstmt = null;
-            try {
-                conn = dataSource.getConnection();
-                conn.setAutoCommit(true);
-                pstmt = conn.prepareStatement(String.format("select get_lock('%s', %s)", name, timeout));
-                ResultSet rs = pstmt.executeQuery();
-                if (rs == null) {
-                    String err = "Unable to get DB lock: " + name + ", internal database error happened";
-                    throw new CloudRuntimeException(err);
-                } else if (rs.first() && rs.getInt(1) == 0) {
-                    throw new CloudRuntimeException(String.format("lock[%s] failed, timeout after %s seconds", name, timeout));
+            if (nl.conn == null && conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    logger.warn(e.getMessage(), e);
                 }
+            }
+        }
+    }
 
-                if (logger.isTraceEnabled()) {
-                    logger.trace(String.format("[GLock DB Lock]: thread: %s got DB lock[%s], during timeout[%s secs]", Thread.currentThread().getName(), name, timeout));
-                }
-            } catch (SQLException e) {
-                throw new CloudRuntimeException(String.format("[GLock Error]: cannon get DB connection for lock[%s]", name), e);
-            } finally {
-                if (pstmt != null) {
-                    try {
-                        pstmt.close();
-                    } catch (SQLException e) {
-                        logger.warn("Unable to close PreparedStatement for lock: " + name, e);
-                    }
-                }
+    private static void releaseDbLock(NodeLock nl) {
+        String name = nl.name;
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = nl.conn.prepareStatement(String.format("select release_lock('%s')", name));
+            ResultSet rs = pstmt.executeQuery();
+            if (rs == null) {
+                throw new CloudRuntimeException("Mysql cannot find lock: " + name);
+            } else if (rs.first() && rs.getInt(1) == 0) {
+                String err = "Unable to release DB lock: " + name + ", lock: " + name + " is not held by this connection, internal error";
+                throw new CloudRuntimeException(err);
             }
-            success = true;
-        } catch (Throwable t) {
-            if (conn != null) {
+
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[GLock Release DB Lock] thread[%s] released DB lock[%s]", Thread.currentThread().getName(), name));
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to release lock: " + name, e);
+        } finally {
+            if (pstmt != null) {
                 try {
-                    conn.close();
+                    pstmt.close();
                 } catch (SQLException e) {
-                    logger.warn(e.getMessage(), e);
+                    logger.warn("Unable to close PreparedStatement for lock: " + name, e);
                 }
             }
 
-            if (separateThreadEnabled) {
-                mlock.unlock();
+            // closing the connection releases the lock anyway
+            try {
+                nl.conn.close();
+            } catch (SQLException e) {
+                logger.warn(e.getMessage(), e);
+            }
+            nl.conn = null;
+        }
+    }
+
+    public void lock() {
+        if (separateThreadEnabled) {
+            checkInThread();
+        }
+
+        long start = System.currentTimeMillis();
+        NodeLock nl = refNodeLock();
+        boolean locked = false;
+        try {
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[GLock]: thread[%s] is acquiring lock[%s]", Thread.currentThread().getName(), name));
+            }
+
+            if (!nl.lock(TimeUnit.SECONDS.toMillis(timeout))) {
+                throw new CloudRuntimeException(String.format("lock[%s] failed, timeout after %s seconds", name, timeout));
             }
+            locked = true;
+
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[GLock Memory Lock]: thread[%s] got memory lock[%s]", Thread.currentThread().getName(), name));
+            }
+
+            if (nl.conn == null) {
+                long elapsed = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - start);
+                acquireDbLock(nl, Math.max(timeout - elapsed, 0));
+            } else if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[GLock DB Lock]: thread: %s took over DB lock[%s] from a thread of this management node", Thread.currentThread().getName(), name));
+            }
+
+            nodeLock = nl;
+            lockTime = System.currentTimeMillis();
+            waitTime = lockTime - start;
+            success = true;
+        } catch (Throwable t) {
+            if (locked) {
+                nl.unlock();
+            }
+            unrefNodeLock(nl);
 
             success = false;
 
@@ -152,6 +296,10 @@ public class GLock {
                 checkOutThread();
             }
 
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+
             if (!(t instanceof CloudRuntimeException)) {
                 throw new CloudRuntimeException(t);
             } else {
@@ -160,6 +308,21 @@ public class GLock {
         }
     }
 
+    private void addStatistic() {
+        GLockStatistic stat = statistics.get(name);
+        if (stat == null) {
+            synchronized (statistics) {
+                stat = statistics.get(name);
+                if (stat == null) {
+                    stat = new GLockStatistic();
+                    stat.setName(name);
+                    statistics.put(name, stat);
+                }
+            }
+        }
+        stat.addStatistic(waitTime, System.currentTimeMillis() - lockTime);
+    }
+
     public void unlock() {
         if (!success) {
             if (logger.isTraceEnabled()) {
@@ -170,59 +333,23 @@ public class GLock {
             return;
         }
 
-        ReentrantLock lock = null;
-        if (separateThreadEnabled) {
-            synchronized (memLocks) {
-                lock = memLocks.get(name);
-            }
-        }
+        DebugUtils.Assert(nodeLock != null, String.format("cannot find NodeLock for GLock[%s], is unlock mistakenly called twice???", name));
+        NodeLock nl = nodeLock;
+        nodeLock = null;
+        success = false;
 
         try {
-            if (separateThreadEnabled) {
-                DebugUtils.Assert(lock != null, String.format("cannot find LockWrapper for GLock[%s], is unlock mistakenly called twice???", name));
-            }
-
             if (logger.isTraceEnabled()) {
                 logger.trace(String.format("[GLock]: thread[%s] is releasing lock[%s]", Thread.currentThread().getName(), name));
             }
 
-            PreparedStatement pstmt = null;
-            try {
-                pstmt = conn.prepareStatement(String.format("select release_lock('%s')", name));
-                ResultSet rs = pstmt.executeQuery();
-                if (rs == null) {
-                    throw new CloudRuntimeException("Mysql cannot find lock: " + name);
-                } else if (rs.first() && rs.getInt(1) == 0) {
-                    String err = "Unable to release DB lock: " + name + ", lock: " + name + " is not held by this connection, internal error";
-                    throw new CloudRuntimeException(err);
-                }
-
-                if (logger.isTraceEnabled()) {
-                    logger.trace(String.format("[GLock Release DB Lock] thread[%s] released DB lock[%s]", Thread.currentThread().getName(), name));
-                }
-            } catch (SQLException e) {
-                throw new CloudRuntimeException("Unable to release lock: " + name, e);
-            } finally {
-                if (pstmt != null) {
-                    try {
-                        pstmt.close();
-                    } catch (SQLException e) {
-                        logger.warn("Unable to close PreparedStatement for lock: " + name, e);
-                    }
-                }
-
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    logger.warn(e.getMessage(), e);
-                }
+            if (CoreGlobalProperty.PROFILER_GLOCK) {
+                addStatistic();
             }
+
+            nl.unlock();
         } finally {
-            if (separateThreadEnabled) {
-                if (lock != null) {
-                    lock.unlock();
-                }
-            }
+            unrefNodeLock(nl);
 
             if (separateThreadEnabled) {
                 checkOutThread();
@@ -0,0 +1,107 @@
+package org.zstack.core.db;
+
+/**
+ * wait time and hold time of a GLock, collected when profiler.glock is on.
+ *
+ * Times are also counted in buckets of latency, the last bucket counts times longer than all bounds.
+ */
+public class GLockStatistic {
+    // upper bounds of latency buckets, in milliseconds
+    public static final long[] LATENCY_BUCKETS = {1, 10, 100, 1000, 10000, 60000};
+
+    private String name;
+    private long count;
+    private long totalWaitTime;
+    private long maxWaitTime;
+    private long totalHoldTime;
+    private long maxHoldTime;
+    private long[] waitTimeHistogram = new long[LATENCY_BUCKETS.length + 1];
+    private long[] holdTimeHistogram = new long[LATENCY_BUCKETS.length + 1];
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalWaitTime() {
+        return totalWaitTime;
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    public long getTotalHoldTime() {
+        return totalHoldTime;
+    }
+
+    public long getMaxHoldTime() {
+        return maxHoldTime;
+    }
+
+    public long[] getWaitTimeHistogram() {
+        return waitTimeHistogram;
+    }
+
+    public long[] getHoldTimeHistogram() {
+        return holdTimeHistogram;
+    }
+
+    private static void addToHistogram(long[] histogram, long time) {
+        int i = 0;
+        while (i < LATENCY_BUCKETS.length && time > LATENCY_BUCKETS[i]) {
+            i ++;
+        }
+        histogram[i] ++;
+    }
+
+    public synchronized void addStatistic(long waitTime, long holdTime) {
+        count ++;
+        totalWaitTime += waitTime;
+        maxWaitTime = Math.max(maxWaitTime, waitTime);
+        totalHoldTime += holdTime;
+        maxHoldTime = Math.max(maxHoldTime, holdTime);
+        addToHistogram(waitTimeHistogram, waitTime);
+        addToHistogram(holdTimeHistogram, holdTime);
+    }
+
+    private static String histogramToString(long[] histogram) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            if (i < LATENCY_BUCKETS.length) {
+                sb.append(String.format("<=%sms: %s", LATENCY_BUCKETS[i], histogram[i]));
+            } else {
+                sb.append(String.format(">%sms: %s", LATENCY_BUCKETS[i-1], histogram[i]));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("GLock[%s]: total count: %s, average wait time: %s ms, max wait time: %s ms, wait: [%s], " +
+                        "average hold time: %s ms, max hold time: %s ms, hold: [%s]",
+                name,
+                count,
+                count == 0 ? 0 : totalWaitTime / count,
+                maxWaitTime,
+                histogramToString(waitTimeHistogram),
+                count == 0 ? 0 : totalHoldTime / count,
+                maxHoldTime,
+                histogramToString(holdTimeHistogram));
+    }
+}
@@ -1,5 +1,9 @@
 package org.zstack.core.gc;
 
+import org.zstack.utils.function.Function;
+
+import java.util.List;
+
 /**
  * Created by frank on 8/5/2015.
  */
@@ -7,4 +11,17 @@ public interface GCFacade {
     void schedule(GCContext context);
 
     void scheduleImmediately(GCContext context);
+
+    /**
+     * @return contexts of the persistent jobs of the runner which are not done yet
+     */
+    <T> List<T> getPendingPersistentContexts(Class runnerClass, Class<T> contextClass);
+
+    /**
+     * cancels the persistent jobs of the runner which have not started yet and whose contexts pass the filter,
+     * the cancelled jobs will never run
+     *
+     * @return contexts of the cancelled jobs
+     */
+    <T> List<T> cancelPendingPersistentContexts(Class runnerClass, Class<T> contextClass, Function<Boolean, T> filter);
 }
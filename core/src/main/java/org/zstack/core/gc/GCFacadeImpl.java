@@ -56,6 +56,12 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
     private final Set<String> listenedEventPaths = new HashSet<String>();
     private File scriptFolder;
     private GroovyScriptEngine gse;
+    private GCTimerWheel timerWheel;
+
+    // orphan GC jobs are recovered in pages of this size
+    private static final int RECOVERY_PAGE_SIZE = 1000;
+    // recoveries of this node run one at a time, otherwise one could pick jobs claimed by the other and run them twice
+    private final Object recoveryLock = new Object();
 
     void init() {
         String scriptFolderPath = PathUtil.join(CoreGlobalProperty.USER_HOME, "garbage_collector_script");
@@ -69,6 +75,9 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
         } catch (MalformedURLException e) {
             throw new CloudRuntimeException(e);
         }
+
+        timerWheel = new GCTimerWheel(thdf);
+        timerWheel.start();
     }
 
     private GarbageCollectorVO save(TimeBasedGCPersistentContext context) {
@@ -269,13 +278,16 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
                     return;
                 }
 
-                context.increaseExecutedTime();
-
-                if (updateDb) {
-                    vo.setStatus(GCStatus.Processing);
-                    dbf.update(vo);
+                if (updateDb && !startJob(vo)) {
+                    logger.debug(String.format("GC job[id:%s, name: %s, runner class:%s] has been cancelled, skip it", vo.getId(), context.getName(), vo.getRunnerClass()));
+                    if (canceller.canceller != null) {
+                        canceller.canceller.cancel();
+                    }
+                    return;
                 }
 
+                context.increaseExecutedTime();
+
                 logger.debug(String.format("start running GC job[id:%s, name: %s, runner class:%s], already executed %s times",
                         vo.getId(), context.getName(), vo.getRunnerClass(), context.getExecutedTimes()));
                 runner.run(context, completion);
@@ -324,24 +336,20 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
                     return;
                 }
 
-                context.increaseExecutedTime();
-
-                if (updateDb) {
-                    vo.setStatus(GCStatus.Processing);
-                    dbf.update(vo);
+                if (updateDb && !startJob(vo)) {
+                    logger.debug(String.format("GC job[id:%s, name: %s, runner class:%s] has been cancelled, skip it", vo.getId(), context.getName(), vo.getRunnerClass()));
+                    return;
                 }
 
+                context.increaseExecutedTime();
+
                 logger.debug(String.format("start running GC job[id:%s, name: %s, runner class:%s], already executed %s times",
                         vo.getId(), context.getName(), vo.getRunnerClass(), context.getExecutedTimes()));
                 runner.run(context, completion);
             }
         };
 
-        if (instant) {
-            thdf.submitTimeoutTask(r, context.getTimeUnit(), 0);
-        } else {
-            thdf.submitTimeoutTask(r, context.getTimeUnit(), context.getInterval());
-        }
+        timerWheel.schedule(vo.getRunnerClass(), r, context.getTimeUnit(), instant ? 0 : context.getInterval());
     }
 
     @Override
@@ -462,11 +470,7 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
             }
         };
 
-        if (instant) {
-            thdf.submitTimeoutTask(r, context.getTimeUnit(), 0);
-        } else {
-            thdf.submitTimeoutTask(r, context.getTimeUnit(), context.getInterval());
-        }
+        timerWheel.schedule(runner.getClass().getName(), r, context.getTimeUnit(), instant ? 0 : context.getInterval());
     }
 
     @Override
@@ -478,6 +482,83 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
         }
     }
 
+    private Object getJobContext(GarbageCollectorVO vo) {
+        if (TimeBasedGCPersistentContext.class.getName().equals(vo.getType())) {
+            return new TimeBasedGCPersistentContextInternal(vo).toGCContext().getContext();
+        } else if (EventBasedGCPersistentContext.class.getName().equals(vo.getType())) {
+            return new EventBasedGCPersistentContextInternal(vo).toGCContext().getContext();
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public <T> List<T> getPendingPersistentContexts(Class runnerClass, Class<T> contextClass) {
+        SimpleQuery<GarbageCollectorVO> q = dbf.createQuery(GarbageCollectorVO.class);
+        q.add(GarbageCollectorVO_.runnerClass, Op.EQ, runnerClass.getName());
+        q.add(GarbageCollectorVO_.status, Op.IN, list(GCStatus.Idle, GCStatus.Processing));
+        List<GarbageCollectorVO> vos = q.list();
+
+        List<T> ret = new ArrayList<T>();
+        for (GarbageCollectorVO vo : vos) {
+            Object ctx = getJobContext(vo);
+            if (contextClass.isInstance(ctx)) {
+                ret.add(contextClass.cast(ctx));
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public <T> List<T> cancelPendingPersistentContexts(Class runnerClass, Class<T> contextClass, Function<Boolean, T> filter) {
+        SimpleQuery<GarbageCollectorVO> q = dbf.createQuery(GarbageCollectorVO.class);
+        q.add(GarbageCollectorVO_.runnerClass, Op.EQ, runnerClass.getName());
+        q.add(GarbageCollectorVO_.status, Op.EQ, GCStatus.Idle);
+        List<GarbageCollectorVO> vos = q.list();
+
+        List<T> ret = new ArrayList<T>();
+        for (GarbageCollectorVO vo : vos) {
+            Object ctx = getJobContext(vo);
+            if (!contextClass.isInstance(ctx) || !filter.call(contextClass.cast(ctx))) {
+                continue;
+            }
+
+            if (cancelJob(vo.getId())) {
+                logger.debug(String.format("GC job[id:%s, runner class:%s] is cancelled", vo.getId(), vo.getRunnerClass()));
+                ret.add(contextClass.cast(ctx));
+            }
+        }
+
+        return ret;
+    }
+
+    // a job not started yet can be cancelled, the one wins who changes the status first
+    @Transactional
+    private boolean cancelJob(long id) {
+        String sql = "update GarbageCollectorVO vo set vo.status = :done where vo.id = :id and vo.status = :idle";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("done", GCStatus.Done);
+        q.setParameter("idle", GCStatus.Idle);
+        q.setParameter("id", id);
+        return q.executeUpdate() == 1;
+    }
+
+    @Transactional
+    private boolean startJob(GarbageCollectorVO vo) {
+        String sql = "update GarbageCollectorVO vo set vo.status = :processing where vo.id = :id and vo.status != :done";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("processing", GCStatus.Processing);
+        q.setParameter("done", GCStatus.Done);
+        q.setParameter("id", vo.getId());
+        if (q.executeUpdate() != 1) {
+            return false;
+        }
+
+        vo.setStatus(GCStatus.Processing);
+        return true;
+    }
+
     @Override
     public void nodeJoin(String nodeId) {
     }
@@ -485,6 +566,7 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
     @Override
     public void nodeLeft(String nodeId) {
         setJobsToIdle(nodeId);
+        recoverOrphanJobs();
     }
 
     @Transactional
@@ -506,28 +588,22 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
     public void iJoin(String nodeId) {
     }
 
-    @Override
-    @AsyncThread
-    public void managementNodeReady() {
-        SimpleQuery<GarbageCollectorVO> q = dbf.createQuery(GarbageCollectorVO.class);
-        q.select(GarbageCollectorVO_.id);
-        q.add(GarbageCollectorVO_.status, Op.IN, list(GCStatus.Idle, GCStatus.Processing));
-        q.add(GarbageCollectorVO_.managementNodeUuid, Op.NULL);
-        List<Long> ids = q.listValue();
-
-        List<Long> ours = new ArrayList<Long>();
-        for (long id : ids) {
-            if (destinationMaker.isManagedByUs(String.valueOf(id))) {
-                ours.add(id);
-            }
-        }
+    @Transactional
+    private void claimJobs(List<Long> ids) {
+        String sql = "update GarbageCollectorVO vo set vo.managementNodeUuid = :mgmtUuid where vo.id in (:ids) and vo.managementNodeUuid is null";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("mgmtUuid", Platform.getManagementServerId());
+        q.setParameter("ids", ids);
+        q.executeUpdate();
+    }
 
-        if (ours.isEmpty()) {
-            return;
-        }
+    private void recoverJobs(List<Long> ours) {
+        // other management nodes may have taken some of them
+        claimJobs(ours);
 
-        q = dbf.createQuery(GarbageCollectorVO.class);
+        SimpleQuery<GarbageCollectorVO> q = dbf.createQuery(GarbageCollectorVO.class);
         q.add(GarbageCollectorVO_.id, Op.IN, ours);
+        q.add(GarbageCollectorVO_.managementNodeUuid, Op.EQ, Platform.getManagementServerId());
         List<GarbageCollectorVO> vos = q.list();
         for (GarbageCollectorVO vo : vos) {
             if (TimeBasedGCPersistentContext.class.getName().equals(vo.getType())) {
@@ -537,4 +613,56 @@ public class GCFacadeImpl implements GCFacade, ManagementNodeChangeListener, Man
             }
         }
     }
+
+    @AsyncThread
+    private void recoverOrphanJobs() {
+        synchronized (recoveryLock) {
+            doRecoverOrphanJobs();
+        }
+    }
+
+    private void doRecoverOrphanJobs() {
+        long lastId = 0;
+        int recovered = 0;
+        while (true) {
+            SimpleQuery<GarbageCollectorVO> q = dbf.createQuery(GarbageCollectorVO.class);
+            q.select(GarbageCollectorVO_.id);
+            q.add(GarbageCollectorVO_.status, Op.IN, list(GCStatus.Idle, GCStatus.Processing));
+            q.add(GarbageCollectorVO_.managementNodeUuid, Op.NULL);
+            q.add(GarbageCollectorVO_.id, Op.GT, lastId);
+            q.orderBy(GarbageCollectorVO_.id, SimpleQuery.Od.ASC);
+            q.setLimit(RECOVERY_PAGE_SIZE);
+            List<Long> ids = q.listValue();
+            if (ids.isEmpty()) {
+                break;
+            }
+
+            lastId = ids.get(ids.size() - 1);
+
+            List<Long> ours = new ArrayList<Long>();
+            for (long id : ids) {
+                if (destinationMaker.isManagedByUs(String.valueOf(id))) {
+                    ours.add(id);
+                }
+            }
+
+            if (!ours.isEmpty()) {
+                recoverJobs(ours);
+                recovered += ours.size();
+            }
+
+            if (ids.size() < RECOVERY_PAGE_SIZE) {
+                break;
+            }
+        }
+
+        if (recovered > 0) {
+            logger.debug(String.format("[GC] recovered %s orphan GC jobs", recovered));
+        }
+    }
+
+    @Override
+    public void managementNodeReady() {
+        recoverOrphanJobs();
+    }
 }
@@ -0,0 +1,134 @@
+package org.zstack.core.gc;
+
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a hashed timer wheel for time based GC jobs.
+ *
+ * One periodic task ticks every TICK milliseconds instead of a timeout task per job. A job is put in the slot
+ * its deadline falls in, with the number of rounds of the wheel left before it's due. Jobs due in the same tick
+ * are grouped by their group(the runner class), each group runs in one thread task, so jobs of the same runner
+ * run together and don't occupy a thread each.
+ */
+class GCTimerWheel {
+    private static final CLogger logger = Utils.getLogger(GCTimerWheel.class);
+
+    private static final long TICK = 100;
+    private static final int SLOTS = 1024;
+
+    private static class Timeout {
+        String group;
+        Runnable runnable;
+        long rounds;
+    }
+
+    private final ThreadFacade thdf;
+    private final List<List<Timeout>> wheel = new ArrayList<List<Timeout>>(SLOTS);
+    private long tick;
+    private int size;
+
+    GCTimerWheel(ThreadFacade thdf) {
+        this.thdf = thdf;
+        for (int i = 0; i < SLOTS; i++) {
+            wheel.add(new LinkedList<Timeout>());
+        }
+    }
+
+    void start() {
+        thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.MILLISECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return TICK;
+            }
+
+            @Override
+            public String getName() {
+                return "gc-timer-wheel";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    expire();
+                } catch (Throwable t) {
+                    logger.warn("unhandled exception", t);
+                }
+            }
+        });
+    }
+
+    /**
+     * runs the runnable after the delay, a delay of 0 runs it in the next tick
+     */
+    synchronized void schedule(String group, Runnable runnable, TimeUnit unit, long delay) {
+        long ticks = Math.max((unit.toMillis(delay) + TICK - 1) / TICK, 1);
+        Timeout t = new Timeout();
+        t.group = group;
+        t.runnable = runnable;
+        // the slot is visited (ticks - 1) / SLOTS times before the deadline
+        t.rounds = (ticks - 1) / SLOTS;
+        wheel.get((int) ((tick + ticks) % SLOTS)).add(t);
+        size ++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void expire() {
+        Map<String, List<Runnable>> due = new HashMap<String, List<Runnable>>();
+        synchronized (this) {
+            tick ++;
+            Iterator<Timeout> it = wheel.get((int) (tick % SLOTS)).iterator();
+            while (it.hasNext()) {
+                Timeout t = it.next();
+                if (t.rounds > 0) {
+                    t.rounds --;
+                    continue;
+                }
+
+                it.remove();
+                size --;
+                List<Runnable> rs = due.get(t.group);
+                if (rs == null) {
+                    rs = new ArrayList<Runnable>();
+                    due.put(t.group, rs);
+                }
+                rs.add(t.runnable);
+            }
+        }
+
+        for (final Map.Entry<String, List<Runnable>> e : due.entrySet()) {
+            thdf.submit(new Task<Void>() {
+                @Override
+                public String getName() {
+                    return String.format("gc-jobs-%s", e.getKey());
+                }
+
+                @Override
+                public Void call() throws Exception {
+                    for (Runnable r : e.getValue()) {
+                        try {
+                            r.run();
+                        } catch (Throwable t) {
+                            logger.warn(String.format("unhandled exception when running GC job of %s", e.getKey()), t);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+}
@@ -38,6 +38,8 @@ import java.util.*;
 public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListener, Component, ManagementNodeChangeListener {
     private static final CLogger logger = Utils.getLogger(JobQueueFacadeImpl2.class);
     private static final String LOCK_NAME = "JobQueueFacade.lock";
+    // jobs of different queues don't contend for the same lock
+    private static final int LOCK_STRIPES = 16;
     private static final String ORPHAN_JOB_LOCK_NAME = "JobQueueFacade.orphanJobLock";
     private static final int LOCK_TIMEOUT = 60;
 
@@ -132,6 +134,10 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
         }
     }
 
+    private static String getQueueLockName(String queueName) {
+        return String.format("%s-%s", LOCK_NAME, (queueName.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES);
+    }
+
     private void takeOverJobs(String mgmtId) {
         GLock lock = new GLock(ORPHAN_JOB_LOCK_NAME, LOCK_TIMEOUT);
         lock.lock();
@@ -263,7 +269,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
             }
 
             private Bucket takeJob(final JobQueueVO qvo) {
-                GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                GLock lock = new GLock(getQueueLockName(qvo.getName()), LOCK_TIMEOUT);
                 lock.lock();
                 try {
                     JobQueueEntryVO jobe = findJob(qvo);
@@ -349,7 +355,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 }
 
                 try {
-                    GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                    GLock lock = new GLock(getQueueLockName(queueName), LOCK_TIMEOUT);
                     JobQueueVO qvo = null;
                     lock.lock();
                     try {
@@ -10,4 +10,6 @@ public interface LogBackend {
     void start();
 
     void stop();
+
+    LogBackendStatistic getStatistic();
 }
@@ -0,0 +1,79 @@
+package org.zstack.core.logging;
+
+/**
+ */
+public class LogBackendStatistic {
+    private int queueDepth;
+    private long written;
+    private long dropped;
+    private long spilled;
+    private long flushCount;
+    private long totalFlushTime;
+    private long maxFlushTime;
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public void setWritten(long written) {
+        this.written = written;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public void setDropped(long dropped) {
+        this.dropped = dropped;
+    }
+
+    public long getSpilled() {
+        return spilled;
+    }
+
+    public void setSpilled(long spilled) {
+        this.spilled = spilled;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public void setFlushCount(long flushCount) {
+        this.flushCount = flushCount;
+    }
+
+    public long getTotalFlushTime() {
+        return totalFlushTime;
+    }
+
+    public void setTotalFlushTime(long totalFlushTime) {
+        this.totalFlushTime = totalFlushTime;
+    }
+
+    public long getMaxFlushTime() {
+        return maxFlushTime;
+    }
+
+    public void setMaxFlushTime(long maxFlushTime) {
+        this.maxFlushTime = maxFlushTime;
+    }
+
+    public long getAverageFlushTime() {
+        return flushCount == 0 ? 0 : totalFlushTime / flushCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queue depth: %s, written: %s, dropped: %s, spilled: %s, flushes: %s, average flush time: %s ms, max flush time: %s ms",
+                queueDepth, written, dropped, spilled, flushCount, getAverageFlushTime(), maxFlushTime);
+    }
+}
@@ -10,4 +10,6 @@ public interface LogFacade {
     void warn(String resourceUuid, String info);
 
     void error(String resourceUuid, String info);
+
+    LogBackendStatistic getStatistic();
 }
@@ -54,6 +54,11 @@ public class LogFacadeImpl implements LogFacade, Component {
         write(resourceUuid, LogType.Text, LogLevel.Error, info);
     }
 
+    @Override
+    public LogBackendStatistic getStatistic() {
+        return backend.getStatistic();
+    }
+
     @Override
     public boolean start() {
         for (LogBackend bkd : pluginRgty.getExtensionList(LogBackend.class)) {
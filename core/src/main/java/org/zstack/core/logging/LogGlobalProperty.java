@@ -9,4 +9,12 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class LogGlobalProperty {
     @GlobalProperty(name="LogFacade.backend", defaultValue = LogConstant.MYSQL_BACKEND_TYPE)
     public static String LOG_FACADE_BACKEND_TYPE;
+    @GlobalProperty(name="LogFacade.mysql.queueCapacity", defaultValue = "10000")
+    public static int MYSQL_QUEUE_CAPACITY;
+    @GlobalProperty(name="LogFacade.mysql.batchSize", defaultValue = "500")
+    public static int MYSQL_BATCH_SIZE;
+    @GlobalProperty(name="LogFacade.mysql.overflowPolicy", defaultValue = "Block")
+    public static String MYSQL_OVERFLOW_POLICY;
+    @GlobalProperty(name="LogFacade.mysql.spillFile", defaultValue = "{user.home}/zstack-log-spill")
+    public static String MYSQL_SPILL_FILE;
 }
@@ -0,0 +1,13 @@
+package org.zstack.core.logging;
+
+/**
+ * what a log backend does when its queue is full
+ */
+public enum LogOverflowPolicy {
+    // the log is dropped
+    Drop,
+    // the writer waits up to 60 seconds for room, then the log is dropped
+    Block,
+    // the log is appended to a local file and written to the database when the queue is drained
+    Spill
+}
@@ -1,23 +1,32 @@
 package org.zstack.core.logging;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.thread.Task;
 import org.zstack.core.thread.ThreadFacade;
-import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.Utils;
-import org.zstack.utils.function.Function;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
+import java.io.*;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * writes logs to LogVO in a thread of its own.
+ *
+ * Logs are queued in a bounded queue of LogFacade.mysql.queueCapacity and written by multi-row inserts of at most
+ * LogFacade.mysql.batchSize rows through JDBC, not through JPA, so logging neither joins business transactions
+ * nor leaves entities in the persistence context. When the queue is full, LogFacade.mysql.overflowPolicy decides
+ * what happens to a new log, see LogOverflowPolicy.
  */
 public class MysqlLogBackend implements LogBackend {
     private static final CLogger logger = Utils.getLogger(MysqlLogBackend.class);
@@ -28,22 +37,72 @@ public class MysqlLogBackend implements LogBackend {
     private ThreadFacade thdf;
 
     private volatile boolean isStarted;
-    private BlockingQueue queue = new LinkedBlockingQueue();
+    private volatile BlockingQueue queue;
     private QuitToken quitToken =new QuitToken();
+    private LogOverflowPolicy overflowPolicy;
+    private final Object spillLock = new Object();
+
+    private AtomicLong written = new AtomicLong(0);
+    private AtomicLong dropped = new AtomicLong(0);
+    private AtomicLong spilled = new AtomicLong(0);
+    private AtomicLong flushCount = new AtomicLong(0);
+    private AtomicLong totalFlushTime = new AtomicLong(0);
+    private volatile long maxFlushTime;
 
     class QuitToken {
     }
 
+    // a log in the spill file, one json per line
+    private static class SpilledLog {
+        String content;
+        LogType type;
+        LogLevel level;
+        String resourceUuid;
+        long createDate;
+
+        LogVO toLogVO() {
+            LogVO vo = new LogVO();
+            vo.setContent(content);
+            vo.setType(type);
+            vo.setLevel(level);
+            vo.setResourceUuid(resourceUuid);
+            vo.setCreateDate(new Timestamp(createDate));
+            return vo;
+        }
+    }
+
     @Override
     public void write(LogVO log) {
         if (!isStarted) {
             return;
         }
 
-        try {
-            queue.offer(log, 60, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            logger.warn(String.format("unable to write log %s", JSONObjectUtil.toJsonString(log)), e);
+        if (log.getCreateDate() == null) {
+            log.setCreateDate(new Timestamp(System.currentTimeMillis()));
+        }
+
+        if (queue.offer(log)) {
+            return;
+        }
+
+        if (overflowPolicy == LogOverflowPolicy.Spill) {
+            spill(log);
+            return;
+        }
+
+        if (overflowPolicy == LogOverflowPolicy.Block) {
+            try {
+                if (queue.offer(log, 60, TimeUnit.SECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                logger.warn(String.format("unable to write log %s", JSONObjectUtil.toJsonString(log)), e);
+            }
+        }
+
+        long num = dropped.incrementAndGet();
+        if (num % 1000 == 1) {
+            logger.warn(String.format("log queue is full, %s logs have been dropped", num));
         }
     }
 
@@ -52,35 +111,181 @@ public class MysqlLogBackend implements LogBackend {
         return LogConstant.MYSQL_BACKEND_TYPE;
     }
 
-    @Transactional
-    private void batchWrite(List lst) {
+    @Override
+    public LogBackendStatistic getStatistic() {
+        LogBackendStatistic stat = new LogBackendStatistic();
+        stat.setQueueDepth(queue == null ? 0 : queue.size());
+        stat.setWritten(written.get());
+        stat.setDropped(dropped.get());
+        stat.setSpilled(spilled.get());
+        stat.setFlushCount(flushCount.get());
+        stat.setTotalFlushTime(totalFlushTime.get());
+        stat.setMaxFlushTime(maxFlushTime);
+        return stat;
+    }
+
+    private void spill(LogVO log) {
+        SpilledLog sl = new SpilledLog();
+        sl.content = log.getContent();
+        sl.type = log.getType();
+        sl.level = log.getLevel();
+        sl.resourceUuid = log.getResourceUuid();
+        sl.createDate = log.getCreateDate().getTime();
+
+        synchronized (spillLock) {
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(LogGlobalProperty.MYSQL_SPILL_FILE, true));
+                writer.write(JSONObjectUtil.toJsonString(sl));
+                writer.write("\n");
+                spilled.incrementAndGet();
+            } catch (IOException e) {
+                dropped.incrementAndGet();
+                logger.warn(String.format("unable to spill log to %s", LogGlobalProperty.MYSQL_SPILL_FILE), e);
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        logger.warn(e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void insert(List<LogVO> lst) throws SQLException {
+        StringBuilder sql = new StringBuilder("insert into LogVO (content, type, level, resourceUuid, createDate, lastOpDate) values ");
+        for (int i = 0; i < lst.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+        }
+
+        Connection conn = dbf.getDataSource().getConnection();
+        try {
+            conn.setAutoCommit(true);
+            PreparedStatement pstmt = conn.prepareStatement(sql.toString());
+            try {
+                int index = 1;
+                for (LogVO vo : lst) {
+                    pstmt.setString(index++, vo.getContent());
+                    pstmt.setString(index++, vo.getType().toString());
+                    pstmt.setString(index++, vo.getLevel() == null ? null : vo.getLevel().toString());
+                    pstmt.setString(index++, vo.getResourceUuid());
+                    pstmt.setTimestamp(index++, vo.getCreateDate());
+                    pstmt.setTimestamp(index++, vo.getCreateDate());
+                }
+                pstmt.executeUpdate();
+            } finally {
+                pstmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void batchWrite(List<LogVO> lst) {
+        int batchSize = LogGlobalProperty.MYSQL_BATCH_SIZE;
+        for (int i = 0; i < lst.size(); i += batchSize) {
+            List<LogVO> batch = lst.subList(i, Math.min(i + batchSize, lst.size()));
+            long start = System.currentTimeMillis();
+            try {
+                insert(batch);
+                written.addAndGet(batch.size());
+            } catch (SQLException e) {
+                dropped.addAndGet(batch.size());
+                logger.warn(String.format("unable to write %s logs to database", batch.size()), e);
+            }
+
+            long time = System.currentTimeMillis() - start;
+            flushCount.incrementAndGet();
+            totalFlushTime.addAndGet(time);
+            if (time > maxFlushTime) {
+                maxFlushTime = time;
+            }
+        }
+    }
+
+    private void replaySpilledLogs() {
+        File replaying = new File(LogGlobalProperty.MYSQL_SPILL_FILE + ".replaying");
+        synchronized (spillLock) {
+            File spill = new File(LogGlobalProperty.MYSQL_SPILL_FILE);
+            if (!replaying.exists() && (!spill.exists() || !spill.renameTo(replaying))) {
+                return;
+            }
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(replaying));
+            List<LogVO> lst = new ArrayList<LogVO>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                lst.add(JSONObjectUtil.toObject(line, SpilledLog.class).toLogVO());
+                if (lst.size() == LogGlobalProperty.MYSQL_BATCH_SIZE) {
+                    batchWrite(lst);
+                    lst.clear();
+                }
+            }
+            batchWrite(lst);
+        } catch (IOException e) {
+            logger.warn(String.format("unable to read spilled logs from %s", replaying.getAbsolutePath()), e);
+            return;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        }
+
+        if (!replaying.delete()) {
+            logger.warn(String.format("unable to delete %s", replaying.getAbsolutePath()));
+        }
+    }
+
+    private List<LogVO> drain(List lst) {
+        List<LogVO> ret = new ArrayList<LogVO>(lst.size());
         for (Object obj : lst) {
-            LogVO vo = (LogVO) obj;
-            dbf.getEntityManager().persist(vo);
+            if (obj instanceof LogVO) {
+                ret.add((LogVO) obj);
+            }
         }
+        return ret;
     }
 
-    private void consume() throws InterruptedException {
+    private void consume(BlockingQueue queue) throws InterruptedException {
         while (true) {
             List lst = new ArrayList();
             lst.add(queue.take());
-            queue.drainTo(lst);
-            if (lst.contains(quitToken)) {
-                List ret = CollectionUtils.transformToList(lst, new Function() {
-                    @Override
-                    public Object call(Object arg) {
-                        return arg instanceof LogVO ? arg : null;
-                    }
-                });
-                batchWrite(ret);
-                return;
+            queue.drainTo(lst, LogGlobalProperty.MYSQL_BATCH_SIZE - 1);
+            boolean quit = lst.contains(quitToken);
+            if (quit) {
+                // logs queued by writers racing with stop()
+                queue.drainTo(lst);
             }
 
-            batchWrite(lst);
+            try {
+                batchWrite(drain(lst));
+                if (quit || queue.isEmpty()) {
+                    replaySpilledLogs();
+                }
+            } catch (Throwable t) {
+                logger.warn("unhandled exception when writing logs", t);
+            }
+
+            if (quit) {
+                return;
+            }
         }
     }
 
-    private void startLogThread() {
+    private void startLogThread(final BlockingQueue queue) {
         thdf.submit(new Task<Void>() {
             @Override
             public String getName() {
@@ -89,7 +294,7 @@ public class MysqlLogBackend implements LogBackend {
 
             @Override
             public Void call() throws Exception {
-                consume();
+                consume(queue);
                 return null;
             }
         });
@@ -97,8 +302,16 @@ public class MysqlLogBackend implements LogBackend {
 
     @Override
     public void start() {
+        if (isStarted) {
+            return;
+        }
+
+        // the queue of the last start is drained by its own thread after stop(), so the properties can be changed
+        // before starting again
+        overflowPolicy = LogOverflowPolicy.valueOf(LogGlobalProperty.MYSQL_OVERFLOW_POLICY);
+        queue = new ArrayBlockingQueue(LogGlobalProperty.MYSQL_QUEUE_CAPACITY);
         isStarted = true;
-        startLogThread();
+        startLogThread(queue);
     }
 
     private void quit() {
@@ -111,6 +324,10 @@ public class MysqlLogBackend implements LogBackend {
 
     @Override
     public void stop() {
+        if (!isStarted) {
+            return;
+        }
+
         isStarted = false;
         quit();
     }
@@ -1,6 +1,8 @@
 package org.zstack.core.rest;
 
 import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
@@ -12,6 +14,8 @@ import org.zstack.core.Platform;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.thread.AsyncThread;
 import org.zstack.core.thread.CancelablePeriodicTask;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
 import org.zstack.core.timeout.ApiTimeoutManager;
@@ -30,6 +34,7 @@ import org.zstack.utils.logging.CLogger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -58,7 +63,7 @@ public class RESTFacadeImpl implements RESTFacade {
     private String baseUrl;
     private String sendCommandUrl;
 
-    private Map<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
+    private ConcurrentHashMap<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
     private Map<String, HttpCallHandlerWrapper> httpCallhandlers = new ConcurrentHashMap<String, HttpCallHandlerWrapper>();
     private List<BeforeAsyncJsonPostInterceptor> interceptors = new ArrayList<BeforeAsyncJsonPostInterceptor>();
 
@@ -104,7 +109,12 @@ public class RESTFacadeImpl implements RESTFacade {
         sendCommandUrl = ub.build().toUriString();
 
         logger.debug(String.format("RESTFacade built callback url: %s", callbackUrl));
-        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory();
+        // connections to an agent are kept alive and reused, at most RESTFacade.maxPerRoute to the same agent
+        HttpClient client = HttpClientBuilder.create()
+                .setMaxConnPerRoute(CoreGlobalProperty.REST_FACADE_MAX_PER_ROUTE)
+                .setMaxConnTotal(CoreGlobalProperty.REST_FACADE_MAX_TOTAL)
+                .build();
+        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(client);
         factory.setReadTimeout(CoreGlobalProperty.REST_FACADE_READ_TIMEOUT);
         factory.setConnectTimeout(CoreGlobalProperty.REST_FACADE_CONNECT_TIMEOUT);
         template = new RestTemplate(factory);
@@ -188,6 +198,37 @@ public class RESTFacadeImpl implements RESTFacade {
         this.path = path;
     }
 
+    private String getUrlPath(String url) {
+        try {
+            String path = URI.create(url).getPath();
+            return path == null || path.isEmpty() ? url : path;
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    private String getRoute(String url) {
+        try {
+            URI uri = URI.create(url);
+            return String.format("%s:%s", uri.getHost(), uri.getPort());
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    private void addStatistic(String url, long time) {
+        // agents are different only by ip, so calls are counted by the url path
+        String path = getUrlPath(url);
+        HttpCallStatistic stat = statistics.get(path);
+        if (stat == null) {
+            stat = new HttpCallStatistic();
+            stat.setUrl(path);
+            HttpCallStatistic old = statistics.putIfAbsent(path, stat);
+            stat = old == null ? stat : old;
+        }
+        stat.addStatistic(time);
+    }
+
     @Override
     public void asyncJsonPost(String url, Object body, AsyncRESTCallback callback, TimeUnit unit, long timeout) {
         for (BeforeAsyncJsonPostInterceptor ic : interceptors) {
@@ -207,17 +248,11 @@ public class RESTFacadeImpl implements RESTFacade {
         long stime = 0;
         if (CoreGlobalProperty.PROFILER_HTTP_CALL) {
             stime = System.currentTimeMillis();
-            HttpCallStatistic stat = statistics.get(url);
-            if (stat == null) {
-                stat = new HttpCallStatistic();
-                stat.setUrl(url);
-                statistics.put(url, stat);
-            }
         }
 
         final String taskUuid = Platform.getUuid();
         final long finalStime = stime;
-        AsyncHttpWrapper wrapper = new AsyncHttpWrapper() {
+        final AsyncHttpWrapper wrapper = new AsyncHttpWrapper() {
             AtomicBoolean called = new AtomicBoolean(false);
 
             final AsyncHttpWrapper self = this;
@@ -256,8 +291,7 @@ public class RESTFacadeImpl implements RESTFacade {
                 }
 
                 if (CoreGlobalProperty.PROFILER_HTTP_CALL) {
-                    HttpCallStatistic stat = statistics.get(url);
-                    stat.addStatistic(System.currentTimeMillis() - finalStime);
+                    addStatistic(url, System.currentTimeMillis() - finalStime);
                 }
 
                 wrappers.remove(taskUuid);
@@ -288,8 +322,46 @@ public class RESTFacadeImpl implements RESTFacade {
             }
         };
 
+        wrappers.put(taskUuid, wrapper);
+        final String route = getRoute(url);
+        // the caller doesn't wait for the agent to accept the command; posts to the same agent are queued and
+        // started in the order they are posted, at most as many at a time as connections to the agent, so a slow
+        // agent neither holds more threads than that nor makes every post to it wait behind a full timeout
+        thdf.chainSubmit(new ChainTask() {
+            @Override
+            public String getSyncSignature() {
+                return String.format("async-json-post-to-%s", route);
+            }
+
+            @Override
+            protected int getSyncLevel() {
+                return CoreGlobalProperty.REST_FACADE_MAX_PER_ROUTE;
+            }
+
+            @Override
+            public void run(SyncTaskChain chain) {
+                try {
+                    // the wrapper is removed once it's timeout or failed while being queued, the caller has
+                    // got the error so the command must not be sent
+                    if (wrappers.containsKey(taskUuid)) {
+                        post(url, body, taskUuid, wrapper);
+                    } else {
+                        logger.debug(String.format("skip posting to %s, the call[task uuid:%s] is already timeout or failed", url, taskUuid));
+                    }
+                } finally {
+                    chain.next();
+                }
+            }
+
+            @Override
+            public String getName() {
+                return getSyncSignature();
+            }
+        });
+    }
+
+    private void post(String url, String body, String taskUuid, AsyncHttpWrapper wrapper) {
         try {
-            wrappers.put(taskUuid, wrapper);
             HttpHeaders requestHeaders = new HttpHeaders();
             requestHeaders.setContentType(MediaType.APPLICATION_JSON);
             requestHeaders.setContentLength(body.length());
@@ -373,7 +445,11 @@ public class RESTFacadeImpl implements RESTFacade {
         if (logger.isTraceEnabled()) {
             logger.trace(String.format("json post[%s], %s", url, req.toString()));
         }
+        long stime = CoreGlobalProperty.PROFILER_HTTP_CALL ? System.currentTimeMillis() : 0;
         ResponseEntity<String> rsp = template.exchange(url, HttpMethod.POST, req, String.class);
+        if (CoreGlobalProperty.PROFILER_HTTP_CALL) {
+            addStatistic(url, System.currentTimeMillis() - stime);
+        }
         if (rsp.getStatusCode() != org.springframework.http.HttpStatus.OK) {
             String err = String.format("http status: %s, response body:%s", rsp.getStatusCode().toString(), rsp.getBody());
             throw new RestClientException(err);
@@ -12,6 +12,7 @@ import org.zstack.utils.logging.CLoggerImpl;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -24,10 +25,29 @@ class DispatchQueueImpl implements DispatchQueue {
 	@Autowired
 	ThreadFacade _threadFacade;
 
-	private final HashMap<String, SyncTaskQueueWrapper> syncTasks = new HashMap<String, SyncTaskQueueWrapper>();
-	private final HashMap<String, ChainTaskQueueWrapper> chainTasks = new HashMap<String, ChainTaskQueueWrapper>();
+	private final Map<String, SyncTaskQueueWrapper> syncTasks = new ConcurrentHashMap<String, SyncTaskQueueWrapper>();
+	private final Map<String, ChainTaskQueueWrapper> chainTasks = new ConcurrentHashMap<String, ChainTaskQueueWrapper>();
 	private static final CLogger _logger = CLoggerImpl.getLogger(DispatchQueueImpl.class);
 
+    // a queue wrapper is created, filled and removed under the lock of its signature's stripe,
+    // tasks of different signatures mostly go to different stripes and don't contend
+    private static final int LOCK_STRIPES = 256;
+    private final Object[] syncLocks = new Object[LOCK_STRIPES];
+    private final Object[] chainLocks = new Object[LOCK_STRIPES];
+
+    {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            syncLocks[i] = new Object();
+            chainLocks[i] = new Object();
+        }
+    }
+
+    private static Object stripe(Object[] locks, String signature) {
+        int h = signature.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (LOCK_STRIPES - 1)];
+    }
+
 
 	public void init() {
 	}
@@ -114,7 +134,7 @@ class DispatchQueueImpl implements DispatchQueue {
                             stask.run();
                         }
 
-                        synchronized (syncTasks) {
+                        synchronized (stripe(syncLocks, syncSignature)) {
                             if (queue.isEmpty()) {
                                 if (counter.decrementAndGet() == 0) {
                                     syncTasks.remove(syncSignature);
@@ -140,7 +160,7 @@ class DispatchQueueImpl implements DispatchQueue {
 		assert syncTask.getSyncSignature() != null : "How can you submit a sync task without sync signature ???";
 
         SyncTaskFuture f;
-        synchronized (syncTasks) {
+        synchronized (stripe(syncLocks, syncTask.getSyncSignature())) {
             SyncTaskQueueWrapper wrapper = syncTasks.get(syncTask.getSyncSignature());
             if (wrapper == null) {
                 wrapper = new SyncTaskQueueWrapper();
@@ -257,7 +277,7 @@ class DispatchQueueImpl implements DispatchQueue {
                 @AsyncThread
                 private void runQueue() {
                     ChainFuture cf;
-                    synchronized (chainTasks) {
+                    synchronized (stripe(chainLocks, syncSignature)) {
                         cf = (ChainFuture) queue.poll();
                         if (cf == null) {
                             if (counter.decrementAndGet() == 0) {
@@ -290,8 +310,8 @@ class DispatchQueueImpl implements DispatchQueue {
         assert task.getSyncSignature() != null : "How can you submit a chain task without sync signature ???";
         DebugUtils.Assert(task.getSyncLevel() >= 1, String.format("getSyncLevel() must return more than 1"));
 
-        synchronized (chainTasks) {
-            final String signature = task.getSyncSignature();
+        final String signature = task.getSyncSignature();
+        synchronized (stripe(chainLocks, signature)) {
             ChainTaskQueueWrapper wrapper = chainTasks.get(signature);
             if (wrapper == null) {
                 wrapper = new ChainTaskQueueWrapper();
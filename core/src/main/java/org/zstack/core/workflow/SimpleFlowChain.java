@@ -21,6 +21,7 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.function.Function;
 import org.zstack.utils.logging.CLogger;
 
+import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -66,7 +67,9 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
                 WorkFlowStatistic stat = statistics.get(cname);
                 stat.addStatistic(btime - stime);
 
-                logger.debug(String.format("[FlowChain:%s, flow:%s] takes %sms to complete", name, cname, stat.getTotalTime()));
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("[FlowChain:%s, flow:%s] takes %sms to complete", name, cname, stat.getTotalTime()));
+                }
             }
 
             String fname = getFlowName(flow);
@@ -252,8 +255,9 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
 
             currentFlow = toRun;
 
-            String info = String.format("[FlowChain: %s] start executing flow[%s]", name, getFlowName(currentFlow));
-            logger.debug(info);
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("[FlowChain: %s] start executing flow[%s]", name, getFlowName(currentFlow)));
+            }
             toRun.run(this, data);
         } catch (OperationFailureException oe) {
             String errInfo = oe.getErrorCode() != null ? oe.getErrorCode().toString() : "";
@@ -271,7 +275,9 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
 
     private void rollbackFlow(Flow flow) {
         try {
-            logger.debug(String.format("[FlowChain: %s] start to rollback flow[%s]", name, getFlowName(flow)));
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("[FlowChain: %s] start to rollback flow[%s]", name, getFlowName(flow)));
+            }
             flow.rollback(this, data);
         } catch (Throwable t) {
             logger.warn(String.format("[FlowChain: %s] unhandled exception when rollback flow[%s], continue to next rollback", name, flow.getClass().getSimpleName()), t);
@@ -301,34 +307,80 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
         }
     }
 
+    /**
+     * what's known about a flow class, introspected once when a flow of the class first runs
+     */
+    private static class FlowMeta {
+        // the __name__ field, null if the class has none
+        Field nameField;
+        String defaultName;
+        // file name and line number of run(), only resolved when trace is on
+        volatile String location;
+    }
+
+    private static final Map<Class, FlowMeta> flowMetas = new ConcurrentHashMap<Class, FlowMeta>();
+
+    private static FlowMeta getFlowMeta(Class clz) {
+        FlowMeta meta = flowMetas.get(clz);
+        if (meta != null) {
+            return meta;
+        }
+
+        meta = new FlowMeta();
+        meta.nameField = FieldUtils.getField("__name__", clz);
+        if (meta.nameField != null) {
+            meta.nameField.setAccessible(true);
+        }
+        meta.defaultName = clz.getSimpleName();
+        if (meta.defaultName.equals("")) {
+            meta.defaultName = clz.getName();
+        }
+        flowMetas.put(clz, meta);
+        return meta;
+    }
+
+    private static String getFlowLocation(Class clz) {
+        String className = clz.getName();
+        String[] ff = className.split("\\.");
+        String filename = ff[ff.length-1];
+        if (filename.contains("$")) {
+            int index = filename.indexOf("$");
+            filename = filename.substring(0, index);
+        }
+
+        try {
+            ClassPool pool = ClassPool.getDefault();
+            CtClass cc = pool.get(className);
+            CtMethod m = cc.getDeclaredMethod("run");
+            int line = m.getMethodInfo().getLineNumber(0);
+            return String.format("%s.java:%s", filename, line);
+        } catch (NotFoundException e) {
+            logger.warn(String.format("cannot find the flow[%s] line number, %s", className, e.getMessage()));
+            return filename;
+        }
+    }
+
     private String getFlowName(Flow flow) {
-        String name = FieldUtils.getFieldValue("__name__", flow);
-        if (name == null) {
-            name = flow.getClass().getSimpleName();
-            if (name.equals("")) {
-                name = flow.getClass().getName();
+        FlowMeta meta = getFlowMeta(flow.getClass());
+        String name = null;
+        if (meta.nameField != null) {
+            // __name__ may be built from the instance's state, it can't be cached per class
+            try {
+                name = (String) meta.nameField.get(flow);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException(e);
             }
         }
+        if (name == null) {
+            name = meta.defaultName;
+        }
 
         if (logger.isTraceEnabled()) {
-            try {
-                ClassPool pool = ClassPool.getDefault();
-                CtClass cc = pool.get(flow.getClass().getName());
-                CtMethod m = cc.getDeclaredMethod("run");
-                int line = m.getMethodInfo().getLineNumber(0);
-
-                String className = flow.getClass().getName();
-                String[] ff = className.split("\\.");
-                String filename = ff[ff.length-1];
-                if (filename.contains("$")) {
-                    int index = filename.indexOf("$");
-                    filename = filename.substring(0, index);
-                }
-
-                name = String.format("%s.java:%s:%s", filename, line, name);
-            } catch (NotFoundException e) {
-                logger.warn(String.format("cannot find the flow[%s] line number, %s", name, e.getMessage()));
+            if (meta.location == null) {
+                meta.location = getFlowLocation(flow.getClass());
             }
+
+            name = String.format("%s:%s", meta.location, name);
         }
 
         return name;
@@ -360,7 +412,9 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
         }
 
         if (currentRollbackFlow != null) {
-            logger.debug(String.format("[FlowChain: %s] successfully rolled back flow[%s]", name, getFlowName(currentRollbackFlow)));
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("[FlowChain: %s] successfully rolled back flow[%s]", name, getFlowName(currentRollbackFlow)));
+            }
         } else {
             logger.debug(String.format("[FlowChain: %s] start to rollback", name));
         }
@@ -424,7 +478,9 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
 
         rollBackFlows.push(currentFlow);
 
-        logger.debug(String.format("[FlowChain: %s] successfully executed flow[%s]", name, getFlowName(currentFlow)));
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("[FlowChain: %s] successfully executed flow[%s]", name, getFlowName(currentFlow)));
+        }
 
         if (!it.hasNext()) {
             if (errorCode == null) {
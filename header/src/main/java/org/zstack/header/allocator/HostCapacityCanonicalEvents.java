@@ -0,0 +1,25 @@
+package org.zstack.header.allocator;
+
+import org.zstack.header.message.NeedJsonSchema;
+
+import java.util.List;
+
+/**
+ */
+public class HostCapacityCanonicalEvents {
+    public static final String RESERVED_CAPACITY_CHANGED_PATH = "/host/reservedCapacity/changed";
+
+    @NeedJsonSchema
+    public static class ReservedCapacityChangedData {
+        // uuids of hosts, clusters or zones whose reserved capacity changed
+        private List<String> resourceUuids;
+
+        public List<String> getResourceUuids() {
+            return resourceUuids;
+        }
+
+        public void setResourceUuids(List<String> resourceUuids) {
+            this.resourceUuids = resourceUuids;
+        }
+    }
+}
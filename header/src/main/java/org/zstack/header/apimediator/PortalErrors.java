@@ -4,7 +4,8 @@ package org.zstack.header.apimediator;
  */
 public enum PortalErrors {
     NO_SERVICE_FOR_MESSAGE(1000),
-    MISSING_FIELD(1001);
+    MISSING_FIELD(1001),
+    API_QUEUE_FULL(1003);
 
     private String code;
 
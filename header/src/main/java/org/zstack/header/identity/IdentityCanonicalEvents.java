@@ -9,6 +9,7 @@ import java.util.Date;
  */
 public class IdentityCanonicalEvents {
     public static final String ACCOUNT_DELETED_PATH = "/account/delete";
+    public static final String POLICY_CHANGED_PATH = "/account/policy/change";
 
     @NeedJsonSchema
     public static class AccountDeletedData {
@@ -40,4 +41,27 @@ public class IdentityCanonicalEvents {
             this.date = date;
         }
     }
+
+    @NeedJsonSchema
+    public static class PolicyChangedData {
+        // null if policies of users in a group or all users are changed
+        private String userUuid;
+        private Date date = new Date();
+
+        public String getUserUuid() {
+            return userUuid;
+        }
+
+        public void setUserUuid(String userUuid) {
+            this.userUuid = userUuid;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public void setDate(Date date) {
+            this.date = date;
+        }
+    }
 }
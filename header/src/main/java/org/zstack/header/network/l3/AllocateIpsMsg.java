@@ -0,0 +1,43 @@
+package org.zstack.header.network.l3;
+
+import org.zstack.header.message.NeedReplyMessage;
+
+/**
+ * allocates num ips of an l3 network in one go, either all of them or none is allocated
+ */
+public class AllocateIpsMsg extends NeedReplyMessage implements L3NetworkMessage, IpAllocateMessage {
+    private String allocateStrategy;
+    private String l3NetworkUuid;
+    private int num;
+
+    public int getNum() {
+        return num;
+    }
+
+    public void setNum(int num) {
+        this.num = num;
+    }
+
+    @Override
+    public String getAllocatorStrategy() {
+        return allocateStrategy;
+    }
+
+    public void setAllocateStrategy(String allocateStrategy) {
+        this.allocateStrategy = allocateStrategy;
+    }
+
+    public void setL3NetworkUuid(String l3NetworkUuid) {
+        this.l3NetworkUuid = l3NetworkUuid;
+    }
+
+    @Override
+    public String getL3NetworkUuid() {
+        return l3NetworkUuid;
+    }
+
+    @Override
+    public String getRequiredIp() {
+        return null;
+    }
+}
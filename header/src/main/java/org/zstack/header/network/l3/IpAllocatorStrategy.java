@@ -1,7 +1,14 @@
 package org.zstack.header.network.l3;
 
+import java.util.List;
+
 public interface IpAllocatorStrategy {
     IpAllocatorType getType();
     
     UsedIpInventory allocateIp(IpAllocateMessage msg);
+
+    /**
+     * @return the allocated ips, fewer than num if the l3 network runs out of ips
+     */
+    List<UsedIpInventory> allocateIps(IpAllocateMessage msg, int num);
 }
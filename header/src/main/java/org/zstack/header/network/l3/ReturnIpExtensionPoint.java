@@ -0,0 +1,8 @@
+package org.zstack.header.network.l3;
+
+/**
+ * called after a used ip is returned by ReturnIpMsg
+ */
+public interface ReturnIpExtensionPoint {
+    void afterReturnIp(UsedIpInventory ip);
+}
@@ -3,12 +3,21 @@ package org.zstack.header.rest;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * statistics of http calls to the same url path, collected when profiler.httpCall is on.
+ *
+ * Besides the total and average time, calls are counted in buckets of latency, the last bucket counts calls
+ * slower than all bounds.
  */
 public class HttpCallStatistic {
+    // upper bounds of latency buckets, in milliseconds
+    public static final long[] LATENCY_BUCKETS = {10, 50, 100, 500, 1000, 5000, 10000, 60000, 300000};
+
     private String url;
     private long totalTime;
     private long count;
     private long averageTime;
+    private long maxTime;
+    private long[] latencyHistogram = new long[LATENCY_BUCKETS.length + 1];
 
     public String getUrl() {
         return url;
@@ -42,18 +51,62 @@ public class HttpCallStatistic {
         this.averageTime = averageTime;
     }
 
-    public void addStatistic(long time) {
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public void setMaxTime(long maxTime) {
+        this.maxTime = maxTime;
+    }
+
+    public long[] getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    public void setLatencyHistogram(long[] latencyHistogram) {
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    public synchronized void addStatistic(long time) {
         totalTime += time;
         count ++;
         averageTime = totalTime / count;
+        maxTime = Math.max(maxTime, time);
+
+        int i = 0;
+        while (i < LATENCY_BUCKETS.length && time > LATENCY_BUCKETS[i]) {
+            i ++;
+        }
+        latencyHistogram[i] ++;
+    }
+
+    private String histogramToString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < latencyHistogram.length; i++) {
+            if (latencyHistogram[i] == 0) {
+                continue;
+            }
+
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            if (i < LATENCY_BUCKETS.length) {
+                sb.append(String.format("<=%sms: %s", LATENCY_BUCKETS[i], latencyHistogram[i]));
+            } else {
+                sb.append(String.format(">%sms: %s", LATENCY_BUCKETS[i-1], latencyHistogram[i]));
+            }
+        }
+        return sb.toString();
     }
 
     @Override
-    public String toString() {
-        return String.format("URL[%s]: total time: %s secs, total count: %s, average time: %s secs",
+    public synchronized String toString() {
+        return String.format("URL[%s]: total time: %s secs, total count: %s, average time: %s secs, max time: %s secs, latency: [%s]",
                 url,
                 TimeUnit.MILLISECONDS.toSeconds(totalTime),
                 count,
-                TimeUnit.MILLISECONDS.toSeconds(averageTime));
+                TimeUnit.MILLISECONDS.toSeconds(averageTime),
+                TimeUnit.MILLISECONDS.toSeconds(maxTime),
+                histogramToString());
     }
 }
@@ -11,6 +11,8 @@ public class ImageCacheInventory {
     private long size;
     private String md5sum;
     private String state;
+    private long hitCount;
+    private Timestamp lastUsedDate;
     private Timestamp createDate;
     private Timestamp lastOpDate;
     
@@ -25,6 +27,8 @@ public class ImageCacheInventory {
         inv.setPrimaryStorageUuid(vo.getPrimaryStorageUuid());
         inv.setSize(vo.getSize());
         inv.setState(vo.getState().toString());
+        inv.setHitCount(vo.getHitCount());
+        inv.setLastUsedDate(vo.getLastUsedDate());
         return inv;
     }
     
@@ -87,4 +91,20 @@ public class ImageCacheInventory {
     public void setState(String state) {
         this.state = state;
     }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public void setHitCount(long hitCount) {
+        this.hitCount = hitCount;
+    }
+
+    public Timestamp getLastUsedDate() {
+        return lastUsedDate;
+    }
+
+    public void setLastUsedDate(Timestamp lastUsedDate) {
+        this.lastUsedDate = lastUsedDate;
+    }
 }
@@ -40,6 +40,12 @@ public class ImageCacheVO {
     
     @Column
     private String md5sum;
+
+    @Column
+    private long hitCount;
+
+    @Column
+    private Timestamp lastUsedDate;
     
     @Column
     private Timestamp createDate;
@@ -131,4 +137,20 @@ public class ImageCacheVO {
     public void setState(ImageCacheState state) {
         this.state = state;
     }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public void setHitCount(long hitCount) {
+        this.hitCount = hitCount;
+    }
+
+    public Timestamp getLastUsedDate() {
+        return lastUsedDate;
+    }
+
+    public void setLastUsedDate(Timestamp lastUsedDate) {
+        this.lastUsedDate = lastUsedDate;
+    }
 }
@@ -14,6 +14,8 @@ public class ImageCacheVO_ {
     public static volatile SingularAttribute<ImageCacheVO, String> installUrl;
     public static volatile SingularAttribute<ImageCacheVO, String> md5sum;
     public static volatile SingularAttribute<ImageCacheVO, Long> size;
+    public static volatile SingularAttribute<ImageCacheVO, Long> hitCount;
+    public static volatile SingularAttribute<ImageCacheVO, Timestamp> lastUsedDate;
     public static volatile SingularAttribute<ImageCacheVO, Timestamp> createDate;
     public static volatile SingularAttribute<ImageCacheVO, Timestamp> lastOpDate;
     public static volatile SingularAttribute<ImageCacheVO, ImageMediaType> format;
@@ -23,6 +23,7 @@ import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.identity.*;
 import org.zstack.header.identity.IdentityCanonicalEvents.AccountDeletedData;
+import org.zstack.header.identity.IdentityCanonicalEvents.PolicyChangedData;
 import org.zstack.header.message.APIDeleteMessage.DeletionMode;
 import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.Message;
@@ -312,20 +313,40 @@ public class AccountBase extends AbstractAccount {
         bus.publish(evt);
     }
 
-    @Transactional
+    private void firePolicyChangedEvent(String userUuid) {
+        PolicyChangedData data = new PolicyChangedData();
+        data.setUserUuid(userUuid);
+        acntMgr.invalidatePolicyDecisions(userUuid);
+        evtf.fire(IdentityCanonicalEvents.POLICY_CHANGED_PATH, data);
+    }
+
     private void handle(APIDetachPoliciesFromUserMsg msg) {
+        detachPoliciesFromUser(msg);
+        firePolicyChangedEvent(msg.getUserUuid());
+
+        APIDetachPoliciesFromUserEvent evt = new APIDetachPoliciesFromUserEvent(msg.getId());
+        bus.publish(evt);
+    }
+
+    @Transactional
+    private void detachPoliciesFromUser(APIDetachPoliciesFromUserMsg msg) {
         String sql = "delete from UserPolicyRefVO ref where ref.policyUuid in (:puuids) and ref.userUuid = :userUuid";
         Query q = dbf.getEntityManager().createQuery(sql);
         q.setParameter("puuids", msg.getPolicyUuids());
         q.setParameter("userUuid", msg.getUserUuid());
         q.executeUpdate();
+    }
 
-        APIDetachPoliciesFromUserEvent evt = new APIDetachPoliciesFromUserEvent(msg.getId());
+    private void handle(APIAttachPoliciesToUserMsg msg) {
+        attachPoliciesToUser(msg);
+        firePolicyChangedEvent(msg.getUserUuid());
+
+        APIAttachPoliciesToUserEvent evt = new APIAttachPoliciesToUserEvent(msg.getId());
         bus.publish(evt);
     }
 
     @Transactional
-    private void handle(APIAttachPoliciesToUserMsg msg) {
+    private void attachPoliciesToUser(APIAttachPoliciesToUserMsg msg) {
         String sql = "select p.uuid from PolicyVO p where p.uuid in (:uuids) and p.uuid not in (select ref.policyUuid from UserPolicyRefVO ref" +
                 " where ref.userUuid = :userUuid)";
         TypedQuery<String> q = dbf.getEntityManager().createQuery(sql, String.class);
@@ -339,9 +360,6 @@ public class AccountBase extends AbstractAccount {
             ref.setPolicyUuid(puuid);
             dbf.getEntityManager().persist(ref);
         }
-
-        APIAttachPoliciesToUserEvent evt = new APIAttachPoliciesToUserEvent(msg.getId());
-        bus.publish(evt);
     }
 
     private void handle(APIGetAccountQuotaUsageMsg msg) {
@@ -523,6 +541,7 @@ public class AccountBase extends AbstractAccount {
         UserGroupUserRefVO ref = q.find();
         if (ref != null) {
             dbf.remove(ref);
+            firePolicyChangedEvent(msg.getUserUuid());
         }
 
         bus.publish(new APIRemoveUserFromGroupEvent(msg.getId()));
@@ -535,6 +554,7 @@ public class AccountBase extends AbstractAccount {
         UserGroupPolicyRefVO ref = q.find();
         if (ref != null) {
             dbf.remove(ref);
+            firePolicyChangedEvent(null);
         }
 
         bus.publish(new APIDetachPolicyFromUserGroupEvent(msg.getId()));
@@ -547,6 +567,7 @@ public class AccountBase extends AbstractAccount {
         UserPolicyRefVO ref = q.find();
         if (ref != null) {
             dbf.remove(ref);
+            firePolicyChangedEvent(msg.getUserUuid());
         }
 
         bus.publish(new APIDetachPolicyFromUserEvent(msg.getId()));
@@ -554,18 +575,21 @@ public class AccountBase extends AbstractAccount {
 
     private void handle(APIDeletePolicyMsg msg) {
         dbf.removeByPrimaryKey(msg.getUuid(), PolicyVO.class);
+        firePolicyChangedEvent(null);
         APIDeletePolicyEvent evt = new APIDeletePolicyEvent(msg.getId());
         bus.publish(evt);
     }
 
     private void handle(APIDeleteUserMsg msg) {
         dbf.removeByPrimaryKey(msg.getUuid(), UserVO.class);
+        firePolicyChangedEvent(msg.getUuid());
         APIDeleteUserEvent evt = new APIDeleteUserEvent(msg.getId());
         bus.publish(evt);
     }
 
     private void handle(APIDeleteUserGroupMsg msg) {
         dbf.removeByPrimaryKey(msg.getUuid(), UserGroupVO.class);
+        firePolicyChangedEvent(null);
         APIDeleteUserGroupEvent evt = new APIDeleteUserGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -575,6 +599,7 @@ public class AccountBase extends AbstractAccount {
         ugvo.setGroupUuid(msg.getGroupUuid());
         ugvo.setUserUuid(msg.getUserUuid());
         dbf.persist(ugvo);
+        firePolicyChangedEvent(msg.getUserUuid());
         APIAddUserToGroupEvent evt = new APIAddUserToGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -584,6 +609,7 @@ public class AccountBase extends AbstractAccount {
         grvo.setGroupUuid(msg.getGroupUuid());
         grvo.setPolicyUuid(msg.getPolicyUuid());
         dbf.persist(grvo);
+        firePolicyChangedEvent(null);
         APIAttachPolicyToUserGroupEvent evt = new APIAttachPolicyToUserGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -613,7 +639,8 @@ public class AccountBase extends AbstractAccount {
         upvo.setPolicyUuid(msg.getPolicyUuid());
         upvo.setUserUuid(msg.getUserUuid());
         dbf.persist(upvo);
-        
+        firePolicyChangedEvent(msg.getUserUuid());
+
         APIAttachPolicyToUserEvent evt = new APIAttachPolicyToUserEvent(msg.getId());
         bus.publish(evt);
     }
@@ -17,4 +17,7 @@ public interface AccountManager {
     Map<Class, Quota> getMessageQuotaMap();
 
     List<Quota> getQuotas();
+
+    // drops cached policy decisions of the user, or of all users if the userUuid is null
+    void invalidatePolicyDecisions(String userUuid);
 }
@@ -27,6 +27,7 @@ import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.identity.*;
 import org.zstack.header.identity.AccountConstant.StatementEffect;
 import org.zstack.header.identity.IdentityCanonicalEvents.AccountDeletedData;
+import org.zstack.header.identity.IdentityCanonicalEvents.PolicyChangedData;
 import org.zstack.header.identity.PolicyInventory.Statement;
 import org.zstack.header.identity.Quota.QuotaPair;
 import org.zstack.header.managementnode.PrepareDbInitialValueExtensionPoint;
@@ -52,8 +53,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionDSL.list;
 
@@ -101,6 +101,26 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
     private Map<Class, MessageAction> actions = new HashMap<Class, MessageAction>();
     private Future<Void> expiredSessionCollector;
 
+    class Decision {
+        PolicyInventory policy;
+        String action;
+        Statement statement;
+        String actionRule;
+        StatementEffect effect;
+        boolean userPolicy;
+    }
+
+    // policies of a user compiled, and decisions they made for API classes
+    class UserPolicies {
+        PolicyMatcher userPolicies;
+        PolicyMatcher groupPolicies;
+        Map<Class, Decision> decisions = new ConcurrentHashMap<Class, Decision>();
+    }
+
+    private final Decision noDecision = new Decision();
+    private final Map<String, UserPolicies> userPolicies = new ConcurrentHashMap<String, UserPolicies>();
+    private final AtomicLong policyVersion = new AtomicLong();
+
     @Override
     @MessageSafe
     public void handleMessage(Message msg) {
@@ -131,6 +151,54 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         return definedQuotas;
     }
 
+    @Override
+    public void invalidatePolicyDecisions(String userUuid) {
+        synchronized (userPolicies) {
+            policyVersion.incrementAndGet();
+            if (userUuid == null) {
+                userPolicies.clear();
+            } else {
+                userPolicies.remove(userUuid);
+            }
+        }
+    }
+
+    private UserPolicies getUserPolicies(String userUuid) {
+        UserPolicies ps = userPolicies.get(userUuid);
+        if (ps != null) {
+            return ps;
+        }
+
+        long version = policyVersion.get();
+        ps = new UserPolicies();
+        ps.userPolicies = new PolicyMatcher(loadUserPolicies(userUuid));
+        ps.groupPolicies = new PolicyMatcher(loadGroupPolicies(userUuid));
+        synchronized (userPolicies) {
+            // don't cache policies loaded when they were being changed
+            if (version == policyVersion.get()) {
+                userPolicies.put(userUuid, ps);
+            }
+        }
+        return ps;
+    }
+
+    @Transactional(readOnly = true)
+    private List<PolicyInventory> loadGroupPolicies(String userUuid) {
+        String sql = "select p from PolicyVO p, UserGroupUserRefVO ref, UserGroupPolicyRefVO gref where" +
+                " p.uuid = gref.policyUuid and gref.groupUuid = ref.groupUuid and ref.userUuid = :uuid";
+        TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
+        q.setParameter("uuid", userUuid);
+        return PolicyInventory.valueOf(q.getResultList());
+    }
+
+    @Transactional(readOnly = true)
+    private List<PolicyInventory> loadUserPolicies(String userUuid) {
+        String sql = "select p from PolicyVO p, UserPolicyRefVO ref where ref.userUuid = :uuid and ref.policyUuid = p.uuid";
+        TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
+        q.setParameter("uuid", userUuid);
+        return PolicyInventory.valueOf(q.getResultList());
+    }
+
     private void handle(GenerateMessageIdentityCategoryMsg msg) {
         List<String> adminMsgs = new ArrayList<String>();
         List<String> userMsgs = new ArrayList<String>();
@@ -602,6 +670,16 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                     logger.debug(String.format("successfully removed %s sessions for the deleted account[%s]", sessionToDelete.size(),
                             d.getAccountUuid()));
                 }
+
+                invalidatePolicyDecisions(null);
+            }
+        });
+
+        evtf.on(IdentityCanonicalEvents.POLICY_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                PolicyChangedData d = (PolicyChangedData) data;
+                invalidatePolicyDecisions(d.getUserUuid());
             }
         });
     }
@@ -1064,8 +1142,18 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             }
         }
 
-        private void useDecision(Decision d, boolean userPolicy) {
-            String policyCategory = userPolicy ? "user policy" : "group policy";
+        private String getUsername() {
+            if (username == null) {
+                SimpleQuery<UserVO> uq = dbf.createQuery(UserVO.class);
+                uq.select(UserVO_.name);
+                uq.add(UserVO_.uuid, Op.EQ, session.getUserUuid());
+                username = uq.findValue();
+            }
+            return username;
+        }
+
+        private void useDecision(Decision d) {
+            String policyCategory = d.userPolicy ? "user policy" : "group policy";
 
             if (d.effect == StatementEffect.Allow) {
                 logger.debug(String.format("API[name: %s, action: %s] is approved by a %s[name: %s, uuid: %s]," +
@@ -1077,7 +1165,7 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                         d.policy.getUuid(), d.statement.getName(), d.actionRule));
 
                 throw new ApiMessageInterceptionException(errf.instantiateErrorCode(IdentityErrors.PERMISSION_DENIED,
-                        String.format("%s denied. user[name: %s, uuid: %s] is denied to execute API[%s]", policyCategory, username, session.getUuid(), msg.getClass().getSimpleName())
+                        String.format("%s denied. user[name: %s, uuid: %s] is denied to execute API[%s]", policyCategory, getUsername(), session.getUuid(), msg.getClass().getSimpleName())
                 ));
             }
         }
@@ -1143,86 +1231,53 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                 return;
             }
 
-            SimpleQuery<UserVO> uq = dbf.createQuery(UserVO.class);
-            uq.select(UserVO_.name);
-            uq.add(UserVO_.uuid, Op.EQ, session.getUserUuid());
-            username = uq.findValue();
-
-            List<PolicyInventory> userPolicies = getUserPolicies();
-            Decision d = decide(userPolicies);
-            if (d != null) {
-                useDecision(d, true);
-                return;
-            }
-
-            List<PolicyInventory> groupPolicies = getGroupPolicies();
-            d = decide(groupPolicies);
+            Decision d = decide();
             if (d != null) {
-                useDecision(d, false);
+                useDecision(d);
                 return;
             }
 
             throw new ApiMessageInterceptionException(errf.instantiateErrorCode(IdentityErrors.PERMISSION_DENIED,
                     String.format("user[name: %s, uuid: %s] has no policy set for this operation, API[%s] is denied by default. You may either create policies for this user" +
-                            " or add the user into a group with polices set", username, session.getUserUuid(), msg.getClass().getSimpleName())
+                            " or add the user into a group with polices set", getUsername(), session.getUserUuid(), msg.getClass().getSimpleName())
             ));
         }
 
 
-        @Transactional(readOnly = true)
-        private List<PolicyInventory> getGroupPolicies() {
-            String sql = "select p from PolicyVO p, UserGroupUserRefVO ref, UserGroupPolicyRefVO gref where" +
-                    " p.uuid = gref.policyUuid and gref.groupUuid = ref.groupUuid and ref.userUuid = :uuid";
-            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
-            q.setParameter("uuid", session.getUserUuid());
-            return PolicyInventory.valueOf(q.getResultList());
-        }
-
-        class Decision {
-            PolicyInventory policy;
-            String action;
-            Statement statement;
-            String actionRule;
-            StatementEffect effect;
-        }
-
-        private Decision decide(List<PolicyInventory> userPolicies) {
+        private Decision decide(PolicyMatcher matcher, boolean userPolicy) {
             for (String a : action.actions) {
-                for (PolicyInventory p : userPolicies) {
-                    for (Statement s : p.getStatements()) {
-                        for (String ac : s.getActions()) {
-                            Pattern pattern = Pattern.compile(ac);
-                            Matcher m = pattern.matcher(a);
-                            boolean ret = m.matches();
-                            if (ret) {
-                                Decision d = new Decision();
-                                d.policy = p;
-                                d.action = a;
-                                d.statement = s;
-                                d.actionRule = ac;
-                                d.effect = s.getEffect();
-                                return d;
-                            }
-
-                            if (logger.isTraceEnabled()) {
-                                logger.trace(String.format("API[name: %s, action: %s] is not matched by policy[name: %s, uuid: %s" +
-                                        ", statement[name: %s, action: %s, effect: %s]", msg.getClass().getSimpleName(), a, p.getName(),
-                                        p.getUuid(), s.getName(), ac, s.getEffect()));
-                            }
-                        }
-                    }
+                PolicyMatcher.Rule r = matcher.match(a);
+                if (r != null) {
+                    Decision d = new Decision();
+                    d.policy = r.policy;
+                    d.action = a;
+                    d.statement = r.statement;
+                    d.actionRule = r.actionRule;
+                    d.effect = r.statement.getEffect();
+                    d.userPolicy = userPolicy;
+                    return d;
                 }
             }
 
             return null;
         }
 
-        @Transactional(readOnly = true)
-        private List<PolicyInventory> getUserPolicies() {
-            String sql = "select p from PolicyVO p, UserPolicyRefVO ref where ref.userUuid = :uuid and ref.policyUuid = p.uuid";
-            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
-            q.setParameter("uuid", session.getUserUuid());
-            return PolicyInventory.valueOf(q.getResultList());
+        // user policies are checked before group policies, the decision is cached until policies of the user change
+        private Decision decide() {
+            UserPolicies ps = getUserPolicies(session.getUserUuid());
+            Decision d = ps.decisions.get(msg.getClass());
+            if (d == null) {
+                d = decide(ps.userPolicies, true);
+                if (d == null) {
+                    d = decide(ps.groupPolicies, false);
+                }
+                if (d == null) {
+                    d = noDecision;
+                }
+                ps.decisions.put(msg.getClass(), d);
+            }
+
+            return d == noDecision ? null : d;
         }
 
         private void sessionCheck() {
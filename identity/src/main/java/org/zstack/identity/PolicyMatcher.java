@@ -0,0 +1,116 @@
+package org.zstack.identity;
+
+import org.zstack.header.identity.PolicyInventory;
+import org.zstack.header.identity.PolicyInventory.Statement;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * statement actions of a list of policies, compiled once.
+ *
+ * An action rule is a regex matching API actions like "vm:APICreateVmInstanceMsg". A rule without regex
+ * metacharacters is put in a hash map; others are compiled and put in a trie by their literal prefix, so matching
+ * an action only tries the patterns whose prefix the action starts with. Like the policies are checked one by one,
+ * a match returns the first rule in the order of policies, statements and actions.
+ */
+class PolicyMatcher {
+    private static final String META_CHARS = "\\^$.|?*+()[]{}";
+
+    static class Rule {
+        PolicyInventory policy;
+        Statement statement;
+        String actionRule;
+        Pattern pattern;
+        int order;
+    }
+
+    private static class Node {
+        Map<Character, Node> children = new HashMap<Character, Node>();
+        List<Rule> rules = new ArrayList<Rule>();
+    }
+
+    private final Map<String, Rule> exactRules = new HashMap<String, Rule>();
+    private final Node root = new Node();
+
+    PolicyMatcher(List<PolicyInventory> policies) {
+        int order = 0;
+        for (PolicyInventory p : policies) {
+            for (Statement s : p.getStatements()) {
+                for (String ac : s.getActions()) {
+                    Rule r = new Rule();
+                    r.policy = p;
+                    r.statement = s;
+                    r.actionRule = ac;
+                    r.order = order ++;
+                    add(r);
+                }
+            }
+        }
+    }
+
+    private static String literalPrefix(String regex) {
+        if (regex.indexOf('|') != -1) {
+            // an alternation may not start with the prefix
+            return "";
+        }
+
+        int i = 0;
+        while (i < regex.length() && META_CHARS.indexOf(regex.charAt(i)) == -1) {
+            i ++;
+        }
+
+        if (i < regex.length() && "?*{".indexOf(regex.charAt(i)) != -1 && i > 0) {
+            // the last literal is optional
+            i --;
+        }
+
+        return regex.substring(0, i);
+    }
+
+    private void add(Rule r) {
+        String prefix = literalPrefix(r.actionRule);
+        if (prefix.length() == r.actionRule.length()) {
+            if (!exactRules.containsKey(r.actionRule)) {
+                exactRules.put(r.actionRule, r);
+            }
+            return;
+        }
+
+        r.pattern = Pattern.compile(r.actionRule);
+        Node n = root;
+        for (char c : prefix.toCharArray()) {
+            Node child = n.children.get(c);
+            if (child == null) {
+                child = new Node();
+                n.children.put(c, child);
+            }
+            n = child;
+        }
+        n.rules.add(r);
+    }
+
+    Rule match(String action) {
+        Rule ret = exactRules.get(action);
+
+        Node n = root;
+        int i = 0;
+        while (n != null) {
+            for (Rule r : n.rules) {
+                if (ret != null && ret.order < r.order) {
+                    break;
+                }
+
+                if (r.pattern.matcher(action).matches()) {
+                    ret = r;
+                    break;
+                }
+            }
+
+            n = i < action.length() ? n.children.get(action.charAt(i)) : null;
+            i ++;
+        }
+
+        return ret;
+    }
+}
@@ -10,6 +10,7 @@ import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.function.Function;
 import org.zstack.utils.network.NetworkUtils;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -46,4 +47,19 @@ public abstract class AbstractIpAllocatorStrategy implements IpAllocatorStrategy
 
         return l3NwMgr.reserveIp(IpRangeInventory.valueOf(ipr), msg.getRequiredIp());
     }
+
+    @Override
+    public List<UsedIpInventory> allocateIps(IpAllocateMessage msg, int num) {
+        List<UsedIpInventory> ret = new ArrayList<UsedIpInventory>(num);
+        while (ret.size() < num) {
+            UsedIpInventory ip = allocateIp(msg);
+            if (ip == null) {
+                break;
+            }
+
+            ret.add(ip);
+        }
+
+        return ret;
+    }
 }
@@ -0,0 +1,180 @@
+package org.zstack.network.l3;
+
+import org.zstack.core.db.HardDeleteEntityExtensionPoint;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.network.l3.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * allocates the first available ip like FirstAvailableIpAllocatorStrategy, but finds it in a bitmap of used ips
+ * cached per ip range instead of loading all used ips of the range from the database for every allocation.
+ *
+ * The bitmap of a range is built from the database the first time the range is used. Ips allocated by this strategy
+ * and returned through ReturnIpMsg on this management node are tracked; ips taken by other management nodes
+ * or other strategies are found when reserving them fails on the unique key, and ips released by them are
+ * found when the bitmap says the range is full but the database doesn't, the bitmap is rebuilt then.
+ *
+ * Ips deleted from the database on this management node without ReturnIpMsg(e.g. the DHCP server ip of
+ * the flat network provider) are caught by the hard deletion extension of UsedIpVO, which doesn't tell the ip range,
+ * so all bitmaps are dropped before the next allocation and rebuilt on demand.
+ */
+public class BitmapIpAllocatorStrategy extends AbstractIpAllocatorStrategy implements ReturnIpExtensionPoint,
+        IpRangeDeletionExtensionPoint, HardDeleteEntityExtensionPoint {
+    private static final CLogger logger = Utils.getLogger(BitmapIpAllocatorStrategy.class);
+    public static final IpAllocatorType type = new IpAllocatorType(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+
+    private ConcurrentHashMap<String, IpRangeBitmap> bitmaps = new ConcurrentHashMap<String, IpRangeBitmap>();
+    // uuids of UsedIpVO deleted but not returned through ReturnIpMsg yet; ReturnIpMsg deletes the ip first
+    // then calls afterReturnIp(), the ones left are deleted by other paths
+    private Set<String> deletedIpUuids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Override
+    public IpAllocatorType getType() {
+        return type;
+    }
+
+    private IpRangeBitmap buildBitmap(IpRangeVO vo) {
+        IpRangeBitmap bitmap = new IpRangeBitmap(NetworkUtils.ipv4StringToLong(vo.getStartIp()),
+                NetworkUtils.ipv4StringToLong(vo.getEndIp()), l3NwMgr.getUsedIpInRange(vo.getUuid()));
+        bitmaps.put(vo.getUuid(), bitmap);
+        logger.debug(String.format("built ip bitmap of ip range[uuid:%s, name:%s], %s of %s ips used",
+                vo.getUuid(), vo.getName(), bitmap.getUsed(), bitmap.getSize()));
+        return bitmap;
+    }
+
+    private void dropBitmapsIfIpsDeleted() {
+        if (deletedIpUuids.isEmpty()) {
+            return;
+        }
+
+        Set<String> deleted = new HashSet<String>(deletedIpUuids);
+        deletedIpUuids.removeAll(deleted);
+        // any ip of deleted may have been returned by ReturnIpMsg in the meantime, dropping the bitmaps is still right
+        logger.debug(String.format("used ips%s are deleted without ReturnIpMsg, drop all ip bitmaps", deleted));
+        bitmaps.clear();
+    }
+
+    private IpRangeBitmap getBitmap(IpRangeVO vo) {
+        IpRangeBitmap bitmap = bitmaps.get(vo.getUuid());
+        if (bitmap == null || !bitmap.isSameRange(NetworkUtils.ipv4StringToLong(vo.getStartIp()), NetworkUtils.ipv4StringToLong(vo.getEndIp()))) {
+            bitmap = buildBitmap(vo);
+        }
+        return bitmap;
+    }
+
+    private List<UsedIpInventory> allocateInRange(IpRangeVO vo, int num) {
+        List<UsedIpInventory> ret = new ArrayList<UsedIpInventory>();
+        IpRangeInventory ipr = IpRangeInventory.valueOf(vo);
+        IpRangeBitmap bitmap = getBitmap(vo);
+        boolean rebuilt = false;
+
+        while (ret.size() < num) {
+            List<Long> ips = bitmap.allocate(num - ret.size());
+            if (ips.isEmpty()) {
+                if (rebuilt || l3NwMgr.isIpRangeFull(vo)) {
+                    break;
+                }
+
+                // ips released by others are not in the bitmap
+                bitmap = buildBitmap(vo);
+                rebuilt = true;
+                continue;
+            }
+
+            for (long ip : ips) {
+                // a failure means the ip is used by others, it stays marked in the bitmap
+                UsedIpInventory inv = l3NwMgr.reserveIp(ipr, NetworkUtils.longToIpv4String(ip));
+                if (inv != null) {
+                    ret.add(inv);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private List<IpRangeVO> getIpRanges(String l3NetworkUuid) {
+        SimpleQuery<IpRangeVO> query = dbf.createQuery(IpRangeVO.class);
+        query.add(IpRangeVO_.l3NetworkUuid, Op.EQ, l3NetworkUuid);
+        return query.list();
+    }
+
+    @Override
+    public UsedIpInventory allocateIp(IpAllocateMessage msg) {
+        if (msg.getRequiredIp() != null) {
+            UsedIpInventory inv = allocateRequiredIp(msg);
+            if (inv != null) {
+                IpRangeBitmap bitmap = bitmaps.get(inv.getIpRangeUuid());
+                if (bitmap != null) {
+                    bitmap.markUsed(inv.getIpInLong());
+                }
+            }
+            return inv;
+        }
+
+        List<UsedIpInventory> ips = allocateIps(msg, 1);
+        return ips.isEmpty() ? null : ips.get(0);
+    }
+
+    @Override
+    public List<UsedIpInventory> allocateIps(IpAllocateMessage msg, int num) {
+        dropBitmapsIfIpsDeleted();
+
+        List<UsedIpInventory> ret = new ArrayList<UsedIpInventory>(num);
+        for (IpRangeVO r : getIpRanges(msg.getL3NetworkUuid())) {
+            ret.addAll(allocateInRange(r, num - ret.size()));
+            if (ret.size() == num) {
+                break;
+            }
+
+            logger.debug(String.format("Ip range[uuid:%s, name: %s] is exhausted, try next one", r.getUuid(), r.getName()));
+        }
+
+        return ret;
+    }
+
+    @Override
+    public void afterReturnIp(UsedIpInventory ip) {
+        deletedIpUuids.remove(ip.getUuid());
+        IpRangeBitmap bitmap = bitmaps.get(ip.getIpRangeUuid());
+        if (bitmap != null) {
+            bitmap.release(ip.getIpInLong());
+        }
+    }
+
+    @Override
+    public void preDeleteIpRange(IpRangeInventory ipRange) {
+    }
+
+    @Override
+    public void beforeDeleteIpRange(IpRangeInventory ipRange) {
+    }
+
+    @Override
+    public void afterDeleteIpRange(IpRangeInventory ipRange) {
+        bitmaps.remove(ipRange.getUuid());
+    }
+
+    @Override
+    public void failedToDeleteIpRange(IpRangeInventory ipRange, ErrorCode errorCode) {
+    }
+
+    @Override
+    public List<Class> getEntityClassForHardDeleteEntityExtension() {
+        List<Class> ret = new ArrayList<Class>();
+        ret.add(UsedIpVO.class);
+        return ret;
+    }
+
+    @Override
+    public void postHardDelete(Collection entityIds, Class entityClass) {
+        deletedIpUuids.addAll(entityIds);
+    }
+}
@@ -0,0 +1,155 @@
+package org.zstack.network.l3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a bitmap of used ips of an ip range, one bit per ip.
+ *
+ * A second level keeps one bit per 64-ip word telling the word is full, so finding a free ip skips
+ * 4096 used ips per summary word; a /16 range costs 8K bytes plus 128 bytes of summary.
+ *
+ * The bitmap is only a hint, the database(the unique key of UsedIpVO) is still the judge of whether an ip is used.
+ */
+class IpRangeBitmap {
+    private final long startIp;
+    private final long endIp;
+    private final int size;
+    private final long[] words;
+    private final long[] fullWords;
+    private int used;
+    // where the next search starts, ips before it are known used
+    private int hint;
+
+    IpRangeBitmap(long startIp, long endIp, List<Long> usedIps) {
+        this.startIp = startIp;
+        this.endIp = endIp;
+        size = (int) (endIp - startIp + 1);
+        words = new long[(size + 63) >>> 6];
+        fullWords = new long[(words.length + 63) >>> 6];
+
+        // bits beyond the end of the range are never free
+        int tail = size & 63;
+        if (tail != 0) {
+            words[words.length - 1] = -1L << tail;
+            markWordIfFull(words.length - 1);
+        }
+
+        for (Long ip : usedIps) {
+            markUsed(ip);
+        }
+    }
+
+    boolean isSameRange(long startIp, long endIp) {
+        return this.startIp == startIp && this.endIp == endIp;
+    }
+
+    private void markWordIfFull(int w) {
+        if (words[w] == -1L) {
+            fullWords[w >>> 6] |= 1L << (w & 63);
+        } else {
+            fullWords[w >>> 6] &= ~(1L << (w & 63));
+        }
+    }
+
+    private boolean inRange(long ip) {
+        return ip >= startIp && ip <= endIp;
+    }
+
+    synchronized void markUsed(long ip) {
+        if (!inRange(ip)) {
+            return;
+        }
+
+        int i = (int) (ip - startIp);
+        int w = i >>> 6;
+        long bit = 1L << (i & 63);
+        if ((words[w] & bit) == 0) {
+            words[w] |= bit;
+            used++;
+            markWordIfFull(w);
+        }
+    }
+
+    synchronized void release(long ip) {
+        if (!inRange(ip)) {
+            return;
+        }
+
+        int i = (int) (ip - startIp);
+        int w = i >>> 6;
+        long bit = 1L << (i & 63);
+        if ((words[w] & bit) != 0) {
+            words[w] &= ~bit;
+            used--;
+            markWordIfFull(w);
+            if (i < hint) {
+                hint = i;
+            }
+        }
+    }
+
+    private int findFreeWord(int from) {
+        int w = from;
+        while (w < words.length) {
+            int s = w >>> 6;
+            long free = ~fullWords[s] & (-1L << (w & 63));
+            if (free != 0) {
+                int f = (s << 6) + Long.numberOfTrailingZeros(free);
+                return f < words.length ? f : -1;
+            }
+
+            w = (s + 1) << 6;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the lowest free ip which is then marked used, or -1 if the range is full
+     */
+    synchronized long allocate() {
+        if (used >= size) {
+            return -1;
+        }
+
+        int w = findFreeWord(hint >>> 6);
+        if (w == -1) {
+            return -1;
+        }
+
+        int i = (w << 6) + Long.numberOfTrailingZeros(~words[w]);
+        words[w] |= 1L << (i & 63);
+        used++;
+        markWordIfFull(w);
+        hint = i + 1;
+        return startIp + i;
+    }
+
+    /**
+     * @return at most num free ips which are then marked used, in ascending order
+     */
+    synchronized List<Long> allocate(int num) {
+        List<Long> ret = new ArrayList<Long>(num);
+        while (ret.size() < num) {
+            long ip = allocate();
+            if (ip == -1) {
+                break;
+            }
+            ret.add(ip);
+        }
+        return ret;
+    }
+
+    synchronized boolean isFull() {
+        return used >= size;
+    }
+
+    synchronized int getUsed() {
+        return used;
+    }
+
+    int getSize() {
+        return size;
+    }
+}
@@ -127,6 +127,8 @@ public class L3BasicNetwork implements L3Network {
     private void handleLocalMessage(Message msg) {
         if (msg instanceof AllocateIpMsg) {
             handle((AllocateIpMsg)msg);
+        } else if (msg instanceof AllocateIpsMsg) {
+            handle((AllocateIpsMsg) msg);
         } else if (msg instanceof ReturnIpMsg) {
             handle((ReturnIpMsg)msg);
         } else if (msg instanceof L3NetworkDeletionMsg) {
@@ -186,10 +188,45 @@ public class L3BasicNetwork implements L3Network {
         bus.reply(msg, reply);
     }
 
+    private void returnIp(String usedIpUuid) {
+        UsedIpVO vo = dbf.findByUuid(usedIpUuid, UsedIpVO.class);
+        if (vo != null) {
+            dbf.remove(vo);
+
+            final UsedIpInventory ip = UsedIpInventory.valueOf(vo);
+            CollectionUtils.safeForEach(pluginRgty.getExtensionList(ReturnIpExtensionPoint.class), new ForEachFunction<ReturnIpExtensionPoint>() {
+                @Override
+                public void run(ReturnIpExtensionPoint arg) {
+                    arg.afterReturnIp(ip);
+                }
+            });
+        }
+        logger.debug(String.format("Successfully released used ip[%s]", usedIpUuid));
+    }
+
     private void handle(ReturnIpMsg msg) {
         ReturnIpReply reply = new ReturnIpReply();
-        dbf.removeByPrimaryKey(msg.getUsedIpUuid(), UsedIpVO.class);
-        logger.debug(String.format("Successfully released used ip[%s]", msg.getUsedIpUuid()));
+        returnIp(msg.getUsedIpUuid());
+        bus.reply(msg, reply);
+    }
+
+    private void handle(AllocateIpsMsg msg) {
+        IpAllocatorType strategyType = msg.getAllocatorStrategy() == null ? RandomIpAllocatorStrategy.type : IpAllocatorType.valueOf(msg.getAllocatorStrategy());
+        IpAllocatorStrategy ias = l3NwMgr.getIpAllocatorStrategy(strategyType);
+        AllocateIpsReply reply = new AllocateIpsReply();
+        List<UsedIpInventory> ips = ias.allocateIps(msg, msg.getNum());
+        if (ips.size() < msg.getNum()) {
+            for (UsedIpInventory ip : ips) {
+                returnIp(ip.getUuid());
+            }
+
+            reply.setError(errf.instantiateErrorCode(L3Errors.ALLOCATE_IP_ERROR, String.format("IP allocator strategy[%s] returns %s ips but %s are required, because no enough ips are available in this l3Network[name:%s, uuid:%s]",
+                    strategyType, ips.size(), msg.getNum(), self.getName(), self.getUuid())));
+        } else {
+            logger.debug(String.format("Ip allocator strategy[%s] successfully allocates %s ips in l3Network[uuid:%s]", strategyType, ips.size(), self.getUuid()));
+            reply.setIpInventories(ips);
+        }
+
         bus.reply(msg, reply);
     }
 
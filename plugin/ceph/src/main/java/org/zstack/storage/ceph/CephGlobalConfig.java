@@ -17,4 +17,10 @@ public class CephGlobalConfig {
     public static GlobalConfig BACKUP_STORAGE_DOWNLOAD_IMAGE_TIMEOUT = new GlobalConfig(CATEGORY, "backupStorage.image.download.timeout");
     @GlobalConfigValidation
     public static GlobalConfig PRIMARY_STORAGE_DELETE_POOL = new GlobalConfig(CATEGORY, "primaryStorage.deletePool");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig MON_CIRCUIT_BREAKER_FAILURE_THRESHOLD = new GlobalConfig(CATEGORY, "mon.circuitBreaker.failureThreshold");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig MON_CIRCUIT_BREAKER_OPEN_TIME = new GlobalConfig(CATEGORY, "mon.circuitBreaker.openTime");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig MON_HEDGE_MIN_DELAY = new GlobalConfig(CATEGORY, "mon.hedge.minDelay");
 }
@@ -0,0 +1,369 @@
+package org.zstack.storage.ceph;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.rest.JsonAsyncRESTCallback;
+import org.zstack.header.rest.RESTFacade;
+import org.zstack.utils.Utils;
+import org.zstack.utils.function.Function;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * picks the mon to send an agent command to.
+ *
+ * Every call to a mon is sampled into an EWMA of its latency and error rate; connected mons are tried in the order
+ * of their scores, the fastest healthy mon first. A call fails the mon if the mon can't be reached or times out; an
+ * error reported by the agent is the command's, not the mon's, it only samples the latency.
+ * A mon failing mon.circuitBreaker.failureThreshold calls in a row is put behind all others for
+ * mon.circuitBreaker.openTime seconds, after that one call to it at a time is a trial that closes or reopens the
+ * circuit. An idempotent command is also sent to the next mon if the first one is slower than usual or fails, the
+ * first successful response wins; other commands failed by the agent are never sent to another mon.
+ */
+public class CephMonSelector {
+    private static final CLogger logger = Utils.getLogger(CephMonSelector.class);
+
+    // weight of the latest sample in the moving averages
+    private static final double EWMA_WEIGHT = 0.2;
+    // a mon failing half of calls scores as a mon 6 times slower
+    private static final double ERROR_PENALTY = 10;
+    // an idempotent command is hedged when the mon is this times slower than its average
+    private static final int HEDGE_LATENCY_FACTOR = 3;
+    // samples older than this don't tell much, the mon is probed as a new one
+    private static final long STATS_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    @Autowired
+    private RESTFacade restf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private ErrorFacade errf;
+
+    /**
+     * marks an agent command which is safe to be executed by more than one mon
+     */
+    public interface IdempotentCommand {
+    }
+
+    public enum CircuitState {
+        Closed,
+        Open,
+        HalfOpen
+    }
+
+    private static class MonStats {
+        long samples;
+        double latency;
+        double errorRate;
+        int consecutiveFailures;
+        // the open time is added on checking, so a change of it applies to open circuits too
+        long openedAt;
+        long lastSampleTime;
+        long failures;
+        long hedges;
+        boolean trialInFlight;
+
+        synchronized void record(long elapsed, boolean success, long now, boolean trial) {
+            if (samples == 0 || now - lastSampleTime > STATS_TTL) {
+                latency = elapsed;
+                errorRate = success ? 0 : 1;
+            } else {
+                // a failure returned fast doesn't make the mon faster
+                long l = success ? elapsed : Math.max(elapsed, (long) latency);
+                latency = EWMA_WEIGHT * l + (1 - EWMA_WEIGHT) * latency;
+                errorRate = EWMA_WEIGHT * (success ? 0 : 1) + (1 - EWMA_WEIGHT) * errorRate;
+            }
+
+            samples ++;
+            lastSampleTime = now;
+            if (trial) {
+                trialInFlight = false;
+            }
+
+            if (success) {
+                consecutiveFailures = 0;
+            } else {
+                failures ++;
+                consecutiveFailures ++;
+                openedAt = now;
+            }
+        }
+
+        synchronized CircuitState getCircuitState(long now) {
+            if (consecutiveFailures < CephGlobalConfig.MON_CIRCUIT_BREAKER_FAILURE_THRESHOLD.value(Integer.class)) {
+                return CircuitState.Closed;
+            } else if (now < openedAt + TimeUnit.SECONDS.toMillis(CephGlobalConfig.MON_CIRCUIT_BREAKER_OPEN_TIME.value(Long.class))) {
+                return CircuitState.Open;
+            } else {
+                return CircuitState.HalfOpen;
+            }
+        }
+
+        // a half open mon takes no other call while its trial is on the way
+        synchronized boolean isAvailable(long now) {
+            CircuitState state = getCircuitState(now);
+            return state == CircuitState.Closed || (state == CircuitState.HalfOpen && !trialInFlight);
+        }
+
+        // returns true if the call is the trial of the half open mon
+        synchronized boolean startCall(long now) {
+            if (getCircuitState(now) == CircuitState.HalfOpen && !trialInFlight) {
+                trialInFlight = true;
+                return true;
+            }
+
+            return false;
+        }
+
+        synchronized double getScore(long now) {
+            if (samples == 0 || now - lastSampleTime > STATS_TTL) {
+                return 0;
+            }
+
+            return latency * (1 + ERROR_PENALTY * errorRate);
+        }
+
+        synchronized void hedged() {
+            hedges ++;
+        }
+    }
+
+    private final ConcurrentHashMap<String, MonStats> stats = new ConcurrentHashMap<String, MonStats>();
+
+    private MonStats getStats(String monUuid) {
+        MonStats s = stats.get(monUuid);
+        if (s == null) {
+            s = new MonStats();
+            MonStats old = stats.putIfAbsent(monUuid, s);
+            s = old == null ? s : old;
+        }
+
+        return s;
+    }
+
+    public <T extends CephMonAO> List<T> order(List<T> mons) {
+        List<T> ret = new ArrayList<T>(mons);
+        // break ties randomly, the sort below is stable
+        Collections.shuffle(ret);
+
+        final long now = System.currentTimeMillis();
+        final Map<String, Double> scores = new HashMap<String, Double>();
+        final Map<String, Boolean> unavailables = new HashMap<String, Boolean>();
+        for (T mon : ret) {
+            MonStats s = getStats(mon.getUuid());
+            scores.put(mon.getUuid(), s.getScore(now));
+            unavailables.put(mon.getUuid(), !s.isAvailable(now));
+        }
+
+        Collections.sort(ret, new Comparator<T>() {
+            @Override
+            public int compare(T o1, T o2) {
+                // mons with open circuits or trials on the way are only tried after all others failed
+                int c = unavailables.get(o1.getUuid()).compareTo(unavailables.get(o2.getUuid()));
+                return c != 0 ? c : scores.get(o1.getUuid()).compareTo(scores.get(o2.getUuid()));
+            }
+        });
+
+        return ret;
+    }
+
+    private long getHedgeDelay(CephMonAO mon) {
+        long minDelay = CephGlobalConfig.MON_HEDGE_MIN_DELAY.value(Long.class);
+        MonStats s = getStats(mon.getUuid());
+        synchronized (s) {
+            return Math.max(minDelay, (long) (s.latency * HEDGE_LATENCY_FACTOR));
+        }
+    }
+
+    /**
+     * @param responseChecker returns the error if the response tells the command failed, null otherwise
+     */
+    public <T> void call(final String path, List<? extends CephMonAO> mons, final Object cmd, final Class<T> retClass,
+                         final Function<String, CephMonAO> urlMaker, final Function<ErrorCode, T> responseChecker,
+                         final ReturnValueCompletion<T> completion) {
+        final List<? extends CephMonAO> ordered = order(mons);
+        final boolean hedge = cmd instanceof IdempotentCommand && ordered.size() > 1;
+
+        class MonCaller {
+            Iterator<? extends CephMonAO> it = ordered.iterator();
+            // mons unavailable when their turns come, tried after all others as the last resort
+            LinkedList<CephMonAO> deferred = new LinkedList<CephMonAO>();
+            List<ErrorCode> errorCodes = new ArrayList<ErrorCode>();
+            int inflight;
+            boolean done;
+
+            void call() {
+                CephMonAO mon = null;
+                synchronized (this) {
+                    if (done) {
+                        return;
+                    }
+
+                    long now = System.currentTimeMillis();
+                    while (mon == null && it.hasNext()) {
+                        CephMonAO m = it.next();
+                        if (getStats(m.getUuid()).isAvailable(now)) {
+                            mon = m;
+                        } else {
+                            deferred.add(m);
+                        }
+                    }
+
+                    if (mon == null) {
+                        mon = deferred.poll();
+                    }
+
+                    if (mon != null) {
+                        inflight ++;
+                    }
+                }
+
+                if (mon == null) {
+                    failIfAllFailed();
+                } else {
+                    send(mon);
+                }
+            }
+
+            void failIfAllFailed() {
+                synchronized (this) {
+                    if (done || inflight > 0 || it.hasNext() || !deferred.isEmpty()) {
+                        return;
+                    }
+
+                    done = true;
+                }
+
+                completion.fail(errf.stringToOperationError(
+                        String.format("all mons failed to execute http call[%s], errors are %s", path, JSONObjectUtil.toJsonString(errorCodes))
+                ));
+            }
+
+            void send(final CephMonAO mon) {
+                // set once the call moves on to the next mon, by a failure or a hedge
+                final AtomicBoolean moved = new AtomicBoolean(false);
+                final long start = System.currentTimeMillis();
+                final boolean trial = getStats(mon.getUuid()).startCall(start);
+
+                final TimeoutTaskReceipt hedgeReceipt = !hedge ? null : thdf.submitTimeoutTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (moved.compareAndSet(false, true)) {
+                            logger.debug(String.format("mon[%s] is slow to execute http call[%s], hedge it to the next mon", mon.getHostname(), path));
+                            getStats(mon.getUuid()).hedged();
+                            call();
+                        }
+                    }
+                }, TimeUnit.MILLISECONDS, getHedgeDelay(mon));
+
+                restf.asyncJsonPost(urlMaker.call(mon), cmd, new JsonAsyncRESTCallback<T>(completion) {
+                    private void failed(ErrorCode err, boolean byAgent) {
+                        if (hedgeReceipt != null) {
+                            hedgeReceipt.cancel();
+                        }
+
+                        // the mon answering with an error is healthy, the command failed for its own reasons like a
+                        // missing image or pool
+                        getStats(mon.getUuid()).record(System.currentTimeMillis() - start, byAgent, System.currentTimeMillis(), trial);
+                        // the agent may have done part of a command not idempotent, it's not sent to another mon
+                        boolean finish = byAgent && !hedge;
+                        synchronized (MonCaller.this) {
+                            inflight --;
+                            errorCodes.add(err);
+                            if (finish) {
+                                if (done) {
+                                    return;
+                                }
+
+                                done = true;
+                            }
+                        }
+
+                        if (finish) {
+                            completion.fail(err);
+                        } else if (moved.compareAndSet(false, true)) {
+                            call();
+                        } else {
+                            failIfAllFailed();
+                        }
+                    }
+
+                    @Override
+                    public void fail(ErrorCode err) {
+                        failed(err, false);
+                    }
+
+                    @Override
+                    public void success(T ret) {
+                        ErrorCode err = responseChecker.call(ret);
+                        if (err != null) {
+                            failed(err, true);
+                            return;
+                        }
+
+                        if (hedgeReceipt != null) {
+                            hedgeReceipt.cancel();
+                        }
+
+                        moved.set(true);
+                        getStats(mon.getUuid()).record(System.currentTimeMillis() - start, true, System.currentTimeMillis(), trial);
+                        synchronized (MonCaller.this) {
+                            inflight --;
+                            if (done) {
+                                return;
+                            }
+
+                            done = true;
+                        }
+
+                        completion.success(ret);
+                    }
+
+                    @Override
+                    public Class<T> getReturnClass() {
+                        return retClass;
+                    }
+                });
+            }
+        }
+
+        new MonCaller().call();
+    }
+
+    public List<CephMonStatistics> getStatistics(List<? extends CephMonAO> mons) {
+        long now = System.currentTimeMillis();
+        List<CephMonStatistics> ret = new ArrayList<CephMonStatistics>();
+        for (CephMonAO mon : order(mons)) {
+            MonStats s = getStats(mon.getUuid());
+            CephMonStatistics st = new CephMonStatistics();
+            st.setMonUuid(mon.getUuid());
+            st.setHostname(mon.getHostname());
+            st.setStatus(mon.getStatus() == null ? null : mon.getStatus().toString());
+            st.setCircuitState(s.getCircuitState(now).toString());
+            synchronized (s) {
+                st.setLatency((long) s.latency);
+                st.setErrorRate(s.errorRate);
+                st.setConsecutiveFailures(s.consecutiveFailures);
+                st.setCalls(s.samples);
+                st.setFailures(s.failures);
+                st.setHedges(s.hedges);
+            }
+            ret.add(st);
+        }
+
+        return ret;
+    }
+
+    public void removeStatistics(String monUuid) {
+        stats.remove(monUuid);
+    }
+}
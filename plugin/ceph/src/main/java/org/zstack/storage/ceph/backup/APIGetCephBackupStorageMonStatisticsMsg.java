@@ -0,0 +1,23 @@
+package org.zstack.storage.ceph.backup;
+
+import org.zstack.header.message.APIMessage;
+import org.zstack.header.message.APIParam;
+import org.zstack.header.storage.backup.BackupStorageMessage;
+
+public class APIGetCephBackupStorageMonStatisticsMsg extends APIMessage implements BackupStorageMessage {
+    @APIParam(resourceType = CephBackupStorageVO.class)
+    private String uuid;
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public void setUuid(String uuid) {
+        this.uuid = uuid;
+    }
+
+    @Override
+    public String getBackupStorageUuid() {
+        return uuid;
+    }
+}
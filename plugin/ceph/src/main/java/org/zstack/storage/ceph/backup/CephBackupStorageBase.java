@@ -18,11 +18,11 @@ import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.image.ImageInventory;
 import org.zstack.header.message.APIMessage;
-import org.zstack.header.rest.JsonAsyncRESTCallback;
 import org.zstack.header.rest.RESTFacade;
 import org.zstack.header.storage.backup.*;
 import org.zstack.storage.backup.BackupStorageBase;
 import org.zstack.storage.ceph.*;
+import org.zstack.storage.ceph.CephMonSelector.IdempotentCommand;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.function.Function;
 import org.zstack.utils.gson.JSONObjectUtil;
@@ -41,6 +41,8 @@ public class CephBackupStorageBase extends BackupStorageBase {
 
     @Autowired
     protected RESTFacade restf;
+    @Autowired
+    private CephMonSelector monSelector;
 
     public static class AgentCommand {
         String fsid;
@@ -171,7 +173,7 @@ public class CephBackupStorageBase extends BackupStorageBase {
     public static class DeleteRsp extends AgentResponse {
     }
 
-    public static class PingCmd extends AgentCommand {
+    public static class PingCmd extends AgentCommand implements IdempotentCommand {
     }
 
     public static class PingRsp extends AgentResponse {
@@ -195,10 +197,10 @@ public class CephBackupStorageBase extends BackupStorageBase {
         cmd.setFsid(getSelf().getFsid());
         cmd.setUuid(self.getUuid());
 
-        final List<CephBackupStorageMonBase> mons = new ArrayList<CephBackupStorageMonBase>();
+        final List<CephBackupStorageMonVO> mons = new ArrayList<CephBackupStorageMonVO>();
         for (CephBackupStorageMonVO monvo : getSelf().getMons()) {
             if (monvo.getStatus() == MonStatus.Connected) {
-                mons.add(new CephBackupStorageMonBase(monvo));
+                mons.add(monvo);
             }
         }
 
@@ -208,52 +210,31 @@ public class CephBackupStorageBase extends BackupStorageBase {
             ));
         }
 
-        Collections.shuffle(mons);
-
-        class HttpCaller {
-            Iterator<CephBackupStorageMonBase> it = mons.iterator();
-            List<ErrorCode> errorCodes = new ArrayList<ErrorCode>();
-
-            void call() {
-                if (!it.hasNext()) {
-                    callback.fail(errf.stringToOperationError(
-                            String.format("all mons failed to execute http call[%s], errors are %s", path, JSONObjectUtil.toJsonString(errorCodes))
-                    ));
-
-                    return;
+        monSelector.call(path, mons, cmd, retClass, new Function<String, CephMonAO>() {
+            @Override
+            public String call(CephMonAO arg) {
+                return makeHttpPath(arg.getHostname(), path);
+            }
+        }, new Function<ErrorCode, T>() {
+            @Override
+            public ErrorCode call(T ret) {
+                return ret.success ? null : errf.stringToOperationError(ret.error);
+            }
+        }, new ReturnValueCompletion<T>(callback) {
+            @Override
+            public void success(T ret) {
+                if (!(cmd instanceof InitCmd)) {
+                    updateCapacityIfNeeded(ret);
                 }
 
-                CephBackupStorageMonBase base = it.next();
-
-                restf.asyncJsonPost(makeHttpPath(base.getSelf().getHostname(), path), cmd, new JsonAsyncRESTCallback<T>() {
-                    @Override
-                    public void fail(ErrorCode err) {
-                        errorCodes.add(err);
-                        call();
-                    }
-
-                    @Override
-                    public void success(T ret) {
-                        if (!ret.success) {
-                            callback.fail(errf.stringToOperationError(ret.error));
-                        } else {
-                            if (!(cmd instanceof InitCmd)) {
-                                updateCapacityIfNeeded(ret);
-                            }
-
-                            callback.success(ret);
-                        }
-                    }
-
-                    @Override
-                    public Class<T> getReturnClass() {
-                        return retClass;
-                    }
-                });
+                callback.success(ret);
             }
-        }
 
-        new HttpCaller().call();
+            @Override
+            public void fail(ErrorCode errorCode) {
+                callback.fail(errorCode);
+            }
+        });
     }
 
     public CephBackupStorageBase(BackupStorageVO self) {
@@ -501,11 +482,19 @@ public class CephBackupStorageBase extends BackupStorageBase {
             handle((APIAddMonToCephBackupStorageMsg) msg);
         } else if (msg instanceof APIRemoveMonFromCephBackupStorageMsg) {
             handle((APIRemoveMonFromCephBackupStorageMsg) msg);
+        } else if (msg instanceof APIGetCephBackupStorageMonStatisticsMsg) {
+            handle((APIGetCephBackupStorageMonStatisticsMsg) msg);
         } else {
             super.handleApiMessage(msg);
         }
     }
 
+    private void handle(APIGetCephBackupStorageMonStatisticsMsg msg) {
+        APIGetCephBackupStorageMonStatisticsReply reply = new APIGetCephBackupStorageMonStatisticsReply();
+        reply.setStatistics(monSelector.getStatistics(new ArrayList<CephBackupStorageMonVO>(getSelf().getMons())));
+        bus.reply(msg, reply);
+    }
+
     private void handle(APIRemoveMonFromCephBackupStorageMsg msg) {
         SimpleQuery<CephBackupStorageMonVO> q = dbf.createQuery(CephBackupStorageMonVO.class);
         q.add(CephBackupStorageMonVO_.hostname, Op.IN, msg.getMonHostnames());
@@ -514,6 +503,9 @@ public class CephBackupStorageBase extends BackupStorageBase {
 
         if (!vos.isEmpty()) {
             dbf.removeCollection(vos, CephBackupStorageMonVO.class);
+            for (CephBackupStorageMonVO vo : vos) {
+                monSelector.removeStatistics(vo.getUuid());
+            }
         }
 
         APIRemoveMonFromCephBackupStorageEvent evt = new APIRemoveMonFromCephBackupStorageEvent(msg.getId());
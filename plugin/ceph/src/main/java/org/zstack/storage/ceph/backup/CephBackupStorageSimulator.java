@@ -24,6 +24,9 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by frank on 7/28/2015.
  */
@@ -106,9 +109,22 @@ public class CephBackupStorageSimulator {
 
     @RequestMapping(value=CephBackupStorageBase.PING_PATH, method= RequestMethod.POST)
     public @ResponseBody
-    String ping(HttpEntity<String> entity) {
+    String ping(HttpEntity<String> entity) throws InterruptedException {
         PingCmd cmd = JSONObjectUtil.toObject(entity.getBody(), PingCmd.class);
         config.pingCmds.add(cmd);
+        String hostname = entity.getHeaders().getFirst("Host").split(":")[0];
+        config.pingMonHostnames.add(hostname);
+
+        CountDownLatch latch;
+        synchronized (config) {
+            latch = config.pingLatch;
+            config.pingLatch = null;
+        }
+        if (latch != null) {
+            config.heldPingMonHostname = hostname;
+            latch.await(1, TimeUnit.MINUTES);
+        }
+
         PingRsp rsp = new PingRsp();
         reply(entity, rsp);
         return null;
@@ -5,10 +5,8 @@ import org.zstack.storage.ceph.backup.CephBackupStorageBase.DownloadCmd;
 import org.zstack.storage.ceph.backup.CephBackupStorageBase.InitCmd;
 import org.zstack.storage.ceph.backup.CephBackupStorageBase.PingCmd;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Created by frank on 7/28/2015.
@@ -26,4 +24,10 @@ public class CephBackupStorageSimulatorConfig {
     public List<DownloadCmd> downloadCmds = new ArrayList<DownloadCmd>();
     public List<DeleteCmd> deleteCmds = new ArrayList<DeleteCmd>();
     public List<PingCmd> pingCmds = new ArrayList<PingCmd>();
+    // hostnames of mons PingCmd sent to
+    public List<String> pingMonHostnames = Collections.synchronizedList(new ArrayList<String>());
+    // the next PingCmd is not answered until the latch counts down
+    public CountDownLatch pingLatch;
+    // hostname of the mon holding the PingCmd
+    public volatile String heldPingMonHostname;
 }
@@ -0,0 +1,23 @@
+package org.zstack.storage.ceph.primary;
+
+import org.zstack.header.message.APIMessage;
+import org.zstack.header.message.APIParam;
+import org.zstack.header.storage.primary.PrimaryStorageMessage;
+
+public class APIGetCephPrimaryStorageMonStatisticsMsg extends APIMessage implements PrimaryStorageMessage {
+    @APIParam(resourceType = CephPrimaryStorageVO.class)
+    private String uuid;
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public void setUuid(String uuid) {
+        this.uuid = uuid;
+    }
+
+    @Override
+    public String getPrimaryStorageUuid() {
+        return uuid;
+    }
+}
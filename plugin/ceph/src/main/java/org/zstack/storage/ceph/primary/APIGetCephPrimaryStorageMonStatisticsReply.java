@@ -0,0 +1,18 @@
+package org.zstack.storage.ceph.primary;
+
+import org.zstack.header.message.APIReply;
+import org.zstack.storage.ceph.CephMonStatistics;
+
+import java.util.List;
+
+public class APIGetCephPrimaryStorageMonStatisticsReply extends APIReply {
+    private List<CephMonStatistics> statistics;
+
+    public List<CephMonStatistics> getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(List<CephMonStatistics> statistics) {
+        this.statistics = statistics;
+    }
+}
@@ -29,8 +29,6 @@ import org.zstack.header.image.ImageVO;
 import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.Message;
 import org.zstack.header.message.MessageReply;
-import org.zstack.header.rest.JsonAsyncRESTCallback;
-import org.zstack.header.rest.RESTFacade;
 import org.zstack.header.storage.backup.*;
 import org.zstack.header.storage.primary.*;
 import org.zstack.header.storage.primary.CreateTemplateFromVolumeSnapshotOnPrimaryStorageMsg.SnapshotDownloadInfo;
@@ -69,12 +67,12 @@ import static org.zstack.utils.CollectionDSL.list;
 public class CephPrimaryStorageBase extends PrimaryStorageBase {
     private static final CLogger logger = Utils.getLogger(CephPrimaryStorageBase.class);
 
-    @Autowired
-    private RESTFacade restf;
     @Autowired
     private ThreadFacade thdf;
     @Autowired
     private ApiTimeoutManager timeoutMgr;
+    @Autowired
+    private CephMonSelector monSelector;
 
 
     public static class AgentCommand {
@@ -1426,10 +1424,10 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
         cmd.setUuid(self.getUuid());
         cmd.setFsId(getSelf().getFsid());
 
-        final List<CephPrimaryStorageMonBase> mons = new ArrayList<CephPrimaryStorageMonBase>();
+        final List<CephPrimaryStorageMonVO> mons = new ArrayList<CephPrimaryStorageMonVO>();
         for (CephPrimaryStorageMonVO monvo : getSelf().getMons()) {
             if (monvo.getStatus() == MonStatus.Connected) {
-                mons.add(new CephPrimaryStorageMonBase(monvo));
+                mons.add(monvo);
             }
         }
 
@@ -1439,51 +1437,30 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
             ));
         }
 
-        Collections.shuffle(mons);
-
-        class HttpCaller {
-            Iterator<CephPrimaryStorageMonBase> it = mons.iterator();
-            List<ErrorCode> errorCodes = new ArrayList<ErrorCode>();
-
-            void call() {
-                if (!it.hasNext()) {
-                    callback.fail(errf.stringToOperationError(
-                            String.format("all mons failed to execute http call[%s], errors are %s", path, JSONObjectUtil.toJsonString(errorCodes))
-                    ));
-
-                    return;
+        monSelector.call(path, mons, cmd, retClass, new Function<String, CephMonAO>() {
+            @Override
+            public String call(CephMonAO arg) {
+                return makeHttpPath(arg.getHostname(), path);
+            }
+        }, new Function<ErrorCode, T>() {
+            @Override
+            public ErrorCode call(T ret) {
+                return ret.success ? null : errf.stringToOperationError(ret.error);
+            }
+        }, new ReturnValueCompletion<T>(callback) {
+            @Override
+            public void success(T ret) {
+                if (!(cmd instanceof InitCmd)) {
+                    updateCapacityIfNeeded(ret);
                 }
-
-                CephPrimaryStorageMonBase base = it.next();
-
-                restf.asyncJsonPost(makeHttpPath(base.getSelf().getHostname(), path), cmd, new JsonAsyncRESTCallback<T>(callback) {
-                    @Override
-                    public void fail(ErrorCode err) {
-                        errorCodes.add(err);
-                        call();
-                    }
-
-                    @Override
-                    public void success(T ret) {
-                        if (!ret.success) {
-                            callback.fail(errf.stringToOperationError(ret.error));
-                        } else {
-                            if (!(cmd instanceof InitCmd)) {
-                                updateCapacityIfNeeded(ret);
-                            }
-                            callback.success(ret);
-                        }
-                    }
-
-                    @Override
-                    public Class<T> getReturnClass() {
-                        return retClass;
-                    }
-                });
+                callback.success(ret);
             }
-        }
 
-        new HttpCaller().call();
+            @Override
+            public void fail(ErrorCode errorCode) {
+                callback.fail(errorCode);
+            }
+        });
     }
 
     protected String makeHttpPath(String ip, String path) {
@@ -1662,11 +1639,19 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
             handle((APIAddMonToCephPrimaryStorageMsg) msg);
         } else if (msg instanceof APIRemoveMonFromCephPrimaryStorageMsg) {
             handle((APIRemoveMonFromCephPrimaryStorageMsg) msg);
+        } else if (msg instanceof APIGetCephPrimaryStorageMonStatisticsMsg) {
+            handle((APIGetCephPrimaryStorageMonStatisticsMsg) msg);
         } else {
             super.handleApiMessage(msg);
         }
     }
 
+    private void handle(APIGetCephPrimaryStorageMonStatisticsMsg msg) {
+        APIGetCephPrimaryStorageMonStatisticsReply reply = new APIGetCephPrimaryStorageMonStatisticsReply();
+        reply.setStatistics(monSelector.getStatistics(new ArrayList<CephPrimaryStorageMonVO>(getSelf().getMons())));
+        bus.reply(msg, reply);
+    }
+
     private void handle(APIRemoveMonFromCephPrimaryStorageMsg msg) {
         APIRemoveMonFromCephPrimaryStorageEvent evt = new APIRemoveMonFromCephPrimaryStorageEvent(msg.getId());
 
@@ -1675,6 +1660,9 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
         List<CephPrimaryStorageMonVO> vos = q.list();
 
         dbf.removeCollection(vos, CephPrimaryStorageMonVO.class);
+        for (CephPrimaryStorageMonVO vo : vos) {
+            monSelector.removeStatistics(vo.getUuid());
+        }
         evt.setInventory(CephPrimaryStorageInventory.valueOf(dbf.reload(getSelf())));
         bus.publish(evt);
     }
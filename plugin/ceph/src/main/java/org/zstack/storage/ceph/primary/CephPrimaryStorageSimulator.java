@@ -25,6 +25,7 @@ import org.zstack.utils.gson.JSONObjectUtil;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by frank on 7/28/2015.
@@ -77,7 +78,24 @@ public class CephPrimaryStorageSimulator {
 
     @RequestMapping(value= CephPrimaryStorageBase.INIT_PATH, method= RequestMethod.POST)
     public @ResponseBody
-    String initialize(HttpEntity<String> entity) {
+    String initialize(HttpEntity<String> entity) throws InterruptedException {
+        String hostname = entity.getHeaders().getFirst("Host").split(":")[0];
+        config.initMonHostnames.add(hostname);
+        Long delay = config.monDelays.get(hostname);
+        if (delay != null) {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        }
+        if (config.failedMons.contains(hostname)) {
+            throw new CloudRuntimeException(String.format("mon[%s] fails on purpose", hostname));
+        }
+        if (config.errorMons.contains(hostname)) {
+            InitRsp rsp = new InitRsp();
+            rsp.setSuccess(false);
+            rsp.setError(String.format("mon[%s] replies an error on purpose", hostname));
+            reply(entity, rsp);
+            return null;
+        }
+
         InitCmd cmd = JSONObjectUtil.toObject(entity.getBody(), InitCmd.class);
         CephPrimaryStorageConfig cpc = getConfig(cmd);
 
@@ -2,10 +2,7 @@ package org.zstack.storage.ceph.primary;
 
 import org.zstack.storage.ceph.primary.CephPrimaryStorageBase.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Created by frank on 7/28/2015.
@@ -32,4 +29,12 @@ public class CephPrimaryStorageSimulatorConfig {
     public List<RollbackSnapshotCmd> rollbackSnapshotCmds = new ArrayList<RollbackSnapshotCmd>();
     public List<CreateKvmSecretCmd> createKvmSecretCmds = new ArrayList<CreateKvmSecretCmd>();
     public List<DeletePoolCmd> deletePoolCmds = new ArrayList<DeletePoolCmd>();
+    // hostname of mon -> milliseconds the mon delays InitCmd
+    public Map<String, Long> monDelays = new HashMap<String, Long>();
+    // hostnames of mons failing InitCmd
+    public Set<String> failedMons = new HashSet<String>();
+    // hostnames of mons replying InitCmd with an error
+    public Set<String> errorMons = new HashSet<String>();
+    // hostnames of mons InitCmd sent to
+    public List<String> initMonHostnames = Collections.synchronizedList(new ArrayList<String>());
 }
@@ -0,0 +1,51 @@
+package org.zstack.network.service.flat;
+
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.network.service.flat.FlatDhcpBackend.DhcpInfo;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * sent to the management node managing the host, DHCP tables of a host are only pushed by that node
+ */
+public class FlatDhcpApplyDhcpOnHostMsg extends NeedReplyMessage {
+    private String hostUuid;
+    private List<DhcpInfo> dhcp;
+    // the dhcp is all entries of the host, pushed after the host connects
+    private boolean full;
+    // versions of the DHCP tables the agent reports when the host connects
+    private Map<String, Long> agentVersions;
+
+    public String getHostUuid() {
+        return hostUuid;
+    }
+
+    public void setHostUuid(String hostUuid) {
+        this.hostUuid = hostUuid;
+    }
+
+    public List<DhcpInfo> getDhcp() {
+        return dhcp;
+    }
+
+    public void setDhcp(List<DhcpInfo> dhcp) {
+        this.dhcp = dhcp;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    public Map<String, Long> getAgentVersions() {
+        return agentVersions;
+    }
+
+    public void setAgentVersions(Map<String, Long> agentVersions) {
+        this.agentVersions = agentVersions;
+    }
+}
@@ -5,14 +5,16 @@ import org.springframework.transaction.annotation.Transactional;
 import org.zstack.compute.vm.VmSystemTags;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.thread.ChainTask;
 import org.zstack.core.thread.SyncTask;
+import org.zstack.core.thread.SyncTaskChain;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.core.timeout.ApiTimeoutManager;
-import org.zstack.core.workflow.FlowChainBuilder;
-import org.zstack.core.workflow.ShareFlow;
 import org.zstack.header.AbstractService;
 import org.zstack.header.core.*;
 import org.zstack.header.core.workflow.*;
@@ -20,6 +22,8 @@ import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.errorcode.SysErrors;
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.host.HostCanonicalEvents;
+import org.zstack.header.host.HostCanonicalEvents.HostDeletedData;
 import org.zstack.header.host.HostConstant;
 import org.zstack.header.message.Message;
 import org.zstack.header.message.MessageReply;
@@ -36,6 +40,7 @@ import org.zstack.utils.DebugUtils;
 import org.zstack.utils.TagUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.function.Function;
+import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.network.NetworkUtils;
 
@@ -44,6 +49,7 @@ import javax.persistence.TypedQuery;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.list;
@@ -66,6 +72,8 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
     private ThreadFacade thdf;
     @Autowired
     private ApiTimeoutManager timeoutMgr;
+    @Autowired
+    private EventFacade evtf;
 
     public static final String APPLY_DHCP_PATH = "/flatnetworkprovider/dhcp/apply";
     public static final String PREPARE_DHCP_PATH = "/flatnetworkprovider/dhcp/prepare";
@@ -75,12 +83,24 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
 
     private Map<String, UsedIpInventory> l3NetworkDhcpServerIp = new ConcurrentHashMap<String, UsedIpInventory>();
 
+    private ConcurrentHashMap<String, HostDhcpTables> hostDhcpTables = new ConcurrentHashMap<String, HostDhcpTables>();
+    private AtomicLong dhcpTableVersion = new AtomicLong(System.currentTimeMillis());
+    private long dhcpBatchWindow = 100;
+
+    public void setDhcpBatchWindow(long dhcpBatchWindow) {
+        this.dhcpBatchWindow = dhcpBatchWindow;
+    }
+
+    private List<DhcpInfo> getDhcpInfoForHost(String hostUuid) {
+        return getDhcpInfoForHost(hostUuid, list(VmInstanceState.Running, VmInstanceState.Unknown));
+    }
+
     @Transactional(readOnly = true)
-    private List<DhcpInfo> getDhcpInfoForConnectedKvmHost(KVMHostConnectedContext context) {
+    private List<DhcpInfo> getDhcpInfoForHost(String hostUuid, List<VmInstanceState> states) {
         String sql = "select vm.uuid, vm.defaultL3NetworkUuid from VmInstanceVO vm where vm.hostUuid = :huuid and vm.state in (:states) and vm.type = :vtype";
         TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-        q.setParameter("huuid", context.getInventory().getUuid());
-        q.setParameter("states", list(VmInstanceState.Running, VmInstanceState.Unknown));
+        q.setParameter("huuid", hostUuid);
+        q.setParameter("states", states);
         q.setParameter("vtype", VmInstanceConstant.USER_VM_TYPE);
         List<Tuple> ts = q.getResultList();
         if (ts.isEmpty()) {
@@ -189,11 +209,45 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
     public void handleMessage(Message msg) {
         if (msg instanceof FlatDhcpAcquireDhcpServerIpMsg) {
             handle((FlatDhcpAcquireDhcpServerIpMsg) msg);
+        } else if (msg instanceof FlatDhcpApplyDhcpOnHostMsg) {
+            handle((FlatDhcpApplyDhcpOnHostMsg) msg);
+        } else if (msg instanceof FlatDhcpReleaseDhcpOnHostMsg) {
+            handle((FlatDhcpReleaseDhcpOnHostMsg) msg);
         } else {
             bus.dealWithUnknownMessage(msg);
         }
     }
 
+    private void handle(final FlatDhcpApplyDhcpOnHostMsg msg) {
+        final FlatDhcpApplyDhcpOnHostReply reply = new FlatDhcpApplyDhcpOnHostReply();
+        DhcpPush push = new DhcpPush();
+        push.dhcp = msg.getDhcp();
+        push.full = msg.isFull();
+        push.agentVersions = msg.getAgentVersions();
+        push.completion = new Completion(msg) {
+            @Override
+            public void success() {
+                bus.reply(msg, reply);
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                reply.setError(errorCode);
+                bus.reply(msg, reply);
+            }
+        };
+        pushDhcp(msg.getHostUuid(), push);
+    }
+
+    private void handle(final FlatDhcpReleaseDhcpOnHostMsg msg) {
+        doReleaseDhcp(msg.getDhcp(), msg.getVmUuid(), msg.getHostUuid(), new NoErrorCompletion(msg) {
+            @Override
+            public void done() {
+                bus.reply(msg, new FlatDhcpReleaseDhcpOnHostReply());
+            }
+        });
+    }
+
     private void handle(final FlatDhcpAcquireDhcpServerIpMsg msg) {
         thdf.syncSubmit(new SyncTask<Void>() {
             @Override
@@ -280,6 +334,13 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
 
     @Override
     public boolean start() {
+        evtf.on(HostCanonicalEvents.HOST_DELETED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                HostDeletedData d = (HostDeletedData) data;
+                hostDhcpTables.remove(d.getHostUuid());
+            }
+        });
         return true;
     }
 
@@ -408,7 +469,7 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
         }
 
         FutureCompletion completion = new FutureCompletion();
-        applyDhcpToHosts(info, destHostUuid, false, completion);
+        applyDhcpToHosts(info, destHostUuid, completion);
         completion.await(TimeUnit.MINUTES.toMillis(30));
         if (!completion.isSuccess()) {
             throw new OperationFailureException(errf.instantiateErrorCode(SysErrors.OPERATION_ERROR,
@@ -490,7 +551,7 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
             }
 
             private void vmRunningFromIntermediateState(final FlowTrigger trigger) {
-                applyDhcpToHosts(info, struct.getCurrentHostUuid(), false, new Completion(trigger) {
+                applyDhcpToHosts(info, struct.getCurrentHostUuid(), new Completion(trigger) {
                     @Override
                     public void success() {
                         releaseHostUuidForRollback = struct.getCurrentHostUuid();
@@ -508,7 +569,7 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
                 releaseDhcpService(info, vm.getUuid(), struct.getOriginalHostUuid(), new NopeNoErrorCompletion());
                 applyHostUuidForRollback = struct.getOriginalHostUuid();
 
-                applyDhcpToHosts(info, struct.getCurrentHostUuid(), false, new Completion(trigger) {
+                applyDhcpToHosts(info, struct.getCurrentHostUuid(), new Completion(trigger) {
                     @Override
                     public void success() {
                         releaseHostUuidForRollback = struct.getCurrentHostUuid();
@@ -523,7 +584,7 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
             }
 
             private void vmRunningFromUnknownStateHostNotChanged(final FlowTrigger trigger) {
-                applyDhcpToHosts(info, struct.getCurrentHostUuid(), false, new Completion(trigger) {
+                applyDhcpToHosts(info, struct.getCurrentHostUuid(), new Completion(trigger) {
                     @Override
                     public void success() {
                         releaseHostUuidForRollback = struct.getCurrentHostUuid();
@@ -540,7 +601,7 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
             private void vmRunningFromUnknownStateHostChanged(final FlowTrigger trigger) {
                 releaseDhcpService(info, vm.getUuid(), struct.getOriginalHostUuid(), new NopeNoErrorCompletion());
                 applyHostUuidForRollback = struct.getCurrentHostUuid();
-                applyDhcpToHosts(info, struct.getCurrentHostUuid(), false, new Completion(trigger) {
+                applyDhcpToHosts(info, struct.getCurrentHostUuid(), new Completion(trigger) {
                     @Override
                     public void success() {
                         releaseHostUuidForRollback = struct.getCurrentHostUuid();
@@ -565,7 +626,7 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
             }
 
             private void vmRunningOnTheHost(final FlowTrigger trigger) {
-                applyDhcpToHosts(info, struct.getCurrentHostUuid(), false, new Completion(trigger) {
+                applyDhcpToHosts(info, struct.getCurrentHostUuid(), new Completion(trigger) {
                     @Override
                     public void success() {
                         releaseHostUuidForRollback = struct.getCurrentHostUuid();
@@ -590,7 +651,7 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
                     releaseDhcpService(info, vm.getUuid(), struct.getOriginalHostUuid(), new NopeNoErrorCompletion());
                 }
                 if (applyHostUuidForRollback != null) {
-                    applyDhcpToHosts(info, struct.getCurrentHostUuid(), false, new Completion() {
+                    applyDhcpToHosts(info, struct.getCurrentHostUuid(), new Completion() {
                         @Override
                         public void success() {
                             //ignore
@@ -668,7 +729,15 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
 
             @Override
             public void run(final FlowTrigger trigger, Map data) {
-                final List<DhcpInfo> dhcpInfoList = getDhcpInfoForConnectedKvmHost(context);
+                // the agent may have restarted and lost its DHCP servers
+                HostDhcpTables h = hostDhcpTables.get(context.getInventory().getUuid());
+                if (h != null) {
+                    for (DhcpTable table : h.tables.values()) {
+                        table.preparedDhcpServerIps.clear();
+                    }
+                }
+
+                final List<DhcpInfo> dhcpInfoList = getDhcpInfoForHost(context.getInventory().getUuid());
                 if (dhcpInfoList == null) {
                     trigger.next();
                     return;
@@ -688,19 +757,22 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
                     public void run(MessageReply reply) {
                         if (!reply.isSuccess()) {
                             trigger.fail(reply.getError());
-                        } else {
-                            applyDhcpToHosts(dhcpInfoList, context.getInventory().getUuid(), true, new Completion(trigger) {
-                                @Override
-                                public void success() {
-                                    trigger.next();
-                                }
-
-                                @Override
-                                public void fail(ErrorCode errorCode) {
-                                    trigger.fail(errorCode);
-                                }
-                            });
+                            return;
                         }
+
+                        KVMHostAsyncHttpCallReply r = reply.castReply();
+                        ConnectRsp rsp = r.toResponse(ConnectRsp.class);
+                        syncDhcpToHost(dhcpInfoList, context.getInventory().getUuid(), rsp.dhcpTableVersions, new Completion(trigger) {
+                            @Override
+                            public void success() {
+                                trigger.next();
+                            }
+
+                            @Override
+                            public void fail(ErrorCode errorCode) {
+                                trigger.fail(errorCode);
+                            }
+                        });
                     }
                 });
             }
@@ -723,9 +795,13 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
     public static class ApplyDhcpCmd extends KVMAgentCommands.AgentCommand {
         public List<DhcpInfo> dhcp;
         public boolean rebuild;
+        // the version of the DHCP table of the bridge after applying
+        public long version;
     }
 
     public static class ApplyDhcpRsp extends KVMAgentCommands.AgentResponse {
+        // the version of the DHCP table of the bridge before applying, null if the agent doesn't version its tables
+        public Long version;
     }
 
     public static class ReleaseDhcpCmd extends KVMAgentCommands.AgentCommand {
@@ -748,6 +824,8 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
     }
 
     public static class ConnectRsp extends KVMAgentCommands.AgentResponse {
+        // bridge name -> version of its DHCP table kept across the connection, null if the agent doesn't version its tables
+        public Map<String, Long> dhcpTableVersions;
     }
 
     public static class ResetDefaultGatewayCmd extends KVMAgentCommands.AgentCommand {
@@ -803,160 +881,436 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
         });
     }
 
-    private void applyDhcpToHosts(List<DhcpInfo> dhcpInfo, final String hostUuid, final boolean rebuild, final Completion completion) {
-        final Map<String, List<DhcpInfo>> l3DhcpMap = new HashMap<String, List<DhcpInfo>>();
-        for (DhcpInfo d : dhcpInfo) {
-            List<DhcpInfo> lst = l3DhcpMap.get(d.l3NetworkUuid);
-            if (lst == null) {
-                lst = new ArrayList<DhcpInfo>();
-                l3DhcpMap.put(d.l3NetworkUuid, lst);
-            }
+    /*
+     * the DHCP sync engine.
+     *
+     * For every host, a table per bridge records the DHCP entries pushed to the agent and the version the agent
+     * keeps for it. Applies to the same host are queued and flushed after a batching window of dhcpBatchWindow
+     * milliseconds, so VMs starting on the host concurrently are configured by one apply per bridge. Applies and
+     * releases are sent to the management node managing the host, so only one node keeps the tables of a host and
+     * pushes to it. A flush sends only the entries changed since the last push; the whole table of a bridge is
+     * rebuilt only if its version is unknown or doesn't match the version the agent reports, e.g. the agent has
+     * restarted or the host was managed by another management node before. Agents not reporting versions are
+     * treated as always matched.
+     *
+     * DHCP servers prepared on a bridge are remembered until the host reconnects, so they are not prepared again by
+     * every apply. Agents not reporting versions get DHCP servers prepared on every apply as before.
+     */
+    private static class DhcpTable {
+        // null if the table on the agent is unknown
+        Long version;
+        // true if the agent reports versions of its DHCP tables
+        boolean versioned;
+        // mac -> entry
+        Map<String, DhcpInfo> entries = new ConcurrentHashMap<String, DhcpInfo>();
+        Set<String> preparedDhcpServerIps = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
 
-            lst.add(d);
+    private static class HostDhcpTables {
+        // bridge name -> table
+        Map<String, DhcpTable> tables = new ConcurrentHashMap<String, DhcpTable>();
+        List<DhcpPush> pending = new ArrayList<DhcpPush>();
+        boolean flushScheduled;
+    }
+
+    private static class DhcpPush {
+        List<DhcpInfo> dhcp;
+        // the dhcp is all entries of the host, pushed after the host connects
+        boolean full;
+        Map<String, Long> agentVersions;
+        Completion completion;
+    }
+
+    private static class DhcpTableSync {
+        String bridgeName;
+        DhcpTable table;
+        boolean rebuild;
+        Map<String, DhcpInfo> apply = new LinkedHashMap<String, DhcpInfo>();
+        List<DhcpInfo> release = new ArrayList<DhcpInfo>();
+        ErrorCode error;
+    }
+
+    private HostDhcpTables getHostDhcpTables(String hostUuid) {
+        HostDhcpTables h = hostDhcpTables.get(hostUuid);
+        if (h == null) {
+            h = new HostDhcpTables();
+            HostDhcpTables old = hostDhcpTables.putIfAbsent(hostUuid, h);
+            h = old == null ? h : old;
         }
+        return h;
+    }
 
-        final Iterator<Map.Entry<String, List<DhcpInfo>>> it = l3DhcpMap.entrySet().iterator();
-        class DhcpApply {
-            void apply() {
-                if (!it.hasNext()) {
+    private static boolean isSameDhcpInfo(DhcpInfo a, DhcpInfo b) {
+        return a != null && b != null && JSONObjectUtil.toJsonString(a).equals(JSONObjectUtil.toJsonString(b));
+    }
+
+    private void applyDhcpToHosts(List<DhcpInfo> dhcpInfo, final String hostUuid, final Completion completion) {
+        FlatDhcpApplyDhcpOnHostMsg msg = new FlatDhcpApplyDhcpOnHostMsg();
+        msg.setHostUuid(hostUuid);
+        msg.setDhcp(dhcpInfo);
+        sendDhcpToHost(msg, completion);
+    }
+
+    private void syncDhcpToHost(List<DhcpInfo> dhcpInfo, final String hostUuid, Map<String, Long> agentVersions, final Completion completion) {
+        FlatDhcpApplyDhcpOnHostMsg msg = new FlatDhcpApplyDhcpOnHostMsg();
+        msg.setHostUuid(hostUuid);
+        msg.setDhcp(dhcpInfo);
+        msg.setFull(true);
+        msg.setAgentVersions(agentVersions);
+        sendDhcpToHost(msg, completion);
+    }
+
+    private void sendDhcpToHost(FlatDhcpApplyDhcpOnHostMsg msg, final Completion completion) {
+        bus.makeTargetServiceIdByResourceUuid(msg, FlatNetworkServiceConstant.SERVICE_ID, msg.getHostUuid());
+        bus.send(msg, new CloudBusCallBack(completion) {
+            @Override
+            public void run(MessageReply reply) {
+                if (reply.isSuccess()) {
                     completion.success();
-                    return;
+                } else {
+                    completion.fail(reply.getError());
                 }
+            }
+        });
+    }
 
-                Map.Entry<String, List<DhcpInfo>> e = it.next();
-                final String l3Uuid = e.getKey();
-                final List<DhcpInfo> info = e.getValue();
+    private void pushDhcp(final String hostUuid, DhcpPush push) {
+        final HostDhcpTables h = getHostDhcpTables(hostUuid);
+        synchronized (h) {
+            h.pending.add(push);
+            if (h.flushScheduled) {
+                return;
+            }
+            h.flushScheduled = true;
+        }
 
-                DebugUtils.Assert(!info.isEmpty(), "how can info be empty???");
+        thdf.submitTimeoutTask(new Runnable() {
+            @Override
+            public void run() {
+                flushDhcp(hostUuid, h);
+            }
+        }, TimeUnit.MILLISECONDS, dhcpBatchWindow);
+    }
 
-                FlowChain chain = FlowChainBuilder.newShareFlowChain();
-                chain.setName(String.format("flat-dhcp-provider-apply-dhcp-to-l3-network-%s", l3Uuid));
-                chain.then(new ShareFlow() {
-                    String dhcpServerIp;
-                    String dhcpNetmask;
+    private void flushDhcp(final String hostUuid, final HostDhcpTables h) {
+        thdf.chainSubmit(new ChainTask() {
+            @Override
+            public String getSyncSignature() {
+                return String.format("flat-dhcp-sync-host-%s", hostUuid);
+            }
 
-                    @Override
-                    public void setup() {
-                        flow(new NoRollbackFlow() {
-                            String __name__ = "get-dhcp-server-ip";
+            @Override
+            public void run(final SyncTaskChain chain) {
+                final List<DhcpPush> pushes;
+                synchronized (h) {
+                    pushes = new ArrayList<DhcpPush>(h.pending);
+                    h.pending.clear();
+                    h.flushScheduled = false;
+                }
 
+                final Map<String, DhcpTableSync> syncs = collectDhcpTableSyncs(h, pushes);
+                final Iterator<DhcpTableSync> it = syncs.values().iterator();
+                class DhcpSync {
+                    void sync() {
+                        if (!it.hasNext()) {
+                            done();
+                            return;
+                        }
+
+                        syncDhcpTable(hostUuid, it.next(), new NoErrorCompletion(chain) {
                             @Override
-                            public void run(final FlowTrigger trigger, Map data) {
-                                FlatDhcpAcquireDhcpServerIpMsg msg = new FlatDhcpAcquireDhcpServerIpMsg();
-                                msg.setL3NetworkUuid(l3Uuid);
-                                bus.makeTargetServiceIdByResourceUuid(msg, FlatNetworkServiceConstant.SERVICE_ID, l3Uuid);
-                                bus.send(msg, new CloudBusCallBack(trigger) {
-                                    @Override
-                                    public void run(MessageReply reply) {
-                                        if (!reply.isSuccess()) {
-                                            trigger.fail(reply.getError());
-                                        } else {
-                                            FlatDhcpAcquireDhcpServerIpReply r = reply.castReply();
-                                            dhcpServerIp = r.getIp();
-                                            dhcpNetmask = r.getNetmask();
-                                            trigger.next();
-                                        }
-                                    }
-                                });
+                            public void done() {
+                                sync();
                             }
                         });
+                    }
 
-                        flow(new NoRollbackFlow() {
-                            String __name__ = "prepare-distributed-dhcp-server-on-host";
+                    void done() {
+                        for (DhcpPush push : pushes) {
+                            ErrorCode err = null;
+                            for (DhcpInfo info : push.dhcp) {
+                                err = syncs.get(info.bridgeName).error;
+                                if (err != null) {
+                                    break;
+                                }
+                            }
 
-                            @Override
-                            public void run(final FlowTrigger trigger, Map data) {
-                                DhcpInfo i = info.get(0);
-
-                                PrepareDhcpCmd cmd = new PrepareDhcpCmd();
-                                cmd.bridgeName = i.bridgeName;
-                                cmd.dhcpServerIp = dhcpServerIp;
-                                cmd.dhcpNetmask = dhcpNetmask;
-
-                                KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
-                                msg.setHostUuid(hostUuid);
-                                msg.setNoStatusCheck(true);
-                                msg.setCommand(cmd);
-                                msg.setPath(PREPARE_DHCP_PATH);
-                                msg.setCommandTimeout(timeoutMgr.getTimeout(cmd.getClass(), "5m"));
-                                bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
-                                bus.send(msg, new CloudBusCallBack(trigger) {
-                                    @Override
-                                    public void run(MessageReply reply) {
-                                        if (!reply.isSuccess()) {
-                                            trigger.fail(reply.getError());
-                                            return;
-                                        }
-
-                                        KVMHostAsyncHttpCallReply ar = reply.castReply();
-                                        PrepareDhcpRsp rsp = ar.toResponse(PrepareDhcpRsp.class);
-                                        if (!rsp.isSuccess()) {
-                                            trigger.fail(errf.stringToOperationError(rsp.getError()));
-                                            return;
-                                        }
-
-                                        trigger.next();
-                                    }
-                                });
+                            if (err == null) {
+                                push.completion.success();
+                            } else {
+                                push.completion.fail(err);
                             }
-                        });
+                        }
 
-                        flow(new NoRollbackFlow() {
-                            String __name__ = "apply-dhcp";
+                        chain.next();
+                    }
+                }
 
-                            @Override
-                            public void run(final FlowTrigger trigger, Map data) {
-                                ApplyDhcpCmd cmd = new ApplyDhcpCmd();
-                                cmd.dhcp = info;
-                                cmd.rebuild = rebuild;
-
-                                KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
-                                msg.setCommand(cmd);
-                                msg.setCommandTimeout(timeoutMgr.getTimeout(cmd.getClass(), "5m"));
-                                msg.setHostUuid(hostUuid);
-                                msg.setPath(APPLY_DHCP_PATH);
-                                msg.setNoStatusCheck(true);
-                                bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
-                                bus.send(msg, new CloudBusCallBack(trigger) {
-                                    @Override
-                                    public void run(MessageReply reply) {
-                                        if (!reply.isSuccess()) {
-                                            trigger.fail(reply.getError());
-                                            return;
-                                        }
-
-                                        KVMHostAsyncHttpCallReply r = reply.castReply();
-                                        ApplyDhcpRsp rsp = r.toResponse(ApplyDhcpRsp.class);
-                                        if (!rsp.isSuccess()) {
-                                            trigger.fail(errf.stringToOperationError(rsp.getError()));
-                                            return;
-                                        }
-
-                                        trigger.next();
-                                    }
-                                });
-                            }
-                        });
+                new DhcpSync().sync();
+            }
 
-                        done(new FlowDoneHandler(completion) {
-                            @Override
-                            public void handle(Map data) {
-                                apply();
-                            }
-                        });
+            @Override
+            public String getName() {
+                return getSyncSignature();
+            }
+        });
+    }
 
-                        error(new FlowErrorHandler(completion) {
-                            @Override
-                            public void handle(ErrorCode errCode, Map data) {
-                                completion.fail(errCode);
-                            }
-                        });
+    private DhcpTableSync getDhcpTableSync(Map<String, DhcpTableSync> syncs, HostDhcpTables h, String bridgeName) {
+        DhcpTableSync s = syncs.get(bridgeName);
+        if (s == null) {
+            s = new DhcpTableSync();
+            s.bridgeName = bridgeName;
+            s.table = h.tables.get(bridgeName);
+            if (s.table == null) {
+                s.table = new DhcpTable();
+                h.tables.put(bridgeName, s.table);
+            }
+            syncs.put(bridgeName, s);
+        }
+        return s;
+    }
+
+    private Map<String, DhcpTableSync> collectDhcpTableSyncs(HostDhcpTables h, List<DhcpPush> pushes) {
+        Map<String, DhcpTableSync> syncs = new LinkedHashMap<String, DhcpTableSync>();
+
+        // the full entries of the host go first, the entries of VMs are applied on top of them
+        for (DhcpPush push : pushes) {
+            if (!push.full) {
+                continue;
+            }
+
+            Map<String, Map<String, DhcpInfo>> bridgeEntries = new HashMap<String, Map<String, DhcpInfo>>();
+            for (DhcpInfo info : push.dhcp) {
+                Map<String, DhcpInfo> entries = bridgeEntries.get(info.bridgeName);
+                if (entries == null) {
+                    entries = new LinkedHashMap<String, DhcpInfo>();
+                    bridgeEntries.put(info.bridgeName, entries);
+                }
+                entries.put(info.mac, info);
+            }
+
+            for (String bridgeName : new ArrayList<String>(h.tables.keySet())) {
+                if (!bridgeEntries.containsKey(bridgeName)) {
+                    // no VM uses the bridge any longer, the agent cleans it up when the table is rebuilt next time
+                    h.tables.remove(bridgeName);
+                }
+            }
+
+            for (Map.Entry<String, Map<String, DhcpInfo>> e : bridgeEntries.entrySet()) {
+                String bridgeName = e.getKey();
+                DhcpTable table = h.tables.get(bridgeName);
+                Long agentVersion = push.agentVersions == null ? null : push.agentVersions.get(bridgeName);
+                if (table == null || table.version == null || !table.version.equals(agentVersion)) {
+                    h.tables.put(bridgeName, new DhcpTable());
+                    DhcpTableSync s = getDhcpTableSync(syncs, h, bridgeName);
+                    s.rebuild = true;
+                    s.apply.putAll(e.getValue());
+                    continue;
+                }
+
+                DhcpTableSync s = getDhcpTableSync(syncs, h, bridgeName);
+                for (DhcpInfo info : e.getValue().values()) {
+                    if (!isSameDhcpInfo(table.entries.get(info.mac), info)) {
+                        s.apply.put(info.mac, info);
+                    }
+                }
+                for (DhcpInfo info : table.entries.values()) {
+                    if (!e.getValue().containsKey(info.mac)) {
+                        s.release.add(info);
                     }
-                }).start();
+                }
             }
         }
 
-        new DhcpApply().apply();
+        for (DhcpPush push : pushes) {
+            if (push.full) {
+                continue;
+            }
+
+            for (DhcpInfo info : push.dhcp) {
+                getDhcpTableSync(syncs, h, info.bridgeName).apply.put(info.mac, info);
+            }
+        }
+
+        return syncs;
+    }
+
+    private void syncDhcpTable(final String hostUuid, final DhcpTableSync s, final NoErrorCompletion completion) {
+        if (!s.release.isEmpty()) {
+            doReleaseDhcp(s.release, null, hostUuid, new NopeNoErrorCompletion());
+            s.release = new ArrayList<DhcpInfo>();
+        }
+
+        if (s.apply.isEmpty()) {
+            completion.done();
+            return;
+        }
+
+        final List<DhcpInfo> info = new ArrayList<DhcpInfo>(s.apply.values());
+        prepareDhcpServers(hostUuid, s, info, new Completion(completion) {
+            @Override
+            public void success() {
+                applyDhcpTable(hostUuid, s, info, completion);
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                s.table.version = null;
+                s.error = errorCode;
+                completion.done();
+            }
+        });
+    }
+
+    private void prepareDhcpServers(final String hostUuid, final DhcpTableSync s, List<DhcpInfo> info, final Completion completion) {
+        Set<String> l3Uuids = new LinkedHashSet<String>();
+        for (DhcpInfo i : info) {
+            l3Uuids.add(i.l3NetworkUuid);
+        }
+
+        final Iterator<String> it = l3Uuids.iterator();
+        class DhcpServerPrepare {
+            void prepare() {
+                if (!it.hasNext()) {
+                    completion.success();
+                    return;
+                }
+
+                final String l3Uuid = it.next();
+                FlatDhcpAcquireDhcpServerIpMsg msg = new FlatDhcpAcquireDhcpServerIpMsg();
+                msg.setL3NetworkUuid(l3Uuid);
+                bus.makeTargetServiceIdByResourceUuid(msg, FlatNetworkServiceConstant.SERVICE_ID, l3Uuid);
+                bus.send(msg, new CloudBusCallBack(completion) {
+                    @Override
+                    public void run(MessageReply reply) {
+                        if (!reply.isSuccess()) {
+                            completion.fail(reply.getError());
+                            return;
+                        }
+
+                        FlatDhcpAcquireDhcpServerIpReply r = reply.castReply();
+                        if (s.table.versioned && s.table.preparedDhcpServerIps.contains(r.getIp())) {
+                            prepare();
+                            return;
+                        }
+
+                        prepareDhcpServer(r.getIp(), r.getNetmask());
+                    }
+                });
+            }
+
+            void prepareDhcpServer(final String dhcpServerIp, String dhcpNetmask) {
+                PrepareDhcpCmd cmd = new PrepareDhcpCmd();
+                cmd.bridgeName = s.bridgeName;
+                cmd.dhcpServerIp = dhcpServerIp;
+                cmd.dhcpNetmask = dhcpNetmask;
+
+                KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
+                msg.setHostUuid(hostUuid);
+                msg.setNoStatusCheck(true);
+                msg.setCommand(cmd);
+                msg.setPath(PREPARE_DHCP_PATH);
+                msg.setCommandTimeout(timeoutMgr.getTimeout(cmd.getClass(), "5m"));
+                bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
+                bus.send(msg, new CloudBusCallBack(completion) {
+                    @Override
+                    public void run(MessageReply reply) {
+                        if (!reply.isSuccess()) {
+                            completion.fail(reply.getError());
+                            return;
+                        }
+
+                        KVMHostAsyncHttpCallReply ar = reply.castReply();
+                        PrepareDhcpRsp rsp = ar.toResponse(PrepareDhcpRsp.class);
+                        if (!rsp.isSuccess()) {
+                            completion.fail(errf.stringToOperationError(rsp.getError()));
+                            return;
+                        }
+
+                        s.table.preparedDhcpServerIps.add(dhcpServerIp);
+                        prepare();
+                    }
+                });
+            }
+        }
+
+        new DhcpServerPrepare().prepare();
+    }
+
+    private void applyDhcpTable(final String hostUuid, final DhcpTableSync s, final List<DhcpInfo> info, final NoErrorCompletion completion) {
+        final Long expectedVersion = s.table.version;
+        final ApplyDhcpCmd cmd = new ApplyDhcpCmd();
+        cmd.dhcp = info;
+        cmd.rebuild = s.rebuild;
+        cmd.version = dhcpTableVersion.incrementAndGet();
+
+        KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
+        msg.setCommand(cmd);
+        msg.setCommandTimeout(timeoutMgr.getTimeout(cmd.getClass(), "5m"));
+        msg.setHostUuid(hostUuid);
+        msg.setPath(APPLY_DHCP_PATH);
+        msg.setNoStatusCheck(true);
+        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
+        bus.send(msg, new CloudBusCallBack(completion) {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    s.table.version = null;
+                    s.error = reply.getError();
+                    completion.done();
+                    return;
+                }
+
+                KVMHostAsyncHttpCallReply r = reply.castReply();
+                ApplyDhcpRsp rsp = r.toResponse(ApplyDhcpRsp.class);
+                if (!rsp.isSuccess()) {
+                    s.table.version = null;
+                    s.error = errf.stringToOperationError(rsp.getError());
+                    completion.done();
+                    return;
+                }
+
+                if (!cmd.rebuild && rsp.version != null && !rsp.version.equals(expectedVersion)) {
+                    logger.debug(String.format("the DHCP table of the bridge[%s] on the host[uuid:%s] is at version %s, expected %s;" +
+                            " rebuild it", s.bridgeName, hostUuid, rsp.version, expectedVersion));
+                    rebuildDhcpTable(hostUuid, s, completion);
+                    return;
+                }
+
+                if (cmd.rebuild) {
+                    s.table.entries.clear();
+                }
+                s.table.versioned = rsp.version != null;
+                for (DhcpInfo i : info) {
+                    s.table.entries.put(i.mac, i);
+                }
+                s.table.version = cmd.version;
+                completion.done();
+            }
+        });
+    }
+
+    private void rebuildDhcpTable(String hostUuid, DhcpTableSync s, NoErrorCompletion completion) {
+        Map<String, DhcpInfo> entries = new LinkedHashMap<String, DhcpInfo>();
+        // VMs started or migrated by other management nodes are not running yet either, their entries must survive the rebuild
+        List<DhcpInfo> all = getDhcpInfoForHost(hostUuid, list(VmInstanceState.Running, VmInstanceState.Unknown,
+                VmInstanceState.Starting, VmInstanceState.Rebooting, VmInstanceState.Migrating));
+        if (all != null) {
+            for (DhcpInfo info : all) {
+                if (s.bridgeName.equals(info.bridgeName)) {
+                    entries.put(info.mac, info);
+                }
+            }
+        }
+        // VMs being started by this node are applied on top
+        entries.putAll(s.apply);
+
+        s.rebuild = true;
+        s.apply = entries;
+        s.table.version = null;
+        s.table.preparedDhcpServerIps.clear();
+        syncDhcpTable(hostUuid, s, completion);
     }
 
     @Override
@@ -966,10 +1320,39 @@ public class FlatDhcpBackend extends AbstractService implements NetworkServiceDh
             return;
         }
 
-        applyDhcpToHosts(toDhcpInfo(dhcpStructList), spec.getDestHost().getUuid(), false, completion);
+        applyDhcpToHosts(toDhcpInfo(dhcpStructList), spec.getDestHost().getUuid(), completion);
     }
 
     private void releaseDhcpService(List<DhcpInfo> info, final String vmUuid, final String hostUuid, final NoErrorCompletion completion) {
+        final FlatDhcpReleaseDhcpOnHostMsg msg = new FlatDhcpReleaseDhcpOnHostMsg();
+        msg.setHostUuid(hostUuid);
+        msg.setVmUuid(vmUuid);
+        msg.setDhcp(info);
+        bus.makeTargetServiceIdByResourceUuid(msg, FlatNetworkServiceConstant.SERVICE_ID, hostUuid);
+        bus.send(msg, new CloudBusCallBack(completion) {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    //TODO
+                    logger.warn(String.format("failed to release dhcp%s for vm[uuid: %s] on the kvm host[uuid:%s]; %s",
+                            msg.getDhcp(), vmUuid, hostUuid, reply.getError()));
+                }
+                completion.done();
+            }
+        });
+    }
+
+    private void doReleaseDhcp(List<DhcpInfo> info, final String vmUuid, final String hostUuid, final NoErrorCompletion completion) {
+        HostDhcpTables h = hostDhcpTables.get(hostUuid);
+        if (h != null) {
+            for (DhcpInfo i : info) {
+                DhcpTable table = h.tables.get(i.bridgeName);
+                if (table != null) {
+                    table.entries.remove(i.mac);
+                }
+            }
+        }
+
         final ReleaseDhcpCmd cmd = new ReleaseDhcpCmd();
         cmd.dhcp = info;
 
@@ -0,0 +1,39 @@
+package org.zstack.network.service.flat;
+
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.network.service.flat.FlatDhcpBackend.DhcpInfo;
+
+import java.util.List;
+
+/**
+ * sent to the management node managing the host, see FlatDhcpApplyDhcpOnHostMsg
+ */
+public class FlatDhcpReleaseDhcpOnHostMsg extends NeedReplyMessage {
+    private String hostUuid;
+    private String vmUuid;
+    private List<DhcpInfo> dhcp;
+
+    public String getHostUuid() {
+        return hostUuid;
+    }
+
+    public void setHostUuid(String hostUuid) {
+        this.hostUuid = hostUuid;
+    }
+
+    public String getVmUuid() {
+        return vmUuid;
+    }
+
+    public void setVmUuid(String vmUuid) {
+        this.vmUuid = vmUuid;
+    }
+
+    public List<DhcpInfo> getDhcp() {
+        return dhcp;
+    }
+
+    public void setDhcp(List<DhcpInfo> dhcp) {
+        this.dhcp = dhcp;
+    }
+}
@@ -0,0 +1,8 @@
+package org.zstack.network.service.flat;
+
+import org.zstack.header.message.MessageReply;
+
+/**
+ */
+public class FlatDhcpReleaseDhcpOnHostReply extends MessageReply {
+}
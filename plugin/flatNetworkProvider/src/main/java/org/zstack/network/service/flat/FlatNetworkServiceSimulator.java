@@ -25,6 +25,8 @@ import org.zstack.network.service.flat.FlatUserdataBackend.ReleaseUserdataCmd;
 import org.zstack.network.service.flat.FlatUserdataBackend.ReleaseUserdataRsp;
 import org.zstack.utils.gson.JSONObjectUtil;
 
+import java.util.HashMap;
+
 /**
  * Created by frank on 9/19/2015.
  */
@@ -52,6 +54,12 @@ public class FlatNetworkServiceSimulator {
         ApplyDhcpCmd cmd = JSONObjectUtil.toObject(entity.getBody(), ApplyDhcpCmd.class);
         config.applyDhcpCmdList.add(cmd);
         ApplyDhcpRsp rsp = new ApplyDhcpRsp();
+        if (config.dhcpTableVersions != null) {
+            String bridgeName = cmd.dhcp.get(0).bridgeName;
+            rsp.version = config.dhcpTableVersions.get(bridgeName);
+            rsp.version = rsp.version == null ? 0L : rsp.version;
+            config.dhcpTableVersions.put(bridgeName, cmd.version);
+        }
         reply(entity, rsp);
         return null;
     }
@@ -113,6 +121,9 @@ public class FlatNetworkServiceSimulator {
         ConnectCmd cmd = JSONObjectUtil.toObject(entity.getBody(), ConnectCmd.class);
         config.connectCmds.add(cmd);
         ConnectRsp rsp = new ConnectRsp();
+        if (config.dhcpTableVersions != null) {
+            rsp.dhcpTableVersions = new HashMap<String, Long>(config.dhcpTableVersions);
+        }
         reply(entity, rsp);
         return null;
     }
@@ -14,6 +14,7 @@ import org.zstack.network.service.flat.FlatUserdataBackend.ReleaseUserdataCmd;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by frank on 9/19/2015.
@@ -31,4 +32,6 @@ public class FlatNetworkServiceSimulatorConfig {
     public List<BatchApplyEipCmd> batchApplyEipCmds = new ArrayList<BatchApplyEipCmd>();
     public List<BatchDeleteEipCmd> batchDeleteEipCmds = new ArrayList<BatchDeleteEipCmd>();
     public List<ResetDefaultGatewayCmd> resetDefaultGatewayCmds = new ArrayList<ResetDefaultGatewayCmd>();
+    // bridge name -> version of its DHCP table, null to simulate an agent not versioning DHCP tables
+    public Map<String, Long> dhcpTableVersions;
 }
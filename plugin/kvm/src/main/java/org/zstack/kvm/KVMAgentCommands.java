@@ -830,6 +830,15 @@ public class KVMAgentCommands {
     
     public static class RefreshAllRulesOnHostCmd extends AgentCommand {
         private List<SecurityGroupRuleTO> ruleTOs;
+        private Long sequenceNumber;
+
+        public Long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        public void setSequenceNumber(Long sequenceNumber) {
+            this.sequenceNumber = sequenceNumber;
+        }
 
         public List<SecurityGroupRuleTO> getRuleTOs() {
             return ruleTOs;
@@ -864,6 +873,48 @@ public class KVMAgentCommands {
     public static class ApplySecurityGroupRuleResponse extends AgentResponse {
     }
 
+    public static class ApplySecurityGroupRuleDeltaCmd extends AgentCommand {
+        private List<SecurityGroupRuleTO> ruleTOs;
+        private Long baseSequenceNumber;
+        private long sequenceNumber;
+
+        public List<SecurityGroupRuleTO> getRuleTOs() {
+            return ruleTOs;
+        }
+
+        public void setRuleTOs(List<SecurityGroupRuleTO> ruleTOs) {
+            this.ruleTOs = ruleTOs;
+        }
+
+        public Long getBaseSequenceNumber() {
+            return baseSequenceNumber;
+        }
+
+        public void setBaseSequenceNumber(Long baseSequenceNumber) {
+            this.baseSequenceNumber = baseSequenceNumber;
+        }
+
+        public long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        public void setSequenceNumber(long sequenceNumber) {
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+    public static class ApplySecurityGroupRuleDeltaResponse extends AgentResponse {
+        private boolean sequenceNumberMismatch;
+
+        public boolean isSequenceNumberMismatch() {
+            return sequenceNumberMismatch;
+        }
+
+        public void setSequenceNumberMismatch(boolean sequenceNumberMismatch) {
+            this.sequenceNumberMismatch = sequenceNumberMismatch;
+        }
+    }
+
     public static class MigrateVmCmd extends AgentCommand {
         private String vmUuid;
         private String destHostIp;
@@ -13,6 +13,8 @@ import org.zstack.header.host.HostConstant;
 import org.zstack.header.host.HypervisorType;
 import org.zstack.header.message.MessageReply;
 import org.zstack.kvm.KVMAgentCommands.ApplySecurityGroupRuleCmd;
+import org.zstack.kvm.KVMAgentCommands.ApplySecurityGroupRuleDeltaCmd;
+import org.zstack.kvm.KVMAgentCommands.ApplySecurityGroupRuleDeltaResponse;
 import org.zstack.kvm.KVMAgentCommands.ApplySecurityGroupRuleResponse;
 import org.zstack.kvm.KVMAgentCommands.CleanupUnusedRulesOnHostResponse;
 import org.zstack.kvm.KVMAgentCommands.RefreshAllRulesOnHostCmd;
@@ -26,6 +28,7 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
     private static CLogger logger = Utils.getLogger(KVMSecurityGroupBackend.class);
     
     public static final String SECURITY_GROUP_APPLY_RULE_PATH = "/securitygroup/applyrules";
+    public static final String SECURITY_GROUP_APPLY_RULE_DELTA_PATH = "/securitygroup/applyrulesdelta";
     public static final String SECURITY_GROUP_REFRESH_RULE_ON_HOST_PATH = "/securitygroup/refreshrulesonhost";
     public static final String SECURITY_GROUP_CLEANUP_UNUSED_RULE_ON_HOST_PATH = "/securitygroup/cleanupunusedrules";
 
@@ -70,9 +73,52 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
         });
     }
     
+    private void applyRuleDeltas(final HostRuleTO hto, final Completion complete) {
+        ApplySecurityGroupRuleDeltaCmd cmd = new ApplySecurityGroupRuleDeltaCmd();
+        cmd.setRuleTOs(hto.getRules());
+        cmd.setBaseSequenceNumber(hto.getBaseSequenceNumber());
+        cmd.setSequenceNumber(hto.getSequenceNumber());
+
+        KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
+        msg.setHostUuid(hto.getHostUuid());
+        msg.setPath(SECURITY_GROUP_APPLY_RULE_DELTA_PATH);
+        msg.setCommand(cmd);
+        msg.setCommandTimeout(timeoutMgr.getTimeout(cmd.getClass(), "5m"));
+        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hto.getHostUuid());
+        bus.send(msg, new CloudBusCallBack(complete) {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    complete.fail(reply.getError());
+                    return;
+                }
+
+                KVMHostAsyncHttpCallReply hreply = reply.castReply();
+                ApplySecurityGroupRuleDeltaResponse rsp = hreply.toResponse(ApplySecurityGroupRuleDeltaResponse.class);
+                if (rsp.isSequenceNumberMismatch()) {
+                    complete.fail(errf.instantiateErrorCode(SecurityGroupErrors.RULE_SEQUENCE_NUMBER_MISMATCH,
+                            String.format("rules on kvm host[uuid:%s] are not of sequence number[%s]", hto.getHostUuid(), hto.getBaseSequenceNumber())));
+                    return;
+                }
+
+                if (!rsp.isSuccess()) {
+                    String err = String.format("failed to apply deltas of security group rules to kvm host[uuid:%s], because %s", hto.getHostUuid(), rsp.getError());
+                    logger.warn(err);
+                    complete.fail(errf.stringToOperationError(err));
+                    return;
+                }
+
+                logger.debug(String.format("successfully applied deltas of security group rules to kvm host[uuid:%s], sequence number[%s]",
+                        hto.getHostUuid(), hto.getSequenceNumber()));
+                complete.success();
+            }
+        });
+    }
+
     private void reApplyAllRulesOnHost(final HostRuleTO hto, final Completion complete) {
         RefreshAllRulesOnHostCmd cmd = new RefreshAllRulesOnHostCmd();
         cmd.setRuleTOs(hto.getRules());
+        cmd.setSequenceNumber(hto.getSequenceNumber());
 
         KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
         msg.setHostUuid(hto.getHostUuid());
@@ -107,10 +153,12 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
     
     @Override
     public void applyRules(final HostRuleTO hto, final Completion complete) {
-        if (!hto.isRefreshHost()) {
-            incrementallyApplyRules(hto, complete);
-        } else {
+        if (hto.isRefreshHost()) {
             reApplyAllRulesOnHost(hto, complete);
+        } else if (hto.getSequenceNumber() != null) {
+            applyRuleDeltas(hto, complete);
+        } else {
+            incrementallyApplyRules(hto, complete);
         }
     }
 
@@ -35,7 +35,9 @@ import org.zstack.network.service.vip.VipVO;
 import org.zstack.tag.TagManager;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.DebugUtils;
+import org.zstack.utils.Utils;
 import org.zstack.utils.function.Function;
+import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.TypedQuery;
 import java.util.*;
@@ -45,6 +47,8 @@ import java.util.*;
  */
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class LoadBalancerBase {
+    private static final CLogger logger = Utils.getLogger(LoadBalancerBase.class);
+
     @Autowired
     private CloudBus bus;
     @Autowired
@@ -107,7 +111,7 @@ public class LoadBalancerBase {
 
     private void handle(final DeleteLoadBalancerMsg msg) {
         final DeleteLoadBalancerReply reply = new DeleteLoadBalancerReply();
-        thdf.chainSubmit(new ChainTask(msg) {
+        submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -140,7 +144,7 @@ public class LoadBalancerBase {
 
     private void handle(final RefreshLoadBalancerMsg msg) {
         final RefreshLoadBalancerReply reply = new RefreshLoadBalancerReply();
-        thdf.chainSubmit(new ChainTask() {
+        submit(new ChainTask() {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -178,7 +182,7 @@ public class LoadBalancerBase {
     }
 
     private void handle(final LoadBalancerRemoveVmNicMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -420,7 +424,7 @@ public class LoadBalancerBase {
     }
 
     private void handle(final LoadBalancerActiveVmNicMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -463,7 +467,7 @@ public class LoadBalancerBase {
 
     private void handle(final APIRefreshLoadBalancerMsg msg) {
         final APIRefreshLoadBalancerEvent evt = new APIRefreshLoadBalancerEvent(msg.getId());
-        thdf.chainSubmit(new ChainTask(msg) {
+        submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -498,7 +502,7 @@ public class LoadBalancerBase {
     private void handle(final APIDeleteLoadBalancerMsg msg) {
         final APIDeleteLoadBalancerEvent evt = new APIDeleteLoadBalancerEvent(msg.getId());
 
-        thdf.chainSubmit(new ChainTask(msg) {
+        submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -591,7 +595,7 @@ public class LoadBalancerBase {
     }
 
     private void handle(final APIDeleteLoadBalancerListenerMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -665,7 +669,7 @@ public class LoadBalancerBase {
     }
 
     private void handle(final APIRemoveVmNicFromLoadBalancerMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -764,47 +768,126 @@ public class LoadBalancerBase {
         return null;
     }
 
+    // load balancer uuid -> APIAddVmNicToLoadBalancerMsg queued next to each other at the tail of the sync queue of
+    // the load balancer, they are handled together by the task of the first one
+    private static final Map<String, List<APIAddVmNicToLoadBalancerMsg>> pendingAddVmNicMsgs = new HashMap<String, List<APIAddVmNicToLoadBalancerMsg>>();
+
+    private void submit(ChainTask task) {
+        synchronized (pendingAddVmNicMsgs) {
+            // any other task queued ends the batch, APIAddVmNicToLoadBalancerMsg coming later must not overtake it
+            pendingAddVmNicMsgs.remove(self.getUuid());
+            thdf.chainSubmit(task);
+        }
+    }
+
     private void handle(final APIAddVmNicToLoadBalancerMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
-            @Override
-            public String getSyncSignature() {
-                return getSyncId();
+        final List<APIAddVmNicToLoadBalancerMsg> batch;
+        synchronized (pendingAddVmNicMsgs) {
+            List<APIAddVmNicToLoadBalancerMsg> msgs = pendingAddVmNicMsgs.get(self.getUuid());
+            if (msgs != null) {
+                // handled by the task of the message queued right before it
+                msgs.add(msg);
+                return;
             }
 
-            @Override
-            public void run(final SyncTaskChain chain) {
-                addVmNicToListener(msg, new NoErrorCompletion(chain) {
-                    @Override
-                    public void done() {
-                        chain.next();
+            batch = new ArrayList<APIAddVmNicToLoadBalancerMsg>();
+            batch.add(msg);
+            pendingAddVmNicMsgs.put(self.getUuid(), batch);
+            thdf.chainSubmit(new ChainTask(msg) {
+                @Override
+                public String getSyncSignature() {
+                    return getSyncId();
+                }
+
+                @Override
+                public void run(final SyncTaskChain chain) {
+                    List<APIAddVmNicToLoadBalancerMsg> msgs;
+                    synchronized (pendingAddVmNicMsgs) {
+                        if (pendingAddVmNicMsgs.get(self.getUuid()) == batch) {
+                            pendingAddVmNicMsgs.remove(self.getUuid());
+                        }
+                        msgs = new ArrayList<APIAddVmNicToLoadBalancerMsg>(batch);
                     }
-                });
+
+                    addVmNicToListeners(msgs, new NoErrorCompletion(chain) {
+                        @Override
+                        public void done() {
+                            chain.next();
+                        }
+                    });
+                }
+
+                @Override
+                public String getName() {
+                    return getSyncSignature();
+                }
+            });
+        }
+    }
+
+    private void addVmNicToListenersOneByOne(final Iterator<APIAddVmNicToLoadBalancerMsg> it, final NoErrorCompletion completion) {
+        if (!it.hasNext()) {
+            completion.done();
+            return;
+        }
+
+        addVmNicToListeners(Collections.singletonList(it.next()), new NoErrorCompletion(completion) {
+            @Override
+            public void done() {
+                addVmNicToListenersOneByOne(it, completion);
+            }
+        });
+    }
+
+    private void addVmNicToListeners(List<APIAddVmNicToLoadBalancerMsg> msgs, final NoErrorCompletion completion) {
+        self = dbf.reload(self);
+
+        final List<APIAddVmNicToLoadBalancerMsg> accepted = new ArrayList<APIAddVmNicToLoadBalancerMsg>();
+        String type = self.getProviderType();
+        for (APIAddVmNicToLoadBalancerMsg msg : msgs) {
+            ErrorCode err = null;
+            String providerType = findProviderTypeByVmNicUuid(msg.getVmNicUuids().get(0));
+            if (providerType == null) {
+                err = errf.stringToOperationError(
+                        String.format("the L3 network of vm nic[uuid:%s] doesn't have load balancer service enabled", msg.getVmNicUuids().get(0))
+                );
+            } else if (type != null && !providerType.equals(type)) {
+                err = errf.stringToOperationError(
+                        String.format("service provider type mismatching. The load balancer[uuid:%s] is provided by the service provider[type:%s]," +
+                                        " but the L3 network of vm nic[uuid:%s] is enabled with the service provider[type: %s]", self.getUuid(), type,
+                                msg.getVmNicUuids().get(0), providerType)
+                );
             }
 
-            @Override
-            public String getName() {
-                return getSyncSignature();
+            if (err != null) {
+                APIAddVmNicToLoadBalancerEvent evt = new APIAddVmNicToLoadBalancerEvent(msg.getId());
+                evt.setErrorCode(err);
+                bus.publish(evt);
+                continue;
             }
-        });
-    }
 
-    private void addVmNicToListener(final APIAddVmNicToLoadBalancerMsg msg, final NoErrorCompletion completion) {
-        final APIAddVmNicToLoadBalancerEvent evt = new APIAddVmNicToLoadBalancerEvent(msg.getId());
+            type = providerType;
+            accepted.add(msg);
+        }
 
-        final String providerType = findProviderTypeByVmNicUuid(msg.getVmNicUuids().get(0));
-        if (providerType == null) {
-            throw new OperationFailureException(errf.stringToOperationError(
-                    String.format("the L3 network of vm nic[uuid:%s] doesn't have load balancer service enabled", msg.getVmNicUuids().get(0))
-            ));
+        if (accepted.isEmpty()) {
+            completion.done();
+            return;
+        }
+
+        final String providerType = type;
+        List<String> nicUuids = new ArrayList<String>();
+        for (APIAddVmNicToLoadBalancerMsg msg : accepted) {
+            nicUuids.addAll(msg.getVmNicUuids());
         }
 
         SimpleQuery<VmNicVO> q = dbf.createQuery(VmNicVO.class);
-        q.add(VmNicVO_.uuid, Op.IN, msg.getVmNicUuids());
+        q.add(VmNicVO_.uuid, Op.IN, nicUuids);
         List<VmNicVO> nicVOs = q.list();
         final List<VmNicInventory> nics = VmNicInventory.valueOf(nicVOs);
 
         FlowChain chain = FlowChainBuilder.newShareFlowChain();
-        chain.setName(String.format("add-vm-nic-to-lb-listener-%s", msg.getListenerUuid()));
+        chain.setName(String.format("add-vm-nic-to-listeners-of-lb-%s", self.getUuid()));
         chain.then(new ShareFlow() {
             List<LoadBalancerListenerVmNicRefVO> refs = new ArrayList<LoadBalancerListenerVmNicRefVO>();
             boolean init = false;
@@ -820,14 +903,6 @@ public class LoadBalancerBase {
                             self.setProviderType(providerType);
                             self = dbf.updateAndRefresh(self);
                             init = true;
-                        } else {
-                            if (!providerType.equals(self.getProviderType())) {
-                                throw new OperationFailureException(errf.stringToOperationError(
-                                        String.format("service provider type mismatching. The load balancer[uuid:%s] is provided by the service provider[type:%s]," +
-                                                        " but the L3 network of vm nic[uuid:%s] is enabled with the service provider[type: %s]", self.getUuid(), self.getProviderType(),
-                                                msg.getVmNicUuids().get(0), providerType)
-                                ));
-                            }
                         }
 
                         trigger.next();
@@ -852,12 +927,14 @@ public class LoadBalancerBase {
 
                     @Override
                     public void run(FlowTrigger trigger, Map data) {
-                        for (String nicUuid : msg.getVmNicUuids()) {
-                            LoadBalancerListenerVmNicRefVO ref = new LoadBalancerListenerVmNicRefVO();
-                            ref.setListenerUuid(msg.getListenerUuid());
-                            ref.setVmNicUuid(nicUuid);
-                            ref.setStatus(LoadBalancerVmNicStatus.Pending);
-                            refs.add(ref);
+                        for (APIAddVmNicToLoadBalancerMsg msg : accepted) {
+                            for (String nicUuid : msg.getVmNicUuids()) {
+                                LoadBalancerListenerVmNicRefVO ref = new LoadBalancerListenerVmNicRefVO();
+                                ref.setListenerUuid(msg.getListenerUuid());
+                                ref.setVmNicUuid(nicUuid);
+                                ref.setStatus(LoadBalancerVmNicStatus.Pending);
+                                refs.add(ref);
+                            }
                         }
 
                         dbf.persistCollection(refs);
@@ -896,7 +973,7 @@ public class LoadBalancerBase {
                     }
                 });
 
-                done(new FlowDoneHandler(msg, completion) {
+                done(new FlowDoneHandler(completion) {
                     @Override
                     public void handle(Map data) {
                         for (LoadBalancerListenerVmNicRefVO ref : refs) {
@@ -904,17 +981,31 @@ public class LoadBalancerBase {
                         }
 
                         dbf.updateCollection(refs);
-                        evt.setInventory(LoadBalancerListenerInventory.valueOf(dbf.findByUuid(msg.getListenerUuid(), LoadBalancerListenerVO.class)));
-                        bus.publish(evt);
+                        for (APIAddVmNicToLoadBalancerMsg msg : accepted) {
+                            APIAddVmNicToLoadBalancerEvent evt = new APIAddVmNicToLoadBalancerEvent(msg.getId());
+                            evt.setInventory(LoadBalancerListenerInventory.valueOf(dbf.findByUuid(msg.getListenerUuid(), LoadBalancerListenerVO.class)));
+                            bus.publish(evt);
+                        }
                         completion.done();
                     }
                 });
 
-                error(new FlowErrorHandler(msg, completion) {
+                error(new FlowErrorHandler(completion) {
                     @Override
                     public void handle(ErrorCode errCode, Map data) {
-                        evt.setErrorCode(errCode);
-                        bus.publish(evt);
+                        if (accepted.size() > 1) {
+                            // the batch has been rolled back, add nics of the messages one by one to tell which ones fail
+                            logger.debug(String.format("failed to add vm nics of %s messages to the load balancer[uuid:%s] together, %s;" +
+                                    " add them one by one", accepted.size(), self.getUuid(), errCode));
+                            addVmNicToListenersOneByOne(accepted.iterator(), completion);
+                            return;
+                        }
+
+                        for (APIAddVmNicToLoadBalancerMsg msg : accepted) {
+                            APIAddVmNicToLoadBalancerEvent evt = new APIAddVmNicToLoadBalancerEvent(msg.getId());
+                            evt.setErrorCode(errCode);
+                            bus.publish(evt);
+                        }
                         completion.done();
                     }
                 });
@@ -984,7 +1075,7 @@ public class LoadBalancerBase {
     }
 
     private void handle(final APICreateLoadBalancerListenerMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return getSyncId();
@@ -9,6 +9,8 @@ public class GCDeleteBitsContext implements Serializable {
     private String primaryStorageUuid;
     private String hostUuid;
     private String installPath;
+    // the resource the bits belong to, the bits are not deleted if the resource is on the host by then
+    private String resourceUuid;
 
     public String getHostUuid() {
         return hostUuid;
@@ -33,4 +35,12 @@ public class GCDeleteBitsContext implements Serializable {
     public void setInstallPath(String installPath) {
         this.installPath = installPath;
     }
+
+    public String getResourceUuid() {
+        return resourceUuid;
+    }
+
+    public void setResourceUuid(String resourceUuid) {
+        this.resourceUuid = resourceUuid;
+    }
 }
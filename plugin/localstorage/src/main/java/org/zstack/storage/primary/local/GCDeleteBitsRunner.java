@@ -53,6 +53,17 @@ public class GCDeleteBitsRunner implements GCRunner {
             return;
         }
 
+        if (ctx.getResourceUuid() != null) {
+            SimpleQuery<LocalStorageResourceRefVO> rq = dbf.createQuery(LocalStorageResourceRefVO.class);
+            rq.add(LocalStorageResourceRefVO_.resourceUuid, Op.EQ, ctx.getResourceUuid());
+            rq.add(LocalStorageResourceRefVO_.hostUuid, Op.EQ, ctx.getHostUuid());
+            if (rq.isExists()) {
+                // the bits are in use again, e.g. a retried migration succeeded
+                completion.success();
+                return;
+            }
+        }
+
         DeleteBitsCmd cmd = new DeleteBitsCmd();
         cmd.setPath(ctx.getInstallPath());
         cmd.setHostUuid(ctx.getHostUuid());
@@ -12,4 +12,8 @@ public class LocalStorageGlobalProperty {
     public static int KVM_SftpDownloadBitsCmd_TIMEOUT;
     @GlobalProperty(name="LocalStorage.kvm.SftpUploadBitsCmd.timeout", defaultValue = "3600")
     public static int KVM_SftpUploadBitsCmd_TIMEOUT;
+    @GlobalProperty(name="LocalStorage.migration.parallelismDegree", defaultValue = "4")
+    public static int MIGRATION_PARALLELISM_DEGREE;
+    @GlobalProperty(name="LocalStorage.migration.resumeWindow", defaultValue = "3600")
+    public static long MIGRATION_RESUME_WINDOW;
 }
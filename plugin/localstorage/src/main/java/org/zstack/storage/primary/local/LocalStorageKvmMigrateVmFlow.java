@@ -11,6 +11,8 @@ import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.gc.GCFacade;
+import org.zstack.core.gc.TimeBasedGCPersistentContext;
 import org.zstack.core.thread.ChainTask;
 import org.zstack.core.thread.SyncTaskChain;
 import org.zstack.core.thread.ThreadFacade;
@@ -49,6 +51,10 @@ import org.zstack.utils.logging.CLogger;
 import javax.persistence.TypedQuery;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.zstack.utils.CollectionDSL.list;
 
@@ -69,12 +75,18 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
     private ThreadFacade thdf;
     @Autowired
     private ApiTimeoutManager timeoutMgr;
+    @Autowired
+    private GCFacade gcf;
+
+    private static final ConcurrentMap<String, LocalStorageMigrationProgress> progresses = new ConcurrentHashMap<String, LocalStorageMigrationProgress>();
 
     public static final String VERIFY_SNAPSHOT_CHAIN_PATH = "/localstorage/snapshot/verifychain";
     public static final String REBASE_SNAPSHOT_BACKING_FILES_PATH = "/localstorage/snapshot/rebasebackingfiles";
     public static final String REBASE_ROOT_VOLUME_TO_BACKING_FILE_PATH = "/localstorage/volume/rebaserootvolumetobackingfile";
     public static final String COPY_TO_REMOTE_BITS_PATH = "/localstorage/copytoremote";
 
+    private static final String BACKING_FILE_RESOURCE_UUID = "backing-file";
+
     public static class SnapshotTO {
         public String path;
         public String parentPath;
@@ -96,11 +108,24 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
         public String dstUsername;
     }
 
+    /**
+     * @return progress of copying files of the vm being migrated, null if the vm's files are not being copied
+     */
+    public static LocalStorageMigrationProgress getMigrationProgress(String vmUuid) {
+        return progresses.get(vmUuid);
+    }
+
     class BackingImage {
         String uuid;
         String path;
         Long size;
-        String md5;
+    }
+
+    class MigratingFile {
+        String resourceUuid;
+        String path;
+        long size;
+        boolean backingFile;
     }
 
     @Override
@@ -127,7 +152,6 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
             boolean downloadImage;
             ImageVO image;
             VolumeInventory rootVolume;
-            KVMHostVO dstHost;
 
             {
                 for (VolumeInventory vol : volumesOnLocalStorage) {
@@ -169,8 +193,6 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                     downloadImage = !(image == null || image.getMediaType() == ImageMediaType.ISO
                             || image.getStatus() == ImageStatus.Deleted);
                 }
-
-                dstHost = dbf.findByUuid(dstHostUuid, KVMHostVO.class);
             }
 
             @Override
@@ -264,189 +286,6 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                             trigger.rollback();
                         }
                     });
-
-                    flow(new NoRollbackFlow() {
-                        String __name__ = "get-md5-of-backing-file";
-
-                        @Override
-                        public void run(final FlowTrigger trigger, Map data) {
-                            if (backingImage.path == null) {
-                                logger.debug("no backing file, skip this flow");
-                                trigger.next();
-                                return;
-                            }
-
-                            GetMd5Cmd cmd = new GetMd5Cmd();
-                            GetMd5TO to = new GetMd5TO();
-                            to.resourceUuid = "backing-file";
-                            to.path = backingImage.path;
-                            cmd.md5s = list(to);
-
-                            callKvmHost(srcHostUuid, ref.getPrimaryStorageUuid(), LocalStorageKvmBackend.GET_MD5_PATH, cmd, GetMd5Rsp.class, new ReturnValueCompletion<GetMd5Rsp>(trigger) {
-                                @Override
-                                public void success(GetMd5Rsp rsp) {
-                                    backingImage.md5 = rsp.md5s.get(0).md5;
-                                    trigger.next();
-                                }
-
-                                @Override
-                                public void fail(ErrorCode errorCode) {
-                                    trigger.fail(errorCode);
-                                }
-                            });
-                        }
-                    });
-
-                    flow(new Flow() {
-                        String __name__ = "migrate-backing-file";
-
-                        boolean s = false;
-
-                        private void migrate(final FlowTrigger trigger) {
-                            // sync here for migrating multiple volumes having the same backing file
-                            thdf.chainSubmit(new ChainTask(trigger) {
-                                @Override
-                                public String getSyncSignature() {
-                                    return String.format("migrate-backing-file-%s-to-host-%s", backingImage.path, dstHostUuid);
-                                }
-
-                                @Override
-                                public void run(final SyncTaskChain chain) {
-                                    final CopyBitsFromRemoteCmd cmd = new CopyBitsFromRemoteCmd();
-                                    cmd.dstIp = dstHost.getManagementIp();
-                                    cmd.dstUsername = dstHost.getUsername();
-                                    cmd.dstPassword = dstHost.getPassword();
-                                    cmd.paths = list(backingImage.path);
-
-                                    callKvmHost(srcHostUuid, ref.getPrimaryStorageUuid(), COPY_TO_REMOTE_BITS_PATH, cmd, AgentResponse.class,
-                                            new ReturnValueCompletion<AgentResponse>(trigger, chain) {
-                                        @Override
-                                        public void success(AgentResponse rsp) {
-                                            s = true;
-                                            trigger.next();
-                                            chain.next();
-                                        }
-
-                                        @Override
-                                        public void fail(ErrorCode errorCode) {
-                                            trigger.fail(errorCode);
-                                            chain.next();
-                                        }
-                                    });
-                                }
-
-                                @Override
-                                public String getName() {
-                                    return getSyncSignature();
-                                }
-                            });
-                        }
-
-                        @Override
-                        public void run(final FlowTrigger trigger, Map data) {
-                            if (backingImage.path == null) {
-                                logger.debug("no backing file, skip this flow");
-                                trigger.next();
-                                return;
-                            }
-
-                            checkIfExistOnDst(new ReturnValueCompletion<Boolean>(trigger) {
-                                @Override
-                                public void success(Boolean existing) {
-                                    if (existing) {
-                                        // DO NOT set success = true here, otherwise the rollback
-                                        // will delete the backing file which belongs to others on the dst host
-                                        logger.debug(String.format("found %s on the dst host[uuid:%s], don't copy it",
-                                                backingImage.path, dstHostUuid));
-                                        trigger.next();
-                                    } else {
-                                        migrate(trigger);
-                                    }
-
-                                }
-
-                                @Override
-                                public void fail(ErrorCode errorCode) {
-                                    trigger.fail(errorCode);
-                                }
-                            });
-                        }
-
-                        private void checkIfExistOnDst(final ReturnValueCompletion<Boolean> completion) {
-                            CheckBitsCmd cmd = new CheckBitsCmd();
-                            cmd.path = backingImage.path;
-
-                            callKvmHost(dstHostUuid, ref.getPrimaryStorageUuid(), LocalStorageKvmBackend.CHECK_BITS_PATH,
-                                    cmd, CheckBitsRsp.class, new ReturnValueCompletion<CheckBitsRsp>(completion) {
-                                @Override
-                                public void success(CheckBitsRsp rsp) {
-                                    completion.success(rsp.existing);
-                                }
-
-                                @Override
-                                public void fail(ErrorCode errorCode) {
-                                    completion.fail(errorCode);
-                                }
-                            });
-                        }
-
-                        @Override
-                        public void rollback(FlowRollback trigger, Map data) {
-                            if (s) {
-                                LocalStorageDirectlyDeleteBitsMsg msg = new LocalStorageDirectlyDeleteBitsMsg();
-                                msg.setPath(backingImage.path);
-                                msg.setHostUuid(dstHostUuid);
-                                msg.setPrimaryStorageUuid(ref.getPrimaryStorageUuid());
-                                bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, ref.getPrimaryStorageUuid());
-                                bus.send(msg, new CloudBusCallBack() {
-                                    @Override
-                                    public void run(MessageReply reply) {
-                                        if (!reply.isSuccess()) {
-                                            //TODO
-                                            logger.warn(String.format("failed to delete %s on the host[uuid:%s] of local storage[uuid:%s], %s",
-                                                    backingImage.path, dstHostUuid, ref.getPrimaryStorageUuid(), reply.getError()));
-                                        }
-                                    }
-                                });
-                            }
-
-                            trigger.rollback();
-                        }
-                    });
-
-                    flow(new NoRollbackFlow() {
-                        String __name__ = "check-md5-of-backing-file-on-dst-host";
-
-                        @Override
-                        public void run(final FlowTrigger trigger, Map data) {
-                            if (backingImage.path == null) {
-                                logger.debug("no backing file, skip this flow");
-                                trigger.next();
-                                return;
-                            }
-
-                            Md5TO to = new Md5TO();
-                            to.resourceUuid = "backing-file";
-                            to.path = backingImage.path;
-                            to.md5 = backingImage.md5;
-
-                            CheckMd5sumCmd cmd = new CheckMd5sumCmd();
-                            cmd.md5s = list(to);
-
-                            callKvmHost(dstHostUuid, ref.getPrimaryStorageUuid(), LocalStorageKvmBackend.CHECK_MD5_PATH,
-                                    cmd, AgentResponse.class, new ReturnValueCompletion<AgentResponse>(trigger) {
-                                @Override
-                                public void success(AgentResponse returnValue) {
-                                    trigger.next();
-                                }
-
-                                @Override
-                                public void fail(ErrorCode errorCode) {
-                                    trigger.fail(errorCode);
-                                }
-                            });
-                        }
-                    });
                 }
 
                 flow(new Flow() {
@@ -480,74 +319,10 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                     }
                 });
 
-                if (!snapshotTrees.isEmpty()) {
-                    List<Flow> flows = createFlowsForSnapshot(volumesOnLocalStorage, snapshotTrees, srcHostUuid, dstHostUuid, backingImage);
-                    for (Flow f : flows) {
-                        flow(f);
-                    }
-                } else {
-                    flow(new Flow() {
-                        String __name__ = "create-volumes-on-dst-host";
-
-                        List<VolumeInventory> successVolumes = new ArrayList<VolumeInventory>();
-
-                        @Override
-                        public void run(final FlowTrigger trigger, Map data) {
-                            List<LocalStorageCreateEmptyVolumeMsg> msgs = CollectionUtils.transformToList(volumesOnLocalStorage, new Function<LocalStorageCreateEmptyVolumeMsg, VolumeInventory>() {
-                                @Override
-                                public LocalStorageCreateEmptyVolumeMsg call(VolumeInventory arg) {
-                                    LocalStorageCreateEmptyVolumeMsg msg = new LocalStorageCreateEmptyVolumeMsg();
-                                    msg.setHostUuid(dstHostUuid);
-                                    msg.setVolume(arg);
-
-                                    if (VolumeType.Root.toString().equals(arg.getType())) {
-                                        msg.setBackingFile(backingImage.path);
-                                    }
-
-                                    msg.setPrimaryStorageUuid(ref.getPrimaryStorageUuid());
-                                    bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, ref.getPrimaryStorageUuid());
-                                    return msg;
-                                }
-                            });
-
-                            bus.send(msgs, 1, new CloudBusListCallBack(trigger) {
-                                @Override
-                                public void run(List<MessageReply> replies) {
-                                    for (MessageReply r : replies) {
-                                        if (!r.isSuccess()) {
-                                            trigger.fail(r.getError());
-                                            return;
-                                        }
-
-                                        successVolumes.add(volumesOnLocalStorage.get(replies.indexOf(r)));
-                                    }
-
-                                    trigger.next();
-                                }
-                            });
-                        }
-
-                        @Override
-                        public void rollback(FlowRollback trigger, Map data) {
-                            if (!successVolumes.isEmpty()) {
-                                List<LocalStorageDirectlyDeleteBitsMsg> msgs = CollectionUtils.transformToList(successVolumes, new Function<LocalStorageDirectlyDeleteBitsMsg, VolumeInventory>() {
-                                    @Override
-                                    public LocalStorageDirectlyDeleteBitsMsg call(VolumeInventory arg) {
-                                        LocalStorageDirectlyDeleteBitsMsg msg = new LocalStorageDirectlyDeleteBitsMsg();
-                                        msg.setHostUuid(dstHostUuid);
-                                        msg.setPrimaryStorageUuid(ref.getPrimaryStorageUuid());
-                                        msg.setPath(arg.getInstallPath());
-                                        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, ref.getPrimaryStorageUuid());
-                                        return msg;
-                                    }
-                                });
-
-                                bus.send(msgs);
-                            }
-
-                            trigger.rollback();
-                        }
-                    });
+                List<Flow> flows = createFlowsForMigratingFiles(volumesOnLocalStorage, snapshotTrees, srcHostUuid, dstHostUuid,
+                        ref.getPrimaryStorageUuid(), backingImage, !downloadImage, spec.getVmInventory().getUuid());
+                for (Flow f : flows) {
+                    flow(f);
                 }
 
                 flow(new NoRollbackFlow() {
@@ -807,19 +582,96 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
         });
     }
 
-    private List<Flow> createFlowsForSnapshot(List<VolumeInventory> volumesOnLocalStorage,
-                                              List<VolumeSnapshotTree> snapshotTrees, final String srcHostUuid,
-                                              final String dstHostUuid, final BackingImage image) {
+    private abstract class ParallelTask<T> {
+        abstract void run(T item, Completion completion);
+
+        abstract String getName(T item);
+    }
+
+    /**
+     * runs the task on the items, LocalStorageGlobalProperty.MIGRATION_PARALLELISM_DEGREE at a time.
+     * Items not started yet are skipped once one fails, the completion fails with the first error after
+     * all started ones finished
+     */
+    private <T> void runInParallel(final String syncSignature, List<T> items, final ParallelTask<T> task, final Completion completion) {
+        if (items.isEmpty()) {
+            completion.success();
+            return;
+        }
+
+        final AtomicInteger count = new AtomicInteger(items.size());
+        final List<ErrorCode> errors = Collections.synchronizedList(new ArrayList<ErrorCode>());
+        for (final T item : items) {
+            thdf.chainSubmit(new ChainTask(completion) {
+                @Override
+                public String getSyncSignature() {
+                    return syncSignature;
+                }
+
+                @Override
+                protected int getSyncLevel() {
+                    return LocalStorageGlobalProperty.MIGRATION_PARALLELISM_DEGREE;
+                }
+
+                private void done(ErrorCode error, SyncTaskChain chain) {
+                    if (error != null) {
+                        errors.add(error);
+                    }
+
+                    chain.next();
+                    if (count.decrementAndGet() == 0) {
+                        if (errors.isEmpty()) {
+                            completion.success();
+                        } else {
+                            completion.fail(errors.get(0));
+                        }
+                    }
+                }
+
+                @Override
+                public void run(final SyncTaskChain chain) {
+                    if (!errors.isEmpty()) {
+                        // fails anyway
+                        done(null, chain);
+                        return;
+                    }
+
+                    task.run(item, new Completion(chain) {
+                        @Override
+                        public void success() {
+                            done(null, chain);
+                        }
+
+                        @Override
+                        public void fail(ErrorCode errorCode) {
+                            done(errorCode, chain);
+                        }
+                    });
+                }
+
+                @Override
+                public String getName() {
+                    return task.getName(item);
+                }
+            });
+        }
+    }
+
+    private List<Flow> createFlowsForMigratingFiles(final List<VolumeInventory> volumesOnLocalStorage,
+                                                    List<VolumeSnapshotTree> snapshotTrees, final String srcHostUuid,
+                                                    final String dstHostUuid, final String psUuid, final BackingImage image,
+                                                    final boolean copyBackingFile, final String vmUuid) {
         List<Flow> flows = new ArrayList<Flow>();
 
         class VSPair {
             VolumeInventory volume;
             List<VolumeSnapshotTree> snapshotTrees;
             VolumeSnapshotInventory latest;
+            List<VolumeSnapshotInventory> children;
+            List<SnapshotTO> snapshotTOs;
         }
 
-        List<VSPair> volumeHasSnapshots = new ArrayList<VSPair>();
-        List<VolumeInventory> volumeNoSnapshots = new ArrayList<VolumeInventory>();
+        final Map<String, VSPair> volumeHasSnapshots = new LinkedHashMap<String, VSPair>();
 
         for (final VolumeInventory vol : volumesOnLocalStorage) {
             final List<VolumeSnapshotTree> trees = CollectionUtils.transformToList(snapshotTrees, new Function<VolumeSnapshotTree, VolumeSnapshotTree>() {
@@ -848,19 +700,19 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                     }
                 }.call();
 
-                volumeHasSnapshots.add(p);
-            } else {
-                volumeNoSnapshots.add(vol);
+                volumeHasSnapshots.put(vol.getUuid(), p);
             }
         }
 
-        for (final VSPair p : volumeHasSnapshots) {
+        final List<VolumeSnapshotInventory> allSnapshots = new ArrayList<VolumeSnapshotInventory>();
+        for (final VSPair p : volumeHasSnapshots.values()) {
             final List<VolumeSnapshotInventory> children = new ArrayList<VolumeSnapshotInventory>();
             for (VolumeSnapshotTree t : p.snapshotTrees) {
                 children.addAll(t.getRoot().getDescendants());
             }
 
-            final List<SnapshotTO> snapshotTOs = CollectionUtils.transformToList(children, new Function<SnapshotTO, VolumeSnapshotInventory>() {
+            p.children = children;
+            p.snapshotTOs = CollectionUtils.transformToList(children, new Function<SnapshotTO, VolumeSnapshotInventory>() {
                 @Override
                 public SnapshotTO call(final VolumeSnapshotInventory s) {
                     SnapshotTO to = new SnapshotTO();
@@ -877,13 +729,7 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                     return to;
                 }
             });
-
-
-            class Context {
-                List<Md5TO> md5s;
-            }
-
-            final Context context = new Context();
+            allSnapshots.addAll(children);
 
             flows.add(new NoRollbackFlow() {
                 String __name__ = String.format("verify-snapshot-integrity-of-volume-%s-on-src-host", p.volume.getUuid());
@@ -891,7 +737,7 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                 @Override
                 public void run(final FlowTrigger trigger, Map data) {
                     VerifySnapshotChainCmd cmd = new VerifySnapshotChainCmd();
-                    cmd.snapshots = snapshotTOs;
+                    cmd.snapshots = p.snapshotTOs;
                     callKvmHost(srcHostUuid, p.volume.getPrimaryStorageUuid(), VERIFY_SNAPSHOT_CHAIN_PATH, cmd, AgentResponse.class, new ReturnValueCompletion<AgentResponse>(trigger) {
                         @Override
                         public void success(AgentResponse returnValue) {
@@ -905,187 +751,486 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                     });
                 }
             });
+        }
 
-            flows.add(new NoRollbackFlow() {
-                String __name__ = "get-snapshot-md5";
+        final List<MigratingFile> files = new ArrayList<MigratingFile>();
+        final Map<String, Md5TO> md5s = new HashMap<String, Md5TO>();
 
-                @Override
-                public void run(final FlowTrigger trigger, Map data) {
-                    GetMd5Cmd cmd = new GetMd5Cmd();
-                    cmd.md5s = CollectionUtils.transformToList(children, new Function<GetMd5TO, VolumeSnapshotInventory>() {
-                        @Override
-                        public GetMd5TO call(VolumeSnapshotInventory arg) {
-                            GetMd5TO to = new GetMd5TO();
-                            to.path = arg.getPrimaryStorageInstallPath();
-                            to.resourceUuid = arg.getUuid();
-                            return to;
-                        }
-                    });
+        flows.add(new NoRollbackFlow() {
+            String __name__ = "get-md5-of-files-to-copy";
 
-                    callKvmHost(srcHostUuid, p.volume.getPrimaryStorageUuid(), LocalStorageKvmBackend.GET_MD5_PATH, cmd,
-                            GetMd5Rsp.class, new ReturnValueCompletion<GetMd5Rsp>(trigger) {
-                        @Override
-                        public void success(GetMd5Rsp rsp) {
-                            context.md5s = rsp.md5s;
-                            trigger.next();
-                        }
+            @Override
+            public void run(final FlowTrigger trigger, Map data) {
+                // the backing file is only known after the image cache or the backing file of the root volume is resolved
+                if (copyBackingFile && image.path != null) {
+                    MigratingFile f = new MigratingFile();
+                    f.resourceUuid = BACKING_FILE_RESOURCE_UUID;
+                    f.path = image.path;
+                    f.size = image.size == null ? 0 : image.size;
+                    f.backingFile = true;
+                    files.add(f);
+                }
 
-                        @Override
-                        public void fail(ErrorCode errorCode) {
-                            trigger.fail(errorCode);
-                        }
-                    });
+                for (VolumeSnapshotInventory s : allSnapshots) {
+                    MigratingFile f = new MigratingFile();
+                    f.resourceUuid = s.getUuid();
+                    f.path = s.getPrimaryStorageInstallPath();
+                    f.size = s.getSize();
+                    files.add(f);
                 }
-            });
 
-            flows.add(new Flow() {
-                String __name__ = String.format("copy-snapshots-for-volume-%s-on-dst-host", p.volume.getUuid());
+                if (files.isEmpty()) {
+                    logger.debug("no file to copy, skip this flow");
+                    trigger.next();
+                    return;
+                }
 
-                List<VolumeSnapshotInventory> success = new ArrayList<VolumeSnapshotInventory>();
-                KVMHostVO dstHost = dbf.findByUuid(dstHostUuid, KVMHostVO.class);
+                GetMd5Cmd cmd = new GetMd5Cmd();
+                cmd.md5s = CollectionUtils.transformToList(files, new Function<GetMd5TO, MigratingFile>() {
+                    @Override
+                    public GetMd5TO call(MigratingFile arg) {
+                        GetMd5TO to = new GetMd5TO();
+                        to.path = arg.path;
+                        to.resourceUuid = arg.resourceUuid;
+                        return to;
+                    }
+                });
 
-                @Override
-                public void run(final FlowTrigger trigger, Map data) {
-                    CopyBitsFromRemoteCmd cmd = new CopyBitsFromRemoteCmd();
-                    cmd.paths = CollectionUtils.transformToList(children, new Function<String, VolumeSnapshotInventory>() {
-                        @Override
-                        public String call(VolumeSnapshotInventory arg) {
-                            return arg.getPrimaryStorageInstallPath();
-                        }
-                    });
-                    cmd.dstIp = dstHost.getManagementIp();
-                    cmd.dstPassword = dstHost.getPassword();
-                    cmd.dstUsername = dstHost.getUsername();
-                    callKvmHost(srcHostUuid, p.volume.getPrimaryStorageUuid(), COPY_TO_REMOTE_BITS_PATH, cmd, AgentResponse.class, new ReturnValueCompletion<AgentResponse>(trigger) {
-                        @Override
-                        public void success(AgentResponse returnValue) {
-                            trigger.next();
+                callKvmHost(srcHostUuid, psUuid, LocalStorageKvmBackend.GET_MD5_PATH, cmd,
+                        GetMd5Rsp.class, new ReturnValueCompletion<GetMd5Rsp>(trigger) {
+                    @Override
+                    public void success(GetMd5Rsp rsp) {
+                        for (Md5TO to : rsp.md5s) {
+                            md5s.put(to.resourceUuid, to);
                         }
+                        trigger.next();
+                    }
 
-                        @Override
-                        public void fail(ErrorCode errorCode) {
-                            trigger.fail(errorCode);
-                        }
-                    });
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        trigger.fail(errorCode);
+                    }
+                });
+            }
+        });
+
+        flows.add(new Flow() {
+            String __name__ = String.format("copy-files-of-vm-%s-to-dst-host", vmUuid);
+
+            List<MigratingFile> copied = Collections.synchronizedList(new ArrayList<MigratingFile>());
+            KVMHostVO dstHost = dbf.findByUuid(dstHostUuid, KVMHostVO.class);
+            LocalStorageMigrationProgress progress = new LocalStorageMigrationProgress(vmUuid, srcHostUuid, dstHostUuid);
+            Set<String> leftOnDstHost = new HashSet<String>();
+            // left files whose GC jobs are cancelled by this migration
+            List<MigratingFile> takenOver = new ArrayList<MigratingFile>();
+
+            /**
+             * takes over the snapshot files copied to the dst host by a failed migration by cancelling the GC jobs
+             * deleting them, so they can be verified instead of copied again
+             *
+             * @return paths of the left files whose GC jobs have started, they may be deleted at any time
+             */
+            private List<String> takeOverSnapshotsLeftOnDstHost() {
+                final Map<String, MigratingFile> snapshotFiles = new HashMap<String, MigratingFile>();
+                for (MigratingFile f : files) {
+                    if (!f.backingFile) {
+                        snapshotFiles.put(f.resourceUuid, f);
+                    }
                 }
 
-                @Override
-                public void rollback(FlowRollback trigger, Map data) {
-                    if (!success.isEmpty()) {
-                        final List<LocalStorageDirectlyDeleteBitsMsg> msgs = CollectionUtils.transformToList(success, new Function<LocalStorageDirectlyDeleteBitsMsg, VolumeSnapshotInventory>() {
+                Function<Boolean, GCDeleteBitsContext> leftByMigration = new Function<Boolean, GCDeleteBitsContext>() {
+                    @Override
+                    public Boolean call(GCDeleteBitsContext ctx) {
+                        MigratingFile f = ctx.getResourceUuid() == null ? null : snapshotFiles.get(ctx.getResourceUuid());
+                        return f != null && dstHostUuid.equals(ctx.getHostUuid()) && f.path.equals(ctx.getInstallPath());
+                    }
+                };
+
+                for (GCDeleteBitsContext ctx : gcf.cancelPendingPersistentContexts(GCDeleteBitsRunner.class,
+                        GCDeleteBitsContext.class, leftByMigration)) {
+                    MigratingFile f = snapshotFiles.get(ctx.getResourceUuid());
+                    takenOver.add(f);
+                    leftOnDstHost.add(f.resourceUuid);
+                }
+
+                // jobs not cancelled have started
+                List<String> deleting = new ArrayList<String>();
+                for (GCDeleteBitsContext ctx : gcf.getPendingPersistentContexts(GCDeleteBitsRunner.class, GCDeleteBitsContext.class)) {
+                    if (leftByMigration.call(ctx)) {
+                        deleting.add(ctx.getInstallPath());
+                    }
+                }
+                return deleting;
+            }
+
+            private void checkMd5(MigratingFile f, final Completion completion) {
+                CheckMd5sumCmd cmd = new CheckMd5sumCmd();
+                cmd.md5s = list(md5s.get(f.resourceUuid));
+                callKvmHost(dstHostUuid, psUuid, LocalStorageKvmBackend.CHECK_MD5_PATH, cmd, AgentResponse.class,
+                        new ReturnValueCompletion<AgentResponse>(completion) {
+                    @Override
+                    public void success(AgentResponse returnValue) {
+                        completion.success();
+                    }
+
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        completion.fail(errorCode);
+                    }
+                });
+            }
+
+            private void copy(final MigratingFile f, final Completion completion) {
+                CopyBitsFromRemoteCmd cmd = new CopyBitsFromRemoteCmd();
+                cmd.paths = list(f.path);
+                cmd.dstIp = dstHost.getManagementIp();
+                cmd.dstPassword = dstHost.getPassword();
+                cmd.dstUsername = dstHost.getUsername();
+                callKvmHost(srcHostUuid, psUuid, COPY_TO_REMOTE_BITS_PATH, cmd, AgentResponse.class, new ReturnValueCompletion<AgentResponse>(completion) {
+                    @Override
+                    public void success(AgentResponse returnValue) {
+                        copied.add(f);
+                        // verify the file while others are still being copied
+                        checkMd5(f, new Completion(completion) {
                             @Override
-                            public LocalStorageDirectlyDeleteBitsMsg call(VolumeSnapshotInventory arg) {
-                                LocalStorageDirectlyDeleteBitsMsg msg = new LocalStorageDirectlyDeleteBitsMsg();
-                                msg.setHostUuid(dstHostUuid);
-                                msg.setPrimaryStorageUuid(arg.getPrimaryStorageUuid());
-                                msg.setPath(arg.getPrimaryStorageInstallPath());
-                                bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, arg.getPrimaryStorageUuid());
-                                return msg;
+                            public void success() {
+                                progress.fileCopied(f.size);
+                                logger.debug(String.format("copied %s of the resource[uuid:%s] to the dst host[uuid:%s], %s",
+                                        f.path, f.resourceUuid, dstHostUuid, progress));
+                                completion.success();
+                            }
+
+                            @Override
+                            public void fail(ErrorCode errorCode) {
+                                completion.fail(errorCode);
                             }
                         });
+                    }
 
-                        bus.send(msgs, new CloudBusListCallBack() {
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        completion.fail(errorCode);
+                    }
+                });
+            }
+
+            private void checkIfExistOnDst(MigratingFile f, final ReturnValueCompletion<Boolean> completion) {
+                CheckBitsCmd cmd = new CheckBitsCmd();
+                cmd.path = f.path;
+
+                callKvmHost(dstHostUuid, psUuid, LocalStorageKvmBackend.CHECK_BITS_PATH,
+                        cmd, CheckBitsRsp.class, new ReturnValueCompletion<CheckBitsRsp>(completion) {
+                    @Override
+                    public void success(CheckBitsRsp rsp) {
+                        completion.success(rsp.existing);
+                    }
+
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        completion.fail(errorCode);
+                    }
+                });
+            }
+
+            private void migrateBackingFile(final MigratingFile f, final Completion completion) {
+                // sync here for migrating multiple vms having the same backing file
+                thdf.chainSubmit(new ChainTask(completion) {
+                    @Override
+                    public String getSyncSignature() {
+                        return String.format("migrate-backing-file-%s-to-host-%s", f.path, dstHostUuid);
+                    }
+
+                    @Override
+                    public void run(final SyncTaskChain chain) {
+                        final Completion c = new Completion(completion, chain) {
                             @Override
-                            public void run(List<MessageReply> replies) {
-                                for (MessageReply r : replies) {
-                                    if (!r.isSuccess()) {
-                                        LocalStorageDirectlyDeleteBitsMsg msg = msgs.get(replies.indexOf(r));
-                                        //TODO
-                                        logger.warn(String.format("failed to delete %s on the local primary storage[uuid:%s], host[uuid:%s], %s",
-                                                msg.getPath(), msg.getPrimaryStorageUuid(), msg.getHostUuid(), r.getError()));
-                                    }
+                            public void success() {
+                                chain.next();
+                                completion.success();
+                            }
+
+                            @Override
+                            public void fail(ErrorCode errorCode) {
+                                chain.next();
+                                completion.fail(errorCode);
+                            }
+                        };
+
+                        checkIfExistOnDst(f, new ReturnValueCompletion<Boolean>(c) {
+                            @Override
+                            public void success(Boolean existing) {
+                                if (!existing) {
+                                    copy(f, c);
+                                    return;
                                 }
+
+                                // DO NOT add it to the copied files, otherwise the rollback
+                                // will delete the backing file which belongs to others on the dst host
+                                logger.debug(String.format("found %s on the dst host[uuid:%s], don't copy it", f.path, dstHostUuid));
+                                checkMd5(f, new Completion(c) {
+                                    @Override
+                                    public void success() {
+                                        progress.fileResumed(f.size);
+                                        c.success();
+                                    }
+
+                                    @Override
+                                    public void fail(ErrorCode errorCode) {
+                                        c.fail(errorCode);
+                                    }
+                                });
+                            }
+
+                            @Override
+                            public void fail(ErrorCode errorCode) {
+                                c.fail(errorCode);
                             }
                         });
                     }
 
-                    trigger.rollback();
+                    @Override
+                    public String getName() {
+                        return getSyncSignature();
+                    }
+                });
+            }
+
+            private void migrateSnapshot(final MigratingFile f, final Completion completion) {
+                if (!leftOnDstHost.contains(f.resourceUuid)) {
+                    copy(f, completion);
+                    return;
                 }
-            });
 
-            flows.add(new NoRollbackFlow() {
-                String __name__ = "check-snapshots-md5-on-dst-host";
+                // left by a failed migration, skip it if it's complete
+                checkMd5(f, new Completion(completion) {
+                    @Override
+                    public void success() {
+                        copied.add(f);
+                        progress.fileResumed(f.size);
+                        logger.debug(String.format("the snapshot[uuid:%s, path:%s] has been on the dst host[uuid:%s], skip copying it",
+                                f.resourceUuid, f.path, dstHostUuid));
+                        completion.success();
+                    }
 
-                @Override
-                public void run(final FlowTrigger trigger, Map data) {
-                    CheckMd5sumCmd cmd = new CheckMd5sumCmd();
-                    cmd.md5s = context.md5s;
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        copy(f, completion);
+                    }
+                });
+            }
 
-                    callKvmHost(dstHostUuid, p.volume.getPrimaryStorageUuid(), LocalStorageKvmBackend.CHECK_MD5_PATH,
-                            cmd, AgentResponse.class, new ReturnValueCompletion<AgentResponse>(trigger) {
-                                @Override
-                                public void success(AgentResponse returnValue) {
-                                    trigger.next();
-                                }
+            @Override
+            public void run(final FlowTrigger trigger, Map data) {
+                if (files.isEmpty()) {
+                    logger.debug("no file to copy, skip this flow");
+                    trigger.next();
+                    return;
+                }
 
-                                @Override
-                                public void fail(ErrorCode errorCode) {
-                                    trigger.fail(errorCode);
-                                }
-                            });
+                List<String> deleting = takeOverSnapshotsLeftOnDstHost();
+                if (!deleting.isEmpty()) {
+                    trigger.fail(errf.stringToOperationError(String.format("files%s left on the dst host[uuid:%s] by a failed migration" +
+                            " are being deleted, please retry later", deleting, dstHostUuid)));
+                    return;
                 }
-            });
 
-            flows.add(new Flow() {
-                String __name__ = "create-volume-on-dst-host";
+                for (MigratingFile f : files) {
+                    progress.addFile(f.size);
+                }
+                // the entry lives as long as the copying, not the whole migration
+                progresses.put(vmUuid, progress);
 
-                boolean s = false;
+                runInParallel(String.format("migrate-files-of-vm-%s", vmUuid), files, new ParallelTask<MigratingFile>() {
+                    @Override
+                    void run(MigratingFile f, Completion completion) {
+                        if (f.backingFile) {
+                            migrateBackingFile(f, completion);
+                        } else {
+                            migrateSnapshot(f, completion);
+                        }
+                    }
 
-                @Override
-                public void run(final FlowTrigger trigger, Map data) {
-                    final CreateEmptyVolumeCmd cmd = new CreateEmptyVolumeCmd();
-                    cmd.setInstallUrl(p.volume.getInstallPath());
-                    cmd.setSize(p.volume.getSize());
-                    cmd.setVolumeUuid(p.volume.getUuid());
-                    cmd.setBackingFile(p.latest.getPrimaryStorageInstallPath());
-
-                    callKvmHost(dstHostUuid, p.volume.getPrimaryStorageUuid(), LocalStorageKvmBackend.CREATE_EMPTY_VOLUME_PATH, cmd, CreateEmptyVolumeRsp.class,
-                            new ReturnValueCompletion<CreateEmptyVolumeRsp>(trigger) {
-                                @Override
-                                public void success(CreateEmptyVolumeRsp returnValue) {
-                                    s = true;
-                                    trigger.next();
-                                }
+                    @Override
+                    String getName(MigratingFile f) {
+                        return String.format("migrate-file-%s-to-host-%s", f.path, dstHostUuid);
+                    }
+                }, new Completion(trigger) {
+                    @Override
+                    public void success() {
+                        progresses.remove(vmUuid, progress);
+                        trigger.next();
+                    }
 
-                                @Override
-                                public void fail(ErrorCode errorCode) {
-                                    trigger.fail(errf.instantiateErrorCode(SysErrors.OPERATION_ERROR,
-                                            String.format("unable to create an empty volume[uuid:%s, name:%s] on the kvm host[uuid:%s]",
-                                                    p.volume.getUuid(), p.volume.getName(), dstHostUuid), errorCode));
-                                }
-                            });
-                }
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        progresses.remove(vmUuid, progress);
+                        trigger.fail(errorCode);
+                    }
+                });
+            }
 
-                @Override
-                public void rollback(FlowRollback trigger, Map data) {
-                    if (s) {
+            @Override
+            public void rollback(FlowRollback trigger, Map data) {
+                // files taken over are given back to GC even if they failed to be copied again
+                Set<MigratingFile> leftFiles = new LinkedHashSet<MigratingFile>(copied);
+                leftFiles.addAll(takenOver);
+                for (final MigratingFile f : leftFiles) {
+                    if (f.backingFile) {
                         LocalStorageDirectlyDeleteBitsMsg msg = new LocalStorageDirectlyDeleteBitsMsg();
+                        msg.setPath(f.path);
                         msg.setHostUuid(dstHostUuid);
-                        msg.setPrimaryStorageUuid(p.volume.getPrimaryStorageUuid());
-                        msg.setPath(p.volume.getInstallPath());
-                        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, p.volume.getPrimaryStorageUuid());
-
+                        msg.setPrimaryStorageUuid(psUuid);
+                        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, psUuid);
                         bus.send(msg, new CloudBusCallBack() {
                             @Override
                             public void run(MessageReply reply) {
-                                //TODO
-                                logger.warn(String.format("failed to delete %s on the local primary storage[uuid:%s], host[uuid:%s], %s",
-                                        p.volume.getInstallPath(), p.volume.getPrimaryStorageUuid(), dstHostUuid, reply.getError()));
+                                if (!reply.isSuccess()) {
+                                    //TODO
+                                    logger.warn(String.format("failed to delete %s on the host[uuid:%s] of local storage[uuid:%s], %s",
+                                            f.path, dstHostUuid, psUuid, reply.getError()));
+                                }
                             }
                         });
+                        continue;
                     }
 
-                    trigger.rollback();
+                    // snapshot files copied are kept for a while, a retried migration within the window cancels the job and verifies
+                    // them instead of copying again. GCDeleteBitsRunner leaves a file alone if the snapshot has been on the host by then
+                    GCDeleteBitsContext c = new GCDeleteBitsContext();
+                    c.setPrimaryStorageUuid(psUuid);
+                    c.setHostUuid(dstHostUuid);
+                    c.setInstallPath(f.path);
+                    c.setResourceUuid(f.resourceUuid);
+
+                    TimeBasedGCPersistentContext<GCDeleteBitsContext> ctx = new TimeBasedGCPersistentContext<GCDeleteBitsContext>();
+                    ctx.setContextClass(GCDeleteBitsContext.class);
+                    ctx.setRunnerClass(GCDeleteBitsRunner.class);
+                    ctx.setContext(c);
+                    ctx.setInterval(LocalStorageGlobalProperty.MIGRATION_RESUME_WINDOW);
+                    ctx.setTimeUnit(TimeUnit.SECONDS);
+                    ctx.setName(String.format("local-storage-delete-migrated-snapshot-%s-on-host-%s", f.resourceUuid, dstHostUuid));
+                    gcf.schedule(ctx);
                 }
-            });
 
+                trigger.rollback();
+            }
+        });
+
+        flows.add(new Flow() {
+            String __name__ = "create-volumes-on-dst-host";
+
+            List<VolumeInventory> created = Collections.synchronizedList(new ArrayList<VolumeInventory>());
+
+            private void createVolumeOnSnapshot(final VSPair p, final Completion completion) {
+                final CreateEmptyVolumeCmd cmd = new CreateEmptyVolumeCmd();
+                cmd.setInstallUrl(p.volume.getInstallPath());
+                cmd.setSize(p.volume.getSize());
+                cmd.setVolumeUuid(p.volume.getUuid());
+                cmd.setBackingFile(p.latest.getPrimaryStorageInstallPath());
+
+                callKvmHost(dstHostUuid, p.volume.getPrimaryStorageUuid(), LocalStorageKvmBackend.CREATE_EMPTY_VOLUME_PATH, cmd, CreateEmptyVolumeRsp.class,
+                        new ReturnValueCompletion<CreateEmptyVolumeRsp>(completion) {
+                            @Override
+                            public void success(CreateEmptyVolumeRsp returnValue) {
+                                created.add(p.volume);
+                                completion.success();
+                            }
+
+                            @Override
+                            public void fail(ErrorCode errorCode) {
+                                completion.fail(errf.instantiateErrorCode(SysErrors.OPERATION_ERROR,
+                                        String.format("unable to create an empty volume[uuid:%s, name:%s] on the kvm host[uuid:%s]",
+                                                p.volume.getUuid(), p.volume.getName(), dstHostUuid), errorCode));
+                            }
+                        });
+            }
+
+            private void createVolume(final VolumeInventory vol, final Completion completion) {
+                LocalStorageCreateEmptyVolumeMsg msg = new LocalStorageCreateEmptyVolumeMsg();
+                msg.setHostUuid(dstHostUuid);
+                msg.setVolume(vol);
+
+                if (VolumeType.Root.toString().equals(vol.getType())) {
+                    msg.setBackingFile(image.path);
+                }
+
+                msg.setPrimaryStorageUuid(vol.getPrimaryStorageUuid());
+                bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, vol.getPrimaryStorageUuid());
+                bus.send(msg, new CloudBusCallBack(completion) {
+                    @Override
+                    public void run(MessageReply reply) {
+                        if (!reply.isSuccess()) {
+                            completion.fail(reply.getError());
+                        } else {
+                            created.add(vol);
+                            completion.success();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void run(final FlowTrigger trigger, Map data) {
+                runInParallel(String.format("create-volumes-of-vm-%s-on-host-%s", vmUuid, dstHostUuid), volumesOnLocalStorage, new ParallelTask<VolumeInventory>() {
+                    @Override
+                    void run(VolumeInventory vol, Completion completion) {
+                        VSPair p = volumeHasSnapshots.get(vol.getUuid());
+                        if (p != null) {
+                            createVolumeOnSnapshot(p, completion);
+                        } else {
+                            createVolume(vol, completion);
+                        }
+                    }
+
+                    @Override
+                    String getName(VolumeInventory vol) {
+                        return String.format("create-volume-%s-on-host-%s", vol.getUuid(), dstHostUuid);
+                    }
+                }, new Completion(trigger) {
+                    @Override
+                    public void success() {
+                        trigger.next();
+                    }
+
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        trigger.fail(errorCode);
+                    }
+                });
+            }
+
+            @Override
+            public void rollback(FlowRollback trigger, Map data) {
+                for (final VolumeInventory vol : created) {
+                    LocalStorageDirectlyDeleteBitsMsg msg = new LocalStorageDirectlyDeleteBitsMsg();
+                    msg.setHostUuid(dstHostUuid);
+                    msg.setPath(vol.getInstallPath());
+                    msg.setPrimaryStorageUuid(vol.getPrimaryStorageUuid());
+                    bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, vol.getPrimaryStorageUuid());
+                    bus.send(msg, new CloudBusCallBack() {
+                        @Override
+                        public void run(MessageReply r) {
+                            if (!r.isSuccess()) {
+                                //TODO
+                                logger.warn(String.format("failed to delete %s on the local primary storage[uuid:%s], host[uuid:%s], %s",
+                                        vol.getInstallPath(), vol.getPrimaryStorageUuid(), dstHostUuid, r.getError()));
+                            }
+                        }
+                    });
+                }
+
+                trigger.rollback();
+            }
+        });
+
+        for (final VSPair p : volumeHasSnapshots.values()) {
             flows.add(new NoRollbackFlow() {
                 String __name__ = String.format("rebase-backing-files-of-snapshots-of-volume-%s-on-dst-host", p.volume.getUuid());
 
                 @Override
                 public void run(final FlowTrigger trigger, Map data) {
                     RebaseSnapshotBackingFilesCmd cmd = new RebaseSnapshotBackingFilesCmd();
-                    cmd.snapshots = snapshotTOs;
+                    cmd.snapshots = p.snapshotTOs;
                     callKvmHost(dstHostUuid, p.volume.getPrimaryStorageUuid(), REBASE_SNAPSHOT_BACKING_FILES_PATH, cmd, AgentResponse.class, new ReturnValueCompletion<AgentResponse>(trigger) {
                         @Override
                         public void success(AgentResponse returnValue) {
@@ -1106,7 +1251,7 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                 @Override
                 public void run(final FlowTrigger trigger, Map data) {
                     List<SnapshotTO> s = new ArrayList<SnapshotTO>();
-                    s.addAll(snapshotTOs);
+                    s.addAll(p.snapshotTOs);
 
                     // the volume links to the latest snapshot
                     SnapshotTO to = new SnapshotTO();
@@ -1132,62 +1277,6 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
             });
         }
 
-        for (final VolumeInventory vol : volumeNoSnapshots) {
-            flows.add(new Flow() {
-                String __name__ = String.format("create-no-snapshot-volume-%s-on-dst-host", vol.getUuid());
-
-                boolean s = false;
-
-                @Override
-                public void run(final FlowTrigger trigger, Map data) {
-                    LocalStorageCreateEmptyVolumeMsg msg = new LocalStorageCreateEmptyVolumeMsg();
-                    msg.setHostUuid(dstHostUuid);
-                    msg.setVolume(vol);
-
-                    if (VolumeType.Root.toString().equals(vol.getType())) {
-                        msg.setBackingFile(image.path);
-                    }
-
-                    msg.setPrimaryStorageUuid(vol.getPrimaryStorageUuid());
-                    bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, vol.getPrimaryStorageUuid());
-                    bus.send(msg, new CloudBusCallBack(trigger) {
-                        @Override
-                        public void run(MessageReply reply) {
-                            if (!reply.isSuccess()) {
-                                trigger.fail(reply.getError());
-                            } else {
-                                s = true;
-                                trigger.next();
-                            }
-                        }
-                    });
-                }
-
-                @Override
-                public void rollback(FlowRollback trigger, Map data) {
-                    if (s) {
-                        LocalStorageDirectlyDeleteBitsMsg msg = new LocalStorageDirectlyDeleteBitsMsg();
-                        msg.setHostUuid(dstHostUuid);
-                        msg.setPath(vol.getInstallPath());
-                        msg.setPrimaryStorageUuid(vol.getPrimaryStorageUuid());
-                        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, vol.getPrimaryStorageUuid());
-                        bus.send(msg, new CloudBusCallBack() {
-                            @Override
-                            public void run(MessageReply r) {
-                                if (!r.isSuccess()) {
-                                    //TODO
-                                    logger.warn(String.format("failed to delete %s on the local primary storage[uuid:%s], host[uuid:%s], %s",
-                                            vol.getInstallPath(), vol.getPrimaryStorageUuid(), dstHostUuid, r.getError()));
-                                }
-                            }
-                        });
-                    }
-
-                    trigger.rollback();
-                }
-            });
-        }
-
         return flows;
     }
 
@@ -0,0 +1,115 @@
+package org.zstack.storage.primary.local;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * progress of copying the snapshot files and the backing file of a vm from one host to another on local storage.
+ *
+ * Files found already copied and verified on the destination host, e.g. by an interrupted migration, are counted
+ * as resumed and don't count in the throughput.
+ */
+public class LocalStorageMigrationProgress {
+    private String vmInstanceUuid;
+    private String srcHostUuid;
+    private String dstHostUuid;
+    private int totalFiles;
+    private long totalBytes;
+    private AtomicInteger copiedFiles = new AtomicInteger();
+    private AtomicInteger resumedFiles = new AtomicInteger();
+    private AtomicLong copiedBytes = new AtomicLong();
+    private AtomicLong resumedBytes = new AtomicLong();
+    private long startTime = System.currentTimeMillis();
+
+    public LocalStorageMigrationProgress(String vmInstanceUuid, String srcHostUuid, String dstHostUuid) {
+        this.vmInstanceUuid = vmInstanceUuid;
+        this.srcHostUuid = srcHostUuid;
+        this.dstHostUuid = dstHostUuid;
+    }
+
+    void addFile(long size) {
+        totalFiles ++;
+        totalBytes += size;
+    }
+
+    void fileCopied(long size) {
+        copiedFiles.incrementAndGet();
+        copiedBytes.addAndGet(size);
+    }
+
+    void fileResumed(long size) {
+        resumedFiles.incrementAndGet();
+        resumedBytes.addAndGet(size);
+    }
+
+    public String getVmInstanceUuid() {
+        return vmInstanceUuid;
+    }
+
+    public String getSrcHostUuid() {
+        return srcHostUuid;
+    }
+
+    public String getDstHostUuid() {
+        return dstHostUuid;
+    }
+
+    public int getTotalFiles() {
+        return totalFiles;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getCopiedFiles() {
+        return copiedFiles.get();
+    }
+
+    public int getResumedFiles() {
+        return resumedFiles.get();
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    public long getResumedBytes() {
+        return resumedBytes.get();
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return bytes copied per second
+     */
+    public long getThroughput() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed <= 0 ? 0 : copiedBytes.get() * 1000 / elapsed;
+    }
+
+    /**
+     * @return seconds to copy the rest at the current throughput, -1 if not known yet
+     */
+    public long getEta() {
+        long throughput = getThroughput();
+        if (throughput == 0) {
+            return -1;
+        }
+
+        long left = totalBytes - copiedBytes.get() - resumedBytes.get();
+        return Math.max(left, 0) / throughput;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[vm:%s, src host:%s, dst host:%s] files: %s/%s copied, %s resumed; bytes: %s/%s copied, %s resumed;" +
+                        " throughput: %s bytes/s, elapsed: %ss, ETA: %ss",
+                vmInstanceUuid, srcHostUuid, dstHostUuid, copiedFiles.get(), totalFiles, resumedFiles.get(),
+                copiedBytes.get(), totalBytes, resumedBytes.get(), getThroughput(),
+                TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime), getEta());
+    }
+}
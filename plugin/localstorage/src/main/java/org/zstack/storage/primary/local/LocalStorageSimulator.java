@@ -23,6 +23,7 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.thread.AsyncThread;
 import org.zstack.header.host.HostVO;
 import org.zstack.header.host.HostVO_;
 import org.zstack.header.rest.RESTConstant;
@@ -33,6 +34,8 @@ import org.zstack.utils.function.Function;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by frank on 7/1/2015.
  */
@@ -109,6 +112,31 @@ public class LocalStorageSimulator {
     @RequestMapping(value=LocalStorageKvmMigrateVmFlow.COPY_TO_REMOTE_BITS_PATH, method= RequestMethod.POST)
     public @ResponseBody
     String copyBitsFromRemote(HttpEntity<String> entity) {
+        if (config.copyBitsFromRemoteDelay > 0) {
+            int copying = config.copyingBits.incrementAndGet();
+            synchronized (config) {
+                config.maxCopyingBits = Math.max(config.maxCopyingBits, copying);
+            }
+            copyBitsFromRemoteLater(entity);
+        } else {
+            doCopyBitsFromRemote(entity);
+        }
+        return null;
+    }
+
+    @AsyncThread
+    private void copyBitsFromRemoteLater(HttpEntity<String> entity) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(config.copyBitsFromRemoteDelay);
+        } catch (InterruptedException e) {
+            logger.warn(e.getMessage(), e);
+        }
+
+        config.copyingBits.decrementAndGet();
+        doCopyBitsFromRemote(entity);
+    }
+
+    private void doCopyBitsFromRemote(HttpEntity<String> entity) {
         CopyBitsFromRemoteCmd cmd = JSONObjectUtil.toObject(entity.getBody(), CopyBitsFromRemoteCmd.class);
         AgentResponse rsp = new AgentResponse();
         if (config.copyBitsFromRemoteSuccess) {
@@ -118,7 +146,7 @@ public class LocalStorageSimulator {
             rsp.setSuccess(false);
         }
         reply(entity, rsp);
-        return null;}
+    }
 
     @RequestMapping(value=LocalStorageKvmMigrateVmFlow.REBASE_ROOT_VOLUME_TO_BACKING_FILE_PATH, method= RequestMethod.POST)
     public @ResponseBody
@@ -8,9 +8,11 @@ import org.zstack.storage.primary.local.LocalStorageKvmSftpBackupStorageMediator
 import org.zstack.storage.primary.local.LocalStorageKvmSftpBackupStorageMediatorImpl.SftpUploadBitsCmd;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by frank on 7/1/2015.
@@ -24,7 +26,7 @@ public class LocalStorageSimulatorConfig {
     public Map<String, Capacity> capacityMap = new HashMap<String, Capacity>();
     public List<InitCmd> initCmdList = new ArrayList<InitCmd>();
     public List<GetPhysicalCapacityCmd> getPhysicalCapacityCmds = new ArrayList<GetPhysicalCapacityCmd>();
-    public List<CreateEmptyVolumeCmd> createEmptyVolumeCmds = new ArrayList<CreateEmptyVolumeCmd>();
+    public List<CreateEmptyVolumeCmd> createEmptyVolumeCmds = Collections.synchronizedList(new ArrayList<CreateEmptyVolumeCmd>());
     public List<CreateVolumeFromCacheCmd> createVolumeFromCacheCmds = new ArrayList<CreateVolumeFromCacheCmd>();
     public List<DeleteBitsCmd> deleteBitsCmds = new ArrayList<DeleteBitsCmd>();
     public List<SftpUploadBitsCmd> uploadBitsCmds = new ArrayList<SftpUploadBitsCmd>();
@@ -38,13 +40,17 @@ public class LocalStorageSimulatorConfig {
     public List<RebaseRootVolumeToBackingFileCmd> rebaseRootVolumeToBackingFileCmds = new ArrayList<RebaseRootVolumeToBackingFileCmd>();
     public List<RebaseSnapshotBackingFilesCmd> rebaseSnapshotBackingFilesCmds = new ArrayList<RebaseSnapshotBackingFilesCmd>();
     public List<VerifySnapshotChainCmd> verifySnapshotChainCmds = new ArrayList<VerifySnapshotChainCmd>();
-    public List<CopyBitsFromRemoteCmd> copyBitsFromRemoteCmds = new ArrayList<CopyBitsFromRemoteCmd>();
+    public List<CopyBitsFromRemoteCmd> copyBitsFromRemoteCmds = Collections.synchronizedList(new ArrayList<CopyBitsFromRemoteCmd>());
     public List<GetMd5Cmd> getMd5Cmds = new ArrayList<GetMd5Cmd>();
-    public List<CheckMd5sumCmd> checkMd5sumCmds = new ArrayList<CheckMd5sumCmd>();
+    public List<CheckMd5sumCmd> checkMd5sumCmds = Collections.synchronizedList(new ArrayList<CheckMd5sumCmd>());
     public List<GetBackingFileCmd> getBackingFileCmds = new ArrayList<GetBackingFileCmd>();
     public volatile String backingFilePath;
     public volatile Long backingFileSize;
     public volatile boolean checkMd5Success = true;
     public volatile boolean checkBitsSuccess = true;
     public volatile boolean copyBitsFromRemoteSuccess = true;
+    // milliseconds a copy takes, the copy is replied asynchronously like the real agent does if it's set
+    public volatile long copyBitsFromRemoteDelay;
+    public AtomicInteger copyingBits = new AtomicInteger();
+    public volatile int maxCopyingBits;
 }
@@ -639,17 +639,29 @@ public class NfsPrimaryStorage extends PrimaryStorageBase {
         });
     }
 
-    private void handle(PrimaryStorageRemoveCachedImageMsg msg) {
-        if (self.getAttachedClusterRefs().isEmpty()) {
-            PrimaryStorageRemoveCachedImageReply reply = new PrimaryStorageRemoveCachedImageReply();
-            errf.stringToOperationError(String.format("primary storage[uuid:%s] doesn't attach to any cluster", self.getUuid()));
+    private void handle(final PrimaryStorageRemoveCachedImageMsg msg) {
+        final PrimaryStorageRemoveCachedImageReply reply = new PrimaryStorageRemoveCachedImageReply();
+        NfsPrimaryStorageBackend bkd = getUsableBackend();
+        if (bkd == null) {
+            reply.setError(errf.stringToOperationError(
+                    String.format("the NFS primary storage[uuid:%s] is not attached to any cluster having a connected host", self.getUuid())
+            ));
             bus.reply(msg, reply);
             return;
         }
-        
-        PrimaryStorageClusterRefVO ref = self.getAttachedClusterRefs().iterator().next();
-        ClusterVO cluster = dbf.findByUuid(ref.getClusterUuid(), ClusterVO.class);
-        getBackend(HypervisorType.valueOf(cluster.getHypervisorType())).deleteImageCache(msg.getInventory());
+
+        bkd.delete(getSelfInventory(), msg.getInventory().getInstallUrl(), new Completion(msg) {
+            @Override
+            public void success() {
+                bus.reply(msg, reply);
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                reply.setError(errorCode);
+                bus.reply(msg, reply);
+            }
+        });
     }
 
     @Transactional(readOnly = true)
@@ -52,6 +52,7 @@ public class NfsPrimaryStorageFactory implements NfsPrimaryStorageManager, Prima
     static {
         type.setSupportHeartbeatFile(true);
         type.setSupportPingStorageGateway(true);
+        type.setSupportRemovingCachedImage(true);
     }
 
 	@Override
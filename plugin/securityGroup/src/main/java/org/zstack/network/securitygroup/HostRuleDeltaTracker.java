@@ -0,0 +1,150 @@
+package org.zstack.network.securitygroup;
+
+import java.util.*;
+
+/**
+ * remembers the rules this management node last applied to each host, and turns a HostRuleTO carrying
+ * complete chains into one carrying only the rules added to and deleted from each chain.
+ *
+ * Every push gets a new sequence number. A delta push also carries the sequence number the host had after the
+ * last push known here; if something else(another management node, a host reboot) changed the rules since then,
+ * the host refuses it and the caller must refresh the whole host, which restarts the tracking.
+ */
+class HostRuleDeltaTracker {
+    private static class Chain {
+        String ingressDefaultPolicy;
+        String egressDefaultPolicy;
+        Map<String, RuleTO> rules = new HashMap<String, RuleTO>();
+
+        Chain(SecurityGroupRuleTO sgto) {
+            ingressDefaultPolicy = sgto.getIngressDefaultPolicy();
+            egressDefaultPolicy = sgto.getEgressDefaultPolicy();
+            for (RuleTO r : sgto.getRules()) {
+                rules.put(r.toFullString(), r);
+            }
+        }
+
+        boolean isSamePolicy(SecurityGroupRuleTO sgto) {
+            return ingressDefaultPolicy.equals(sgto.getIngressDefaultPolicy()) && egressDefaultPolicy.equals(sgto.getEgressDefaultPolicy());
+        }
+    }
+
+    private static class HostRules {
+        long sequenceNumber;
+        Map<String, Chain> chains = new HashMap<String, Chain>();
+    }
+
+    private final Map<String, HostRules> hosts = new HashMap<String, HostRules>();
+
+    private void refresh(HostRuleTO hto, long sequenceNumber) {
+        HostRules hr = new HostRules();
+        hr.sequenceNumber = sequenceNumber;
+        for (SecurityGroupRuleTO sgto : hto.getRules()) {
+            if (SecurityGroupRuleTO.ACTION_CODE_APPLY_RULE.equals(sgto.getActionCode())) {
+                hr.chains.put(sgto.getVmNicInternalName(), new Chain(sgto));
+            }
+        }
+        hosts.put(hto.getHostUuid(), hr);
+
+        hto.setSequenceNumber(sequenceNumber);
+        hto.setBaseSequenceNumber(null);
+    }
+
+    private SecurityGroupRuleTO makeDelta(SecurityGroupRuleTO sgto, Chain old) {
+        Chain now = new Chain(sgto);
+        if (!old.isSamePolicy(sgto)) {
+            // let the chain be rebuilt
+            return sgto;
+        }
+
+        List<RuleTO> toAdd = new ArrayList<RuleTO>();
+        for (Map.Entry<String, RuleTO> e : now.rules.entrySet()) {
+            if (!old.rules.containsKey(e.getKey())) {
+                toAdd.add(e.getValue());
+            }
+        }
+        List<RuleTO> toDelete = new ArrayList<RuleTO>();
+        for (Map.Entry<String, RuleTO> e : old.rules.entrySet()) {
+            if (!now.rules.containsKey(e.getKey())) {
+                toDelete.add(e.getValue());
+            }
+        }
+
+        if (toAdd.isEmpty() && toDelete.isEmpty()) {
+            return null;
+        }
+
+        SecurityGroupRuleTO delta = new SecurityGroupRuleTO();
+        delta.setActionCode(SecurityGroupRuleTO.ACTION_CODE_APPLY_DELTA);
+        delta.setVmNicUuid(sgto.getVmNicUuid());
+        delta.setVmNicInternalName(sgto.getVmNicInternalName());
+        delta.setVmNicMac(sgto.getVmNicMac());
+        delta.setVmNicIp(sgto.getVmNicIp());
+        delta.setIngressDefaultPolicy(sgto.getIngressDefaultPolicy());
+        delta.setEgressDefaultPolicy(sgto.getEgressDefaultPolicy());
+        delta.setRulesToAdd(toAdd);
+        delta.setRulesToDelete(toDelete);
+        return delta;
+    }
+
+    /**
+     * @return the HostRuleTO to push stamped with sequence numbers, or null if nothing changes on the host
+     */
+    synchronized HostRuleTO track(HostRuleTO hto, long sequenceNumber) {
+        if (hto.isRefreshHost()) {
+            refresh(hto, sequenceNumber);
+            return hto;
+        }
+
+        HostRules hr = hosts.get(hto.getHostUuid());
+        // the host must still have what we know of it, even if only complete chains are pushed; otherwise
+        // the chains we know would be taken as correct from the new sequence number on
+        Long base = hr == null ? null : hr.sequenceNumber;
+        if (hr == null) {
+            // nothing known about the host, only the chains pushed from now on are tracked
+            hr = new HostRules();
+            hosts.put(hto.getHostUuid(), hr);
+        }
+
+        List<SecurityGroupRuleTO> toPush = new ArrayList<SecurityGroupRuleTO>();
+        for (SecurityGroupRuleTO sgto : hto.getRules()) {
+            String name = sgto.getVmNicInternalName();
+            if (SecurityGroupRuleTO.ACTION_CODE_DELETE_CHAIN.equals(sgto.getActionCode())) {
+                hr.chains.remove(name);
+                toPush.add(sgto);
+                continue;
+            }
+
+            Chain old = hr.chains.get(name);
+            hr.chains.put(name, new Chain(sgto));
+            if (old == null) {
+                toPush.add(sgto);
+                continue;
+            }
+
+            SecurityGroupRuleTO delta = makeDelta(sgto, old);
+            if (delta == null) {
+                continue;
+            }
+
+            toPush.add(delta);
+        }
+
+        if (toPush.isEmpty()) {
+            return null;
+        }
+
+        HostRuleTO ret = new HostRuleTO();
+        ret.setHostUuid(hto.getHostUuid());
+        ret.setHypervisorType(hto.getHypervisorType());
+        ret.setRules(toPush);
+        ret.setBaseSequenceNumber(base);
+        ret.setSequenceNumber(sequenceNumber);
+        hr.sequenceNumber = sequenceNumber;
+        return ret;
+    }
+
+    synchronized void forget(String hostUuid) {
+        hosts.remove(hostUuid);
+    }
+}
@@ -8,6 +8,27 @@ public class HostRuleTO {
     private String hostUuid;
     private String hypervisorType;
     private boolean refreshHost;
+    private Long sequenceNumber;
+    private Long baseSequenceNumber;
+
+    /**
+     * the version of rules on the host after applying, null if rules are not versioned
+     */
+    public Long getSequenceNumber() {
+        return sequenceNumber;
+    }
+    public void setSequenceNumber(Long sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+    /**
+     * the version of rules the host must have for applying, null if the host doesn't need to check
+     */
+    public Long getBaseSequenceNumber() {
+        return baseSequenceNumber;
+    }
+    public void setBaseSequenceNumber(Long baseSequenceNumber) {
+        this.baseSequenceNumber = baseSequenceNumber;
+    }
     
     public List<SecurityGroupRuleTO> getRules() {
         if (rules == null) {
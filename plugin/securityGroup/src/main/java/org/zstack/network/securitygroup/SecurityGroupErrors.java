@@ -3,7 +3,8 @@ package org.zstack.network.securitygroup;
 /**
  */
 public enum  SecurityGroupErrors {
-    ADD_NIC_ERROR(1000);
+    ADD_NIC_ERROR(1000),
+    RULE_SEQUENCE_NUMBER_MISMATCH(1001);
 
     private String code;
 
@@ -83,6 +83,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
     private int failureHostWorkerInterval;
     private int failureHostEachTimeTake;
     private Future<Void> failureHostCopingThread;
+    private HostRuleDeltaTracker deltaTracker = new HostRuleDeltaTracker();
 
     @Override
     public List<Quota> reportQuota() {
@@ -151,6 +152,8 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         private List<String> securityGroupUuids;
         private List<String> hostUuids;
         private List<VmInstanceState> vmStates;
+        // nics in the same security group and l3 network get the same rules, calculate them once
+        private Map<String, List<RuleTO>> ruleTOCache = new HashMap<String, List<RuleTO>>();
 
         List<HostRuleTO> calculate() {
             if (vmNicUuids != null) {
@@ -244,39 +247,13 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             List<RuleTO> ret = new ArrayList<RuleTO>();
 
             for (String sgUuid : sgUuids) {
-                String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid = :sgUuid";
-                TypedQuery<SecurityGroupRuleVO> q = dbf.getEntityManager().createQuery(sql, SecurityGroupRuleVO.class);
-                q.setParameter("sgUuid", sgUuid);
-                List<SecurityGroupRuleVO> rules = q.getResultList();
-                if (rules.isEmpty()) {
-                    continue;
-                }
-
-                sql = "select nic.ip from VmNicVO nic, VmNicSecurityGroupRefVO ref where ref.vmNicUuid = nic.uuid and ref.securityGroupUuid = :sgUuid and nic.l3NetworkUuid = :l3Uuid";
-                TypedQuery<String> internalIpQuery = dbf.getEntityManager().createQuery(sql, String.class);
-                internalIpQuery.setParameter("sgUuid", sgUuid);
-                internalIpQuery.setParameter("l3Uuid", l3Uuid);
-                List<String> internalIps = internalIpQuery.getResultList();
-                List<Pair<String, String>> ipRanges = NetworkUtils.findConsecutiveIpRange(internalIps);
-                List<String> internalIpRanges = new ArrayList<String>(ipRanges.size());
-                for (Pair<String, String> p : ipRanges) {
-                    if (p.first().equals(p.second())) {
-                        internalIpRanges.add(p.first());
-                    } else {
-                        internalIpRanges.add(String.format("%s-%s", p.first(), p.second()));
-                    }
-                }
-
-                for (SecurityGroupRuleVO r : rules) {
-                    RuleTO rto = new RuleTO();
-                    rto.setAllowedCidr(r.getAllowedCidr());
-                    rto.setEndPort(r.getEndPort());
-                    rto.setProtocol(r.getProtocol().toString());
-                    rto.setStartPort(r.getStartPort());
-                    rto.setType(r.getType().toString());
-                    rto.setAllowedInternalIpRange(internalIpRanges);
-                    ret.add(rto);
+                String key = String.format("%s-%s", sgUuid, l3Uuid);
+                List<RuleTO> cached = ruleTOCache.get(key);
+                if (cached == null) {
+                    cached = calculateRuleTOBySecurityGroup(sgUuid, l3Uuid);
+                    ruleTOCache.put(key, cached);
                 }
+                ret.addAll(cached);
             }
 
             if (logger.isTraceEnabled()) {
@@ -291,6 +268,45 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             return ret;
         }
 
+        private List<RuleTO> calculateRuleTOBySecurityGroup(String sgUuid, String l3Uuid) {
+            List<RuleTO> ret = new ArrayList<RuleTO>();
+            String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid = :sgUuid";
+            TypedQuery<SecurityGroupRuleVO> q = dbf.getEntityManager().createQuery(sql, SecurityGroupRuleVO.class);
+            q.setParameter("sgUuid", sgUuid);
+            List<SecurityGroupRuleVO> rules = q.getResultList();
+            if (rules.isEmpty()) {
+                return ret;
+            }
+
+            sql = "select nic.ip from VmNicVO nic, VmNicSecurityGroupRefVO ref where ref.vmNicUuid = nic.uuid and ref.securityGroupUuid = :sgUuid and nic.l3NetworkUuid = :l3Uuid";
+            TypedQuery<String> internalIpQuery = dbf.getEntityManager().createQuery(sql, String.class);
+            internalIpQuery.setParameter("sgUuid", sgUuid);
+            internalIpQuery.setParameter("l3Uuid", l3Uuid);
+            List<String> internalIps = internalIpQuery.getResultList();
+            List<Pair<String, String>> ipRanges = NetworkUtils.findConsecutiveIpRange(internalIps);
+            List<String> internalIpRanges = new ArrayList<String>(ipRanges.size());
+            for (Pair<String, String> p : ipRanges) {
+                if (p.first().equals(p.second())) {
+                    internalIpRanges.add(p.first());
+                } else {
+                    internalIpRanges.add(String.format("%s-%s", p.first(), p.second()));
+                }
+            }
+
+            for (SecurityGroupRuleVO r : rules) {
+                RuleTO rto = new RuleTO();
+                rto.setAllowedCidr(r.getAllowedCidr());
+                rto.setEndPort(r.getEndPort());
+                rto.setProtocol(r.getProtocol().toString());
+                rto.setStartPort(r.getStartPort());
+                rto.setType(r.getType().toString());
+                rto.setAllowedInternalIpRange(internalIpRanges);
+                ret.add(rto);
+            }
+
+            return ret;
+        }
+
         @Transactional(readOnly = true)
         Collection<HostRuleTO> createRulePlaceHolder(List<String> nicUuids) {
             String sql = "select nic.uuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.mac, nic.ip from VmInstanceVO vm, VmNicVO nic where nic.vmInstanceUuid = vm.uuid and vm.hostUuid is not null and nic.uuid in (:nicUuids) group by nic.uuid";
@@ -849,8 +865,31 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         bus.publish(evt);
     }
 
+    private HostRuleTO prepareRules(HostRuleTO hto) {
+        if (!SecurityGroupGlobalConfig.RULE_DELTA_MODE.value(Boolean.class)) {
+            // rules pushed without versions make what the tracker knows useless
+            deltaTracker.forget(hto.getHostUuid());
+            return hto;
+        }
+
+        return deltaTracker.track(hto, dbf.generateSequenceNumber(SecurityGroupSequenceNumberVO.class));
+    }
+
+    private void refreshRulesOnHost(String hostUuid) {
+        RefreshSecurityGroupRulesOnHostMsg msg = new RefreshSecurityGroupRulesOnHostMsg();
+        msg.setHostUuid(hostUuid);
+        bus.makeLocalServiceId(msg, SecurityGroupConstant.SERVICE_ID);
+        bus.send(msg);
+    }
+
     private void applyRules(Collection<HostRuleTO> htos) {
-        for (final HostRuleTO h : htos) {
+        for (HostRuleTO hto : htos) {
+            final HostRuleTO h = prepareRules(hto);
+            if (h == null) {
+                logger.debug(String.format("no security rules changed on host[uuid:%s], skip applying", hto.getHostUuid()));
+                continue;
+            }
+
             SecurityGroupHypervisorBackend bkend = hypervisorBackends.get(h.getHypervisorType());
             bkend.applyRules(h, new Completion() {
                 private void copeWithFailureHost() {
@@ -864,6 +903,14 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
 
                 @Override
                 public void fail(ErrorCode errorCode) {
+                    deltaTracker.forget(h.getHostUuid());
+
+                    if (SecurityGroupErrors.RULE_SEQUENCE_NUMBER_MISMATCH.toString().equals(errorCode.getCode())) {
+                        logger.debug(String.format("security rules on host[uuid:%s] have been changed by others, refresh all rules on it", h.getHostUuid()));
+                        refreshRulesOnHost(h.getHostUuid());
+                        return;
+                    }
+
                     logger.debug(String.format("failed to apply security rules on host[uuid:%s], because %s, will try it later", h.getHostUuid(), errorCode));
                     copeWithFailureHost();
                 }
@@ -1128,8 +1175,8 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                 RuleCalculator cal = new RuleCalculator();
                 cal.hostUuids = Arrays.asList(vo.getHostUuid());
                 List<HostRuleTO> htos = cal.calculate();
-                final HostRuleTO hto = htos.get(0);
-                hto.setRefreshHost(true);
+                htos.get(0).setRefreshHost(true);
+                final HostRuleTO hto = prepareRules(htos.get(0));
                 SecurityGroupHypervisorBackend bd = getHypervisorBackend(hto.getHypervisorType());
                 bd.applyRules(hto, new Completion() {
                     @Override
@@ -1140,6 +1187,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
 
                     @Override
                     public void fail(ErrorCode errorCode) {
+                        deltaTracker.forget(hto.getHostUuid());
                         logger.debug(String.format("failed to re-apply security group rules to host[uuid:%s], because %s, try it later", hto.getHostUuid(), errorCode));
                         copeWithFailureHost(vo);
                     }
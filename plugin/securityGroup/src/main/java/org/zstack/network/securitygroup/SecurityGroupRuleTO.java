@@ -6,6 +6,8 @@ import java.util.List;
 public class SecurityGroupRuleTO {
     public static final String ACTION_CODE_APPLY_RULE = "applyRule";
     public static final String ACTION_CODE_DELETE_CHAIN = "deleteChain";
+    // only rulesToAdd and rulesToDelete are sent, rules is empty
+    public static final String ACTION_CODE_APPLY_DELTA = "applyDelta";
 
     private String vmNicInternalName;
     private List<RuleTO> rules;
@@ -15,6 +17,24 @@ public class SecurityGroupRuleTO {
     private String vmNicMac;
     private String vmNicIp;
     private String actionCode = ACTION_CODE_APPLY_RULE;
+    private List<RuleTO> rulesToAdd;
+    private List<RuleTO> rulesToDelete;
+
+    public List<RuleTO> getRulesToAdd() {
+        return rulesToAdd;
+    }
+
+    public void setRulesToAdd(List<RuleTO> rulesToAdd) {
+        this.rulesToAdd = rulesToAdd;
+    }
+
+    public List<RuleTO> getRulesToDelete() {
+        return rulesToDelete;
+    }
+
+    public void setRulesToDelete(List<RuleTO> rulesToDelete) {
+        this.rulesToDelete = rulesToDelete;
+    }
 
     public String getVmNicMac() {
         return vmNicMac;
@@ -85,7 +105,7 @@ public class SecurityGroupRuleTO {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append(String.format("\nvmNicInternalName: %s", vmNicInternalName));
-        for (RuleTO to : rules) {
+        for (RuleTO to : getRules()) {
             sb.append(String.format("\n%s", to.toFullString()));
         }
         return sb.toString();
@@ -38,12 +38,13 @@ import org.zstack.tag.TagManager;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.function.Function;
+import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.TypedQuery;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionDSL.list;
 
@@ -70,6 +71,24 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
     @Autowired
     private ApiTimeoutManager apiTimeoutManager;
 
+    /*
+     * the configs of load balancers pushed to virtual routers.
+     *
+     * A change of a load balancer sends only the listeners added, changed or removed since the last push in an
+     * UpdateLbCmd. The whole config is refreshed only if it's unknown, e.g. after the management node restarts, or
+     * the version the virtual router reports doesn't match the version recorded here. Virtual routers not reporting
+     * versions are always refreshed as a whole.
+     */
+    private static class LbConfig {
+        String vrUuid;
+        long version;
+        // listener uuid -> config
+        Map<String, LbTO> listeners = new HashMap<String, LbTO>();
+    }
+
+    private Map<String, LbConfig> lbConfigs = new ConcurrentHashMap<String, LbConfig>();
+    private AtomicLong lbConfigVersion = new AtomicLong(System.currentTimeMillis());
+
     @Transactional(readOnly = true)
     private VirtualRouterVmInventory findVirtualRouterVm(String lbUuid) {
         String sql = "select vr from VirtualRouterVmVO vr, VirtualRouterLoadBalancerRefVO ref where ref.virtualRouterVmUuid =" +
@@ -157,6 +176,8 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
 
     public static class RefreshLbCmd extends AgentCommand {
         List<LbTO> lbs;
+        // load balancer uuid -> version of its config after refreshing
+        Map<String, Long> versions;
 
         public List<LbTO> getLbs() {
             return lbs;
@@ -165,9 +186,82 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
         public void setLbs(List<LbTO> lbs) {
             this.lbs = lbs;
         }
+
+        public Map<String, Long> getVersions() {
+            return versions;
+        }
+
+        public void setVersions(Map<String, Long> versions) {
+            this.versions = versions;
+        }
     }
 
     public static class RefreshLbRsp extends AgentResponse {
+        // null if the virtual router doesn't version configs of load balancers
+        Map<String, Long> versions;
+
+        public Map<String, Long> getVersions() {
+            return versions;
+        }
+
+        public void setVersions(Map<String, Long> versions) {
+            this.versions = versions;
+        }
+    }
+
+    public static class UpdateLbCmd extends AgentCommand {
+        String lbUuid;
+        // listeners added or changed
+        List<LbTO> lbs;
+        // listeners removed
+        List<LbTO> deletedLbs;
+        // the version of the config after updating
+        long version;
+
+        public String getLbUuid() {
+            return lbUuid;
+        }
+
+        public void setLbUuid(String lbUuid) {
+            this.lbUuid = lbUuid;
+        }
+
+        public List<LbTO> getLbs() {
+            return lbs;
+        }
+
+        public void setLbs(List<LbTO> lbs) {
+            this.lbs = lbs;
+        }
+
+        public List<LbTO> getDeletedLbs() {
+            return deletedLbs;
+        }
+
+        public void setDeletedLbs(List<LbTO> deletedLbs) {
+            this.deletedLbs = deletedLbs;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public void setVersion(long version) {
+            this.version = version;
+        }
+    }
+
+    public static class UpdateLbRsp extends AgentResponse {
+        // the version of the config before updating
+        Long version;
+
+        public Long getVersion() {
+            return version;
+        }
+
+        public void setVersion(Long version) {
+            this.version = version;
+        }
     }
 
     public static class DeleteLbCmd extends AgentCommand {
@@ -187,6 +281,7 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
 
     public static final String REFRESH_LB_PATH = "/lb/refresh";
     public static final String DELETE_LB_PATH = "/lb/delete";
+    public static final String UPDATE_LB_PATH = "/lb/update";
 
     private List<LbTO> makeLbTOs(final LoadBalancerStruct struct) {
         SimpleQuery<VipVO> q = dbf.createQuery(VipVO.class);
@@ -229,13 +324,30 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
         });
     }
 
-    private void refresh(VirtualRouterVmInventory vr, LoadBalancerStruct struct, final Completion completion) {
+    private void recordLbConfig(String vrUuid, String lbUuid, List<LbTO> tos, long version, Map<String, Long> reportedVersions) {
+        if (reportedVersions == null) {
+            lbConfigs.remove(lbUuid);
+            return;
+        }
+
+        LbConfig config = new LbConfig();
+        config.vrUuid = vrUuid;
+        config.version = version;
+        for (LbTO to : tos) {
+            config.listeners.put(to.getListenerUuid(), to);
+        }
+        lbConfigs.put(lbUuid, config);
+    }
+
+    private void refreshAll(final VirtualRouterVmInventory vr, final String lbUuid, final List<LbTO> tos, final Completion completion) {
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
         msg.setVmInstanceUuid(vr.getUuid());
         msg.setPath(REFRESH_LB_PATH);
 
-        RefreshLbCmd cmd = new RefreshLbCmd();
-        cmd.lbs = makeLbTOs(struct);
+        final RefreshLbCmd cmd = new RefreshLbCmd();
+        cmd.lbs = tos;
+        cmd.versions = new HashMap<String, Long>();
+        cmd.versions.put(lbUuid, lbConfigVersion.incrementAndGet());
 
         msg.setCommand(cmd);
         msg.setCommandTimeout(apiTimeoutManager.getTimeout(cmd.getClass(), "5m"));
@@ -246,13 +358,96 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
                 if (reply.isSuccess()) {
                     RefreshLbRsp rsp = ((VirtualRouterAsyncHttpCallReply) reply).toResponse(RefreshLbRsp.class);
                     if (rsp.isSuccess()) {
+                        recordLbConfig(vr.getUuid(), lbUuid, tos, cmd.versions.get(lbUuid), rsp.versions);
                         completion.success();
                     } else {
+                        lbConfigs.remove(lbUuid);
                         completion.fail(errf.stringToOperationError(rsp.getError()));
                     }
                 } else {
+                    lbConfigs.remove(lbUuid);
+                    completion.fail(reply.getError());
+                }
+            }
+        });
+    }
+
+    private void refresh(final VirtualRouterVmInventory vr, LoadBalancerStruct struct, final Completion completion) {
+        final String lbUuid = struct.getLb().getUuid();
+        final List<LbTO> tos = makeLbTOs(struct);
+        final LbConfig config = lbConfigs.get(lbUuid);
+        if (config == null || !config.vrUuid.equals(vr.getUuid())) {
+            refreshAll(vr, lbUuid, tos, completion);
+            return;
+        }
+
+        final List<LbTO> changed = new ArrayList<LbTO>();
+        Set<String> listenerUuids = new HashSet<String>();
+        for (LbTO to : tos) {
+            listenerUuids.add(to.getListenerUuid());
+            LbTO old = config.listeners.get(to.getListenerUuid());
+            if (old == null || !JSONObjectUtil.toJsonString(old).equals(JSONObjectUtil.toJsonString(to))) {
+                changed.add(to);
+            }
+        }
+
+        final List<LbTO> deleted = new ArrayList<LbTO>();
+        for (LbTO to : config.listeners.values()) {
+            if (!listenerUuids.contains(to.getListenerUuid())) {
+                deleted.add(to);
+            }
+        }
+
+        if (changed.isEmpty() && deleted.isEmpty()) {
+            completion.success();
+            return;
+        }
+
+        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
+        msg.setVmInstanceUuid(vr.getUuid());
+        msg.setPath(UPDATE_LB_PATH);
+
+        final long expectedVersion = config.version;
+        final UpdateLbCmd cmd = new UpdateLbCmd();
+        cmd.lbUuid = lbUuid;
+        cmd.lbs = changed;
+        cmd.deletedLbs = deleted;
+        cmd.version = lbConfigVersion.incrementAndGet();
+
+        msg.setCommand(cmd);
+        msg.setCommandTimeout(apiTimeoutManager.getTimeout(cmd.getClass(), "5m"));
+        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
+        bus.send(msg, new CloudBusCallBack(completion) {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    lbConfigs.remove(lbUuid);
                     completion.fail(reply.getError());
+                    return;
                 }
+
+                UpdateLbRsp rsp = ((VirtualRouterAsyncHttpCallReply) reply).toResponse(UpdateLbRsp.class);
+                if (!rsp.isSuccess()) {
+                    lbConfigs.remove(lbUuid);
+                    completion.fail(errf.stringToOperationError(rsp.getError()));
+                    return;
+                }
+
+                if (rsp.version == null || rsp.version != expectedVersion) {
+                    logger.debug(String.format("the config of the load balancer[uuid:%s] on the virtual router[uuid:%s] is at version %s," +
+                            " expected %s; refresh it", lbUuid, vr.getUuid(), rsp.version, expectedVersion));
+                    refreshAll(vr, lbUuid, tos, completion);
+                    return;
+                }
+
+                for (LbTO to : changed) {
+                    config.listeners.put(to.getListenerUuid(), to);
+                }
+                for (LbTO to : deleted) {
+                    config.listeners.remove(to.getListenerUuid());
+                }
+                config.version = cmd.version;
+                completion.success();
             }
         });
     }
@@ -640,6 +835,8 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
 
     @Override
     public void destroyLoadBalancer(final LoadBalancerStruct struct, final Completion completion) {
+        lbConfigs.remove(struct.getLb().getUuid());
+
         FlowChain chain = FlowChainBuilder.newShareFlowChain();
         chain.setName(String.format("delete-lb-%s-from-vr", struct.getLb().getUuid()));
         chain.then(new ShareFlow() {
@@ -757,18 +954,24 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
             return;
         }
 
+        // an explicit refresh pushes the whole config
+        lbConfigs.remove(struct.getLb().getUuid());
         startVrIfNeededAndRefresh(vr, struct, completion);
     }
 
-    void syncOnStart(VirtualRouterVmInventory vr, List<LoadBalancerStruct> structs, final Completion completion) {
-        List<LbTO> tos = new ArrayList<LbTO>();
+    void syncOnStart(final VirtualRouterVmInventory vr, List<LoadBalancerStruct> structs, final Completion completion) {
+        final Map<String, List<LbTO>> lbTOs = new HashMap<String, List<LbTO>>();
+        final RefreshLbCmd cmd = new RefreshLbCmd();
+        cmd.lbs = new ArrayList<LbTO>();
+        cmd.versions = new HashMap<String, Long>();
         for (LoadBalancerStruct s : structs) {
-            tos.addAll(makeLbTOs(s));
+            List<LbTO> tos = makeLbTOs(s);
+            lbTOs.put(s.getLb().getUuid(), tos);
+            cmd.lbs.addAll(tos);
+            cmd.versions.put(s.getLb().getUuid(), lbConfigVersion.incrementAndGet());
+            lbConfigs.remove(s.getLb().getUuid());
         }
 
-        RefreshLbCmd cmd = new RefreshLbCmd();
-        cmd.lbs = tos;
-
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
         msg.setCommand(cmd);
         msg.setCommandTimeout(apiTimeoutManager.getTimeout(cmd.getClass(), "5m"));
@@ -784,6 +987,9 @@ public class VirtualRouterLoadBalancerBackend implements LoadBalancerBackend {
                     VirtualRouterAsyncHttpCallReply kr = reply.castReply();
                     RefreshLbRsp rsp = kr.toResponse(RefreshLbRsp.class);
                     if (rsp.isSuccess()) {
+                        for (Map.Entry<String, List<LbTO>> e : lbTOs.entrySet()) {
+                            recordLbConfig(vr.getUuid(), e.getKey(), e.getValue(), cmd.versions.get(e.getKey()), rsp.versions);
+                        }
                         completion.success();
                     } else {
                         completion.fail(errf.stringToOperationError(rsp.getError()));
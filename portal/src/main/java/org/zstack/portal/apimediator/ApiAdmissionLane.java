@@ -0,0 +1,142 @@
+package org.zstack.portal.apimediator;
+
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * admits API messages of a kind(e.g. queries) to api workers.
+ *
+ * At most parallelismDegree messages are processed at a time and at most queueSize messages wait, a message
+ * coming when the queue is full is rejected. Waiting messages are queued by their account and accounts are served
+ * in round robin, so an account sending a burst of messages delays its own messages rather than others'.
+ */
+class ApiAdmissionLane {
+    private static final CLogger logger = Utils.getLogger(ApiAdmissionLane.class);
+
+    private static class Entry {
+        Runnable runnable;
+        long queuedTime = System.currentTimeMillis();
+    }
+
+    private final String name;
+    private final int parallelismDegree;
+    private final int queueSize;
+    private final ThreadFacade thdf;
+
+    private final Map<String, Queue<Entry>> queues = new HashMap<String, Queue<Entry>>();
+    // accounts having messages waiting, in the order they are served
+    private final Queue<String> accounts = new LinkedList<String>();
+    private int waiting;
+    private int running;
+
+    private long admitted;
+    private long rejected;
+    private long totalWaitTime;
+    private long maxWaitTime;
+
+    ApiAdmissionLane(String name, int parallelismDegree, int queueSize, ThreadFacade thdf) {
+        this.name = name;
+        this.parallelismDegree = parallelismDegree;
+        this.queueSize = queueSize;
+        this.thdf = thdf;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    synchronized boolean submit(String account, Runnable runnable) {
+        if (waiting >= queueSize) {
+            rejected ++;
+            return false;
+        }
+
+        Queue<Entry> q = queues.get(account);
+        if (q == null) {
+            q = new LinkedList<Entry>();
+            queues.put(account, q);
+            accounts.add(account);
+        }
+
+        Entry e = new Entry();
+        e.runnable = runnable;
+        q.add(e);
+        waiting ++;
+
+        schedule();
+        return true;
+    }
+
+    private void schedule() {
+        while (running < parallelismDegree && waiting > 0) {
+            String account = accounts.poll();
+            Queue<Entry> q = queues.get(account);
+            Entry e = q.poll();
+            if (q.isEmpty()) {
+                queues.remove(account);
+            } else {
+                accounts.add(account);
+            }
+
+            waiting --;
+            running ++;
+
+            long waitTime = System.currentTimeMillis() - e.queuedTime;
+            admitted ++;
+            totalWaitTime += waitTime;
+            maxWaitTime = Math.max(maxWaitTime, waitTime);
+
+            run(e);
+        }
+    }
+
+    private synchronized void done() {
+        running --;
+        schedule();
+    }
+
+    private void run(final Entry e) {
+        thdf.submit(new Task<Void>() {
+            @Override
+            public String getName() {
+                return String.format("api-%s-lane", name);
+            }
+
+            @Override
+            public Void call() throws Exception {
+                try {
+                    e.runnable.run();
+                } catch (Throwable t) {
+                    logger.warn(String.format("unhandled exception in the %s lane", name), t);
+                } finally {
+                    done();
+                }
+                return null;
+            }
+        });
+    }
+
+    synchronized ApiLaneStatistic getStatistic() {
+        ApiLaneStatistic stat = new ApiLaneStatistic();
+        stat.setName(name);
+        stat.setParallelismDegree(parallelismDegree);
+        stat.setQueueSize(queueSize);
+        stat.setRunning(running);
+        stat.setWaiting(waiting);
+        stat.setAdmitted(admitted);
+        stat.setRejected(rejected);
+        stat.setTotalWaitTime(totalWaitTime);
+        stat.setMaxWaitTime(maxWaitTime);
+        return stat;
+    }
+}
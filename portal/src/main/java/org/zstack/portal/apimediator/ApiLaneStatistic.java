@@ -0,0 +1,99 @@
+package org.zstack.portal.apimediator;
+
+/**
+ * api messages admitted by a lane, and how long they waited in the queue, in milliseconds
+ */
+public class ApiLaneStatistic {
+    private String name;
+    private int parallelismDegree;
+    private int queueSize;
+    private int running;
+    private int waiting;
+    private long admitted;
+    private long rejected;
+    private long totalWaitTime;
+    private long maxWaitTime;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getParallelismDegree() {
+        return parallelismDegree;
+    }
+
+    public void setParallelismDegree(int parallelismDegree) {
+        this.parallelismDegree = parallelismDegree;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getRunning() {
+        return running;
+    }
+
+    public void setRunning(int running) {
+        this.running = running;
+    }
+
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public void setWaiting(int waiting) {
+        this.waiting = waiting;
+    }
+
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    public void setAdmitted(long admitted) {
+        this.admitted = admitted;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+
+    public long getTotalWaitTime() {
+        return totalWaitTime;
+    }
+
+    public void setTotalWaitTime(long totalWaitTime) {
+        this.totalWaitTime = totalWaitTime;
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    public void setMaxWaitTime(long maxWaitTime) {
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    public long getAverageWaitTime() {
+        return admitted == 0 ? 0 : totalWaitTime / admitted;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("API lane[%s]: parallelism degree: %s, queue size: %s, running: %s, waiting: %s, admitted: %s, rejected: %s," +
+                " average wait time: %s ms, max wait time: %s ms", name, parallelismDegree, queueSize, running, waiting, admitted, rejected,
+                getAverageWaitTime(), maxWaitTime);
+    }
+}
@@ -2,5 +2,8 @@ package org.zstack.portal.apimediator;
 
 import org.zstack.header.Service;
 
+import java.util.List;
+
 public interface ApiMediator extends Service {
+    List<ApiLaneStatistic> getLaneStatistics();
 }
@@ -8,7 +8,6 @@ import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
-import org.zstack.core.thread.SyncTask;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.apimediator.*;
@@ -16,18 +15,19 @@ import org.zstack.header.errorcode.SysErrors;
 import org.zstack.header.managementnode.*;
 import org.zstack.header.message.APICreateMessage;
 import org.zstack.header.message.APIMessage;
+import org.zstack.header.message.APISyncCallMessage;
 import org.zstack.header.message.Message;
 import org.zstack.header.message.MessageReply;
+import org.zstack.header.search.APIGetMessage;
+import org.zstack.header.search.APISearchMessage;
 import org.zstack.utils.StringDSL;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.Query;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.map;
@@ -48,6 +48,21 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
 
     private List<String> serviceConfigFolders;
     private int apiWorkerNum = 5;
+    private int apiQueueSize = 1000;
+    private int queryWorkerNum = 5;
+    private int queryQueueSize = 1000;
+    private int longJobWorkerNum = 2;
+    private int longJobQueueSize = 1000;
+    private Set<String> longJobApis = new HashSet<String>();
+
+    /*
+     * API messages are admitted by three lanes, so slow interceptors of ones in a lane don't block others:
+     * queries and other read-only calls, long jobs listed in longJobApis, and the rest
+     */
+    private ApiAdmissionLane queryLane;
+    private ApiAdmissionLane apiLane;
+    private ApiAdmissionLane longJobLane;
+    private Map<Class, ApiAdmissionLane> laneCache = new ConcurrentHashMap<Class, ApiAdmissionLane>();
 
     private void dispatchMessage(APIMessage msg) {
         ApiMessageDescriptor desc = processor.getApiMessageDescriptor(msg);
@@ -86,24 +101,47 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
     }
 
 
-    @Override
-    public void handleMessage(final Message msg) {
-        thdf.syncSubmit(new SyncTask<Object>() {
-            @Override
-            public String getSyncSignature() {
-                return "api.worker";
+    private boolean isLongJob(Class clz) {
+        while (clz != null && clz != APIMessage.class) {
+            if (longJobApis.contains(clz.getSimpleName())) {
+                return true;
             }
+            clz = clz.getSuperclass();
+        }
+        return false;
+    }
 
-            @Override
-            public int getSyncLevel() {
-                return apiWorkerNum;
-            }
+    private ApiAdmissionLane getLane(Message msg) {
+        ApiAdmissionLane lane = laneCache.get(msg.getClass());
+        if (lane != null) {
+            return lane;
+        }
 
-            @Override
-            public String getName() {
-                return "api.worker";
-            }
+        if (msg instanceof APISyncCallMessage || msg instanceof APIGetMessage || msg instanceof APISearchMessage) {
+            lane = queryLane;
+        } else if (isLongJob(msg.getClass())) {
+            lane = longJobLane;
+        } else {
+            lane = apiLane;
+        }
+        laneCache.put(msg.getClass(), lane);
+        return lane;
+    }
+
+    // the session is not validated yet, the account uuid is only known if the caller filled it
+    private String getAccount(Message msg) {
+        if (!(msg instanceof APIMessage) || ((APIMessage) msg).getSession() == null) {
+            return "";
+        }
 
+        APIMessage amsg = (APIMessage) msg;
+        return amsg.getSession().getAccountUuid() != null ? amsg.getSession().getAccountUuid() : String.valueOf(amsg.getSession().getUuid());
+    }
+
+    @Override
+    public void handleMessage(final Message msg) {
+        ApiAdmissionLane lane = getLane(msg);
+        boolean admitted = lane.submit(getAccount(msg), new Runnable() {
             @MessageSafe
             public void handleMessage(Message msg) {
                 if (msg instanceof APIIsReadyToGoMsg) {
@@ -116,11 +154,26 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
             }
 
             @Override
-            public Object call() throws Exception {
+            public void run() {
                 handleMessage(msg);
-                return null;
             }
         });
+
+        if (!admitted) {
+            String err = String.format("%s API messages are waiting in the %s lane, the API[%s] is rejected, please try again later",
+                    lane.getStatistic().getWaiting(), lane.getName(), msg.getClass().getSimpleName());
+            logger.warn(err);
+            bus.replyErrorByMessageType(msg, errf.instantiateErrorCode(PortalErrors.API_QUEUE_FULL, err));
+        }
+    }
+
+    @Override
+    public List<ApiLaneStatistic> getLaneStatistics() {
+        List<ApiLaneStatistic> stats = new ArrayList<ApiLaneStatistic>();
+        stats.add(queryLane.getStatistic());
+        stats.add(apiLane.getStatistic());
+        stats.add(longJobLane.getStatistic());
+        return stats;
     }
 
     @Transactional(readOnly = true)
@@ -176,6 +229,9 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
         Map<String, Object> config = new HashMap<String, Object>();
         config.put("serviceConfigFolders", serviceConfigFolders);
         processor = new ApiMessageProcessorImpl(config);
+        queryLane = new ApiAdmissionLane("query", queryWorkerNum, queryQueueSize, thdf);
+        apiLane = new ApiAdmissionLane("api", apiWorkerNum, apiQueueSize, thdf);
+        longJobLane = new ApiAdmissionLane("longJob", longJobWorkerNum, longJobQueueSize, thdf);
         bus.registerService(this);
         return true;
     }
@@ -194,6 +250,36 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
         this.apiWorkerNum = apiWorkerNum;
     }
 
+    public void setApiQueueSize(int apiQueueSize) {
+        this.apiQueueSize = apiQueueSize;
+    }
+
+    public void setQueryWorkerNum(int queryWorkerNum) {
+        this.queryWorkerNum = queryWorkerNum;
+    }
+
+    public void setQueryQueueSize(int queryQueueSize) {
+        this.queryQueueSize = queryQueueSize;
+    }
+
+    public void setLongJobWorkerNum(int longJobWorkerNum) {
+        this.longJobWorkerNum = longJobWorkerNum;
+    }
+
+    public void setLongJobQueueSize(int longJobQueueSize) {
+        this.longJobQueueSize = longJobQueueSize;
+    }
+
+    // simple names of API classes separated by commas, subclasses of them are long jobs too
+    public void setLongJobApis(String longJobApis) {
+        this.longJobApis = new HashSet<String>();
+        for (String name : longJobApis.split(",")) {
+            if (!name.trim().isEmpty()) {
+                this.longJobApis.add(name.trim());
+            }
+        }
+    }
+
     @Override
     public List<Class> getMessageClassToIntercept() {
         List<Class> lst = new ArrayList<Class>();
@@ -9,6 +9,7 @@ import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.header.Component;
 import org.zstack.header.apimediator.ApiMessageInterceptionException;
 import org.zstack.header.apimediator.GlobalApiMessageInterceptor;
@@ -35,12 +36,13 @@ import java.lang.reflect.Method;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.StringDSL.s;
 
 /**
  */
-public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalApiMessageInterceptor, PythonApiBindingWriter {
+public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalApiMessageInterceptor, PythonApiBindingWriter, QueryBuilderMXBean {
     private static final CLogger logger = Utils.getLogger(MysqlQueryBuilderImpl3.class);
 
     @Autowired
@@ -49,6 +51,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
     private ErrorFacade errf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private JmxFacade jmxf;
 
     private Objenesis objenesis = new ObjenesisStd();
 
@@ -278,6 +282,139 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         Field parentField;
     }
 
+    private Object doNormalizeValue(Class entityType, String value) {
+        try {
+            if (Timestamp.class.isAssignableFrom(entityType)) {
+                return Timestamp.valueOf(value);
+            } else if (Enum.class.isAssignableFrom(entityType)) {
+                Method valueOf = entityType.getMethod("valueOf", String.class);
+                return valueOf.invoke(entityType, value);
+            } else if (Boolean.class.isAssignableFrom(entityType) || Boolean.TYPE.isAssignableFrom(entityType)) {
+                return Boolean.valueOf(value);
+            } else {
+                return TypeUtils.stringToValue(value, entityType);
+            }
+        } catch (Exception e) {
+            throw new CloudRuntimeException(String.format("failed to parse value[%s]", value), e);
+        }
+    }
+
+    private Object normalizeValue(Class entityType, String op, String value) {
+        if (QueryOp.IS_NULL.equals(op) || QueryOp.NOT_NULL.equals(op)) {
+            return null;
+        }
+
+        if (QueryOp.IN.equals(op) || QueryOp.NOT_IN.equals(op)) {
+            List<Object> ret = new ArrayList();
+            for (String it : value.split(",")) {
+                ret.add(doNormalizeValue(entityType, it.trim()));
+            }
+
+            if (ret.isEmpty()) {
+                // the query value is like ",,,,",
+                // in this case, compliment an empty string
+                ret.add("");
+            }
+            return ret;
+        } else {
+            return doNormalizeValue(entityType, value);
+        }
+    }
+
+    private class ParameterBinding {
+        String name;
+        String op;
+        int conditionIndex;
+        // null for tag conditions whose values are bound as they are
+        Class valueType;
+
+        Object getValue(QueryCondition cond) {
+            if (valueType != null) {
+                return normalizeValue(valueType, op, cond.getValue());
+            }
+
+            if (QueryOp.IN.equals(op) || QueryOp.NOT_IN.equals(op)) {
+                return Arrays.asList(cond.getValue().split(","));
+            } else {
+                return cond.getValue();
+            }
+        }
+    }
+
+    /**
+     * a compiled query. The JPQL only depends on the shape of the query message, the values of conditions are bound
+     * as parameters every time the plan is executed
+     */
+    private class QueryPlan {
+        String jpql;
+        List<ParameterBinding> bindings = new ArrayList<ParameterBinding>();
+
+        void bind(Query q, List<QueryCondition> conditions) {
+            for (ParameterBinding b : bindings) {
+                q.setParameter(b.name, b.getValue(conditions.get(b.conditionIndex)));
+            }
+        }
+    }
+
+    private class QueryPlanCache {
+        private final int capacity;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        private final Map<String, QueryPlan> plans;
+
+        QueryPlanCache(final int capacity) {
+            this.capacity = capacity;
+            plans = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+                    if (size() > QueryPlanCache.this.capacity) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+
+                    return false;
+                }
+            };
+        }
+
+        QueryPlan get(String key) {
+            QueryPlan plan;
+            synchronized (plans) {
+                plan = plans.get(key);
+            }
+
+            if (plan == null) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+
+            return plan;
+        }
+
+        void put(String key, QueryPlan plan) {
+            if (capacity <= 0) {
+                return;
+            }
+
+            synchronized (plans) {
+                plans.put(key, plan);
+            }
+        }
+
+        QueryPlanCacheStatistic getStatistic() {
+            int size;
+            synchronized (plans) {
+                size = plans.size();
+            }
+            return new QueryPlanCacheStatistic(capacity, size, hits.get(), misses.get(), evictions.get());
+        }
+    }
+
+    private QueryPlanCache planCache;
+
     private Map<Class, EntityInfo> entityInfos = new HashMap<Class, EntityInfo>();
     private Map<Class, Class> metaModelClasses = new HashMap<Class, Class>();
     private List<String> escapeConditionNames = new ArrayList<String>();
@@ -335,6 +472,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         String attrValueName;
         boolean skipInventoryCheck;
         int index;
+        // index of the condition this one derives from in QueryContext.conditions
+        int conditionIndex;
 
         private Field entityField;
 
@@ -346,7 +485,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             return qcond;
         }
 
-        private Class getEntityFieldType() {
+        Class getEntityFieldType() {
             if (Collection.class.isAssignableFrom(entityField.getType())) {
                 return FieldUtils.getGenericType(entityField);
             } else if (Map.class.isAssignableFrom(entityField.getType())) {
@@ -357,46 +496,6 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             }
         }
 
-        private Object doNormalizeValue(String value) {
-            try {
-                Class entityType = getEntityFieldType();
-                if (Timestamp.class.isAssignableFrom(entityType)) {
-                    return Timestamp.valueOf(value);
-                } else if (Enum.class.isAssignableFrom(entityType)) {
-                    Method valueOf = entityType.getMethod("valueOf", String.class);
-                    return valueOf.invoke(entityType, value);
-                } else if (Boolean.class.isAssignableFrom(entityType) || Boolean.TYPE.isAssignableFrom(entityType)) {
-                    return Boolean.valueOf(value);
-                } else {
-                    return TypeUtils.stringToValue(value, entityType);
-                }
-            } catch (Exception e) {
-                throw new CloudRuntimeException(String.format("failed to parse value[%s]", value), e);
-            }
-        }
-
-        Object normalizeValue() {
-            if (QueryOp.IS_NULL.equals(op) || QueryOp.NOT_NULL.equals(op)) {
-                return null;
-            }
-
-            if (QueryOp.IN.equals(op) || QueryOp.NOT_IN.equals(op)) {
-                List<Object> ret = new ArrayList();
-                for (String it : value.split(",")) {
-                    ret.add(doNormalizeValue(it.trim()));
-                }
-
-                if (ret.isEmpty()) {
-                    // the query value is like ",,,,",
-                    // in this case, compliment an empty string
-                    ret.add("");
-                }
-                return ret;
-            } else {
-                return doNormalizeValue(value);
-            }
-        }
-
         private String formatSql(String entityName, String attr, String op) {
             StringBuilder sb = new StringBuilder();
             sb.append(String.format("%s.%s", entityName, attr));
@@ -495,6 +594,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         List<QueryObject> children = new ArrayList<QueryObject>();
         SubQueryInfo subQueryInfo;
         APIQueryMessage msg;
+        List<String> extensionSubQueries;
+        List<ParameterBinding> tagBindings = new ArrayList<ParameterBinding>();
 
         // NOTE: we hard code tag specific logic here because we think current query model is not sustainable,
         // it worth nothing to waste effort on making this as extension point; we will switch the entire
@@ -537,19 +638,22 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 }
             }
 
-            private String buildCondition(String field, QueryCondition cond) {
-                if (QueryOp.IN.equals(cond.getOp()) || QueryOp.NOT_IN.equals(cond.getOp())) {
-                    String[] values = cond.getValue().split(",");
-                    List<String> vals = new ArrayList<String>();
-                    for (String val : values) {
-                        vals.add(String.format("'%s'", val));
-                    }
-
-                    return String.format("%s %s (%s)", field, reverseOpIfNeed(cond), StringUtils.join(vals, ","));
-                } else if (QueryOp.IS_NULL.equals(cond.getOp()) || QueryOp.NOT_NULL.equals(cond.getOp())) {
+            private String buildCondition(String field, MetaCondition mcond, int index) {
+                QueryCondition cond = mcond.toQueryCondtion();
+                if (QueryOp.IS_NULL.equals(cond.getOp()) || QueryOp.NOT_NULL.equals(cond.getOp())) {
                     return String.format("%s %s", field, reverseOpIfNeed(cond));
+                }
+
+                ParameterBinding b = new ParameterBinding();
+                b.name = String.format("%s_tag_value%s", info.inventoryClass.getSimpleName().toLowerCase(), index);
+                b.op = cond.getOp();
+                b.conditionIndex = mcond.conditionIndex;
+                tagBindings.add(b);
+
+                if (QueryOp.IN.equals(cond.getOp()) || QueryOp.NOT_IN.equals(cond.getOp())) {
+                    return String.format("%s %s (:%s)", field, reverseOpIfNeed(cond), b.name);
                 } else {
-                    return String.format("%s %s '%s'", field, reverseOpIfNeed(cond), cond.getValue());
+                    return String.format("%s %s :%s", field, reverseOpIfNeed(cond), b.name);
                 }
             }
 
@@ -581,24 +685,26 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 String primaryKey = info.primaryKey;
                 String invname = info.inventoryClass.getSimpleName().toLowerCase();
 
-                List<QueryCondition> conds = CollectionUtils.transformToList(conditions, new Function<QueryCondition, MetaCondition>() {
+                List<MetaCondition> conds = CollectionUtils.transformToList(conditions, new Function<MetaCondition, MetaCondition>() {
                     @Override
-                    public QueryCondition call(MetaCondition arg) {
-                        return USER_TAG.equals(arg.attr) || SYSTEM_TAG.equals(arg.attr) ? arg.toQueryCondtion() : null;
+                    public MetaCondition call(MetaCondition arg) {
+                        return USER_TAG.equals(arg.attr) || SYSTEM_TAG.equals(arg.attr) ? arg : null;
                     }
                 });
 
                 String typeString = StringUtils.join(rtypes, ",");
-                for (QueryCondition cond : conds) {
+                for (int i = 0; i < conds.size(); i++) {
+                    MetaCondition mcond = conds.get(i);
+                    QueryCondition cond = mcond.toQueryCondtion();
                     if (cond.getName().equals(USER_TAG)) {
                         List<String> condStrs = new ArrayList<String>();
-                        condStrs.add(buildCondition("user.tag", cond));
+                        condStrs.add(buildCondition("user.tag", mcond, i));
                         condStrs.add(String.format("user.resourceType in (%s)", typeString));
                         resultQuery.add(String.format("%s.%s %s (select user.resourceUuid from UserTagVO user where %s)",
                                 invname, primaryKey, chooseOp(cond), StringUtils.join(condStrs, " and ")));
                     } else if (cond.getName().equals(SYSTEM_TAG)) {
                         List<String> condStrs = new ArrayList<String>();
-                        condStrs.add(buildCondition("sys.tag", cond));
+                        condStrs.add(buildCondition("sys.tag", mcond, i));
                         condStrs.add(String.format("sys.resourceType in (%s)", typeString));
                         resultQuery.add(String.format("%s.%s %s (select sys.resourceUuid from SystemTagVO sys where %s)",
                                 invname, primaryKey, chooseOp(cond), StringUtils.join(condStrs, " and ")));
@@ -685,12 +791,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 throw new CloudRuntimeException("cannot be here");
             } else {
                 // this is root query
-                for (MysqlQuerySubQueryExtension ext : subQueryExtensions) {
-                    String sub = ext.makeSubquery(msg, info.inventoryClass);
-                    if (sub != null) {
-                        where.add(sub);
-                    }
-                }
+                where.addAll(extensionSubQueries);
 
                 String entityName = info.inventoryClass.getSimpleName().toLowerCase();
                 String entity = info.entityClass.getSimpleName();
@@ -736,15 +837,23 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
     private class QueryContext {
         private APIQueryMessage msg;
         private Class inventoryClass;
+        private EntityInfo info;
         private QueryObject root;
         private Map<Class, QueryObject> tmpMap = new HashMap<Class, QueryObject>();
 
+        // conditions of the message followed by extra conditions added by extensions
+        private List<QueryCondition> conditions = new ArrayList<QueryCondition>();
+        private int extraConditionStart;
+        private List<String> extensionSubQueries = new ArrayList<String>();
+        private int currentConditionIndex;
+
         private MetaCondition buildCondition(QueryCondition qcond, EntityInfo info) {
             MetaCondition mcond = new MetaCondition();
             mcond.attr = qcond.getName();
             mcond.op = qcond.getOp();
             mcond.inventoryClass = info.inventoryClass;
             mcond.value = qcond.getValue();
+            mcond.conditionIndex = currentConditionIndex;
             return mcond;
         }
 
@@ -837,75 +946,140 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             buildMetaCondition(qcond, info, false);
         }
 
-        private String build(boolean isCount) {
-            root = new QueryObject();
-            root.msg = msg;
-            root.info = entityInfos.get(inventoryClass);
-            DebugUtils.Assert(root.info!=null, String.format("class[%s] is not annotated by @Inventory", inventoryClass.getName()));
-            tmpMap.put(root.info.entityClass, root);
+        private void collectConditions() {
+            info = entityInfos.get(inventoryClass);
+            DebugUtils.Assert(info!=null, String.format("class[%s] is not annotated by @Inventory", inventoryClass.getName()));
 
             for (QueryCondition qcond : msg.getConditions()) {
-                if (escapeConditionNames.contains(qcond.getName())) {
-                    continue;
-                }
-
-                if (!qcond.getName().contains(".")) {
-                    buildMetaCondition(qcond, root.info);
-                } else {
-                    buildSubQuery(qcond, root);
+                if (!escapeConditionNames.contains(qcond.getName())) {
+                    conditions.add(qcond);
                 }
             }
 
+            extraConditionStart = conditions.size();
             List<AddExtraConditionToQueryExtensionPoint> exts = extraConditionsExts.get(msg.getClass());
             if (exts != null) {
                 for (AddExtraConditionToQueryExtensionPoint ext : exts) {
                     try {
-                        for (QueryCondition cond : ext.getExtraQueryConditionForMessage(msg)) {
-                            buildMetaCondition(cond, root.info, true);
-                        }
+                        conditions.addAll(ext.getExtraQueryConditionForMessage(msg));
                     } catch (Throwable t) {
                         logger.warn(String.format("unhandled exception when calling %s", ext.getClass().getName()), t);
                     }
                 }
             }
 
-            return root.toJpql(isCount);
+            for (MysqlQuerySubQueryExtension ext : subQueryExtensions) {
+                String sub = ext.makeSubquery(msg, inventoryClass);
+                if (sub != null) {
+                    extensionSubQueries.add(sub);
+                }
+            }
+        }
+
+        private String makePlanKey(boolean isCount) {
+            StringBuilder sb = new StringBuilder(inventoryClass.getName());
+            if (isCount) {
+                sb.append("|count");
+            } else {
+                sb.append("|list");
+                if (msg.isFieldQuery()) {
+                    sb.append("|fields:").append(StringUtils.join(msg.getFields(), ","));
+                }
+                if (msg.getSortBy() != null) {
+                    sb.append("|sort:").append(msg.getSortBy()).append(" ").append(msg.getSortDirection());
+                }
+            }
+
+            for (int i = 0; i < conditions.size(); i++) {
+                QueryCondition cond = conditions.get(i);
+                // extra conditions skip the inventory check, they don't share plans with the same conditions from users
+                sb.append(i < extraConditionStart ? "|" : "|+").append(cond.getName()).append(" ").append(cond.getOp());
+            }
+
+            // sub queries from extensions may have values in, they are part of the key as they are
+            for (String sub : extensionSubQueries) {
+                sb.append("|").append(sub);
+            }
+
+            return sb.toString();
+        }
+
+        private QueryPlan plan(boolean isCount) {
+            collectConditions();
+
+            String key = makePlanKey(isCount);
+            QueryPlan plan = planCache.get(key);
+            if (plan == null) {
+                plan = compile(isCount);
+                planCache.put(key, plan);
+            }
+
+            return plan;
+        }
+
+        private QueryPlan compile(boolean isCount) {
+            root = new QueryObject();
+            root.msg = msg;
+            root.info = info;
+            root.extensionSubQueries = extensionSubQueries;
+            tmpMap.put(root.info.entityClass, root);
+
+            for (int i = 0; i < conditions.size(); i++) {
+                QueryCondition qcond = conditions.get(i);
+                currentConditionIndex = i;
+                if (i >= extraConditionStart) {
+                    buildMetaCondition(qcond, root.info, true);
+                } else if (!qcond.getName().contains(".")) {
+                    buildMetaCondition(qcond, root.info);
+                } else {
+                    buildSubQuery(qcond, root);
+                }
+            }
+
+            QueryPlan plan = new QueryPlan();
+            plan.jpql = root.toJpql(isCount);
+            collectBindings(plan, root);
+            return plan;
         }
 
-        private void setQueryValue(Query q, QueryObject qobj) {
+        private void collectBindings(QueryPlan plan, QueryObject qobj) {
             for (MetaCondition mcond : qobj.conditions) {
-                if (USER_TAG.equals(mcond.attr) || SYSTEM_TAG.equals(mcond.attr)) {
+                if (USER_TAG.equals(mcond.attr) || SYSTEM_TAG.equals(mcond.attr) || mcond.attrValueName == null) {
                     continue;
                 }
 
-                Object val = mcond.normalizeValue();
-                if (val != null) {
-                    q.setParameter(mcond.attrValueName, val);
-                }
+                ParameterBinding b = new ParameterBinding();
+                b.name = mcond.attrValueName;
+                b.op = mcond.op;
+                b.conditionIndex = mcond.conditionIndex;
+                b.valueType = mcond.getEntityFieldType();
+                plan.bindings.add(b);
             }
+            plan.bindings.addAll(qobj.tagBindings);
+
             for (QueryObject child : qobj.children) {
-                setQueryValue(q, child);
+                collectBindings(plan, child);
             }
         }
 
-
         public List convertVOsToInventories(final List vos) {
             try {
                 if (vos.isEmpty()) {
                     return new ArrayList();
                 }
 
-                if (root.info.children.isEmpty()) {
-                    return (List) root.info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
+                if (info.children.isEmpty()) {
+                    return (List) info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
                 }
 
                 final LinkedHashMap flatMap = new LinkedHashMap();
-                final List primaryKeysNeedResolve = new ArrayList();
+                // a set, resolved keys are removed one by one which is quadratic on a list for a large page
+                final Set primaryKeysNeedResolve = new LinkedHashSet();
                 for (Object vo : vos) {
-                    String type = (String) root.info.entityTypeField.get(vo);
-                    Object priKey = root.info.getPrimaryKeyValue(vo);
-                    if (!root.info.flatTypeEntityMap.containsKey(type)) {
-                        flatMap.put(priKey, root.info.inventoryValueOf.invoke(inventoryClass, vo));
+                    String type = (String) info.entityTypeField.get(vo);
+                    Object priKey = info.getPrimaryKeyValue(vo);
+                    if (!info.flatTypeEntityMap.containsKey(type)) {
+                        flatMap.put(priKey, info.inventoryValueOf.invoke(inventoryClass, vo));
                     } else {
                         flatMap.put(priKey, null);
                         primaryKeysNeedResolve.add(priKey);
@@ -914,7 +1088,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 }
 
                 if (primaryKeysNeedResolve.isEmpty()) {
-                    return (List) root.info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
+                    return (List) info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
                 }
 
                 // the inventory has child inventory inheriting it, we have to find out all child inventory and
@@ -929,7 +1103,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                     List<SQL> subInventoryQuerySQL = new ArrayList<SQL>();
 
                     List resolve() throws InvocationTargetException, IllegalAccessException {
-                        buildSubInventoryQuerySQL(root.info.children);
+                        buildSubInventoryQuerySQL(info.children);
                         querySubInventory();
 
                         List result = new ArrayList(flatMap.values().size());
@@ -1028,14 +1202,14 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 validateFields();
             }
 
-            String jpql = build(false);
-            Query q = msg.isFieldQuery() ? dbf.getEntityManager().createQuery(jpql, Tuple.class) : dbf.getEntityManager().createQuery(jpql);
+            QueryPlan plan = plan(false);
+            Query q = msg.isFieldQuery() ? dbf.getEntityManager().createQuery(plan.jpql, Tuple.class) : dbf.getEntityManager().createQuery(plan.jpql);
 
             if (logger.isTraceEnabled()) {
                 org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
                 logger.trace(hq.getQueryString());
             }
-            setQueryValue(q, root);
+            plan.bind(q, conditions);
             if (msg.getLimit() != null) {
                 q.setMaxResults(msg.getLimit());
             }
@@ -1054,13 +1228,13 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
         @Transactional(readOnly = true)
         long count() {
-            String jpql = build(true);
-            Query q = dbf.getEntityManager().createQuery(jpql);
+            QueryPlan plan = plan(true);
+            Query q = dbf.getEntityManager().createQuery(plan.jpql);
             if (logger.isTraceEnabled()) {
                 org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
                 logger.trace(hq.getQueryString());
             }
-            setQueryValue(q, root);
+            plan.bind(q, conditions);
             return (Long)q.getSingleResult();
         }
     }
@@ -1178,6 +1352,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             throw new CloudRuntimeException(e);
         }
 
+        planCache = new QueryPlanCache(QueryGlobalProperty.PLAN_CACHE_SIZE);
+        jmxf.registerBean("QueryBuilder", this);
         return true;
     }
 
@@ -1301,6 +1477,11 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         return context.count();
     }
 
+    @Override
+    public QueryPlanCacheStatistic getQueryPlanCacheStatistic() {
+        return planCache.getStatistic();
+    }
+
     @Override
     public Map<String, List<String>> populateQueryableFields() {
         //throw new CloudRuntimeException("it's impossible enumerate all combinations");
@@ -0,0 +1,47 @@
+package org.zstack.query;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class QueryPlanCacheStatistic {
+    private int capacity;
+    private int size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    @ConstructorProperties({"capacity", "size", "hits", "misses", "evictions"})
+    public QueryPlanCacheStatistic(int capacity, int size, long hits, long misses, long evictions) {
+        this.capacity = capacity;
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public float getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (float) hits / total;
+    }
+}
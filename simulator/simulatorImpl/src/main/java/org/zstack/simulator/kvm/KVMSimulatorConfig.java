@@ -49,6 +49,8 @@ public class KVMSimulatorConfig {
     public volatile boolean securityGroupSuccess = true;
     public volatile Map<String, SecurityGroupRuleTO> securityGroups = new HashMap<String, SecurityGroupRuleTO>();
     public volatile List<RefreshAllRulesOnHostCmd> securityGroupRefreshAllRulesOnHostCmds = new ArrayList<RefreshAllRulesOnHostCmd>();
+    public volatile List<ApplySecurityGroupRuleDeltaCmd> securityGroupApplyRuleDeltaCmds = new ArrayList<ApplySecurityGroupRuleDeltaCmd>();
+    public volatile Long securityGroupSequenceNumber;
     public volatile Map<String, KvmVmState> vms = new HashMap<String, KvmVmState>();
     public volatile int consolePort;
     public volatile KVMAgentCommands.StartVmCmd startVmCmd;
@@ -13,6 +13,7 @@ import org.zstack.kvm.KVMAgentCommands.*;
 import org.zstack.kvm.KVMConstant;
 import org.zstack.kvm.KVMConstant.KvmVmState;
 import org.zstack.kvm.KVMSecurityGroupBackend;
+import org.zstack.network.securitygroup.RuleTO;
 import org.zstack.network.securitygroup.SecurityGroupRuleTO;
 import org.zstack.simulator.AsyncRESTReplyer;
 import org.zstack.utils.Utils;
@@ -20,7 +21,9 @@ import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Controller
@@ -263,6 +266,7 @@ public class KVMSimulatorController {
                 config.securityGroups.put(rto.getVmNicInternalName(), rto);
                 logger.debug(String.format("successfully applied security group rules for vm nic[%s], %s", rto.getVmNicInternalName(), rto));
             }
+            config.securityGroupSequenceNumber = cmd.getSequenceNumber();
             config.securityGroupRefreshAllRulesOnHostCmds.add(cmd);
         }
         reply(entity, rsp);
@@ -291,6 +295,61 @@ public class KVMSimulatorController {
         reply(entity, rsp);
     }
 
+    @RequestMapping(value=KVMSecurityGroupBackend.SECURITY_GROUP_APPLY_RULE_DELTA_PATH, method=RequestMethod.POST)
+    private @ResponseBody String applySecurityGroupRuleDeltas(HttpServletRequest req) throws InterruptedException {
+        HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
+        doApplySecurityGroupRuleDeltas(entity);
+        return null;
+    }
+
+    private SecurityGroupRuleTO mergeRuleDelta(SecurityGroupRuleTO old, SecurityGroupRuleTO delta) {
+        List<String> toDelete = new ArrayList<String>();
+        for (RuleTO r : delta.getRulesToDelete()) {
+            toDelete.add(r.toFullString());
+        }
+
+        List<RuleTO> rules = new ArrayList<RuleTO>();
+        if (old != null) {
+            for (RuleTO r : old.getRules()) {
+                if (!toDelete.contains(r.toFullString())) {
+                    rules.add(r);
+                }
+            }
+        }
+        rules.addAll(delta.getRulesToAdd());
+
+        SecurityGroupRuleTO rto = JSONObjectUtil.rehashObject(delta, SecurityGroupRuleTO.class);
+        rto.setActionCode(SecurityGroupRuleTO.ACTION_CODE_APPLY_RULE);
+        rto.setRulesToAdd(null);
+        rto.setRulesToDelete(null);
+        rto.setRules(rules);
+        return rto;
+    }
+
+    private synchronized void doApplySecurityGroupRuleDeltas(HttpEntity<String> entity) {
+        ApplySecurityGroupRuleDeltaCmd cmd = JSONObjectUtil.toObject(entity.getBody(), ApplySecurityGroupRuleDeltaCmd.class);
+        ApplySecurityGroupRuleDeltaResponse rsp = new ApplySecurityGroupRuleDeltaResponse();
+        if (!config.securityGroupSuccess) {
+            rsp.setError("fail to apply security group rules on purpose");
+            rsp.setSuccess(false);
+        } else if (cmd.getBaseSequenceNumber() != null && !cmd.getBaseSequenceNumber().equals(config.securityGroupSequenceNumber)) {
+            rsp.setError(String.format("rules are of sequence number[%s], not [%s]", config.securityGroupSequenceNumber, cmd.getBaseSequenceNumber()));
+            rsp.setSuccess(false);
+            rsp.setSequenceNumberMismatch(true);
+        } else {
+            for (SecurityGroupRuleTO rto : cmd.getRuleTOs()) {
+                if (SecurityGroupRuleTO.ACTION_CODE_APPLY_DELTA.equals(rto.getActionCode())) {
+                    rto = mergeRuleDelta(config.securityGroups.get(rto.getVmNicInternalName()), rto);
+                }
+                config.securityGroups.put(rto.getVmNicInternalName(), rto);
+                logger.debug(String.format("successfully applied security group rules for vm nic[%s], %s", rto.getVmNicInternalName(), rto));
+            }
+            config.securityGroupSequenceNumber = cmd.getSequenceNumber();
+            config.securityGroupApplyRuleDeltaCmds.add(cmd);
+        }
+        reply(entity, rsp);
+    }
+
     @AsyncThread
     private void doDetachDataVolume(HttpEntity<String> entity) {
         DetachDataVolumeCmd cmd = JSONObjectUtil.toObject(entity.getBody(), DetachDataVolumeCmd.class);
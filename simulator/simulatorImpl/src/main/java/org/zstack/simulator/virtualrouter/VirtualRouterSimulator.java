@@ -19,8 +19,11 @@ import org.zstack.network.service.virtualrouter.VirtualRouterKvmBackendCommands.
 import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend;
 import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.DeleteLbCmd;
 import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.DeleteLbRsp;
+import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.LbTO;
 import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.RefreshLbCmd;
 import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.RefreshLbRsp;
+import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.UpdateLbCmd;
+import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.UpdateLbRsp;
 import org.zstack.simulator.AsyncRESTReplyer;
 import org.zstack.simulator.SimulatorGlobalProperty;
 import org.zstack.utils.CollectionUtils;
@@ -29,6 +32,9 @@ import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Controller
 public class VirtualRouterSimulator {
@@ -321,17 +327,73 @@ public class VirtualRouterSimulator {
         RefreshLbCmd cmd = JSONObjectUtil.toObject(entity.getBody(), RefreshLbCmd.class);
         RefreshLbRsp rsp = new RefreshLbRsp();
 
-        if (!config.refreshLbSuccess) {
+        if (!config.refreshLbSuccess || hasLbFailNicIp(cmd.getLbs())) {
             rsp.setError("on purpose");
             rsp.setSuccess(false);
         } else {
             config.refreshLbCmds.add(cmd);
+            if (config.lbConfigVersions != null) {
+                config.lbConfigVersions.putAll(cmd.getVersions());
+                rsp.setVersions(new HashMap<String, Long>(config.lbConfigVersions));
+            }
         }
 
         replyer.reply(entity, rsp);
         return null;
     }
 
+    @RequestMapping(value = VirtualRouterLoadBalancerBackend.UPDATE_LB_PATH, method = RequestMethod.POST)
+    private @ResponseBody
+    String updateLb(HttpServletRequest req) {
+        HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
+        if (config.updateLbDelay > 0) {
+            updateLbLater(entity);
+        } else {
+            doUpdateLb(entity);
+        }
+        return null;
+    }
+
+    @AsyncThread
+    private void updateLbLater(HttpEntity<String> entity) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(config.updateLbDelay);
+        } catch (InterruptedException e) {
+            logger.warn(e.getMessage(), e);
+        }
+
+        doUpdateLb(entity);
+    }
+
+    private boolean hasLbFailNicIp(List<LbTO> tos) {
+        for (LbTO to : tos) {
+            for (String ip : to.getNicIps()) {
+                if (config.lbFailNicIps.contains(ip)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void doUpdateLb(HttpEntity<String> entity) {
+        UpdateLbCmd cmd = JSONObjectUtil.toObject(entity.getBody(), UpdateLbCmd.class);
+        UpdateLbRsp rsp = new UpdateLbRsp();
+
+        if (!config.refreshLbSuccess || hasLbFailNicIp(cmd.getLbs())) {
+            rsp.setError("on purpose");
+            rsp.setSuccess(false);
+        } else {
+            config.updateLbCmds.add(cmd);
+            if (config.lbConfigVersions != null) {
+                rsp.setVersion(config.lbConfigVersions.get(cmd.getLbUuid()));
+                config.lbConfigVersions.put(cmd.getLbUuid(), cmd.getVersion());
+            }
+        }
+
+        replyer.reply(entity, rsp);
+    }
+
     @RequestMapping(value = VirtualRouterLoadBalancerBackend.DELETE_LB_PATH, method = RequestMethod.POST)
     private @ResponseBody
     String deleteLb(HttpServletRequest req) {
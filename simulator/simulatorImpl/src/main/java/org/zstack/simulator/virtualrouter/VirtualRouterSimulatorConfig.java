@@ -4,12 +4,15 @@ import org.zstack.network.service.virtualrouter.VirtualRouterCommands.*;
 import org.zstack.network.service.virtualrouter.eip.EipTO;
 import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.DeleteLbCmd;
 import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.RefreshLbCmd;
+import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.UpdateLbCmd;
 import org.zstack.network.service.virtualrouter.portforwarding.PortForwardingRuleTO;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class VirtualRouterSimulatorConfig {
 	public volatile boolean setDhcpEntrySuccess = true;
@@ -38,6 +41,13 @@ public class VirtualRouterSimulatorConfig {
 	public volatile String uuid;
 	public volatile List<RefreshLbCmd> refreshLbCmds = new ArrayList<RefreshLbCmd>();
     public volatile boolean refreshLbSuccess = true;
+	public volatile List<UpdateLbCmd> updateLbCmds = new ArrayList<UpdateLbCmd>();
+    // load balancer uuid -> version of its config, null to simulate a virtual router not versioning configs
+    public volatile Map<String, Long> lbConfigVersions;
+    // milliseconds to hold the reply of an UpdateLbCmd
+    public volatile long updateLbDelay;
+    // configs having any of these nic IPs fail to be applied
+    public volatile Set<String> lbFailNicIps = new HashSet<String>();
 	public volatile List<DeleteLbCmd> deleteLbCmds = new ArrayList<DeleteLbCmd>();
 	public volatile List<RemoveDnsCmd> removeDnsCmds = new ArrayList<RemoveDnsCmd>();
 
@@ -0,0 +1,11 @@
+package org.zstack.storage.primary;
+
+/**
+ * how ImageCacheManager chooses image caches to evict when they exceed the capacity budget of a primary storage
+ */
+public enum ImageCacheEvictionPolicy {
+    // least recently used first
+    LRU,
+    // least frequently used first, least recently used first among ones of the same hit count
+    LFU
+}
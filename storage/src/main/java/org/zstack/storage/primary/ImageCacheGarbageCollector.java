@@ -113,7 +113,7 @@ public class ImageCacheGarbageCollector implements Component, ManagementNodeChan
         return ret;
     }
     
-    private void deleteImageCacheOnPrimaryStorage(final ImageCacheVO ic) {
+    void deleteImageCacheOnPrimaryStorage(final ImageCacheVO ic) {
         PrimaryStorageRemoveCachedImageMsg msg = new PrimaryStorageRemoveCachedImageMsg();
         msg.setInventory(ImageCacheInventory.valueOf(ic));
         bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, ic.getPrimaryStorageUuid());
@@ -121,7 +121,7 @@ public class ImageCacheGarbageCollector implements Component, ManagementNodeChan
             private void fail(String error) {
                 ic.setState(ImageCacheState.ready);
                 dbf.update(ic);
-                logger.warn(String.format("failed to garbage collect image cache[id:%s, install:%s] on primary storage[uuid], because %s. Change its state back to ready and try garbage collecting it next time", ic.getId(), ic.getInstallUrl(), ic.getPrimaryStorageUuid(), error));
+                logger.warn(String.format("failed to garbage collect image cache[id:%s, install:%s] on primary storage[uuid:%s], because %s. Change its state back to ready and try garbage collecting it next time", ic.getId(), ic.getInstallUrl(), ic.getPrimaryStorageUuid(), error));
             }
             
             private void success() {
@@ -0,0 +1,20 @@
+package org.zstack.storage.primary;
+
+/**
+ * tracks how image caches on primary storage are used, evicts unused caches exceeding the capacity budget of
+ * a primary storage and prefetches popular images to new primary storage.
+ */
+public interface ImageCacheManager {
+    /**
+     * records a volume is created from the cache of the image on the primary storage, nothing is recorded
+     * if the image has not been cached yet
+     */
+    void recordHit(String primaryStorageUuid, String imageUuid);
+
+    /**
+     * @return the capacity image caches can take on the primary storage in bytes, 0 means no limit
+     */
+    long getCapacityBudget(String primaryStorageUuid);
+
+    void evict(String primaryStorageUuid);
+}
@@ -0,0 +1,381 @@
+package org.zstack.storage.primary;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusSteppingCallback;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigException;
+import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
+import org.zstack.core.config.GlobalConfigValidatorExtensionPoint;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.apimediator.ApiMessageInterceptionException;
+import org.zstack.header.image.ImageConstant.ImageMediaType;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.image.ImageStatus;
+import org.zstack.header.image.ImageVO;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.header.storage.primary.*;
+import org.zstack.header.tag.SystemTagValidator;
+import org.zstack.utils.SizeUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Query;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a hit of an image cache is counted in ImageCacheVO.hitCount and ImageCacheVO.lastUsedDate every time a root volume
+ * is instantiated from it.
+ *
+ * Every imageCache.eviction.interval seconds, image caches of each primary storage managed by this node, whose type
+ * supports removing cached images, are checked against the capacity budget of the primary storage. Caches no volume
+ * on the primary storage is created from, and neither used nor created in the last interval, are removed by
+ * ImageCacheGarbageCollector in the order of imageCache.eviction.policy, until the rest fit in the budget.
+ *
+ * When a primary storage having no image cache is attached to a cluster, the imageCache.prefetch.num images with
+ * most hits are downloaded to it by DownloadImageToPrimaryStorageCacheMsg.
+ */
+public class ImageCacheManagerImpl implements ImageCacheManager, Component, PrimaryStorageAttachExtensionPoint {
+    private static final CLogger logger = Utils.getLogger(ImageCacheManagerImpl.class);
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private ErrorFacade errf;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
+    @Autowired
+    private ImageCacheGarbageCollector imageCacheGC;
+
+    private Future<Void> evictionTask;
+
+    @Override
+    @Transactional
+    public void recordHit(String primaryStorageUuid, String imageUuid) {
+        String sql = "update ImageCacheVO i set i.hitCount = i.hitCount + 1, i.lastUsedDate = CURRENT_TIMESTAMP" +
+                " where i.primaryStorageUuid = :psUuid and i.imageUuid = :imageUuid";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("psUuid", primaryStorageUuid);
+        q.setParameter("imageUuid", imageUuid);
+        q.executeUpdate();
+    }
+
+    @Override
+    public long getCapacityBudget(String primaryStorageUuid) {
+        String size = PrimaryStorageSystemTags.IMAGE_CACHE_CAPACITY_BUDGET.getTokenByResourceUuid(primaryStorageUuid,
+                PrimaryStorageSystemTags.IMAGE_CACHE_CAPACITY_BUDGET_TOKEN);
+        if (size == null) {
+            size = PrimaryStorageGlobalConfig.IMAGE_CACHE_CAPACITY_BUDGET.value();
+        }
+        return SizeUtils.sizeStringToBytes(size);
+    }
+
+    @Transactional(readOnly = true)
+    private long getUsedCapacity(String psUuid) {
+        String sql = "select sum(i.size) from ImageCacheVO i where i.primaryStorageUuid = :psUuid and i.state = :state";
+        TypedQuery<Long> q = dbf.getEntityManager().createQuery(sql, Long.class);
+        q.setParameter("psUuid", psUuid);
+        q.setParameter("state", ImageCacheState.ready);
+        Long used = q.getSingleResult();
+        return used == null ? 0 : used;
+    }
+
+    @Transactional(readOnly = true)
+    private List<ImageCacheVO> findUnusedCaches(String psUuid) {
+        String sql = "select i from ImageCacheVO i where i.primaryStorageUuid = :psUuid and i.state = :state" +
+                " and (i.mediaType is null or i.mediaType != :iso)" +
+                " and i.id not in (select ref.imageCacheId from ImageCacheVolumeRefVO ref)" +
+                " and (i.imageUuid is null or i.imageUuid not in (select vol.rootImageUuid from VolumeVO vol" +
+                " where vol.primaryStorageUuid = :psUuid and vol.rootImageUuid is not null))";
+        TypedQuery<ImageCacheVO> q = dbf.getEntityManager().createQuery(sql, ImageCacheVO.class);
+        q.setParameter("psUuid", psUuid);
+        q.setParameter("state", ImageCacheState.ready);
+        q.setParameter("iso", ImageMediaType.ISO);
+        return q.getResultList();
+    }
+
+    @Transactional
+    private boolean changeState(long id, ImageCacheState from, ImageCacheState to) {
+        String sql = "update ImageCacheVO i set i.state = :to where i.id = :id and i.state = :from";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("to", to);
+        q.setParameter("id", id);
+        q.setParameter("from", from);
+        return q.executeUpdate() == 1;
+    }
+
+    private static Timestamp getLastUsedDate(ImageCacheVO c) {
+        return c.getLastUsedDate() == null ? c.getCreateDate() : c.getLastUsedDate();
+    }
+
+    private void sortByPolicy(List<ImageCacheVO> caches) {
+        final ImageCacheEvictionPolicy policy = ImageCacheEvictionPolicy.valueOf(PrimaryStorageGlobalConfig.IMAGE_CACHE_EVICTION_POLICY.value());
+        Collections.sort(caches, new Comparator<ImageCacheVO>() {
+            @Override
+            public int compare(ImageCacheVO o1, ImageCacheVO o2) {
+                if (policy == ImageCacheEvictionPolicy.LFU && o1.getHitCount() != o2.getHitCount()) {
+                    return o1.getHitCount() < o2.getHitCount() ? -1 : 1;
+                }
+
+                return getLastUsedDate(o1).compareTo(getLastUsedDate(o2));
+            }
+        });
+    }
+
+    @Override
+    public void evict(String primaryStorageUuid) {
+        long budget = getCapacityBudget(primaryStorageUuid);
+        if (budget <= 0) {
+            return;
+        }
+
+        long used = getUsedCapacity(primaryStorageUuid);
+        if (used <= budget) {
+            return;
+        }
+
+        // caches being used by a volume creation may have no volume referring to them yet
+        long interval = PrimaryStorageGlobalConfig.IMAGE_CACHE_EVICTION_INTERVAL.value(Integer.class);
+        Timestamp recent = new Timestamp(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(interval));
+        List<ImageCacheVO> candidates = new ArrayList<ImageCacheVO>();
+        for (ImageCacheVO c : findUnusedCaches(primaryStorageUuid)) {
+            if (getLastUsedDate(c).before(recent)) {
+                candidates.add(c);
+            }
+        }
+        sortByPolicy(candidates);
+
+        for (ImageCacheVO c : candidates) {
+            if (used <= budget) {
+                break;
+            }
+
+            if (!changeState(c.getId(), ImageCacheState.ready, ImageCacheState.deleting)) {
+                continue;
+            }
+
+            used -= c.getSize();
+            logger.debug(String.format("evicting the image cache[id:%s, image uuid:%s, install url:%s, hits:%s] from the primary storage[uuid:%s]",
+                    c.getId(), c.getImageUuid(), c.getInstallUrl(), c.getHitCount(), c.getPrimaryStorageUuid()));
+            imageCacheGC.deleteImageCacheOnPrimaryStorage(c);
+        }
+
+        if (used > budget) {
+            logger.warn(String.format("image caches on the primary storage[uuid:%s] still take %s bytes after eviction, exceeding" +
+                    " the capacity budget[%s bytes]; the rest are in use", primaryStorageUuid, used, budget));
+        }
+    }
+
+    private void evictAll() {
+        SimpleQuery<PrimaryStorageVO> q = dbf.createQuery(PrimaryStorageVO.class);
+        q.select(PrimaryStorageVO_.uuid, PrimaryStorageVO_.type);
+        List<Tuple> ts = q.listTuple();
+        for (Tuple t : ts) {
+            String psUuid = t.get(0, String.class);
+            String psType = t.get(1, String.class);
+            if (!destMaker.isManagedByUs(psUuid)) {
+                continue;
+            }
+
+            // only primary storage handling PrimaryStorageRemoveCachedImageMsg can have caches evicted
+            if (!PrimaryStorageType.valueOf(psType).isSupportRemovingCachedImage()) {
+                continue;
+            }
+
+            try {
+                evict(psUuid);
+            } catch (Throwable t) {
+                logger.warn(String.format("unable to evict image caches of the primary storage[uuid:%s]", psUuid), t);
+            }
+        }
+    }
+
+    private void startEvictionTask() {
+        if (evictionTask != null) {
+            evictionTask.cancel(true);
+        }
+
+        evictionTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return PrimaryStorageGlobalConfig.IMAGE_CACHE_EVICTION_INTERVAL.value(Integer.class);
+            }
+
+            @Override
+            public String getName() {
+                return "image-cache-eviction";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    evictAll();
+                } catch (Throwable t) {
+                    logger.warn("unhandled exception", t);
+                }
+            }
+        });
+    }
+
+    private void installValidators() {
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_CAPACITY_BUDGET.installValidateExtension(new GlobalConfigValidatorExtensionPoint() {
+            @Override
+            public void validateGlobalConfig(String category, String name, String oldValue, String newValue) throws GlobalConfigException {
+                if (!SizeUtils.isSizeString(newValue)) {
+                    throw new GlobalConfigException(String.format("%s is not a size string; a size string consists of a number ending with suffix B/K/M/G/T or without suffix; for example, 512M, 1G", newValue));
+                }
+            }
+        });
+
+        PrimaryStorageSystemTags.IMAGE_CACHE_CAPACITY_BUDGET.installValidator(new SystemTagValidator() {
+            @Override
+            public void validateSystemTag(String resourceUuid, Class resourceType, String systemTag) {
+                String size = PrimaryStorageSystemTags.IMAGE_CACHE_CAPACITY_BUDGET.getTokenByTag(systemTag,
+                        PrimaryStorageSystemTags.IMAGE_CACHE_CAPACITY_BUDGET_TOKEN);
+                if (!SizeUtils.isSizeString(size)) {
+                    throw new ApiMessageInterceptionException(errf.stringToInvalidArgumentError(
+                            String.format("%s is invalid. %s is not a size string; a size string consists of a number ending with suffix B/K/M/G/T or without suffix; for example, 512M, 1G", systemTag, size)
+                    ));
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean start() {
+        installValidators();
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_EVICTION_INTERVAL.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                startEvictionTask();
+            }
+        });
+        startEvictionTask();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (evictionTask != null) {
+            evictionTask.cancel(true);
+        }
+        return true;
+    }
+
+    @Transactional(readOnly = true)
+    private List<ImageInventory> findMostUsedImages(int num) {
+        String sql = "select i.imageUuid, sum(i.hitCount) from ImageCacheVO i where i.imageUuid is not null" +
+                " group by i.imageUuid";
+        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        List<Tuple> ts = q.getResultList();
+
+        final Map<String, Long> hits = new HashMap<String, Long>();
+        for (Tuple t : ts) {
+            Long hit = t.get(1, Long.class);
+            if (hit != null && hit > 0) {
+                hits.put(t.get(0, String.class), hit);
+            }
+        }
+        if (hits.isEmpty()) {
+            return new ArrayList<ImageInventory>();
+        }
+
+        sql = "select img from ImageVO img where img.uuid in (:uuids) and img.status = :status and img.mediaType = :mediaType";
+        TypedQuery<ImageVO> iq = dbf.getEntityManager().createQuery(sql, ImageVO.class);
+        iq.setParameter("uuids", hits.keySet());
+        iq.setParameter("status", ImageStatus.Ready);
+        iq.setParameter("mediaType", ImageMediaType.RootVolumeTemplate);
+        List<ImageVO> images = iq.getResultList();
+        Collections.sort(images, new Comparator<ImageVO>() {
+            @Override
+            public int compare(ImageVO o1, ImageVO o2) {
+                return hits.get(o2.getUuid()).compareTo(hits.get(o1.getUuid()));
+            }
+        });
+
+        return ImageInventory.valueOf(images.subList(0, Math.min(num, images.size())));
+    }
+
+    private void prefetch(final PrimaryStorageInventory inv) {
+        int num = PrimaryStorageGlobalConfig.IMAGE_CACHE_PREFETCH_NUM.value(Integer.class);
+        if (num == 0) {
+            return;
+        }
+
+        SimpleQuery<ImageCacheVO> q = dbf.createQuery(ImageCacheVO.class);
+        q.add(ImageCacheVO_.primaryStorageUuid, Op.EQ, inv.getUuid());
+        if (q.isExists()) {
+            // not a new primary storage
+            return;
+        }
+
+        List<ImageInventory> images = findMostUsedImages(num);
+        if (images.isEmpty()) {
+            return;
+        }
+
+        List<DownloadImageToPrimaryStorageCacheMsg> msgs = new ArrayList<DownloadImageToPrimaryStorageCacheMsg>();
+        for (ImageInventory img : images) {
+            DownloadImageToPrimaryStorageCacheMsg msg = new DownloadImageToPrimaryStorageCacheMsg();
+            msg.setPrimaryStorageUuid(inv.getUuid());
+            msg.setImage(img);
+            bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, inv.getUuid());
+            msgs.add(msg);
+        }
+
+        // one by one, not to take all bandwidth of backup storage
+        bus.send(msgs, 1, new CloudBusSteppingCallback() {
+            @Override
+            public void run(NeedReplyMessage msg, MessageReply reply) {
+                DownloadImageToPrimaryStorageCacheMsg dmsg = (DownloadImageToPrimaryStorageCacheMsg) msg;
+                if (reply.isSuccess()) {
+                    logger.debug(String.format("prefetched the image[uuid:%s, name:%s] to the primary storage[uuid:%s, name:%s]",
+                            dmsg.getImage().getUuid(), dmsg.getImage().getName(), inv.getUuid(), inv.getName()));
+                } else {
+                    logger.warn(String.format("failed to prefetch the image[uuid:%s, name:%s] to the primary storage[uuid:%s, name:%s], %s",
+                            dmsg.getImage().getUuid(), dmsg.getImage().getName(), inv.getUuid(), inv.getName(), reply.getError()));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void preAttachPrimaryStorage(PrimaryStorageInventory inventory, String clusterUuid) throws PrimaryStorageException {
+    }
+
+    @Override
+    public void beforeAttachPrimaryStorage(PrimaryStorageInventory inventory, String clusterUuid) {
+    }
+
+    @Override
+    public void failToAttachPrimaryStorage(PrimaryStorageInventory inventory, String clusterUuid) {
+    }
+
+    @Override
+    public void afterAttachPrimaryStorage(PrimaryStorageInventory inventory, String clusterUuid) {
+        prefetch(inventory);
+    }
+}
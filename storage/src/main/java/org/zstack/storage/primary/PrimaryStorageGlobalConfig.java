@@ -14,4 +14,12 @@ public class PrimaryStorageGlobalConfig {
     public static GlobalConfig IMAGE_CACHE_GARBAGE_COLLECTOR_INTERVAL = new GlobalConfig(CATEGORY, "imageCache.garbageCollector.interval");
     @GlobalConfigValidation
     public static GlobalConfig RESERVED_CAPACITY = new GlobalConfig(CATEGORY, "reservedCapacity");
+    @GlobalConfigValidation
+    public static GlobalConfig IMAGE_CACHE_CAPACITY_BUDGET = new GlobalConfig(CATEGORY, "imageCache.capacityBudget");
+    @GlobalConfigValidation(validValues = {"LRU", "LFU"})
+    public static GlobalConfig IMAGE_CACHE_EVICTION_POLICY = new GlobalConfig(CATEGORY, "imageCache.eviction.policy");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig IMAGE_CACHE_EVICTION_INTERVAL = new GlobalConfig(CATEGORY, "imageCache.eviction.interval");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig IMAGE_CACHE_PREFETCH_NUM = new GlobalConfig(CATEGORY, "imageCache.prefetch.num");
 }
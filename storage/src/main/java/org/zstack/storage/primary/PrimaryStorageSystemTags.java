@@ -18,4 +18,7 @@ public class PrimaryStorageSystemTags {
 
     public static final String CAPABILITY_HYPERVISOR_SNAPSHOT_TOKEN= "hypervisorType";
     public static PatternedSystemTag CAPABILITY_HYPERVISOR_SNAPSHOT = new PatternedSystemTag(String.format("capability::snapshot::hypervisor::{%s}", CAPABILITY_HYPERVISOR_SNAPSHOT_TOKEN), PrimaryStorageVO.class);
+
+    public static final String IMAGE_CACHE_CAPACITY_BUDGET_TOKEN = "size";
+    public static PatternedSystemTag IMAGE_CACHE_CAPACITY_BUDGET = new PatternedSystemTag(String.format("imageCache::capacityBudget::{%s}", IMAGE_CACHE_CAPACITY_BUDGET_TOKEN), PrimaryStorageVO.class);
 }
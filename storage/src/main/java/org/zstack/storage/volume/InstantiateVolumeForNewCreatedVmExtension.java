@@ -12,6 +12,9 @@ import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.core.Completion;
 import org.zstack.header.image.ImageConstant.ImageMediaType;
 import org.zstack.header.message.MessageReply;
+import org.zstack.header.storage.primary.ImageCacheState;
+import org.zstack.header.storage.primary.ImageCacheVO;
+import org.zstack.header.storage.primary.ImageCacheVO_;
 import org.zstack.header.storage.primary.InstantiateRootVolumeFromTemplateMsg;
 import org.zstack.header.storage.primary.InstantiateVolumeMsg;
 import org.zstack.header.storage.primary.InstantiateVolumeReply;
@@ -22,6 +25,7 @@ import org.zstack.header.vm.VmInstanceSpec.ImageSpec;
 import org.zstack.header.vm.VmInstanceState;
 import org.zstack.header.vm.VmInstantiateResourceException;
 import org.zstack.header.volume.*;
+import org.zstack.storage.primary.ImageCacheManager;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
@@ -38,6 +42,8 @@ public class InstantiateVolumeForNewCreatedVmExtension implements PreVmInstantia
     private CloudBus bus;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private ImageCacheManager imageCacheMgr;
 
     @Override
     public void preBeforeInstantiateVmResource(VmInstanceSpec spec) throws VmInstantiateResourceException{
@@ -69,13 +75,24 @@ public class InstantiateVolumeForNewCreatedVmExtension implements PreVmInstantia
     }
 
 
+    private boolean isImageCached(String psUuid, String imageUuid) {
+        SimpleQuery<ImageCacheVO> q = dbf.createQuery(ImageCacheVO.class);
+        q.add(ImageCacheVO_.primaryStorageUuid, Op.EQ, psUuid);
+        q.add(ImageCacheVO_.imageUuid, Op.EQ, imageUuid);
+        q.add(ImageCacheVO_.state, Op.EQ, ImageCacheState.ready);
+        return q.isExists();
+    }
+
     private void doInstantiate(final Iterator<InstantiateVolumeMsg> it, final VmInstanceSpec spec, final Completion completion) {
         if (!it.hasNext()) {
             completion.success();
             return;
         }
 
-        InstantiateVolumeMsg msg  = it.next();
+        final InstantiateVolumeMsg msg  = it.next();
+        // only a volume created from a cache existing beforehand is a hit, a miss downloads the image to the cache
+        final boolean cached = msg instanceof InstantiateRootVolumeFromTemplateMsg && isImageCached(msg.getVolume().getPrimaryStorageUuid(),
+                ((InstantiateRootVolumeFromTemplateMsg) msg).getTemplateSpec().getInventory().getUuid());
         bus.send(msg, new CloudBusCallBack(completion) {
             private int getNextDeviceId() {
                 SimpleQuery<VolumeVO> q = dbf.createQuery(VolumeVO.class);
@@ -109,6 +126,11 @@ public class InstantiateVolumeForNewCreatedVmExtension implements PreVmInstantia
 
                     new FireVolumeCanonicalEvent().fireVolumeStatusChangedEvent(oldStatus, VolumeInventory.valueOf(vo));
 
+                    if (cached) {
+                        imageCacheMgr.recordHit(vo.getPrimaryStorageUuid(),
+                                ((InstantiateRootVolumeFromTemplateMsg) msg).getTemplateSpec().getInventory().getUuid());
+                    }
+
                     VolumeInventory vinv = VolumeInventory.valueOf(vo);
                     if (spec.getDestRootVolume().getUuid().equals(vinv.getUuid())) {
                         spec.setDestRootVolume(vinv);
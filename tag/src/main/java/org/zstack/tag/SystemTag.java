@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  */
@@ -31,6 +32,9 @@ public class SystemTag {
 
     // TagManager must be explicitly set. use @Autowried will cause circular dependency
     protected TagManager tagMgr;
+    // set by TagManager as well, only consulted when SystemTag.indexEnabled is true
+    protected SystemTagIndex index;
+    private volatile Pattern likePattern;
 
     protected String tagFormat;
     protected Class resourceClass;
@@ -103,11 +107,60 @@ public class SystemTag {
         return Op.EQ;
     }
 
+    private static Pattern sqlLikeToPattern(String like) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (c == '%') {
+                sb.append(".*");
+            } else if (c == '_') {
+                sb.append(".");
+            } else {
+                if (c == '\\' && i + 1 < like.length()) {
+                    c = like.charAt(++i);
+                }
+                sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+
+    // does what the "tag = :format" or "tag like :format" condition does in the database, whose collation
+    // is case insensitive
+    private boolean matchIndexedTag(String tag) {
+        if (useOp() == Op.LIKE) {
+            if (likePattern == null) {
+                likePattern = sqlLikeToPattern(useTagFormat());
+            }
+            return likePattern.matcher(tag).matches();
+        } else {
+            return useTagFormat().equalsIgnoreCase(tag);
+        }
+    }
+
+    private List<String> getIndexedTags(String resourceUuid, Class resourceClass) {
+        List<String> ret = new ArrayList<String>();
+        for (String tag : index.getTags(resourceUuid, resourceClass.getSimpleName())) {
+            if (matchIndexedTag(tag)) {
+                ret.add(tag);
+            }
+        }
+        return ret;
+    }
+
+    private boolean useIndex() {
+        return index != null && TagGlobalProperty.INDEX_ENABLED;
+    }
+
     public boolean hasTag(String resourceUuid) {
         return hasTag(resourceUuid, resourceClass);
     }
 
     public boolean hasTag(String resourceUuid, Class resourceClass) {
+        if (useIndex()) {
+            return !getIndexedTags(resourceUuid, resourceClass).isEmpty();
+        }
+
         SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
         q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
         q.add(SystemTagVO_.resourceUuid, Op.EQ, resourceUuid);
@@ -116,23 +169,40 @@ public class SystemTag {
     }
 
     public void copy(String srcUuid, Class srcClass, String dstUuid, Class dstClass) {
+        if (useIndex()) {
+            for (SystemTagIndex.IndexedTag tag : index.getIndexedTags(srcUuid, srcClass.getSimpleName())) {
+                if (matchIndexedTag(tag.tag)) {
+                    copyTag(tag.tag, tag.inherent, dstUuid, dstClass);
+                }
+            }
+            return;
+        }
+
         SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
         q.add(SystemTagVO_.resourceType, Op.EQ, srcClass.getSimpleName());
         q.add(SystemTagVO_.resourceUuid, Op.EQ, srcUuid);
         q.add(SystemTagVO_.tag, useOp(), useTagFormat());
         List<SystemTagVO> tags = q.list();
         for (SystemTagVO tag : tags) {
-            if (tag.isInherent()) {
-                deleteInherentTag(dstUuid, dstClass);
-                tagMgr.createInherentSystemTag(dstUuid, tag.getTag(), dstClass.getSimpleName());
-            } else {
-                delete(dstUuid, dstClass);
-                tagMgr.createNonInherentSystemTag(dstUuid, tag.getTag(), dstClass.getSimpleName());
-            }
+            copyTag(tag.getTag(), tag.isInherent(), dstUuid, dstClass);
+        }
+    }
+
+    private void copyTag(String tag, boolean inherent, String dstUuid, Class dstClass) {
+        if (inherent) {
+            deleteInherentTag(dstUuid, dstClass);
+            tagMgr.createInherentSystemTag(dstUuid, tag, dstClass.getSimpleName());
+        } else {
+            delete(dstUuid, dstClass);
+            tagMgr.createNonInherentSystemTag(dstUuid, tag, dstClass.getSimpleName());
         }
     }
 
     public List<String> getTags(String resourceUuid, Class resourceClass) {
+        if (useIndex()) {
+            return getIndexedTags(resourceUuid, resourceClass);
+        }
+
         SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
         q.select(SystemTagVO_.tag);
         q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
@@ -158,6 +228,25 @@ public class SystemTag {
     }
 
     public Map<String, List<String>> getTags(List<String> resourceUuids, Class resourceClass) {
+        if (useIndex()) {
+            Map<String, List<String>> ret = new HashMap<String, List<String>>();
+            Map<String, List<String>> all = index.getTags(resourceUuids, resourceClass.getSimpleName());
+            for (Map.Entry<String, List<String>> e : all.entrySet()) {
+                List<String> tags = new ArrayList<String>();
+                for (String tag : e.getValue()) {
+                    if (matchIndexedTag(tag)) {
+                        tags.add(tag);
+                    }
+                }
+
+                // the same as the query, resources without the tag are absent
+                if (!tags.isEmpty()) {
+                    ret.put(e.getKey(), tags);
+                }
+            }
+            return ret;
+        }
+
         SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
         q.select(SystemTagVO_.tag, SystemTagVO_.resourceUuid);
         q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
@@ -291,6 +380,10 @@ public class SystemTag {
         this.tagMgr = tagMgr;
     }
 
+    void setIndex(SystemTagIndex index) {
+        this.index = index;
+    }
+
     public List<SystemTagValidator> getValidators() {
         return validators;
     }
@@ -0,0 +1,176 @@
+package org.zstack.tag;
+
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.tag.SystemTagVO_;
+
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a node-local index of system tags by resource uuid, it serves lookups of SystemTag and PatternedSystemTag
+ * without going to the database.
+ *
+ * All system tags of a resource are loaded by one query the first time the resource is looked up, the least
+ * recently used resources are dropped once the index is full. TagManagerImpl evicts a resource whenever its tags
+ * change and again after the change is committed, other management nodes are told to evict it by a canonical event.
+ */
+class SystemTagIndex {
+    static class IndexedTag {
+        final String resourceType;
+        final String tag;
+        final boolean inherent;
+
+        IndexedTag(String resourceType, String tag, boolean inherent) {
+            this.resourceType = resourceType;
+            this.tag = tag;
+            this.inherent = inherent;
+        }
+    }
+
+    private final DatabaseFacade dbf;
+    // access ordered, guarded by itself together with generation
+    private final LinkedHashMap<String, List<IndexedTag>> index;
+    // bumped by every eviction; a load that raced with an eviction is not put in the index as it may be stale
+    private long generation;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    SystemTagIndex(DatabaseFacade dbf, final int capacity) {
+        this.dbf = dbf;
+        index = new LinkedHashMap<String, List<IndexedTag>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<IndexedTag>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private long currentGeneration() {
+        synchronized (index) {
+            return generation;
+        }
+    }
+
+    private Map<String, List<IndexedTag>> load(Collection<String> resourceUuids) {
+        long gen = currentGeneration();
+
+        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+        q.select(SystemTagVO_.resourceUuid, SystemTagVO_.resourceType, SystemTagVO_.tag, SystemTagVO_.inherent);
+        q.add(SystemTagVO_.resourceUuid, Op.IN, resourceUuids);
+        List<Tuple> ts = q.listTuple();
+
+        Map<String, List<IndexedTag>> loaded = new HashMap<String, List<IndexedTag>>();
+        for (String uuid : resourceUuids) {
+            loaded.put(uuid, new ArrayList<IndexedTag>());
+        }
+        for (Tuple t : ts) {
+            loaded.get(t.get(0, String.class)).add(new IndexedTag(t.get(1, String.class), t.get(2, String.class), t.get(3, Boolean.class)));
+        }
+        for (Map.Entry<String, List<IndexedTag>> e : loaded.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+
+        // the check and the put are under the same lock as evict(), so an eviction either happens before
+        // the put and is seen by the check, or happens after the put and removes the entry
+        synchronized (index) {
+            if (generation == gen) {
+                index.putAll(loaded);
+            }
+        }
+
+        return loaded;
+    }
+
+    private List<IndexedTag> get(String resourceUuid) {
+        synchronized (index) {
+            return index.get(resourceUuid);
+        }
+    }
+
+    private static List<String> filter(List<IndexedTag> tags, String resourceType) {
+        List<String> ret = new ArrayList<String>();
+        for (IndexedTag t : tags) {
+            if (t.resourceType.equals(resourceType)) {
+                ret.add(t.tag);
+            }
+        }
+        return ret;
+    }
+
+    List<IndexedTag> getIndexedTags(String resourceUuid, String resourceType) {
+        List<IndexedTag> tags = get(resourceUuid);
+        if (tags == null) {
+            misses.incrementAndGet();
+            tags = load(Arrays.asList(resourceUuid)).get(resourceUuid);
+        } else {
+            hits.incrementAndGet();
+        }
+
+        List<IndexedTag> ret = new ArrayList<IndexedTag>();
+        for (IndexedTag t : tags) {
+            if (t.resourceType.equals(resourceType)) {
+                ret.add(t);
+            }
+        }
+        return ret;
+    }
+
+    List<String> getTags(String resourceUuid, String resourceType) {
+        List<String> ret = new ArrayList<String>();
+        for (IndexedTag t : getIndexedTags(resourceUuid, resourceType)) {
+            ret.add(t.tag);
+        }
+        return ret;
+    }
+
+    // resources missing from the index are loaded by one query
+    Map<String, List<String>> getTags(Collection<String> resourceUuids, String resourceType) {
+        Map<String, List<String>> ret = new HashMap<String, List<String>>();
+        Set<String> missed = new HashSet<String>();
+        for (String uuid : resourceUuids) {
+            List<IndexedTag> tags = get(uuid);
+            if (tags == null) {
+                missed.add(uuid);
+            } else {
+                hits.incrementAndGet();
+                ret.put(uuid, filter(tags, resourceType));
+            }
+        }
+
+        if (!missed.isEmpty()) {
+            misses.addAndGet(missed.size());
+            for (Map.Entry<String, List<IndexedTag>> e : load(missed).entrySet()) {
+                ret.put(e.getKey(), filter(e.getValue(), resourceType));
+            }
+        }
+
+        return ret;
+    }
+
+    void evict(Collection<String> resourceUuids) {
+        synchronized (index) {
+            generation ++;
+            for (String uuid : resourceUuids) {
+                index.remove(uuid);
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    int size() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.zstack.tag;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class TagGlobalProperty {
+    // must be the same on all management nodes, a node only tells others to evict tags it changed when it's enabled
+    @GlobalProperty(name="SystemTag.indexEnabled", defaultValue = "false")
+    public static boolean INDEX_ENABLED;
+    @GlobalProperty(name="SystemTag.indexCapacity", defaultValue = "100000")
+    public static int INDEX_CAPACITY;
+}
@@ -2,8 +2,12 @@ package org.zstack.tag;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
@@ -23,6 +27,7 @@ import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.Message;
 import org.zstack.header.query.APIQueryReply;
 import org.zstack.header.tag.*;
+import org.zstack.header.tag.SystemTagCanonicalEvents.SystemTagChangedData;
 import org.zstack.query.QueryFacade;
 import org.zstack.utils.*;
 import org.zstack.utils.function.Function;
@@ -53,7 +58,10 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     private ErrorFacade errf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private EventFacade evtf;
 
+    private SystemTagIndex index;
     private List<SystemTag> systemTags = new ArrayList<SystemTag>();
     private Map<String, List<SystemTag>> resourceTypeSystemTagMap = new HashMap<String, List<SystemTag>>();
     private Map<String, Class> resourceTypeClassMap = new HashMap<String, Class>();
@@ -96,6 +104,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
                 }
 
                 stag.setTagMgr(this);
+                stag.setIndex(index);
                 List<SystemTag> lst = resourceTypeSystemTagMap.get(stag.getResourceClass().getSimpleName());
                 if (lst == null) {
                     lst = new ArrayList<SystemTag>();
@@ -107,6 +116,8 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     }
 
     void init() {
+        index = new SystemTagIndex(dbf, TagGlobalProperty.INDEX_CAPACITY);
+
         for (EntityType<?> entity : dbf.getEntityManager().getMetamodel().getEntities()) {
             Class type =  entity.getJavaType();
             String name = type.getSimpleName();
@@ -161,6 +172,42 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         }
     }
 
+    private void fireIndexEviction(Collection<String> resourceUuids) {
+        if (!TagGlobalProperty.INDEX_ENABLED) {
+            return;
+        }
+
+        SystemTagChangedData data = new SystemTagChangedData();
+        data.setResourceUuids(new ArrayList<String>(resourceUuids));
+        evtf.fire(SystemTagCanonicalEvents.SYSTEM_TAG_CHANGED_PATH, data);
+    }
+
+    private void evictFromIndex(final Collection<String> resourceUuids) {
+        if (resourceUuids.isEmpty()) {
+            return;
+        }
+
+        index.evict(resourceUuids);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // the change is not visible to others until the transaction completes, evict again then
+            // so nobody keeps what they loaded in between
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    index.evict(resourceUuids);
+                    fireIndexEviction(resourceUuids);
+                }
+            });
+        } else {
+            fireIndexEviction(resourceUuids);
+        }
+    }
+
+    private void evictFromIndex(String resourceUuid) {
+        evictFromIndex(list(resourceUuid));
+    }
+
     private boolean isTagExisting(String resourceUuid, String tag, TagType type, String resourceType) {
         if (type == TagType.User) {
             SimpleQuery<UserTagVO> q = dbf.createQuery(UserTagVO.class);
@@ -209,6 +256,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             preTagCreated(SystemTagInventory.valueOf(vo));
 
             vo = dbf.persistAndRefresh(vo);
+            evictFromIndex(resourceUuid);
 
             SystemTagInventory stag = SystemTagInventory.valueOf(vo);
             fireTagCreated(list(stag));
@@ -236,6 +284,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         preTagCreated(SystemTagInventory.valueOf(vo));
 
         vo = dbf.persistAndRefresh(vo);
+        evictFromIndex(resourceUuid);
         SystemTagInventory inv = SystemTagInventory.valueOf(vo);
 
         final SystemTagVO finalVo = vo;
@@ -243,6 +292,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             @Override
             public void run() {
                 dbf.remove(finalVo);
+                evictFromIndex(finalVo.getResourceUuid());
             }
         });
 
@@ -269,6 +319,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         preTagCreated(SystemTagInventory.valueOf(vo));
 
         vo = dbf.persistAndRefresh(vo);
+        evictFromIndex(resourceUuid);
 
         SystemTagInventory inv = SystemTagInventory.valueOf(vo);
         fireTagCreated(list(inv));
@@ -348,6 +399,8 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             ntag.setResourceUuid(dstResourceUuid);
             dbf.getEntityManager().persist(ntag);
         }
+
+        evictFromIndex(dstResourceUuid);
     }
 
     @Override
@@ -362,6 +415,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             preTagUpdated(old, n);
 
             vo = dbf.updateAndRefresh(vo);
+            evictFromIndex(vo.getResourceUuid());
             SystemTagInventory nt = SystemTagInventory.valueOf(vo);
             fireTagUpdated(old, nt);
             return SystemTagInventory.valueOf(vo);
@@ -446,6 +500,12 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         dbf.removeCollection(vos, SystemTagVO.class);
 
         if (!vos.isEmpty()) {
+            Set<String> resourceUuids = new HashSet<String>();
+            for (SystemTagVO vo : vos) {
+                resourceUuids.add(vo.getResourceUuid());
+            }
+            evictFromIndex(resourceUuids);
+
             fireTagDeleted(SystemTagInventory.valueOf(vos));
         }
     }
@@ -561,6 +621,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         dbf.removeByPrimaryKey(msg.getUuid(), UserTagVO.class);
 
         if (stag != null) {
+            evictFromIndex(stag.getResourceUuid());
             fireTagDeleted(list(SystemTagInventory.valueOf(stag)));
         }
 
@@ -626,6 +687,19 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     @Override
     public boolean start() {
         populateExtensions();
+
+        evtf.on(SystemTagCanonicalEvents.SYSTEM_TAG_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                if (Platform.getManagementServerId().equals(tokens.get(EventFacade.META_DATA_MANAGEMENT_NODE_ID))) {
+                    return;
+                }
+
+                SystemTagChangedData d = (SystemTagChangedData) data;
+                index.evict(d.getResourceUuids());
+            }
+        });
+
         return true;
     }
 
@@ -662,6 +736,12 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         q.setParameter("resourceTypes", rtypes);
         q.setParameter("resourceUuids", entityIds);
         q.executeUpdate();
+
+        List<String> resourceUuids = new ArrayList<String>(entityIds.size());
+        for (Object id : entityIds) {
+            resourceUuids.add(id.toString());
+        }
+        evictFromIndex(resourceUuids);
     }
 
     @Override
@@ -77,6 +77,7 @@ import org.zstack.storage.backup.sftp.APIReconnectSftpBackupStorageEvent;
 import org.zstack.storage.backup.sftp.APIReconnectSftpBackupStorageMsg;
 import org.zstack.storage.backup.sftp.APIUpdateSftpBackupStorageMsg;
 import org.zstack.storage.backup.sftp.SftpBackupStorageInventory;
+import org.zstack.storage.ceph.CephMonStatistics;
 import org.zstack.storage.ceph.backup.*;
 import org.zstack.storage.ceph.primary.*;
 import org.zstack.storage.primary.iscsi.APIUpdateIscsiFileSystemBackendPrimaryStorageMsg;
@@ -3551,6 +3552,28 @@ public class Api implements CloudBusEventListener {
         return evt.getInventory();
     }
 
+    public List<CephMonStatistics> getCephPrimaryStorageMonStatistics(String psUuid) throws ApiSenderException {
+        APIGetCephPrimaryStorageMonStatisticsMsg msg = new APIGetCephPrimaryStorageMonStatisticsMsg();
+        msg.setUuid(psUuid);
+        msg.setSession(adminSession);
+        msg.setServiceId(ApiMediatorConstant.SERVICE_ID);
+        ApiSender sender = new ApiSender();
+        sender.setTimeout(timeout);
+        APIGetCephPrimaryStorageMonStatisticsReply reply = sender.call(msg, APIGetCephPrimaryStorageMonStatisticsReply.class);
+        return reply.getStatistics();
+    }
+
+    public List<CephMonStatistics> getCephBackupStorageMonStatistics(String bsUuid) throws ApiSenderException {
+        APIGetCephBackupStorageMonStatisticsMsg msg = new APIGetCephBackupStorageMonStatisticsMsg();
+        msg.setUuid(bsUuid);
+        msg.setSession(adminSession);
+        msg.setServiceId(ApiMediatorConstant.SERVICE_ID);
+        ApiSender sender = new ApiSender();
+        sender.setTimeout(timeout);
+        APIGetCephBackupStorageMonStatisticsReply reply = sender.call(msg, APIGetCephBackupStorageMonStatisticsReply.class);
+        return reply.getStatistics();
+    }
+
     public LoadBalancerInventory createLoadBalancer(String name, String vipUuid, List<String> tags, SessionInventory session) throws ApiSenderException {
         APICreateLoadBalancerMsg msg = new APICreateLoadBalancerMsg();
         msg.setName(name);
@@ -0,0 +1,86 @@
+package org.zstack.test.compute.host;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostGlobalConfig;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.host.HostStatus;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.simulator.SimulatorController;
+import org.zstack.test.*;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * 1. add 10 hosts
+ * 2. allow only 2 pings in flight
+ * 3. disconnect 3 hosts
+ *
+ * confirm the 3 hosts become Disconnected and others stay Connected
+ *
+ * 4. reconnect the 3 hosts with connection.autoReconnectOnError set to true
+ *
+ * confirm all hosts become Connected
+ */
+public class TestPingTask2 {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    SimulatorController sctrl;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ClusterManager.xml")
+                .addXml("ZoneManager.xml").addXml("HostManager.xml")
+                .addXml("Simulator.xml").addXml("AccountManager.xml")
+                .addXml("HostAllocatorManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        sctrl = loader.getComponent(SimulatorController.class);
+        HostGlobalConfig.PING_HOST_INTERVAL.updateValue(2);
+        HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.updateValue(2);
+        api = new Api();
+        api.startServer();
+    }
+
+    private void assertHostStatus(final List<HostInventory> hosts, final int disconnected) throws InterruptedException {
+        UnitTestUtils.sleepRetry(new Callable() {
+            @Override
+            public Object call() throws Exception {
+                for (int i = 0; i < hosts.size(); i++) {
+                    HostVO vo = dbf.findByUuid(hosts.get(i).getUuid(), HostVO.class);
+                    HostStatus expected = i < disconnected ? HostStatus.Disconnected : HostStatus.Connected;
+                    Assert.assertEquals(expected, vo.getStatus());
+                }
+                return null;
+            }
+        }, 15);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        ClusterInventory cluster = api.createClusters(1, zone.getUuid()).get(0);
+        List<HostInventory> hosts = api.createHost(10, cluster.getUuid());
+        HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.updateValue(false);
+
+        for (int i = 0; i < 3; i++) {
+            sctrl.setSimulatorHostConnectionState(hosts.get(i).getUuid(), true);
+        }
+        assertHostStatus(hosts, 3);
+
+        HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.updateValue(true);
+        for (int i = 0; i < 3; i++) {
+            sctrl.setSimulatorHostConnectionState(hosts.get(i).getUuid(), false);
+        }
+        assertHostStatus(hosts, 0);
+    }
+}
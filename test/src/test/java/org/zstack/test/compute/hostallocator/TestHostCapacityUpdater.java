@@ -0,0 +1,74 @@
+package org.zstack.test.compute.hostallocator;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.allocator.HostCapacityUpdater;
+import org.zstack.compute.allocator.HostCapacityUpdaterRunnable;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.host.HostInventory;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1. update the capacity of a host in many threads at the same time
+ *
+ * confirm every update takes effect and none is lost
+ */
+public class TestHostCapacityUpdater {
+    Deployer deployer;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    int threadNum = 20;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/hostAllocator/TestReservedHostCapacity.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        HostInventory host = deployer.hosts.get("host1");
+        final String hostUuid = host.getUuid();
+        HostCapacityVO cap1 = dbf.findByUuid(hostUuid, HostCapacityVO.class);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadNum; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    new HostCapacityUpdater(hostUuid).run(new HostCapacityUpdaterRunnable() {
+                        @Override
+                        public HostCapacityVO call(HostCapacityVO cap) {
+                            cap.setAvailableCpu(cap.getAvailableCpu() - 1);
+                            cap.setAvailableMemory(cap.getAvailableMemory() - 1);
+                            return cap;
+                        }
+                    });
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        HostCapacityVO cap2 = dbf.findByUuid(hostUuid, HostCapacityVO.class);
+        Assert.assertEquals(cap1.getAvailableCpu() - threadNum, cap2.getAvailableCpu());
+        Assert.assertEquals(cap1.getAvailableMemory() - threadNum, cap2.getAvailableMemory());
+    }
+}
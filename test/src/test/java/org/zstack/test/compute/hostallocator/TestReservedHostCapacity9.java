@@ -0,0 +1,125 @@
+package org.zstack.test.compute.hostallocator;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.allocator.HostAllocatorGlobalConfig;
+import org.zstack.compute.allocator.HostCapacityReserveManager;
+import org.zstack.compute.host.HostSystemTags;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.CanonicalEvent;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.HostCapacityCanonicalEvents;
+import org.zstack.header.allocator.HostCapacityCanonicalEvents.ReservedCapacityChangedData;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.tag.TagInventory;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.SizeUtils;
+import org.zstack.utils.TimeUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.list;
+import static org.zstack.utils.CollectionDSL.map;
+
+/**
+ * 1. set reservedCapacity.cacheTTL to 1 hour and read the reserved capacity of the host into the ledger
+ * 2. create a host tag of reserved memory
+ *
+ * confirm the tag takes effect at once and the reserved capacity changed event is fired with the host uuid
+ *
+ * 3. change the tag in the database behind the tag manager, as another management node would
+ *
+ * confirm the ledger still returns the old capacity
+ *
+ * 4. publish the reserved capacity changed event of the host as if it came from another management node
+ *
+ * confirm the ledger returns the new capacity
+ */
+public class TestReservedHostCapacity9 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    EventFacade evtf;
+    HostCapacityReserveManager reserveMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/hostAllocator/TestReservedHostCapacity.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        evtf = loader.getComponent(EventFacade.class);
+        reserveMgr = loader.getComponent(HostCapacityReserveManager.class);
+    }
+
+    private long reservedMemory(String hostUuid) {
+        return reserveMgr.getReservedHostCapacityByHosts(list(hostUuid)).getReservedMemoryCapacity();
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        final HostInventory host = deployer.hosts.values().iterator().next();
+
+        final List<String> changedUuids = new CopyOnWriteArrayList<String>();
+        evtf.on(HostCapacityCanonicalEvents.RESERVED_CAPACITY_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                ReservedCapacityChangedData d = (ReservedCapacityChangedData) data;
+                changedUuids.addAll(d.getResourceUuids());
+            }
+        });
+
+        HostAllocatorGlobalConfig.RESERVED_CAPACITY_CACHE_TTL.updateValue(TimeUnit.HOURS.toSeconds(1));
+        long before = reservedMemory(host.getUuid());
+
+        TagInventory htag = HostSystemTags.RESERVED_MEMORY_CAPACITY.createTag(host.getUuid(), map(e("capacity", "1M")));
+        Assert.assertEquals(SizeUtils.sizeStringToBytes("1M"), reservedMemory(host.getUuid()));
+        Assert.assertTrue(before != reservedMemory(host.getUuid()));
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(10, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return changedUuids.contains(host.getUuid());
+            }
+        });
+
+        SystemTagVO vo = dbf.findByUuid(htag.getUuid(), SystemTagVO.class);
+        vo.setTag(HostSystemTags.RESERVED_MEMORY_CAPACITY.instantiateTag(map(e("capacity", "2M"))));
+        dbf.update(vo);
+        Assert.assertEquals(SizeUtils.sizeStringToBytes("1M"), reservedMemory(host.getUuid()));
+
+        ReservedCapacityChangedData data = new ReservedCapacityChangedData();
+        data.setResourceUuids(new ArrayList<String>(list(host.getUuid())));
+        CanonicalEvent evt = new CanonicalEvent();
+        evt.setPath(HostCapacityCanonicalEvents.RESERVED_CAPACITY_CHANGED_PATH);
+        evt.setManagementNodeId(Platform.getUuid());
+        evt.setContent(data);
+        bus.publish(evt);
+
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(10, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return SizeUtils.sizeStringToBytes("2M") == reservedMemory(host.getUuid());
+            }
+        });
+    }
+}
@@ -0,0 +1,152 @@
+package org.zstack.test.compute.vm;
+
+import junit.framework.Assert;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.query.QueryOp;
+import org.zstack.header.vm.*;
+import org.zstack.header.volume.VolumeVO;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 1. make 10000 vms, each has a nic and a volume
+ * 2. query vms page by page
+ *
+ * confirm the nics and volumes of a page are loaded by a statement per relation per DatabaseFacade.batchFetchSize
+ * vms instead of statements per vm
+ */
+public class TestQuery10000Vm {
+    CLogger logger = Utils.getLogger(TestQuery10000Vm.class);
+
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    int vmNum = 10000;
+    int pageSize = 1000;
+    // the default of DatabaseFacade.batchFetchSize
+    int batchFetchSize = 100;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/TestQueryVm.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private String uuid() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private void makeVms(VmInstanceVO template) {
+        VmNicVO tnic = template.getVmNics().iterator().next();
+        VolumeVO tvol = template.getAllVolumes().iterator().next();
+
+        List<VmInstanceVO> vms = new ArrayList<VmInstanceVO>();
+        List<VmNicVO> nics = new ArrayList<VmNicVO>();
+        List<VolumeVO> vols = new ArrayList<VolumeVO>();
+        for (int i = 0; i < vmNum; i++) {
+            VmInstanceVO vm = new VmInstanceVO(template);
+            vm.setUuid(uuid());
+            vm.setName("vm");
+            vm.setVmNics(new HashSet<VmNicVO>());
+            vm.setAllVolumes(new HashSet<VolumeVO>());
+            vms.add(vm);
+
+            VmNicVO nic = new VmNicVO();
+            nic.setUuid(uuid());
+            nic.setVmInstanceUuid(vm.getUuid());
+            nic.setL3NetworkUuid(tnic.getL3NetworkUuid());
+            nic.setIp(tnic.getIp());
+            nic.setNetmask(tnic.getNetmask());
+            nic.setGateway(tnic.getGateway());
+            nic.setMac(String.format("fa:%02x:%02x:%02x:%02x:%02x", 0xee, (i >> 24) & 0xff, (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff));
+            nic.setInternalName(String.format("vnic%s.0", i));
+            nic.setDeviceId(0);
+            nics.add(nic);
+
+            VolumeVO vol = new VolumeVO();
+            vol.setUuid(uuid());
+            vol.setName(tvol.getName());
+            vol.setVmInstanceUuid(vm.getUuid());
+            vol.setPrimaryStorageUuid(tvol.getPrimaryStorageUuid());
+            vol.setRootImageUuid(tvol.getRootImageUuid());
+            vol.setInstallPath(tvol.getInstallPath());
+            vol.setFormat(tvol.getFormat());
+            vol.setType(tvol.getType());
+            vol.setStatus(tvol.getStatus());
+            vol.setState(tvol.getState());
+            vol.setSize(tvol.getSize());
+            vol.setDeviceId(0);
+            vols.add(vol);
+
+            if (vms.size() == pageSize) {
+                dbf.persistCollection(vms);
+                dbf.persistCollection(nics);
+                dbf.persistCollection(vols);
+                vms.clear();
+                nics.clear();
+                vols.clear();
+            }
+        }
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        makeVms(dbf.findByUuid(vm.getUuid(), VmInstanceVO.class));
+
+        HibernateEntityManagerFactory emf = (HibernateEntityManagerFactory) dbf.getEntityManager().getEntityManagerFactory();
+        Statistics stats = emf.getSessionFactory().getStatistics();
+        stats.setStatisticsEnabled(true);
+
+        long total = 0;
+        for (int start = 0; start < vmNum; start += pageSize) {
+            APIQueryVmInstanceMsg msg = new APIQueryVmInstanceMsg();
+            msg.addQueryCondition("name", QueryOp.EQ, "vm");
+            msg.setStart(start);
+            msg.setLimit(pageSize);
+
+            stats.clear();
+            long s = System.currentTimeMillis();
+            APIQueryVmInstanceReply reply = api.query(msg, APIQueryVmInstanceReply.class);
+            long cost = System.currentTimeMillis() - s;
+            total += cost;
+
+            Assert.assertEquals(pageSize, reply.getInventories().size());
+            for (VmInstanceInventory inv : reply.getInventories()) {
+                Assert.assertEquals(1, inv.getVmNics().size());
+                Assert.assertEquals(1, inv.getAllVolumes().size());
+            }
+
+            long statements = stats.getPrepareStatementCount();
+            logger.debug(String.format("query %s vms starting at %s: %s SQL statements, %sms", pageSize, start, statements, cost));
+            // the page, the nics and the volumes in batches, plus statements of the API framework
+            long expected = 2 * (pageSize / batchFetchSize) + 30;
+            Assert.assertTrue(String.format("%s SQL statements for a page of %s vms, expected less than %s", statements, pageSize, expected),
+                    statements < expected);
+        }
+
+        logger.debug(String.format("query %s vms in pages of %s: %sms in total, %sms per page", vmNum, pageSize, total, total / (vmNum / pageSize)));
+    }
+}
@@ -0,0 +1,90 @@
+package org.zstack.test.compute.vm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.query.QueryOp;
+import org.zstack.header.vm.APIQueryVmInstanceMsg;
+import org.zstack.header.vm.APIQueryVmInstanceReply;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.query.QueryBuilderMXBean;
+import org.zstack.query.QueryPlanCacheStatistic;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+/**
+ * 1. query vm with conditions of the same shape but different values
+ * 2. count vm with the same conditions
+ * 3. query vm with conditions of another shape
+ *
+ * confirm the query plan is reused for the same shape and the results are correct
+ */
+public class TestQueryVmPlanCache {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    QueryBuilderMXBean queryBuilder;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/TestQueryVm.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        queryBuilder = loader.getComponent(QueryBuilderMXBean.class);
+    }
+
+    private APIQueryVmInstanceReply query(String name, String state, boolean count) throws ApiSenderException {
+        APIQueryVmInstanceMsg msg = new APIQueryVmInstanceMsg();
+        msg.addQueryCondition("name", QueryOp.EQ, name);
+        msg.addQueryCondition("state", QueryOp.IN, state, "Stopped");
+        msg.setCount(count);
+        return api.query(msg, APIQueryVmInstanceReply.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+
+        APIQueryVmInstanceReply reply = query(vm.getName(), vm.getState(), false);
+        Assert.assertEquals(1, reply.getInventories().size());
+        Assert.assertEquals(vm.getUuid(), reply.getInventories().get(0).getUuid());
+        QueryPlanCacheStatistic s1 = queryBuilder.getQueryPlanCacheStatistic();
+
+        reply = query("NoSuchVm", vm.getState(), false);
+        Assert.assertEquals(0, reply.getInventories().size());
+        reply = query(vm.getName(), "Destroyed", false);
+        Assert.assertEquals(0, reply.getInventories().size());
+        reply = query(vm.getName(), vm.getState(), false);
+        Assert.assertEquals(vm.getUuid(), reply.getInventories().get(0).getUuid());
+        QueryPlanCacheStatistic s2 = queryBuilder.getQueryPlanCacheStatistic();
+        Assert.assertEquals(s1.getMisses(), s2.getMisses());
+        Assert.assertEquals(s1.getHits() + 3, s2.getHits());
+
+        // count has its own plan
+        reply = query(vm.getName(), vm.getState(), true);
+        Assert.assertEquals(1, reply.getTotal().longValue());
+        reply = query("NoSuchVm", vm.getState(), true);
+        Assert.assertEquals(0, reply.getTotal().longValue());
+        QueryPlanCacheStatistic s3 = queryBuilder.getQueryPlanCacheStatistic();
+        Assert.assertEquals(s2.getMisses() + 1, s3.getMisses());
+        Assert.assertEquals(s2.getHits() + 1, s3.getHits());
+
+        APIQueryVmInstanceMsg msg = new APIQueryVmInstanceMsg();
+        msg.addQueryCondition("uuid", QueryOp.EQ, vm.getUuid());
+        reply = api.query(msg, APIQueryVmInstanceReply.class);
+        Assert.assertEquals(1, reply.getInventories().size());
+        QueryPlanCacheStatistic s4 = queryBuilder.getQueryPlanCacheStatistic();
+        Assert.assertEquals(s3.getMisses() + 1, s4.getMisses());
+    }
+}
@@ -0,0 +1,134 @@
+package org.zstack.test.compute.vm;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.vm.VmAllocateNicFlow;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.workflow.FlowChainBuilder;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.core.workflow.FlowChain;
+import org.zstack.header.core.workflow.FlowDoneHandler;
+import org.zstack.header.core.workflow.FlowErrorHandler;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.image.ImagePlatform;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.simulator.SimulatorConstant;
+import org.zstack.header.vm.*;
+import org.zstack.identity.AccountManager;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. allocate nics on l3 networks [A, B, A, C, B], ips of A and B are allocated in bulk
+ *
+ * confirm device ids follow the order of the l3 networks: 0:A, 1:B, 2:A, 3:C, 4:B
+ * confirm macs and internal names are of the device ids and ips are distinct
+ */
+public class TestVmAllocateNicFlow2 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    CountDownLatch latch = new CountDownLatch(1);
+    AccountManager acntMgr;
+    boolean isSuccess = false;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/TestVmAllocateNicFlow.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        acntMgr = loader.getComponent(AccountManager.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException, ApiSenderException {
+        FlowChain chain = FlowChainBuilder.newSimpleFlowChain().then(new VmAllocateNicFlow());
+
+        L3NetworkInventory l3a = deployer.l3Networks.get("TestL3Network1");
+        L3NetworkInventory l3b = deployer.l3Networks.get("TestL3Network2");
+        L3NetworkInventory l3c = deployer.l3Networks.get("TestL3Network3");
+        final List<L3NetworkInventory> l3Networks = new ArrayList<L3NetworkInventory>();
+        l3Networks.add(l3a);
+        l3Networks.add(l3b);
+        l3Networks.add(l3a);
+        l3Networks.add(l3c);
+        l3Networks.add(l3b);
+
+        InstanceOfferingInventory ioinv = api.listInstanceOffering(null).get(0);
+        ImageInventory iminv = api.listImage(null).get(0);
+        VmInstanceVO vo = new VmInstanceVO();
+        vo.setInstanceOfferingUuid(ioinv.getUuid());
+        vo.setState(VmInstanceState.Created);
+        vo.setHypervisorType(SimulatorConstant.SIMULATOR_HYPERVISOR_TYPE);
+        vo.setType(VmInstanceConstant.USER_VM_TYPE);
+        vo.setImageUuid(iminv.getUuid());
+        vo.setName("TestVm");
+        vo.setPlatform(ImagePlatform.Linux.toString());
+        vo.setUuid(Platform.getUuid());
+        vo.setInternalId(10);
+        dbf.persist(vo);
+
+        acntMgr.createAccountResourceRef(api.getAdminSession().getAccountUuid(), vo.getUuid(), VmInstanceVO.class);
+
+        final VmInstanceInventory vminv = VmInstanceInventory.valueOf(vo);
+        VmInstanceSpec spec = new VmInstanceSpec();
+        spec.setVmInventory(vminv);
+        spec.setL3Networks(l3Networks);
+        spec.getImageSpec().setInventory(iminv);
+        chain.getData().put(VmInstanceConstant.Params.VmInstanceSpec.toString(), spec);
+        chain.done(new FlowDoneHandler() {
+            @Override
+            public void handle(Map data) {
+                try {
+                    VmInstanceSpec ret = (VmInstanceSpec) data.get(VmInstanceConstant.Params.VmInstanceSpec.toString());
+                    Assert.assertEquals(l3Networks.size(), ret.getDestNics().size());
+                    Set<String> ips = new HashSet<String>();
+                    for (VmNicInventory nic : ret.getDestNics()) {
+                        VmNicVO nvo = dbf.findByUuid(nic.getUuid(), VmNicVO.class);
+                        Assert.assertNotNull(nvo);
+                        Assert.assertEquals(l3Networks.get(nic.getDeviceId()).getUuid(), nvo.getL3NetworkUuid());
+                        Assert.assertEquals(VmNicVO.generateNicInternalName(vminv.getInternalId(), nic.getDeviceId()), nvo.getInternalName());
+                        // the last octet of a mac is the device id
+                        String mac = NetworkUtils.generateMacWithDeviceId((short) nic.getDeviceId());
+                        Assert.assertEquals(mac.substring(mac.lastIndexOf(":")), nvo.getMac().substring(nvo.getMac().lastIndexOf(":")));
+                        Assert.assertTrue(ips.add(nvo.getIp()));
+                    }
+                    isSuccess = true;
+                } finally {
+                    latch.countDown();
+                }
+            }
+        }).error(new FlowErrorHandler() {
+            @Override
+            public void handle(ErrorCode errCode, Map data) {
+                isSuccess = false;
+                latch.countDown();
+            }
+        }).start();
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertTrue(isSuccess);
+    }
+}
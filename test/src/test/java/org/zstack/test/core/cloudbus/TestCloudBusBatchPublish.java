@@ -0,0 +1,144 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBusGlobalProperty;
+import org.zstack.core.cloudbus.CloudBusIN;
+import org.zstack.core.cloudbus.CloudBusListCallBack;
+import org.zstack.core.cloudbus.CloudBusMXBean;
+import org.zstack.core.cloudbus.PublisherStatistic;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.AbstractService;
+import org.zstack.header.Service;
+import org.zstack.header.message.Message;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.test.BeanConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. set the publisher mode to 'batch' with publisher confirms
+ * 2. send a list of messages in parallel
+ *
+ * confirm all replies are received in order and the publisher statistic counts the messages
+ */
+public class TestCloudBusBatchPublish {
+    ComponentLoader loader;
+    CloudBusIN bus;
+    CountDownLatch latch = new CountDownLatch(1);
+    List<MessageReply> replies;
+    Service serv;
+    int msgNum = 100;
+
+    public static class HelloWorldMsg extends NeedReplyMessage {
+        private int index;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void setIndex(int index) {
+            this.index = index;
+        }
+    }
+
+    public static class HelloWorldReply extends MessageReply {
+        private int index;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void setIndex(int index) {
+            this.index = index;
+        }
+    }
+
+    class FakeService extends AbstractService {
+        @Override
+        public boolean start() {
+            bus.registerService(this);
+            bus.activeService(this);
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            bus.deActiveService(this);
+            bus.unregisterService(this);
+            return true;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.getClass() == HelloWorldMsg.class) {
+                HelloWorldReply r = new HelloWorldReply();
+                r.setIndex(((HelloWorldMsg) msg).getIndex());
+                bus.reply(msg, r);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return this.getClass().getCanonicalName();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        bus = loader.getComponent(CloudBusIN.class);
+        // pooled channels are switched to confirm mode lazily, so switching after the bus started is fine
+        CloudBusGlobalProperty.PUBLISHER_CONFIRM = true;
+        CloudBusGlobalProperty.PUBLISHER_MODE = "batch";
+        serv = new FakeService();
+        serv.start();
+    }
+
+    @After
+    public void tearDown() {
+        CloudBusGlobalProperty.PUBLISHER_MODE = "pool";
+        CloudBusGlobalProperty.PUBLISHER_CONFIRM = false;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        List<HelloWorldMsg> msgs = new ArrayList<HelloWorldMsg>(msgNum);
+        for (int i = 0; i < msgNum; i++) {
+            HelloWorldMsg msg = new HelloWorldMsg();
+            msg.setIndex(i);
+            msg.setServiceId(FakeService.class.getCanonicalName());
+            msgs.add(msg);
+        }
+
+        bus.send(msgs, 20, new CloudBusListCallBack() {
+            @Override
+            public void run(List<MessageReply> rs) {
+                replies = rs;
+                latch.countDown();
+            }
+        });
+
+        latch.await(30, TimeUnit.SECONDS);
+        serv.stop();
+
+        Assert.assertNotNull(replies);
+        Assert.assertEquals(msgNum, replies.size());
+        for (int i = 0; i < msgNum; i++) {
+            Assert.assertTrue(replies.get(i).isSuccess());
+            Assert.assertEquals(i, ((HelloWorldReply) replies.get(i)).getIndex());
+        }
+
+        PublisherStatistic stat = ((CloudBusMXBean) bus).getPublisherStatistic();
+        Assert.assertEquals("batch", stat.getMode());
+        Assert.assertTrue(stat.getPublishedMessages() >= msgNum * 2);
+        Assert.assertEquals(0, stat.getFailedBatches());
+    }
+}
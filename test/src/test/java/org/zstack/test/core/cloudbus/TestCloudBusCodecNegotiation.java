@@ -0,0 +1,152 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBusGlobalProperty;
+import org.zstack.core.cloudbus.CloudBusIN;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.AbstractService;
+import org.zstack.header.Service;
+import org.zstack.header.message.Message;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.test.BeanConstructor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. prefer the binary codec, send a message
+ *
+ * confirm the message is binary encoded and accepts the binary codec, the reply is binary encoded
+ *
+ * 2. prefer the JSON codec as a node not knowing codecs, send a message
+ *
+ * confirm the message and the reply are JSON without the codec header
+ *
+ * 3. prefer the binary codec, send a message to a service ignoring acceptCodec as a node not knowing codecs
+ *
+ * confirm the JSON reply is received
+ */
+public class TestCloudBusCodecNegotiation {
+    ComponentLoader loader;
+    CloudBusIN bus;
+    Service serv;
+    volatile Map<String, Object> receivedHeaders;
+    volatile boolean actAsOldNode;
+
+    public static class HelloWorldMsg extends NeedReplyMessage {
+        private String greet;
+
+        public String getGreet() {
+            return greet;
+        }
+
+        public void setGreet(String greet) {
+            this.greet = greet;
+        }
+    }
+
+    public static class HelloWorldReply extends MessageReply {
+        private String greet;
+
+        public String getGreet() {
+            return greet;
+        }
+
+        public void setGreet(String greet) {
+            this.greet = greet;
+        }
+    }
+
+    class FakeService extends AbstractService {
+        @Override
+        public boolean start() {
+            bus.registerService(this);
+            bus.activeService(this);
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            bus.deActiveService(this);
+            bus.unregisterService(this);
+            return true;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.getClass() == HelloWorldMsg.class) {
+                receivedHeaders = msg.getAMQPHeaders();
+                if (actAsOldNode) {
+                    // a node not knowing codecs never reads the header
+                    msg.getAMQPHeaders().remove("acceptCodec");
+                }
+
+                HelloWorldReply r = new HelloWorldReply();
+                r.setGreet(((HelloWorldMsg) msg).getGreet());
+                bus.reply(msg, r);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return this.getClass().getCanonicalName();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        bus = loader.getComponent(CloudBusIN.class);
+        serv = new FakeService();
+        serv.start();
+    }
+
+    @After
+    public void tearDown() {
+        CloudBusGlobalProperty.MESSAGE_CODEC = "json";
+        serv.stop();
+    }
+
+    private HelloWorldReply call(String greet) {
+        HelloWorldMsg msg = new HelloWorldMsg();
+        msg.setGreet(greet);
+        msg.setServiceId(FakeService.class.getCanonicalName());
+        msg.setTimeout(TimeUnit.SECONDS.toMillis(10));
+        MessageReply r = bus.call(msg);
+        Assert.assertTrue(r.isSuccess());
+        HelloWorldReply reply = (HelloWorldReply) r;
+        Assert.assertEquals(greet, reply.getGreet());
+        return reply;
+    }
+
+    private String header(Map<String, Object> headers, String name) {
+        Object v = headers.get(name);
+        return v == null ? null : v.toString();
+    }
+
+    @Test
+    public void test() {
+        CloudBusGlobalProperty.MESSAGE_CODEC = "binary";
+        HelloWorldReply reply = call("binary");
+        Assert.assertEquals("binary", header(receivedHeaders, "codec"));
+        Assert.assertEquals("binary", header(receivedHeaders, "acceptCodec"));
+        Assert.assertEquals("binary", header(reply.getAMQPHeaders(), "codec"));
+
+        CloudBusGlobalProperty.MESSAGE_CODEC = "json";
+        reply = call("json");
+        Assert.assertNull(header(receivedHeaders, "codec"));
+        Assert.assertNull(header(receivedHeaders, "acceptCodec"));
+        Assert.assertNull(header(reply.getAMQPHeaders(), "codec"));
+
+        CloudBusGlobalProperty.MESSAGE_CODEC = "binary";
+        actAsOldNode = true;
+        reply = call("old node");
+        Assert.assertEquals("binary", header(receivedHeaders, "codec"));
+        Assert.assertNull(header(reply.getAMQPHeaders(), "codec"));
+    }
+}
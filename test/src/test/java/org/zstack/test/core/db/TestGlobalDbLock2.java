@@ -0,0 +1,90 @@
+package org.zstack.test.core.db;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.GLock;
+import org.zstack.core.db.GLockStatistic;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. turn on profiler.glock
+ * 2. lock the same GLock in many threads
+ *
+ * confirm only one thread holds the lock at any time, including when the database lock is handed
+ * between threads of this management node
+ * confirm every locking is counted in the statistic of the lock
+ */
+public class TestGlobalDbLock2 {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CLogger logger = Utils.getLogger(TestGlobalDbLock2.class);
+    String lockName = "TestDBLock2.lock";
+    int threadNum = 10;
+    int num = 200;
+    CountDownLatch latch = new CountDownLatch(threadNum);
+    AtomicInteger holders = new AtomicInteger(0);
+    AtomicInteger violations = new AtomicInteger(0);
+    AtomicInteger count = new AtomicInteger(0);
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        CoreGlobalProperty.PROFILER_GLOCK = true;
+    }
+
+    @After
+    public void tearDown() {
+        CoreGlobalProperty.PROFILER_GLOCK = false;
+    }
+
+    @AsyncThread
+    void lock() {
+        try {
+            for (int i = 0; i < num; i++) {
+                GLock lock = new GLock(lockName, 10);
+                lock.lock();
+                try {
+                    if (holders.incrementAndGet() != 1) {
+                        violations.incrementAndGet();
+                    }
+                    count.incrementAndGet();
+                    holders.decrementAndGet();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        for (int i = 0; i < threadNum; i++) {
+            lock();
+        }
+        latch.await(120, TimeUnit.SECONDS);
+
+        Assert.assertEquals(threadNum * num, count.get());
+        Assert.assertEquals(0, violations.get());
+
+        GLockStatistic stat = GLock.getStatistics().get(lockName);
+        Assert.assertNotNull(stat);
+        logger.debug(stat.toString());
+        Assert.assertEquals(threadNum * num, stat.getCount());
+    }
+}
@@ -0,0 +1,82 @@
+package org.zstack.test.core.gc;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.gc.*;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.TimeUtils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. schedule 500 time based GC jobs of the same runner, each fails the first time
+ *
+ * confirm all jobs are rescheduled and done
+ */
+public class TestGC8 {
+    ComponentLoader loader;
+    GCFacade gcf;
+    DatabaseFacade dbf;
+    int num = 500;
+    boolean success;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        gcf = loader.getComponent(GCFacade.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    public static class TRunner implements GCRunner {
+        static AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public void run(GCContext context, GCCompletion completion) {
+            count.incrementAndGet();
+            if (context.getExecutedTimes() > 1) {
+                completion.success();
+            } else {
+                completion.fail(null);
+            }
+        }
+    }
+
+    @Test
+    public void test() {
+        for (int i = 0; i < num; i++) {
+            TimeBasedGCPersistentContext<String> context = new TimeBasedGCPersistentContext<String>();
+            context.setRunnerClass(TRunner.class);
+            context.setInterval(1);
+            context.setTimeUnit(TimeUnit.SECONDS);
+            context.setContext(String.valueOf(i));
+            context.setContextClass(String.class);
+            gcf.schedule(context);
+        }
+
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(30, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                SimpleQuery<GarbageCollectorVO> q = dbf.createQuery(GarbageCollectorVO.class);
+                q.add(GarbageCollectorVO_.status, Op.EQ, GCStatus.Done);
+                if (q.count() == num) {
+                    success = true;
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        Assert.assertTrue(success);
+        Assert.assertEquals(num * 2, TRunner.count.get());
+    }
+}
@@ -0,0 +1,151 @@
+package org.zstack.test.core.gc;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.ResourceDestinationMakerImpl;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.gc.*;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.TimeUtils;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. schedule 2500 time based GC jobs, more than a page of the orphan recovery, with an interval of an hour
+ * 2. make the jobs owned by a management node, one in ten of them done
+ * 3. add another management node to the hash ring, then tell the GC facade the owner left, twice at the same time
+ *
+ * confirm jobs not done and managed by us are claimed and run exactly once
+ * confirm jobs managed by the other node are left unclaimed and done jobs are never run
+ */
+public class TestGC9 {
+    ComponentLoader loader;
+    GCFacadeImpl gcf;
+    DatabaseFacade dbf;
+    ResourceDestinationMakerImpl destMaker;
+    int num = 2500;
+    String leftNodeUuid = Platform.getUuid();
+    String otherNodeUuid = Platform.getUuid();
+    boolean success;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        gcf = loader.getComponent(GCFacadeImpl.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        destMaker = loader.getComponent(ResourceDestinationMakerImpl.class);
+    }
+
+    public static class TRunner implements GCRunner {
+        static ConcurrentHashMap<String, AtomicInteger> runs = new ConcurrentHashMap<String, AtomicInteger>();
+
+        @Override
+        public void run(GCContext context, GCCompletion completion) {
+            AtomicInteger count = new AtomicInteger(0);
+            AtomicInteger old = runs.putIfAbsent((String) context.getContext(), count);
+            (old == null ? count : old).incrementAndGet();
+            completion.success();
+        }
+    }
+
+    private int countRuns() {
+        int ret = 0;
+        for (AtomicInteger c : TRunner.runs.values()) {
+            ret += c.get();
+        }
+        return ret;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        for (int i = 0; i < num; i++) {
+            TimeBasedGCPersistentContext<String> context = new TimeBasedGCPersistentContext<String>();
+            context.setRunnerClass(TRunner.class);
+            context.setInterval(1);
+            context.setTimeUnit(TimeUnit.HOURS);
+            context.setContext(String.valueOf(i));
+            context.setContextClass(String.class);
+            gcf.schedule(context);
+        }
+
+        final Set<String> expected = new HashSet<String>();
+        Set<Long> othersIds = new HashSet<Long>();
+        Set<Long> doneIds = new HashSet<Long>();
+        if (!destMaker.isNodeInCircle(Platform.getManagementServerId())) {
+            destMaker.nodeJoin(Platform.getManagementServerId());
+        }
+        destMaker.nodeJoin(otherNodeUuid);
+
+        List<GarbageCollectorVO> vos = dbf.listAll(GarbageCollectorVO.class);
+        Assert.assertEquals(num, vos.size());
+        // jobs are saved one by one, the i-th id is of the context i
+        Collections.sort(vos, new Comparator<GarbageCollectorVO>() {
+            @Override
+            public int compare(GarbageCollectorVO o1, GarbageCollectorVO o2) {
+                return Long.valueOf(o1.getId()).compareTo(o2.getId());
+            }
+        });
+        for (int i = 0; i < vos.size(); i++) {
+            GarbageCollectorVO vo = vos.get(i);
+            vo.setManagementNodeUuid(leftNodeUuid);
+            if (i % 10 == 0) {
+                vo.setStatus(GCStatus.Done);
+                doneIds.add(vo.getId());
+            } else if (destMaker.isManagedByUs(String.valueOf(vo.getId()))) {
+                vo.setStatus(i % 2 == 0 ? GCStatus.Idle : GCStatus.Processing);
+                expected.add(String.valueOf(i));
+            } else {
+                othersIds.add(vo.getId());
+            }
+        }
+        dbf.updateCollection(vos);
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertFalse(othersIds.isEmpty());
+
+        gcf.nodeLeft(leftNodeUuid);
+        gcf.nodeLeft(leftNodeUuid);
+
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(60, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                if (TRunner.runs.keySet().containsAll(expected)) {
+                    success = true;
+                    return true;
+                }
+                return false;
+            }
+        });
+        Assert.assertTrue(success);
+
+        // give a duplicate run the time to show up
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertEquals(expected, TRunner.runs.keySet());
+        Assert.assertEquals(expected.size(), countRuns());
+
+        SimpleQuery<GarbageCollectorVO> q = dbf.createQuery(GarbageCollectorVO.class);
+        q.add(GarbageCollectorVO_.id, Op.IN, othersIds);
+        for (GarbageCollectorVO vo : q.list()) {
+            Assert.assertNull(vo.getManagementNodeUuid());
+            Assert.assertEquals(GCStatus.Idle, vo.getStatus());
+        }
+
+        q = dbf.createQuery(GarbageCollectorVO.class);
+        q.add(GarbageCollectorVO_.id, Op.IN, doneIds);
+        for (GarbageCollectorVO vo : q.list()) {
+            Assert.assertEquals(leftNodeUuid, vo.getManagementNodeUuid());
+            Assert.assertEquals(GCStatus.Done, vo.getStatus());
+        }
+    }
+}
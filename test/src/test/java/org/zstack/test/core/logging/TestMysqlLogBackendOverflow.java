@@ -0,0 +1,133 @@
+package org.zstack.test.core.logging;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.logging.*;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.TimeUtils;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. set the log queue capacity to 1
+ * 2. write many logs with the overflow policy Drop, Block, Spill
+ *
+ * confirm Drop drops logs and the rest are in the database
+ * confirm Block writes all logs to the database
+ * confirm Spill spills logs to the spill file, replays them to the database and deletes the file
+ */
+public class TestMysqlLogBackendOverflow {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    LogFacade logf;
+    LogBackend backend;
+    int logNum = 2000;
+    String oldPolicy;
+    int oldCapacity;
+    String oldSpillFile;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        logf = loader.getComponent(LogFacade.class);
+        backend = loader.getComponent(MysqlLogBackend.class);
+
+        oldPolicy = LogGlobalProperty.MYSQL_OVERFLOW_POLICY;
+        oldCapacity = LogGlobalProperty.MYSQL_QUEUE_CAPACITY;
+        oldSpillFile = LogGlobalProperty.MYSQL_SPILL_FILE;
+        LogGlobalProperty.MYSQL_SPILL_FILE = new File(System.getProperty("java.io.tmpdir"), "zstack-log-spill-" + Platform.getUuid()).getAbsolutePath();
+    }
+
+    @After
+    public void tearDown() {
+        backend.stop();
+        LogGlobalProperty.MYSQL_OVERFLOW_POLICY = oldPolicy;
+        LogGlobalProperty.MYSQL_QUEUE_CAPACITY = oldCapacity;
+        LogGlobalProperty.MYSQL_SPILL_FILE = oldSpillFile;
+        backend.start();
+    }
+
+    private void restart(LogOverflowPolicy policy) {
+        backend.stop();
+        LogGlobalProperty.MYSQL_OVERFLOW_POLICY = policy.toString();
+        LogGlobalProperty.MYSQL_QUEUE_CAPACITY = 1;
+        backend.start();
+    }
+
+    private long countLogs(String resourceUuid) {
+        SimpleQuery<LogVO> q = dbf.createQuery(LogVO.class);
+        q.add(LogVO_.resourceUuid, Op.EQ, resourceUuid);
+        return q.count();
+    }
+
+    private String writeLogs() {
+        String resourceUuid = Platform.getUuid();
+        for (int i = 0; i < logNum; i++) {
+            logf.info(resourceUuid, String.format("log %s", i));
+        }
+        return resourceUuid;
+    }
+
+    private void waitForDone(final LogBackendStatistic before) {
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(60, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                LogBackendStatistic stat = backend.getStatistic();
+                // other components may write logs as well
+                return stat.getWritten() + stat.getDropped() - before.getWritten() - before.getDropped() >= logNum;
+            }
+        });
+    }
+
+    @Test
+    public void test() {
+        restart(LogOverflowPolicy.Drop);
+        LogBackendStatistic before = backend.getStatistic();
+        String resourceUuid = writeLogs();
+        waitForDone(before);
+        LogBackendStatistic stat = backend.getStatistic();
+        Assert.assertTrue(stat.getDropped() - before.getDropped() > 0);
+        long count = countLogs(resourceUuid);
+        Assert.assertTrue(count > 0);
+        Assert.assertTrue(count < logNum);
+
+        restart(LogOverflowPolicy.Block);
+        before = backend.getStatistic();
+        resourceUuid = writeLogs();
+        waitForDone(before);
+        stat = backend.getStatistic();
+        Assert.assertEquals(before.getDropped(), stat.getDropped());
+        Assert.assertEquals(logNum, countLogs(resourceUuid));
+
+        restart(LogOverflowPolicy.Spill);
+        before = backend.getStatistic();
+        resourceUuid = writeLogs();
+        waitForDone(before);
+        stat = backend.getStatistic();
+        Assert.assertTrue(stat.getSpilled() - before.getSpilled() > 0);
+        Assert.assertEquals(before.getDropped(), stat.getDropped());
+        Assert.assertEquals(logNum, countLogs(resourceUuid));
+        // the spill file is deleted after the replayed logs are written
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(10, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return !new File(LogGlobalProperty.MYSQL_SPILL_FILE + ".replaying").exists();
+            }
+        });
+        Assert.assertFalse(new File(LogGlobalProperty.MYSQL_SPILL_FILE).exists());
+        Assert.assertFalse(new File(LogGlobalProperty.MYSQL_SPILL_FILE + ".replaying").exists());
+    }
+}
@@ -0,0 +1,97 @@
+package org.zstack.test.core.rest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.rest.HttpCallStatistic;
+import org.zstack.header.rest.JsonAsyncRESTCallback;
+import org.zstack.header.rest.RESTFacade;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. turn on profiler.httpCall
+ * 2. make many async json posts at the same time
+ *
+ * confirm all posts succeed and are counted in the statistic of the url path
+ */
+public class TestRestHttpCallStatistic {
+    CLogger logger = Utils.getLogger(TestRestHttpCallStatistic.class);
+    WebBeanConstructor wbean;
+    ComponentLoader loader;
+    RESTFacade restf;
+    int num = 100;
+    CountDownLatch latch = new CountDownLatch(num);
+    AtomicInteger success = new AtomicInteger(0);
+
+    @Before
+    public void setUp() throws Exception {
+        wbean = new WebBeanConstructor();
+        wbean.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml");
+        loader = wbean.build();
+        restf = loader.getComponent(RESTFacade.class);
+        CoreGlobalProperty.PROFILER_HTTP_CALL = true;
+    }
+
+    @After
+    public void tearDown() {
+        CoreGlobalProperty.PROFILER_HTTP_CALL = false;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        String url = wbean.buildUrl(RESTBeanForTest.ROOT, RESTBeanForTest.CALLBACK_PATH);
+        for (int i=0; i<num; i++) {
+            final String hi = Platform.getUuid();
+            restf.asyncJsonPost(url, hi, new JsonAsyncRESTCallback<String>() {
+                @Override
+                public void fail(ErrorCode err) {
+                    logger.error(String.format("fail: %s", err));
+                    latch.countDown();
+                }
+
+                @Override
+                public void success(String ret) {
+                    if (hi.equals(ret)) {
+                        success.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public Class<String> getReturnClass() {
+                    return String.class;
+                }
+            }, TimeUnit.SECONDS, 30);
+        }
+
+        latch.await(2, TimeUnit.MINUTES);
+        Assert.assertEquals(num, success.get());
+
+        String path = String.format("%s%s", RESTBeanForTest.ROOT, RESTBeanForTest.CALLBACK_PATH);
+        HttpCallStatistic stat = null;
+        for (HttpCallStatistic s : restf.getStatistics().values()) {
+            if (s.getUrl().endsWith(path)) {
+                stat = s;
+            }
+        }
+        Assert.assertNotNull(stat);
+        logger.debug(stat.toString());
+        Assert.assertEquals(num, stat.getCount());
+        long total = 0;
+        for (long c : stat.getLatencyHistogram()) {
+            total += c;
+        }
+        Assert.assertEquals(num, total);
+    }
+}
@@ -0,0 +1,181 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. submit chain tasks and sync tasks from many threads over many signatures
+ * 2. half of the signatures have sync level 1, the other half sync level 2
+ *
+ * confirm tasks a thread submits to a signature with sync level 1 run in the order they are submitted,
+ * and no signature runs more tasks at the same time than its sync level
+ */
+public class TestDispatchQueueContention {
+    CLogger logger = Utils.getLogger(TestDispatchQueueContention.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int submitterNum = 16;
+    int signatureNum = 500;
+    int tasksPerSubmitter = 2000;
+    CountDownLatch latch = new CountDownLatch(submitterNum * tasksPerSubmitter * 2);
+    Map<String, List<Integer>> orders = new ConcurrentHashMap<String, List<Integer>>();
+    Map<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+    volatile boolean overflow = false;
+
+    private int syncLevel(String signature) {
+        return signature.hashCode() % 2 == 0 ? 1 : 2;
+    }
+
+    private void enter(String signature) {
+        if (running.get(signature).incrementAndGet() > syncLevel(signature)) {
+            overflow = true;
+        }
+    }
+
+    private void exit(String signature) {
+        running.get(signature).decrementAndGet();
+    }
+
+    class ChainTester extends ChainTask {
+        String signature;
+        int index;
+
+        ChainTester(String signature, int index) {
+            this.signature = signature;
+            this.index = index;
+        }
+
+        @Override
+        public String getSyncSignature() {
+            return signature;
+        }
+
+        @Override
+        protected int getSyncLevel() {
+            return syncLevel(signature);
+        }
+
+        @Override
+        public void run(SyncTaskChain chain) {
+            enter(signature);
+            orders.get(signature).add(index);
+            exit(signature);
+            latch.countDown();
+            chain.next();
+        }
+
+        @Override
+        public String getName() {
+            return signature;
+        }
+    }
+
+    class SyncTester implements SyncTask<Void> {
+        String signature;
+
+        SyncTester(String signature) {
+            this.signature = "sync-" + signature;
+        }
+
+        @Override
+        public String getSyncSignature() {
+            return signature;
+        }
+
+        @Override
+        public int getSyncLevel() {
+            return syncLevel(signature);
+        }
+
+        @Override
+        public String getName() {
+            return signature;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            enter(signature);
+            exit(signature);
+            latch.countDown();
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        for (int i = 0; i < signatureNum; i++) {
+            String signature = String.format("contention-%s", i);
+            orders.put(signature, Collections.synchronizedList(new ArrayList<Integer>()));
+            running.put(signature, new AtomicInteger(0));
+            running.put("sync-" + signature, new AtomicInteger(0));
+        }
+
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int i = 0; i < submitterNum; i++) {
+            final int submitter = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < tasksPerSubmitter; j++) {
+                        String signature = String.format("contention-%s", j % signatureNum);
+                        // submitters race with each other, only the order of a submitter's own tasks is known
+                        thdf.chainSubmit(new ChainTester(signature, submitter * tasksPerSubmitter + j));
+                        thdf.syncSubmit(new SyncTester(signature));
+                    }
+                }
+            });
+            submitters.add(t);
+            t.start();
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread t : submitters) {
+            t.join();
+        }
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        logger.debug(String.format("%s tasks done in %sms", submitterNum * tasksPerSubmitter * 2, System.currentTimeMillis() - start));
+        Assert.assertFalse(overflow);
+
+        for (Map.Entry<String, List<Integer>> e : orders.entrySet()) {
+            if (syncLevel(e.getKey()) != 1) {
+                continue;
+            }
+
+            Map<Integer, Integer> lasts = new HashMap<Integer, Integer>();
+            for (Integer index : e.getValue()) {
+                int submitter = index / tasksPerSubmitter;
+                Integer last = lasts.get(submitter);
+                Assert.assertTrue(String.format("tasks of %s submitted by the submitter[%s] are out of order", e.getKey(), submitter),
+                        last == null || index > last);
+                lasts.put(submitter, index);
+            }
+        }
+    }
+}
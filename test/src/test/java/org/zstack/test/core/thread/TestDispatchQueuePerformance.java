@@ -0,0 +1,97 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * submit 100k chain tasks over 10k signatures from 8 threads and report the submit and completion time
+ */
+public class TestDispatchQueuePerformance {
+    CLogger logger = Utils.getLogger(TestDispatchQueuePerformance.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int taskNum = 100000;
+    int signatureNum = 10000;
+    int submitterNum = 8;
+    CountDownLatch latch = new CountDownLatch(taskNum);
+
+    class Tester extends ChainTask {
+        String signature;
+
+        Tester(String signature) {
+            this.signature = signature;
+        }
+
+        @Override
+        public String getSyncSignature() {
+            return signature;
+        }
+
+        @Override
+        public void run(SyncTaskChain chain) {
+            latch.countDown();
+            chain.next();
+        }
+
+        @Override
+        public String getName() {
+            return signature;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        final List<String> signatures = new ArrayList<String>(signatureNum);
+        for (int i = 0; i < signatureNum; i++) {
+            signatures.add(String.format("perf-%s", i));
+        }
+
+        long start = System.nanoTime();
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int i = 0; i < submitterNum; i++) {
+            final int offset = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = offset; j < taskNum; j += submitterNum) {
+                        thdf.chainSubmit(new Tester(signatures.get(j % signatureNum)));
+                    }
+                }
+            });
+            submitters.add(t);
+            t.start();
+        }
+
+        for (Thread t : submitters) {
+            t.join();
+        }
+        long submitted = System.nanoTime();
+
+        Assert.assertTrue(latch.await(5, TimeUnit.MINUTES));
+        long done = System.nanoTime();
+
+        logger.debug(String.format("submitted %s chain tasks over %s signatures in %sms, all done in %sms, %s tasks/s",
+                taskNum, signatureNum, TimeUnit.NANOSECONDS.toMillis(submitted - start), TimeUnit.NANOSECONDS.toMillis(done - start),
+                taskNum * 1000L / Math.max(1, TimeUnit.NANOSECONDS.toMillis(done - start))));
+    }
+}
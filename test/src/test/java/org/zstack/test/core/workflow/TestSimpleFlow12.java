@@ -0,0 +1,137 @@
+package org.zstack.test.core.workflow;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.workflow.SimpleFlowChain;
+import org.zstack.header.core.workflow.Flow;
+import org.zstack.header.core.workflow.FlowTrigger;
+import org.zstack.header.core.workflow.NoRollbackFlow;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.FieldUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 1. run a chain of 20 flows, like the start chain of a vm, many times
+ *
+ * confirm all flows are executed every time
+ * report the average time a chain takes, which is mostly the overhead of the chain itself
+ * report the time the chain took to resolve flow names before they were cached, which is
+ * looking up __name__ by reflection and formatting the debug messages twice per flow
+ *
+ * 2. run the chain with profiler.workflow on
+ *
+ * confirm the flows are profiled under the names in their __name__
+ */
+public class TestSimpleFlow12 {
+    CLogger logger = Utils.getLogger(TestSimpleFlow12.class);
+    int flowNum = 20;
+    int chainNum = 10000;
+    int count;
+
+    private List<Flow> makeFlows() {
+        List<Flow> flows = new ArrayList<Flow>();
+        for (int i = 0; i < flowNum; i++) {
+            final int index = i;
+            flows.add(new NoRollbackFlow() {
+                String __name__ = String.format("flow-%s", index);
+
+                @Override
+                public void run(FlowTrigger trigger, Map data) {
+                    count ++;
+                    trigger.next();
+                }
+            });
+        }
+        return flows;
+    }
+
+    private SimpleFlowChain makeChain() {
+        SimpleFlowChain chain = new SimpleFlowChain();
+        chain.setName("test-20-flows");
+        for (Flow flow : makeFlows()) {
+            chain.then(flow);
+        }
+        return chain;
+    }
+
+    // how the chain resolved a flow name before the introspection was cached
+    private String getFlowNameUncached(Flow flow) {
+        String name = FieldUtils.getFieldValue("__name__", flow);
+        if (name == null) {
+            name = flow.getClass().getSimpleName();
+            if (name.equals("")) {
+                name = flow.getClass().getName();
+            }
+        }
+        return name;
+    }
+
+    private long timeUncachedNameResolution() {
+        List<Flow> flows = makeFlows();
+        int length = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < chainNum; i++) {
+            for (Flow flow : flows) {
+                // once for "start executing flow", once for "successfully executed flow"
+                length += String.format("[FlowChain: %s] start executing flow[%s]", "test-20-flows", getFlowNameUncached(flow)).length();
+                length += String.format("[FlowChain: %s] successfully executed flow[%s]", "test-20-flows", getFlowNameUncached(flow)).length();
+            }
+        }
+        long time = System.nanoTime() - start;
+        Assert.assertTrue(length > 0);
+        return time;
+    }
+
+    private boolean isProfiled(String flowName) {
+        for (String name : SimpleFlowChain.getStatistics().keySet()) {
+            // with trace on, the name is prefixed by the location of the flow
+            if (name.equals(flowName) || name.endsWith(":" + flowName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void test() {
+        new BeanConstructor().build();
+
+        // warm up
+        for (int i = 0; i < 1000; i++) {
+            makeChain().start();
+        }
+        timeUncachedNameResolution();
+
+        count = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < chainNum; i++) {
+            makeChain().start();
+        }
+        long time = System.nanoTime() - start;
+        Assert.assertEquals(flowNum * chainNum, count);
+
+        long uncached = timeUncachedNameResolution();
+        logger.info(String.format("a chain of %s flows takes %s us on average, resolving flow names without the cache" +
+                " took another %s us per chain", flowNum, time / chainNum / 1000, uncached / chainNum / 1000));
+
+        CoreGlobalProperty.PROFILER_WORKFLOW = true;
+        try {
+            count = 0;
+            makeChain().start();
+            Assert.assertEquals(flowNum, count);
+        } finally {
+            CoreGlobalProperty.PROFILER_WORKFLOW = false;
+        }
+
+        for (int i = 0; i < flowNum; i++) {
+            String name = String.format("flow-%s", i);
+            Assert.assertTrue(String.format("flow[%s] is not profiled by its name", name), isProfiled(name));
+        }
+    }
+}
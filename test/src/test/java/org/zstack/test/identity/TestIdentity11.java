@@ -0,0 +1,111 @@
+package org.zstack.test.identity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.identity.*;
+import org.zstack.header.identity.AccountConstant.StatementEffect;
+import org.zstack.header.identity.PolicyInventory.Statement;
+import org.zstack.header.query.APIQueryMessage;
+import org.zstack.header.query.APIQueryReply;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import static org.zstack.utils.CollectionDSL.list;
+
+/**
+ * 1. create a user with no policy
+ *
+ * confirm the user can't query policies
+ *
+ * 2. attach a policy allowing to query policies to the user
+ *
+ * confirm the user can query policies but not users
+ *
+ * 3. add the user to a group with a policy allowing all queries, denying querying policies
+ *
+ * confirm the user can query users and policies, as user policies go first
+ *
+ * 4. detach the policy from the user
+ *
+ * confirm the user can't query policies but users
+ *
+ * 5. remove the user from the group
+ *
+ * confirm the user can query neither of them
+ */
+public class TestIdentity11 {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    private boolean canQuery(APIQueryMessage msg, SessionInventory session) {
+        try {
+            api.query(msg, APIQueryReply.class, session);
+            return true;
+        } catch (ApiSenderException e) {
+            return false;
+        }
+    }
+
+    private boolean canQueryPolicy(SessionInventory session) {
+        return canQuery(new APIQueryPolicyMsg(), session);
+    }
+
+    private boolean canQueryUser(SessionInventory session) {
+        return canQuery(new APIQueryUserMsg(), session);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        IdentityCreator creator = new IdentityCreator(api);
+        creator.createAccount("test", "test");
+        creator.createUser("user", "password");
+        SessionInventory session = creator.userLogin("user", "password");
+        Assert.assertFalse(canQueryPolicy(session));
+
+        Statement s = new Statement();
+        s.addAction(String.format("%s:%s", AccountConstant.ACTION_CATEGORY, APIQueryPolicyMsg.class.getSimpleName()));
+        s.setEffect(StatementEffect.Allow);
+        creator.createPolicy("allowQueryPolicy", s);
+        creator.attachPolicyToUser("user", "allowQueryPolicy");
+        Assert.assertTrue(canQueryPolicy(session));
+        Assert.assertFalse(canQueryUser(session));
+
+        Statement deny = new Statement();
+        deny.addAction(String.format("%s:%s", AccountConstant.ACTION_CATEGORY, APIQueryPolicyMsg.class.getName().replace(".", "\\.")));
+        deny.setEffect(StatementEffect.Deny);
+        Statement allow = new Statement();
+        allow.addAction(String.format("%s:.*Query.*", AccountConstant.ACTION_CATEGORY));
+        allow.setEffect(StatementEffect.Allow);
+        creator.createGroup("group");
+        creator.createPolicy("allowQuery", list(deny, allow));
+        creator.attachPolicyToGroup("group", "allowQuery");
+        creator.addUserToGroup("user", "group");
+        Assert.assertTrue(canQueryPolicy(session));
+        Assert.assertTrue(canQueryUser(session));
+
+        creator.detachPolicyFromUser("user", "allowQueryPolicy");
+        Assert.assertFalse(canQueryPolicy(session));
+        Assert.assertTrue(canQueryUser(session));
+
+        creator.removeUserFromGroup("user", "group");
+        Assert.assertFalse(canQueryPolicy(session));
+        Assert.assertFalse(canQueryUser(session));
+    }
+}
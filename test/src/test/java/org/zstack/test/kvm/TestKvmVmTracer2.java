@@ -0,0 +1,70 @@
+package org.zstack.test.kvm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.vm.VmTracer;
+import org.zstack.compute.vm.VmTracerStatistic;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. create a vm
+ * 2. make the vm disappear on the host
+ * 3. reconnect the host
+ *
+ * confirm the vm is stopped
+ * confirm the vm tracer counts the reconciliation and the mismatch
+ */
+public class TestKvmVmTracer2 {
+    CLogger logger = Utils.getLogger(TestKvmVmTracer2.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    KVMSimulatorConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestKvmVmTracer.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(KVMSimulatorConfig.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        VmTracerStatistic stat1 = VmTracer.getStatistic();
+
+        config.vms.remove(vm.getUuid());
+        api.reconnectHost(vm.getHostUuid());
+        TimeUnit.SECONDS.sleep(3);
+
+        VmInstanceVO vmvo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+        Assert.assertEquals(VmInstanceState.Stopped, vmvo.getState());
+
+        VmTracerStatistic stat2 = VmTracer.getStatistic();
+        logger.debug(stat2.toString());
+        Assert.assertTrue(stat2.getReconciliationCount() > stat1.getReconciliationCount());
+        Assert.assertTrue(stat2.getMismatchCount() > stat1.getMismatchCount());
+    }
+}
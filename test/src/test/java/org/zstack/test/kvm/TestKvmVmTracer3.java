@@ -0,0 +1,178 @@
+package org.zstack.test.kvm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.vm.VmTracer;
+import org.zstack.compute.vm.VmTracerStatistic;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.kvm.KVMGlobalConfig;
+import org.zstack.kvm.KvmVmSyncPingTask;
+import org.zstack.test.Api;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.TimeUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. hold the queue of the vm
+ * 2. report the host of the vm twice without the vm
+ *
+ * confirm both reports are reconciled while the message stopping the vm is not replied
+ *
+ * 3. hold all reconcilers, report 20 other hosts, then release the reconcilers
+ *
+ * confirm the reports are reconciled by 4 reconcilers, each taking 5 hosts
+ *
+ * 4. release the queue of the vm
+ *
+ * confirm the vm is stopped
+ */
+public class TestKvmVmTracer3 {
+    CLogger logger = Utils.getLogger(TestKvmVmTracer3.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    ThreadFacade thdf;
+    VmTracer tracer;
+    Method reportVmState;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestKvmVmTracer.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        thdf = loader.getComponent(ThreadFacade.class);
+        tracer = loader.getComponent(KvmVmSyncPingTask.class);
+        reportVmState = VmTracer.class.getDeclaredMethod("reportVmState", String.class, Map.class);
+        reportVmState.setAccessible(true);
+        KVMGlobalConfig.VM_SYNC_ON_HOST_PING.updateValue(false);
+    }
+
+    private void report(String hostUuid, Map<String, VmInstanceState> states) throws Exception {
+        reportVmState.invoke(tracer, hostUuid, states);
+    }
+
+    private void hold(final String syncSignature, final int syncLevel, final CountDownLatch release) {
+        thdf.chainSubmit(new ChainTask() {
+            @Override
+            public String getSyncSignature() {
+                return syncSignature;
+            }
+
+            @Override
+            public int getSyncLevel() {
+                return syncLevel;
+            }
+
+            @Override
+            public void run(SyncTaskChain chain) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+                chain.next();
+            }
+
+            @Override
+            public String getName() {
+                return "hold-" + syncSignature;
+            }
+        });
+    }
+
+    private void waitForReconciliations(final long count) {
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(10, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return VmTracer.getStatistic().getReconciliationCount() >= count;
+            }
+        });
+    }
+
+    @Test
+    public void test() throws Exception {
+        int batchSize = CoreGlobalProperty.VM_TRACER_BATCH_SIZE;
+        int parallelismDegree = CoreGlobalProperty.VM_TRACER_PARALLELISM_DEGREE;
+        CoreGlobalProperty.VM_TRACER_BATCH_SIZE = 5;
+        CoreGlobalProperty.VM_TRACER_PARALLELISM_DEGREE = 4;
+        try {
+            doTest();
+        } finally {
+            CoreGlobalProperty.VM_TRACER_BATCH_SIZE = batchSize;
+            CoreGlobalProperty.VM_TRACER_PARALLELISM_DEGREE = parallelismDegree;
+        }
+    }
+
+    private void doTest() throws Exception {
+        final VmInstanceInventory vm = deployer.vms.get("TestVm");
+
+        CountDownLatch vmQueue = new CountDownLatch(1);
+        hold("Vm-" + vm.getUuid(), 1, vmQueue);
+
+        VmTracerStatistic stat1 = VmTracer.getStatistic();
+        report(vm.getHostUuid(), new HashMap<String, VmInstanceState>());
+        waitForReconciliations(stat1.getReconciliationCount() + 1);
+        report(vm.getHostUuid(), new HashMap<String, VmInstanceState>());
+        waitForReconciliations(stat1.getReconciliationCount() + 2);
+
+        VmTracerStatistic stat2 = VmTracer.getStatistic();
+        Assert.assertEquals(stat1.getReconciliationCount() + 2, stat2.getReconciliationCount());
+        Assert.assertEquals(stat1.getMismatchCount() + 2, stat2.getMismatchCount());
+        VmInstanceVO vmvo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+        Assert.assertEquals(VmInstanceState.Running, vmvo.getState());
+
+        CountDownLatch reconcilers = new CountDownLatch(1);
+        for (int i = 0; i < CoreGlobalProperty.VM_TRACER_PARALLELISM_DEGREE; i++) {
+            hold("vm-tracer", CoreGlobalProperty.VM_TRACER_PARALLELISM_DEGREE, reconcilers);
+        }
+
+        int hostNum = 20;
+        for (int i = 0; i < hostNum; i++) {
+            report(Platform.getUuid(), new HashMap<String, VmInstanceState>());
+        }
+        reconcilers.countDown();
+        waitForReconciliations(stat2.getReconciliationCount() + 4);
+        TimeUnit.SECONDS.sleep(1);
+
+        VmTracerStatistic stat3 = VmTracer.getStatistic();
+        logger.debug(stat3.toString());
+        Assert.assertEquals(stat2.getReconciliationCount() + 4, stat3.getReconciliationCount());
+        Assert.assertEquals(stat2.getHostCount() + hostNum, stat3.getHostCount());
+        Assert.assertEquals(stat2.getMismatchCount(), stat3.getMismatchCount());
+
+        vmQueue.countDown();
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(10, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                VmInstanceVO vmvo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+                return VmInstanceState.Stopped == vmvo.getState();
+            }
+        });
+    }
+}
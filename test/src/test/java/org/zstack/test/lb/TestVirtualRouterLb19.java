@@ -0,0 +1,193 @@
+package org.zstack.test.lb;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.network.service.lb.LoadBalancerInventory;
+import org.zstack.network.service.lb.LoadBalancerListenerInventory;
+import org.zstack.network.service.lb.LoadBalancerListenerVO;
+import org.zstack.network.service.lb.LoadBalancerListenerVmNicRefVO;
+import org.zstack.network.service.lb.LoadBalancerListenerVmNicRefVO_;
+import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.LbTO;
+import org.zstack.network.service.virtualrouter.lb.VirtualRouterLoadBalancerBackend.UpdateLbCmd;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.TimeUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. use a virtual router versioning configs of load balancers
+ * 2. add a nic
+ *
+ * confirm only the changed listener is updated, the config is not refreshed
+ *
+ * 3. remove the nic
+ *
+ * confirm the nic is removed by an update
+ *
+ * 4. change the version of the config on the virtual router, then add the nic
+ *
+ * confirm the config is refreshed
+ *
+ * 5. hold the push of adding the nic of a vm, meanwhile add nics of another two vms
+ *
+ * confirm all nics are added
+ * confirm nics of the two vms queued behind the held push are added by one update
+ */
+public class TestVirtualRouterLb19 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    VirtualRouterSimulatorConfig vconfig;
+    int num = 3;
+    CountDownLatch latch = new CountDownLatch(num);
+    List<String> failures = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/lb/TestVirtualRouterLb4.xml", con);
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("vip.xml");
+        deployer.addSpringConfig("lb.xml");
+        deployer.load();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        vconfig.lbConfigVersions = new HashMap<String, Long>();
+        deployer.build();
+        api = deployer.getApi();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private VmInstanceInventory createVm() throws ApiSenderException {
+        ImageInventory img = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("TestInstanceOffering");
+        L3NetworkInventory l3 = deployer.l3Networks.get("GuestNetwork");
+        VmCreator creator = new VmCreator(api);
+        creator.imageUuid = img.getUuid();
+        creator.instanceOfferingUuid = ioinv.getUuid();
+        creator.addL3Network(l3.getUuid());
+        return creator.create();
+    }
+
+    @AsyncThread
+    private void addNic(String listenerUuid, String nicUuid) {
+        try {
+            api.addVmNicToLoadBalancerListener(listenerUuid, nicUuid);
+        } catch (ApiSenderException e) {
+            synchronized (failures) {
+                failures.add(nicUuid);
+            }
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    private boolean hasNicIp(LbTO to, String ip) {
+        return to.getNicIps().contains(ip);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        LoadBalancerInventory lb = deployer.loadBalancers.get("lb");
+        LoadBalancerListenerInventory l = deployer.loadBalancerListeners.get("listener");
+        VmInstanceInventory vm1 = deployer.vms.get("TestVm1");
+        VmNicInventory nic1 = vm1.getVmNics().get(0);
+
+        vconfig.refreshLbCmds.clear();
+        vconfig.updateLbCmds.clear();
+        api.addVmNicToLoadBalancerListener(l.getUuid(), nic1.getUuid());
+        Assert.assertTrue(vconfig.refreshLbCmds.isEmpty());
+        Assert.assertEquals(1, vconfig.updateLbCmds.size());
+        UpdateLbCmd cmd = vconfig.updateLbCmds.get(0);
+        Assert.assertEquals(lb.getUuid(), cmd.getLbUuid());
+        Assert.assertEquals(1, cmd.getLbs().size());
+        Assert.assertTrue(cmd.getDeletedLbs().isEmpty());
+        Assert.assertEquals(l.getUuid(), cmd.getLbs().get(0).getListenerUuid());
+        Assert.assertTrue(hasNicIp(cmd.getLbs().get(0), nic1.getIp()));
+
+        vconfig.updateLbCmds.clear();
+        api.removeNicFromLoadBalancerListener(l.getUuid(), nic1.getUuid(), null);
+        Assert.assertTrue(vconfig.refreshLbCmds.isEmpty());
+        Assert.assertEquals(1, vconfig.updateLbCmds.size());
+        cmd = vconfig.updateLbCmds.get(0);
+        Assert.assertFalse(hasNicIp(cmd.getLbs().get(0), nic1.getIp()));
+
+        vconfig.updateLbCmds.clear();
+        vconfig.lbConfigVersions.put(lb.getUuid(), 1L);
+        api.addVmNicToLoadBalancerListener(l.getUuid(), nic1.getUuid());
+        Assert.assertEquals(1, vconfig.updateLbCmds.size());
+        Assert.assertEquals(1, vconfig.refreshLbCmds.size());
+        Assert.assertTrue(hasNicIp(vconfig.refreshLbCmds.get(0).getLbs().get(0), nic1.getIp()));
+
+        List<VmNicInventory> nics = new ArrayList<VmNicInventory>();
+        for (int i = 0; i < num; i++) {
+            nics.add(createVm().getVmNics().get(0));
+        }
+
+        vconfig.refreshLbCmds.clear();
+        vconfig.updateLbCmds.clear();
+        vconfig.updateLbDelay = TimeUnit.SECONDS.toMillis(3);
+        final VmNicInventory held = nics.get(0);
+        addNic(l.getUuid(), held.getUuid());
+        // the nic is written to the database right before the push
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(30, 100, TimeUnit.MILLISECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                SimpleQuery<LoadBalancerListenerVmNicRefVO> q = dbf.createQuery(LoadBalancerListenerVmNicRefVO.class);
+                q.add(LoadBalancerListenerVmNicRefVO_.vmNicUuid, Op.EQ, held.getUuid());
+                return q.isExists();
+            }
+        });
+        for (VmNicInventory nic : nics.subList(1, num)) {
+            addNic(l.getUuid(), nic.getUuid());
+        }
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        vconfig.updateLbDelay = 0;
+        Assert.assertTrue(failures.isEmpty());
+        Assert.assertTrue(vconfig.refreshLbCmds.isEmpty());
+        Assert.assertEquals(2, vconfig.updateLbCmds.size());
+        LbTO first = vconfig.updateLbCmds.get(0).getLbs().get(0);
+        Assert.assertTrue(hasNicIp(first, held.getIp()));
+        for (VmNicInventory nic : nics.subList(1, num)) {
+            Assert.assertFalse(hasNicIp(first, nic.getIp()));
+        }
+
+        LoadBalancerListenerVO lvo = dbf.findByUuid(l.getUuid(), LoadBalancerListenerVO.class);
+        Set<String> nicUuids = new HashSet<String>();
+        for (LoadBalancerListenerVmNicRefVO ref : lvo.getVmNicRefs()) {
+            nicUuids.add(ref.getVmNicUuid());
+        }
+        for (VmNicInventory nic : nics) {
+            Assert.assertTrue(nicUuids.contains(nic.getUuid()));
+        }
+
+        LbTO to = vconfig.updateLbCmds.get(vconfig.updateLbCmds.size() - 1).getLbs().get(0);
+        for (VmNicInventory nic : nics) {
+            Assert.assertTrue(hasNicIp(to, nic.getIp()));
+        }
+    }
+}
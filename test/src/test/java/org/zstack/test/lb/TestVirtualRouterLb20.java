@@ -0,0 +1,144 @@
+package org.zstack.test.lb;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.network.service.lb.LoadBalancerListenerInventory;
+import org.zstack.network.service.lb.LoadBalancerListenerVO;
+import org.zstack.network.service.lb.LoadBalancerListenerVmNicRefVO;
+import org.zstack.network.service.lb.LoadBalancerListenerVmNicRefVO_;
+import org.zstack.network.service.lb.LoadBalancerVmNicStatus;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.TimeUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. hold the push of adding the nic of vm1
+ * 2. meanwhile add nics of vm2 and vm3, make the virtual router fail to apply any config having the nic of vm2
+ *
+ * confirm the nics of vm2 and vm3 queued behind the held push are retried one by one after failing together
+ * confirm adding the nic of vm2 fails and adding nics of vm1 and vm3 succeeds
+ * confirm only nics of vm1 and vm3 are on the listener
+ */
+public class TestVirtualRouterLb20 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    VirtualRouterSimulatorConfig vconfig;
+    CountDownLatch latch = new CountDownLatch(3);
+    // vm nic uuid -> if it's added
+    Map<String, Boolean> results = new HashMap<String, Boolean>();
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/lb/TestVirtualRouterLb4.xml", con);
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("vip.xml");
+        deployer.addSpringConfig("lb.xml");
+        deployer.load();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        vconfig.lbConfigVersions = new HashMap<String, Long>();
+        deployer.build();
+        api = deployer.getApi();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private VmInstanceInventory createVm() throws ApiSenderException {
+        ImageInventory img = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("TestInstanceOffering");
+        L3NetworkInventory l3 = deployer.l3Networks.get("GuestNetwork");
+        VmCreator creator = new VmCreator(api);
+        creator.imageUuid = img.getUuid();
+        creator.instanceOfferingUuid = ioinv.getUuid();
+        creator.addL3Network(l3.getUuid());
+        return creator.create();
+    }
+
+    @AsyncThread
+    private void addNic(String listenerUuid, String nicUuid) {
+        boolean success = false;
+        try {
+            api.addVmNicToLoadBalancerListener(listenerUuid, nicUuid);
+            success = true;
+        } catch (ApiSenderException e) {
+            success = false;
+        } finally {
+            synchronized (results) {
+                results.put(nicUuid, success);
+            }
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        LoadBalancerListenerInventory l = deployer.loadBalancerListeners.get("listener");
+        final VmNicInventory nic1 = createVm().getVmNics().get(0);
+        VmNicInventory nic2 = createVm().getVmNics().get(0);
+        VmNicInventory nic3 = createVm().getVmNics().get(0);
+
+        vconfig.refreshLbCmds.clear();
+        vconfig.updateLbCmds.clear();
+        vconfig.updateLbDelay = TimeUnit.SECONDS.toMillis(3);
+        addNic(l.getUuid(), nic1.getUuid());
+        // the nic is written to the database right before the push
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(30, 100, TimeUnit.MILLISECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                SimpleQuery<LoadBalancerListenerVmNicRefVO> q = dbf.createQuery(LoadBalancerListenerVmNicRefVO.class);
+                q.add(LoadBalancerListenerVmNicRefVO_.vmNicUuid, Op.EQ, nic1.getUuid());
+                return q.isExists();
+            }
+        });
+        vconfig.lbFailNicIps.add(nic2.getIp());
+        addNic(l.getUuid(), nic2.getUuid());
+        addNic(l.getUuid(), nic3.getUuid());
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        vconfig.updateLbDelay = 0;
+
+        Assert.assertTrue(results.get(nic1.getUuid()));
+        Assert.assertFalse(results.get(nic2.getUuid()));
+        Assert.assertTrue(results.get(nic3.getUuid()));
+
+        LoadBalancerListenerVO lvo = dbf.findByUuid(l.getUuid(), LoadBalancerListenerVO.class);
+        Set<String> nicUuids = new HashSet<String>();
+        for (LoadBalancerListenerVmNicRefVO ref : lvo.getVmNicRefs()) {
+            Assert.assertEquals(LoadBalancerVmNicStatus.Active, ref.getStatus());
+            nicUuids.add(ref.getVmNicUuid());
+        }
+        Assert.assertEquals(2, nicUuids.size());
+        Assert.assertTrue(nicUuids.contains(nic1.getUuid()));
+        Assert.assertTrue(nicUuids.contains(nic3.getUuid()));
+
+        // the push of vm1's nic and the successful retry of vm3's nic, the failed pushes are not recorded
+        Assert.assertEquals(1, vconfig.updateLbCmds.size());
+        Assert.assertEquals(1, vconfig.refreshLbCmds.size());
+        Assert.assertTrue(vconfig.refreshLbCmds.get(0).getLbs().get(0).getNicIps().contains(nic3.getIp()));
+        Assert.assertFalse(vconfig.refreshLbCmds.get(0).getLbs().get(0).getNicIps().contains(nic2.getIp()));
+    }
+}
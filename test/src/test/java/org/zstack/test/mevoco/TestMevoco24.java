@@ -0,0 +1,182 @@
+package org.zstack.test.mevoco;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.network.service.flat.FlatDhcpBackend;
+import org.zstack.network.service.flat.FlatDhcpBackend.ApplyDhcpCmd;
+import org.zstack.network.service.flat.FlatNetworkServiceSimulatorConfig;
+import org.zstack.storage.primary.local.LocalStorageSimulatorConfig;
+import org.zstack.storage.primary.local.LocalStorageSimulatorConfig.Capacity;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.FieldUtils;
+import org.zstack.utils.TimeUtils;
+import org.zstack.utils.data.SizeUnit;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. use an agent versioning DHCP tables
+ * 2. create two vms concurrently
+ *
+ * confirm DHCP of the two vms is applied in one command
+ *
+ * 3. create a vm
+ *
+ * confirm the DHCP server is not prepared again
+ *
+ * 4. reconnect the host
+ *
+ * confirm no DHCP is applied as the table on the agent is up to date
+ *
+ * 5. change the version of the table on the agent, then create a vm
+ *
+ * confirm the DHCP server is prepared again as the host has reconnected
+ * confirm the table is rebuilt with all vms
+ *
+ * 6. reconnect the host with the tables on the agent lost
+ *
+ * confirm the table is rebuilt with all vms
+ *
+ * 7. use an agent not versioning DHCP tables, reconnect the host and create a vm
+ *
+ * confirm the DHCP server is prepared on every apply
+ *
+ * 8. delete the host
+ *
+ * confirm the DHCP tables of the host are dropped
+ */
+public class TestMevoco24 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    LocalStorageSimulatorConfig config;
+    FlatNetworkServiceSimulatorConfig fconfig;
+    long totalSize = SizeUnit.GIGABYTE.toByte(100);
+    CountDownLatch latch = new CountDownLatch(2);
+    List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/mevoco/TestMevoco.xml", con);
+        deployer.addSpringConfig("mevocoRelated.xml");
+        deployer.load();
+
+        loader = deployer.getComponentLoader();
+        config = loader.getComponent(LocalStorageSimulatorConfig.class);
+        fconfig = loader.getComponent(FlatNetworkServiceSimulatorConfig.class);
+        fconfig.dhcpTableVersions = new HashMap<String, Long>();
+
+        Capacity c = new Capacity();
+        c.total = totalSize;
+        c.avail = totalSize;
+
+        config.capacityMap.put("host1", c);
+
+        deployer.build();
+        api = deployer.getApi();
+    }
+
+    private void createVm() throws ApiSenderException {
+        ImageInventory img = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("small");
+        L3NetworkInventory l3 = deployer.l3Networks.get("TestL3Network1");
+        VmCreator creator = new VmCreator(api);
+        creator.imageUuid = img.getUuid();
+        creator.instanceOfferingUuid = ioinv.getUuid();
+        creator.addL3Network(l3.getUuid());
+        creator.create();
+    }
+
+    @AsyncThread
+    private void createVmAsync() {
+        try {
+            createVm();
+        } catch (Throwable t) {
+            errors.add(t);
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        HostInventory host = deployer.hosts.get("host1");
+        loader.getComponent(FlatDhcpBackend.class).setDhcpBatchWindow(TimeUnit.SECONDS.toMillis(5));
+
+        fconfig.applyDhcpCmdList.clear();
+        fconfig.prepareDhcpCmdList.clear();
+        createVmAsync();
+        createVmAsync();
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertEquals(1, fconfig.applyDhcpCmdList.size());
+        ApplyDhcpCmd cmd = fconfig.applyDhcpCmdList.get(0);
+        Assert.assertFalse(cmd.rebuild);
+        Assert.assertEquals(2, cmd.dhcp.size());
+        String bridgeName = cmd.dhcp.get(0).bridgeName;
+        Assert.assertEquals(Long.valueOf(cmd.version), fconfig.dhcpTableVersions.get(bridgeName));
+        Assert.assertEquals(1, fconfig.prepareDhcpCmdList.size());
+
+        loader.getComponent(FlatDhcpBackend.class).setDhcpBatchWindow(0);
+        fconfig.applyDhcpCmdList.clear();
+        fconfig.prepareDhcpCmdList.clear();
+        createVm();
+        Assert.assertEquals(1, fconfig.applyDhcpCmdList.size());
+        Assert.assertTrue(fconfig.prepareDhcpCmdList.isEmpty());
+
+        fconfig.applyDhcpCmdList.clear();
+        api.reconnectHost(host.getUuid());
+        Assert.assertTrue(fconfig.applyDhcpCmdList.isEmpty());
+
+        fconfig.dhcpTableVersions.put(bridgeName, 1L);
+        createVm();
+        Assert.assertEquals(2, fconfig.applyDhcpCmdList.size());
+        Assert.assertFalse(fconfig.applyDhcpCmdList.get(0).rebuild);
+        Assert.assertFalse(fconfig.prepareDhcpCmdList.isEmpty());
+        cmd = fconfig.applyDhcpCmdList.get(1);
+        Assert.assertTrue(cmd.rebuild);
+        Assert.assertEquals(5, cmd.dhcp.size());
+
+        fconfig.dhcpTableVersions.clear();
+        fconfig.applyDhcpCmdList.clear();
+        api.reconnectHost(host.getUuid());
+        Assert.assertEquals(1, fconfig.applyDhcpCmdList.size());
+        cmd = fconfig.applyDhcpCmdList.get(0);
+        Assert.assertTrue(cmd.rebuild);
+        Assert.assertEquals(5, cmd.dhcp.size());
+
+        fconfig.dhcpTableVersions = null;
+        api.reconnectHost(host.getUuid());
+        fconfig.prepareDhcpCmdList.clear();
+        createVm();
+        createVm();
+        Assert.assertEquals(2, fconfig.prepareDhcpCmdList.size());
+
+        final Map hostDhcpTables = FieldUtils.getFieldValue("hostDhcpTables", loader.getComponent(FlatDhcpBackend.class));
+        Assert.assertTrue(hostDhcpTables.containsKey(host.getUuid()));
+        api.deleteHost(host.getUuid());
+        final String hostUuid = host.getUuid();
+        TimeUtils.loopExecuteUntilTimeoutIgnoreException(10, 1, TimeUnit.SECONDS, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return !hostDhcpTables.containsKey(hostUuid);
+            }
+        });
+    }
+}
@@ -0,0 +1,150 @@
+package org.zstack.test.network;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.network.l2.L2NetworkInventory;
+import org.zstack.header.network.l3.*;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.network.l3.BitmapIpAllocatorStrategy;
+import org.zstack.network.l3.L3NetworkManager;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.List;
+
+/**
+ * 1. allocate ips with the bitmap strategy
+ * 2. return an ip
+ * 3. take/release ips behind the strategy's back, like other management nodes do
+ * 4. allocate ips in bulk
+ * 5. delete an ip without ReturnIpMsg while the range is not full
+ * 6. allocate more ips than available by AllocateIpsMsg
+ *
+ * confirm the first available ip is allocated every time
+ * confirm AllocateIpsMsg allocates all ips or none
+ */
+public class TestBitmapIpAllocatorStrategy {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CloudBus bus;
+    L3NetworkManager l3NwMgr;
+    BitmapIpAllocatorStrategy strategy;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ZoneManager.xml").addXml("NetworkManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        bus = loader.getComponent(CloudBus.class);
+        l3NwMgr = loader.getComponent(L3NetworkManager.class);
+        strategy = loader.getComponent(BitmapIpAllocatorStrategy.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        api.stopServer();
+    }
+
+    private UsedIpInventory allocate(String l3Uuid) {
+        AllocateIpMsg msg = new AllocateIpMsg();
+        msg.setL3NetworkUuid(l3Uuid);
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        AllocateIpReply reply = (AllocateIpReply) bus.call(msg);
+        return reply.isSuccess() ? reply.getIpInventory() : null;
+    }
+
+    private AllocateIpsReply allocate(String l3Uuid, int num) {
+        AllocateIpsMsg msg = new AllocateIpsMsg();
+        msg.setL3NetworkUuid(l3Uuid);
+        msg.setNum(num);
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        return (AllocateIpsReply) bus.call(msg);
+    }
+
+    private void returnIp(UsedIpInventory ip) {
+        ReturnIpMsg rmsg = new ReturnIpMsg();
+        rmsg.setL3NetworkUuid(ip.getL3NetworkUuid());
+        rmsg.setUsedIpUuid(ip.getUuid());
+        bus.makeLocalServiceId(rmsg, L3NetworkConstant.SERVICE_ID);
+        Assert.assertTrue(bus.call(rmsg).isSuccess());
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        L2NetworkInventory linv = api.createNoVlanL2Network(zone.getUuid(), "eth0");
+        final L3NetworkInventory l3inv = api.createL3BasicNetwork(linv.getUuid());
+        IpRangeInventory ipr = api.addIpRange(l3inv.getUuid(), "10.223.110.10", "10.223.110.20", "10.223.110.1", "255.255.255.0");
+
+        Assert.assertEquals("10.223.110.10", allocate(l3inv.getUuid()).getIp());
+        UsedIpInventory ip11 = allocate(l3inv.getUuid());
+        Assert.assertEquals("10.223.110.11", ip11.getIp());
+        UsedIpInventory ip12 = allocate(l3inv.getUuid());
+        Assert.assertEquals("10.223.110.12", ip12.getIp());
+
+        returnIp(ip11);
+        Assert.assertNull(dbf.findByUuid(ip11.getUuid(), UsedIpVO.class));
+        Assert.assertEquals("10.223.110.11", allocate(l3inv.getUuid()).getIp());
+
+        // taken by another management node
+        l3NwMgr.reserveIp(ipr, "10.223.110.13");
+        Assert.assertEquals("10.223.110.14", allocate(l3inv.getUuid()).getIp());
+
+        IpAllocateMessage amsg = new IpAllocateMessage() {
+            @Override
+            public String getAllocatorStrategy() {
+                return L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY;
+            }
+
+            @Override
+            public String getL3NetworkUuid() {
+                return l3inv.getUuid();
+            }
+
+            @Override
+            public String getRequiredIp() {
+                return null;
+            }
+        };
+        List<UsedIpInventory> ips = strategy.allocateIps(amsg, 10);
+        Assert.assertEquals(6, ips.size());
+        Assert.assertEquals("10.223.110.15", ips.get(0).getIp());
+        Assert.assertEquals("10.223.110.20", ips.get(5).getIp());
+        Assert.assertNull(allocate(l3inv.getUuid()));
+
+        // released by another management node
+        UsedIpVO ip17 = dbf.findByUuid(ips.get(2).getUuid(), UsedIpVO.class);
+        dbf.remove(ip17);
+        Assert.assertEquals("10.223.110.17", allocate(l3inv.getUuid()).getIp());
+        Assert.assertNull(allocate(l3inv.getUuid()));
+
+        returnIp(ips.get(3));
+        returnIp(ips.get(4));
+        // deleted without ReturnIpMsg, e.g. the DHCP server ip of the flat network provider
+        dbf.removeByPrimaryKey(ip12.getUuid(), UsedIpVO.class);
+        UsedIpInventory ip = allocate(l3inv.getUuid());
+        Assert.assertEquals("10.223.110.12", ip.getIp());
+
+        // only 18 and 19 are free
+        AllocateIpsReply reply = allocate(l3inv.getUuid(), 3);
+        Assert.assertFalse(reply.isSuccess());
+        reply = allocate(l3inv.getUuid(), 2);
+        Assert.assertTrue(reply.isSuccess());
+        Assert.assertEquals("10.223.110.18", reply.getIpInventories().get(0).getIp());
+        Assert.assertEquals("10.223.110.19", reply.getIpInventories().get(1).getIp());
+    }
+}
@@ -0,0 +1,66 @@
+package org.zstack.test.perf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * latencies of API calls grouped by names, reported as percentiles and throughput
+ */
+public class ApiLatencyRecorder {
+    private static class Samples {
+        List<Long> latencies = new ArrayList<Long>();
+        long failures;
+        long firstStart = Long.MAX_VALUE;
+        long lastEnd;
+    }
+
+    private final Map<String, Samples> samples = new TreeMap<String, Samples>();
+
+    public synchronized void record(String name, long start, long end, boolean success) {
+        Samples s = samples.get(name);
+        if (s == null) {
+            s = new Samples();
+            samples.put(name, s);
+        }
+
+        s.latencies.add(end - start);
+        s.firstStart = Math.min(s.firstStart, start);
+        s.lastEnd = Math.max(s.lastEnd, end);
+        if (!success) {
+            s.failures ++;
+        }
+    }
+
+    public synchronized long getFailures() {
+        long ret = 0;
+        for (Samples s : samples.values()) {
+            ret += s.failures;
+        }
+
+        return ret;
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0));
+    }
+
+    public synchronized String report(String title) {
+        StringBuilder sb = new StringBuilder(title);
+        sb.append(String.format("\n%-28s %8s %8s %10s %10s %10s %10s", "API", "calls", "failures", "p50(ms)", "p99(ms)", "max(ms)", "calls/s"));
+        for (Map.Entry<String, Samples> e : samples.entrySet()) {
+            Samples s = e.getValue();
+            List<Long> sorted = new ArrayList<Long>(s.latencies);
+            Collections.sort(sorted);
+            // the throughput is over the window from the first call started to the last call returned
+            double throughput = sorted.size() * 1000.0 / Math.max(s.lastEnd - s.firstStart, 1);
+            sb.append(String.format("\n%-28s %8s %8s %10s %10s %10s %10.1f", e.getKey(), sorted.size(), s.failures,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), sorted.get(sorted.size() - 1), throughput));
+        }
+
+        return sb.toString();
+    }
+}
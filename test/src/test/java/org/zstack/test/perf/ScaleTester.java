@@ -0,0 +1,532 @@
+package org.zstack.test.perf;
+
+import com.mchange.v2.c3p0.PooledDataSource;
+import junit.framework.Assert;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusMXBean;
+import org.zstack.core.cloudbus.MessageStatistic;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.thread.*;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.configuration.DiskOfferingInventory;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.APIAddHostEvent;
+import org.zstack.header.host.HostStatus;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.host.HostVO_;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.query.QueryOp;
+import org.zstack.header.simulator.APIAddSimulatorHostMsg;
+import org.zstack.header.vm.*;
+import org.zstack.header.volume.VolumeInventory;
+import org.zstack.identity.IdentityGlobalConfig;
+import org.zstack.network.securitygroup.SecurityGroupInventory;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.data.SizeUnit;
+import org.zstack.utils.logging.CLogger;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.StringDSL.ln;
+
+/**
+ * a scale benchmark of the management plane running on simulators in-process, not in any test suite as it takes
+ * hours at full scale. Parameters are system properties, for example:
+ *
+ *   mvn test -Dtest=ScaleTester -Dscale.hosts=2000 -Dscale.vms=20000 -Dscale.operations=20000 -Dscale.seed=1
+ *
+ * 1. add scale.hosts simulator hosts, then create scale.vms vms, scale.syncLevel of them at the same time
+ * 2. run scale.operations operations picked by scale.seed from a mix of creating vms, stopping and starting vms,
+ *    migrating vms, creating and attaching data volumes, querying vms and adding/removing vm nics to/from
+ *    a security group, an operation on a vm is never run at the same time as another one on the same vm
+ *
+ * scale.timeout is the minutes each of the phases above is given to finish.
+ *
+ * report p50/p99/max latency and throughput of each API, the peaks of the thread pool, the sync queues and the DB
+ * connection pool sampled every scale.sampleInterval seconds, the SQL statistics of hibernate and the messages
+ * taking the most time in the cloud bus. The calls are made from scale.syncLevel threads of the tester, not from
+ * the thread pool of the management plane, so the peaks are of the management plane only.
+ */
+public class ScaleTester {
+    CLogger logger = Utils.getLogger(ScaleTester.class);
+
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    ThreadFacade thdf;
+    int hostNum;
+    int vmNum;
+    int syncLevel;
+    int operationNum;
+    long seed;
+    int timeout;
+    int sampleInterval;
+
+    ClusterInventory cluster;
+    L3NetworkInventory l3;
+    ImageInventory image;
+    InstanceOfferingInventory instanceOffering;
+    DiskOfferingInventory diskOffering;
+    SecurityGroupInventory securityGroup;
+
+    List<String> hostUuids = Collections.synchronizedList(new ArrayList<String>());
+    LinkedBlockingQueue<VmState> idleVms = new LinkedBlockingQueue<VmState>();
+    ApiLatencyRecorder deployRecorder = new ApiLatencyRecorder();
+    ApiLatencyRecorder workloadRecorder = new ApiLatencyRecorder();
+    StatsSampler sampler = new StatsSampler();
+
+    // device ids of volumes of a vm are limited
+    static final int MAX_DATA_VOLUMES_PER_VM = 8;
+    static final int API_TIMEOUT = (int) TimeUnit.MINUTES.toSeconds(10);
+    static final int QUERY_LIMIT = 100;
+
+    enum Operation {
+        CreateVm(5),
+        StopStartVm(15),
+        MigrateVm(15),
+        AttachDataVolume(15),
+        QueryVm(35),
+        ChangeSecurityGroup(15);
+
+        final int weight;
+
+        Operation(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    static class VmState {
+        VmInstanceInventory vm;
+        boolean inSecurityGroup;
+        int dataVolumeNum;
+    }
+
+    abstract class TimedCall<T> {
+        abstract T call() throws ApiSenderException;
+
+        T run(ApiLatencyRecorder recorder, String name) throws ApiSenderException {
+            long start = System.currentTimeMillis();
+            boolean success = false;
+            try {
+                T ret = call();
+                success = true;
+                return ret;
+            } finally {
+                recorder.record(name, start, System.currentTimeMillis(), success);
+            }
+        }
+    }
+
+    abstract class ParallelJob {
+        abstract void run(int index) throws Exception;
+    }
+
+    class StatsSampler implements PeriodicTask {
+        int maxActiveThreadNum;
+        long maxQueuedTaskNum;
+        String busiestQueue;
+        long maxQueuePendingTaskNum;
+        int maxBusyConnectionNum;
+        int maxConnectionNum;
+        int samples;
+
+        private void sampleQueue(String signature, long pendingTaskNum) {
+            if (pendingTaskNum > maxQueuePendingTaskNum) {
+                maxQueuePendingTaskNum = pendingTaskNum;
+                busiestQueue = signature;
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            ThreadFacadeMXBean mxbean = (ThreadFacadeMXBean) thdf;
+            ThreadPoolStatistic ts = mxbean.getThreadPoolStatistic();
+            maxActiveThreadNum = Math.max(maxActiveThreadNum, ts.getActiveThreadNum());
+            maxQueuedTaskNum = Math.max(maxQueuedTaskNum, ts.getQueuedTaskNum());
+            for (ChainTaskStatistic cs : mxbean.getChainTaskStatistics().values()) {
+                sampleQueue(cs.getSyncSignature(), cs.getPendingTaskNum());
+            }
+            for (SyncTaskStatistic ss : mxbean.getSyncTaskStatistics().values()) {
+                sampleQueue(ss.getSyncSignature(), ss.getPendingTaskNum());
+            }
+
+            DataSource ds = dbf.getDataSource();
+            if (ds instanceof PooledDataSource) {
+                PooledDataSource pds = (PooledDataSource) ds;
+                try {
+                    maxBusyConnectionNum = Math.max(maxBusyConnectionNum, pds.getNumBusyConnectionsDefaultUser());
+                    maxConnectionNum = Math.max(maxConnectionNum, pds.getNumConnectionsDefaultUser());
+                } catch (SQLException e) {
+                    logger.warn("unable to sample the DB connection pool", e);
+                }
+            }
+
+            samples ++;
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.SECONDS;
+        }
+
+        @Override
+        public long getInterval() {
+            return sampleInterval;
+        }
+
+        @Override
+        public String getName() {
+            return "scale-tester-stats-sampler";
+        }
+
+        synchronized String report() {
+            return ln(
+                    "peaks sampled {0} times:",
+                    "active threads: {1}",
+                    "tasks queued in the thread pool: {2}",
+                    "tasks pending in a sync queue: {3}, queue: {4}",
+                    "busy DB connections: {5} of {6}"
+            ).format(samples, maxActiveThreadNum, maxQueuedTaskNum, maxQueuePendingTaskNum, busiestQueue,
+                    maxBusyConnectionNum, maxConnectionNum);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        hostNum = Integer.valueOf(System.getProperty("scale.hosts", "1000"));
+        vmNum = Integer.valueOf(System.getProperty("scale.vms", "10000"));
+        syncLevel = Integer.valueOf(System.getProperty("scale.syncLevel", "100"));
+        operationNum = Integer.valueOf(System.getProperty("scale.operations", "10000"));
+        seed = Long.valueOf(System.getProperty("scale.seed", "1"));
+        timeout = Integer.valueOf(System.getProperty("scale.timeout", "120"));
+        sampleInterval = Integer.valueOf(System.getProperty("scale.sampleInterval", "5"));
+
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/perf/ScaleTester.xml", con);
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        thdf = loader.getComponent(ThreadFacade.class);
+
+        IdentityGlobalConfig.SESSION_TIMEOUT.updateValue(TimeUnit.HOURS.toSeconds(100));
+        CoreGlobalProperty.VM_TRACER_ON = false;
+        api.setAdminSession(api.loginAsAdmin());
+        api.setTimeout(API_TIMEOUT);
+
+        cluster = deployer.clusters.get("Cluster1");
+        l3 = deployer.l3Networks.get("TestL3Network1");
+        image = deployer.images.get("TestImage");
+        instanceOffering = deployer.instanceOfferings.get("TestInstanceOffering");
+        diskOffering = deployer.diskOfferings.get("DataDiskOffering");
+        securityGroup = deployer.securityGroups.get("sg");
+        hostUuids.add(deployer.hosts.get("host1").getUuid());
+    }
+
+    private boolean runInParallel(final String name, int num, final ParallelJob job) throws InterruptedException {
+        // jobs block in API calls, run them on threads of their own so they neither starve the thread pool of
+        // the management plane nor show up in its peaks
+        ExecutorService executor = Executors.newFixedThreadPool(syncLevel);
+        try {
+            final CountDownLatch latch = new CountDownLatch(num);
+            for (int i = 0; i < num; i++) {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            job.run(index);
+                        } catch (Exception e) {
+                            logger.warn(String.format("%s[%s] failed", name, index), e);
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+
+            return latch.await(timeout, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void addHost(final int index) throws ApiSenderException {
+        APIAddHostEvent evt = new TimedCall<APIAddHostEvent>() {
+            @Override
+            APIAddHostEvent call() throws ApiSenderException {
+                APIAddSimulatorHostMsg msg = new APIAddSimulatorHostMsg();
+                msg.setClusterUuid(cluster.getUuid());
+                msg.setName("host-" + index);
+                msg.setManagementIp(String.format("172.%s.%s.%s", (index >> 16) & 0xff, (index >> 8) & 0xff, index & 0xff));
+                msg.setMemoryCapacity(SizeUnit.TERABYTE.toByte(1));
+                msg.setCpuCapacity(2600 * 1000);
+                msg.setSession(api.getAdminSession());
+                ApiSender sender = new ApiSender();
+                sender.setTimeout(API_TIMEOUT);
+                return sender.send(msg, APIAddHostEvent.class);
+            }
+        }.run(deployRecorder, "AddHost");
+
+        hostUuids.add(evt.getInventory().getUuid());
+    }
+
+    private VmInstanceInventory createVm(final String name, ApiLatencyRecorder recorder) throws ApiSenderException {
+        return new TimedCall<VmInstanceInventory>() {
+            @Override
+            VmInstanceInventory call() throws ApiSenderException {
+                VmCreator creator = new VmCreator(api);
+                creator.addL3Network(l3.getUuid());
+                creator.imageUuid = image.getUuid();
+                creator.instanceOfferingUuid = instanceOffering.getUuid();
+                creator.name = name;
+                creator.timeout = API_TIMEOUT;
+                return creator.create();
+            }
+        }.run(recorder, "CreateVm");
+    }
+
+    private String pickHost(Random random, String exclude) {
+        while (true) {
+            String uuid = hostUuids.get(random.nextInt(hostUuids.size()));
+            if (hostUuids.size() == 1 || !uuid.equals(exclude)) {
+                return uuid;
+            }
+        }
+    }
+
+    private List<Operation> planOperations() {
+        int totalWeight = 0;
+        for (Operation op : Operation.values()) {
+            totalWeight += op.weight;
+        }
+
+        Random random = new Random(seed);
+        List<Operation> ops = new ArrayList<Operation>();
+        for (int i = 0; i < operationNum; i++) {
+            int r = random.nextInt(totalWeight);
+            for (Operation op : Operation.values()) {
+                if (r < op.weight) {
+                    ops.add(op);
+                    break;
+                }
+                r -= op.weight;
+            }
+        }
+
+        return ops;
+    }
+
+    private void queryVm(Random random) throws ApiSenderException {
+        final APIQueryVmInstanceMsg msg = new APIQueryVmInstanceMsg();
+        msg.addQueryCondition("hostUuid", QueryOp.EQ, pickHost(random, null));
+        msg.setLimit(QUERY_LIMIT);
+        msg.setReplyWithCount(true);
+        new TimedCall<APIQueryVmInstanceReply>() {
+            @Override
+            APIQueryVmInstanceReply call() throws ApiSenderException {
+                return api.query(msg, APIQueryVmInstanceReply.class);
+            }
+        }.run(workloadRecorder, "QueryVm");
+    }
+
+    private void operateVm(Operation op, final VmState s, Random random) throws ApiSenderException {
+        final String vmUuid = s.vm.getUuid();
+        if (op == Operation.StopStartVm) {
+            new TimedCall<VmInstanceInventory>() {
+                @Override
+                VmInstanceInventory call() throws ApiSenderException {
+                    return api.stopVmInstance(vmUuid);
+                }
+            }.run(workloadRecorder, "StopVm");
+
+            s.vm = new TimedCall<VmInstanceInventory>() {
+                @Override
+                VmInstanceInventory call() throws ApiSenderException {
+                    return api.startVmInstance(vmUuid);
+                }
+            }.run(workloadRecorder, "StartVm");
+        } else if (op == Operation.MigrateVm) {
+            final String destHostUuid = pickHost(random, s.vm.getHostUuid());
+            s.vm = new TimedCall<VmInstanceInventory>() {
+                @Override
+                VmInstanceInventory call() throws ApiSenderException {
+                    return api.migrateVmInstance(vmUuid, destHostUuid);
+                }
+            }.run(workloadRecorder, "MigrateVm");
+        } else if (op == Operation.AttachDataVolume) {
+            if (s.dataVolumeNum >= MAX_DATA_VOLUMES_PER_VM) {
+                logger.debug(String.format("vm[uuid:%s] has %s data volumes, skip attaching more", vmUuid, s.dataVolumeNum));
+                return;
+            }
+
+            final VolumeInventory vol = new TimedCall<VolumeInventory>() {
+                @Override
+                VolumeInventory call() throws ApiSenderException {
+                    return api.createDataVolume("data", diskOffering.getUuid());
+                }
+            }.run(workloadRecorder, "CreateDataVolume");
+
+            new TimedCall<VolumeInventory>() {
+                @Override
+                VolumeInventory call() throws ApiSenderException {
+                    return api.attachVolumeToVm(vmUuid, vol.getUuid());
+                }
+            }.run(workloadRecorder, "AttachDataVolume");
+            s.dataVolumeNum ++;
+        } else if (op == Operation.ChangeSecurityGroup) {
+            final String nicUuid = s.vm.getVmNics().get(0).getUuid();
+            if (s.inSecurityGroup) {
+                new TimedCall<Void>() {
+                    @Override
+                    Void call() throws ApiSenderException {
+                        api.removeVmNicFromSecurityGroup(securityGroup.getUuid(), nicUuid);
+                        return null;
+                    }
+                }.run(workloadRecorder, "RemoveVmNicFromSecurityGroup");
+            } else {
+                new TimedCall<Void>() {
+                    @Override
+                    Void call() throws ApiSenderException {
+                        api.addVmNicToSecurityGroup(securityGroup.getUuid(), nicUuid);
+                        return null;
+                    }
+                }.run(workloadRecorder, "AddVmNicToSecurityGroup");
+            }
+            s.inSecurityGroup = !s.inSecurityGroup;
+        }
+    }
+
+    private void runOperation(Operation op, int index) throws ApiSenderException, InterruptedException {
+        // the targets of an operation only depend on the seed and its index
+        Random random = new Random(seed + index);
+        if (op == Operation.CreateVm) {
+            VmState s = new VmState();
+            s.vm = createVm("vm-op-" + index, workloadRecorder);
+            idleVms.add(s);
+            return;
+        } else if (op == Operation.QueryVm) {
+            queryVm(random);
+            return;
+        }
+
+        VmState s = idleVms.poll(API_TIMEOUT, TimeUnit.SECONDS);
+        if (s == null) {
+            logger.warn(String.format("no idle vm for the operation[%s, index:%s] in %s seconds", op, index, API_TIMEOUT));
+            return;
+        }
+
+        // a vm whose operation failed is left in an unknown state, keep it out of the pool
+        operateVm(op, s, random);
+        idleVms.add(s);
+    }
+
+    private String reportHibernateStatistics(Statistics stats) {
+        return ln(
+                "SQL statistics:",
+                "prepared statements: {0}",
+                "queries: {1}, the slowest takes {2}ms: {3}",
+                "entities loaded: {4}, inserted: {5}, updated: {6}",
+                "transactions: {7}, optimistic lock failures: {8}"
+        ).format(stats.getPrepareStatementCount(), stats.getQueryExecutionCount(), stats.getQueryExecutionMaxTime(),
+                stats.getQueryExecutionMaxTimeQueryString(), stats.getEntityLoadCount(), stats.getEntityInsertCount(),
+                stats.getEntityUpdateCount(), stats.getTransactionCount(), stats.getOptimisticFailureCount());
+    }
+
+    private String reportBusStatistics(int top) {
+        List<MessageStatistic> stats = new ArrayList<MessageStatistic>(((CloudBusMXBean) bus).getStatistics().values());
+        Collections.sort(stats, new Comparator<MessageStatistic>() {
+            @Override
+            public int compare(MessageStatistic o1, MessageStatistic o2) {
+                return Long.valueOf(o2.getTotalTime()).compareTo(o1.getTotalTime());
+            }
+        });
+
+        StringBuilder sb = new StringBuilder(String.format("messages taking the most time in the cloud bus:\n%-60s %8s %10s %10s %12s", "message", "count", "avg(ms)", "max(ms)", "total(ms)"));
+        for (MessageStatistic stat : stats.subList(0, Math.min(top, stats.size()))) {
+            sb.append(String.format("\n%-60s %8s %10s %10s %12s", stat.getMessageClassName(), stat.getCount(),
+                    stat.getAverageTime(), stat.getMaxTime(), stat.getTotalTime()));
+        }
+
+        return sb.toString();
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        Future<Void> sampling = thdf.submitPeriodicTask(sampler);
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(runInParallel("scale-adding-host", hostNum - 1, new ParallelJob() {
+            @Override
+            void run(int index) throws Exception {
+                addHost(index);
+            }
+        }));
+        SimpleQuery<HostVO> hq = dbf.createQuery(HostVO.class);
+        hq.add(HostVO_.status, Op.EQ, HostStatus.Connected);
+        Assert.assertEquals(hostNum, hq.count());
+
+        Assert.assertTrue(runInParallel("scale-creating-vm", vmNum, new ParallelJob() {
+            @Override
+            void run(int index) throws Exception {
+                VmState s = new VmState();
+                s.vm = createVm("vm-" + index, deployRecorder);
+                idleVms.add(s);
+            }
+        }));
+        SimpleQuery<VmInstanceVO> vq = dbf.createQuery(VmInstanceVO.class);
+        vq.add(VmInstanceVO_.state, Op.EQ, VmInstanceState.Running);
+        Assert.assertEquals(vmNum, vq.count());
+        long deployTime = System.currentTimeMillis() - start;
+        logger.info(deployRecorder.report(String.format("deployed %s hosts and %s vms in %s secs with parallel level %s:",
+                hostNum, vmNum, TimeUnit.MILLISECONDS.toSeconds(deployTime), syncLevel)));
+
+        HibernateEntityManagerFactory emf = (HibernateEntityManagerFactory) dbf.getEntityManager().getEntityManagerFactory();
+        Statistics stats = emf.getSessionFactory().getStatistics();
+        stats.setStatisticsEnabled(true);
+        stats.clear();
+
+        final List<Operation> ops = planOperations();
+        start = System.currentTimeMillis();
+        boolean finished = runInParallel("scale-workload", ops.size(), new ParallelJob() {
+            @Override
+            void run(int index) throws Exception {
+                runOperation(ops.get(index), index);
+            }
+        });
+        long workloadTime = System.currentTimeMillis() - start;
+        sampling.cancel(true);
+
+        logger.info(workloadRecorder.report(String.format("ran %s operations of seed %s in %s secs with parallel level %s:",
+                ops.size(), seed, TimeUnit.MILLISECONDS.toSeconds(workloadTime), syncLevel)));
+        logger.info(sampler.report());
+        logger.info(reportHibernateStatistics(stats));
+        logger.info(reportBusStatistics(20));
+
+        Assert.assertTrue(String.format("the workload doesn't finish in %s minutes", timeout), finished);
+        Assert.assertEquals(0, workloadRecorder.getFailures());
+    }
+}
@@ -0,0 +1,110 @@
+package org.zstack.test.portal;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.managementnode.APIQueryManagementNodeMsg;
+import org.zstack.header.managementnode.APIQueryManagementNodeReply;
+import org.zstack.header.query.QueryCondition;
+import org.zstack.portal.apimediator.ApiLaneStatistic;
+import org.zstack.portal.apimediator.ApiMediator;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.test.identity.IdentityCreator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. send queries in parallel
+ * 2. create an account
+ *
+ * confirm queries are admitted by the query lane and all succeed
+ * confirm the account creation is admitted by the api lane
+ * confirm no message is left in the lanes
+ */
+public class TestApiAdmissionLane {
+    ComponentLoader loader;
+    Api api;
+    ApiMediator apim;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        con.addXml("PortalForUnitTest.xml");
+        con.addXml("AccountManager.xml");
+        loader = con.build();
+        apim = loader.getComponent(ApiMediator.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    private ApiLaneStatistic getStatistic(String name) {
+        for (ApiLaneStatistic stat : apim.getLaneStatistics()) {
+            if (stat.getName().equals(name)) {
+                return stat;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        long queries = getStatistic("query").getAdmitted();
+        long apis = getStatistic("api").getAdmitted();
+
+        int num = 20;
+        final CountDownLatch latch = new CountDownLatch(num);
+        final AtomicInteger success = new AtomicInteger();
+        final List<ApiSenderException> errors = Collections.synchronizedList(new ArrayList<ApiSenderException>());
+        for (int i = 0; i < num; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        APIQueryManagementNodeMsg msg = new APIQueryManagementNodeMsg();
+                        msg.setConditions(new ArrayList<QueryCondition>());
+                        APIQueryManagementNodeReply reply = api.query(msg, APIQueryManagementNodeReply.class);
+                        if (reply.getInventories().size() == 1) {
+                            success.incrementAndGet();
+                        }
+                    } catch (ApiSenderException e) {
+                        errors.add(e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertTrue(String.format("queries failed: %s", errors), errors.isEmpty());
+        Assert.assertEquals(num, success.get());
+
+        IdentityCreator creator = new IdentityCreator(api);
+        creator.createAccount("test", "password");
+
+        ApiLaneStatistic query = getStatistic("query");
+        Assert.assertTrue(query.getAdmitted() >= queries + num);
+        Assert.assertEquals(0, query.getRejected());
+        Assert.assertEquals(0, query.getWaiting());
+        Assert.assertTrue(query.getMaxWaitTime() >= query.getAverageWaitTime());
+
+        ApiLaneStatistic apiLane = getStatistic("api");
+        Assert.assertTrue(apiLane.getAdmitted() > apis);
+        Assert.assertEquals(0, apiLane.getWaiting());
+
+        List<ApiLaneStatistic> stats = apim.getLaneStatistics();
+        Assert.assertEquals(3, stats.size());
+        for (ApiLaneStatistic stat : stats) {
+            Assert.assertEquals(0, stat.getWaiting());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.zstack.test.securitygroup;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.kvm.KVMAgentCommands.ApplySecurityGroupRuleDeltaCmd;
+import org.zstack.network.securitygroup.APIAddSecurityGroupRuleMsg.SecurityGroupRuleAO;
+import org.zstack.network.securitygroup.*;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. enable rule delta mode
+ * 2. add a vm nic to a security group
+ * 3. add/remove rules of the security group
+ * 4. change the sequence number on the host, like another management node does
+ * 5. add a rule
+ *
+ * confirm only added/removed rules are sent and the host keeps the right rules
+ * confirm all rules on the host are refreshed when the sequence number doesn't match
+ */
+public class TestSecurityGroupRuleDelta {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    KVMSimulatorConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/securityGroup/TestApplySeurityGroupRulesToVmOnKvm.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(KVMSimulatorConfig.class);
+        SecurityGroupGlobalConfig.RULE_DELTA_MODE.updateValue(true);
+    }
+
+    @After
+    public void tearDown() {
+        SecurityGroupGlobalConfig.RULE_DELTA_MODE.updateValue(false);
+    }
+
+    private SecurityGroupInventory addRule(String sgUuid, int port) throws ApiSenderException {
+        SecurityGroupRuleAO ao = new SecurityGroupRuleAO();
+        ao.setType(SecurityGroupRuleType.Ingress.toString());
+        ao.setProtocol(SecurityGroupRuleProtocolType.TCP.toString());
+        ao.setStartPort(port);
+        ao.setEndPort(port);
+        ao.setAllowedCidr("0.0.0.0/0");
+        return api.addSecurityGroupRuleByFullConfig(sgUuid, ao);
+    }
+
+    private ApplySecurityGroupRuleDeltaCmd lastDeltaCmd() {
+        return config.securityGroupApplyRuleDeltaCmds.get(config.securityGroupApplyRuleDeltaCmds.size() - 1);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        SecurityGroupInventory scinv = deployer.securityGroups.get("test");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        VmNicInventory nic = vm.getVmNics().get(0);
+
+        api.addVmNicToSecurityGroup(scinv.getUuid(), nic.getUuid());
+        TimeUnit.SECONDS.sleep(1);
+        ApplySecurityGroupRuleDeltaCmd cmd = lastDeltaCmd();
+        Assert.assertEquals(SecurityGroupRuleTO.ACTION_CODE_APPLY_RULE, cmd.getRuleTOs().get(0).getActionCode());
+        SecurityGroupTestValidator.validate(config.securityGroups.get(nic.getInternalName()), scinv.getRules());
+
+        scinv = addRule(scinv.getUuid(), 8080);
+        TimeUnit.SECONDS.sleep(1);
+        ApplySecurityGroupRuleDeltaCmd cmd1 = lastDeltaCmd();
+        Assert.assertEquals(Long.valueOf(cmd.getSequenceNumber()), cmd1.getBaseSequenceNumber());
+        SecurityGroupRuleTO delta = cmd1.getRuleTOs().get(0);
+        Assert.assertEquals(SecurityGroupRuleTO.ACTION_CODE_APPLY_DELTA, delta.getActionCode());
+        Assert.assertEquals(1, delta.getRulesToAdd().size());
+        Assert.assertEquals(8080, delta.getRulesToAdd().get(0).getStartPort());
+        Assert.assertTrue(delta.getRulesToDelete().isEmpty());
+        SecurityGroupTestValidator.validate(config.securityGroups.get(nic.getInternalName()), scinv.getRules());
+
+        SecurityGroupRuleInventory ruleToRemove = scinv.getRules().get(0);
+        List<String> ruleUuids = new ArrayList<String>();
+        ruleUuids.add(ruleToRemove.getUuid());
+        api.removeSecurityGroupRule(ruleUuids);
+        TimeUnit.SECONDS.sleep(1);
+        scinv.getRules().remove(ruleToRemove);
+        delta = lastDeltaCmd().getRuleTOs().get(0);
+        Assert.assertTrue(delta.getRulesToAdd().isEmpty());
+        Assert.assertEquals(1, delta.getRulesToDelete().size());
+        SecurityGroupTestValidator.validate(config.securityGroups.get(nic.getInternalName()), scinv.getRules());
+
+        // rules on the host changed by others
+        config.securityGroupSequenceNumber = -1L;
+        int refreshed = config.securityGroupRefreshAllRulesOnHostCmds.size();
+        scinv = addRule(scinv.getUuid(), 8081);
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertEquals(refreshed + 1, config.securityGroupRefreshAllRulesOnHostCmds.size());
+        Assert.assertNotNull(config.securityGroupSequenceNumber);
+        Assert.assertFalse(config.securityGroupSequenceNumber.equals(-1L));
+        SecurityGroupTestValidator.validate(config.securityGroups.get(nic.getInternalName()), scinv.getRules());
+
+        // deltas go on from the refreshed rules
+        scinv = addRule(scinv.getUuid(), 8082);
+        TimeUnit.SECONDS.sleep(1);
+        delta = lastDeltaCmd().getRuleTOs().get(0);
+        Assert.assertEquals(SecurityGroupRuleTO.ACTION_CODE_APPLY_DELTA, delta.getActionCode());
+        SecurityGroupTestValidator.validate(config.securityGroups.get(nic.getInternalName()), scinv.getRules());
+    }
+}
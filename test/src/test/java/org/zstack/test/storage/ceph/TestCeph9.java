@@ -0,0 +1,195 @@
+package org.zstack.test.storage.ceph;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.storage.backup.BackupStorageConstant;
+import org.zstack.header.storage.backup.BackupStorageInventory;
+import org.zstack.header.storage.backup.PingBackupStorageMsg;
+import org.zstack.header.storage.backup.PingBackupStorageReply;
+import org.zstack.header.storage.primary.PrimaryStorageInventory;
+import org.zstack.storage.ceph.CephGlobalConfig;
+import org.zstack.storage.ceph.CephMonSelector.CircuitState;
+import org.zstack.storage.ceph.CephMonStatistics;
+import org.zstack.storage.ceph.backup.CephBackupStorageSimulatorConfig;
+import org.zstack.storage.ceph.primary.CephPrimaryStorageSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. use ceph for primary storage and backup storage with two mons
+ * 2. make the mon to be selected slow, then reconnect the primary storage
+ *
+ * confirm the other mon is selected afterwards
+ *
+ * 3. make the fast mon slower than the hedge delay, then reconnect
+ *
+ * confirm the init command is not hedged as it's not idempotent
+ *
+ * 4. hold the ping to the backup storage on the mon receiving it first
+ *
+ * confirm the ping is hedged to the other mon and succeeds while the first mon holds it
+ *
+ * 5. make the mon to be selected fail, then reconnect the primary storage
+ *
+ * confirm the reconnection succeeds by the other mon and the circuit of the failed mon opens
+ * confirm the failed mon is not selected while its circuit is open
+ * confirm the circuit becomes half open after the open time
+ *
+ * 6. make the healthy mon reply the init command with an error, then reconnect
+ *
+ * confirm the reconnection fails without trying the other mon
+ * confirm the error isn't counted as a failure of the mon and its circuit stays closed
+ */
+public class TestCeph9 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    CephPrimaryStorageSimulatorConfig config;
+    CephBackupStorageSimulatorConfig bconfig;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/ceph/TestCeph1.xml", con);
+        deployer.addSpringConfig("ceph.xml");
+        deployer.addSpringConfig("cephSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        config = loader.getComponent(CephPrimaryStorageSimulatorConfig.class);
+        bconfig = loader.getComponent(CephBackupStorageSimulatorConfig.class);
+    }
+
+    private CephMonStatistics findStatistics(List<CephMonStatistics> stats, String hostname) {
+        for (CephMonStatistics s : stats) {
+            if (s.getHostname().equals(hostname)) {
+                return s;
+            }
+        }
+
+        return null;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        PrimaryStorageInventory ps = deployer.primaryStorages.get("ceph-pri");
+        BackupStorageInventory bs = deployer.backupStorages.get("ceph-bk");
+        CephGlobalConfig.MON_HEDGE_MIN_DELAY.updateValue(TimeUnit.SECONDS.toMillis(10));
+
+        // mons are listed in the order they are selected
+        List<CephMonStatistics> stats = api.getCephPrimaryStorageMonStatistics(ps.getUuid());
+        Assert.assertEquals(2, stats.size());
+        String slow = stats.get(0).getHostname();
+        String fast = stats.get(1).getHostname();
+
+        config.monDelays.put(slow, 1000L);
+        config.initMonHostnames.clear();
+        api.reconnectPrimaryStorage(ps.getUuid());
+        Assert.assertEquals(slow, config.initMonHostnames.get(0));
+
+        config.initMonHostnames.clear();
+        for (int i = 0; i < 3; i++) {
+            api.reconnectPrimaryStorage(ps.getUuid());
+        }
+        Assert.assertEquals(3, config.initMonHostnames.size());
+        for (String hostname : config.initMonHostnames) {
+            Assert.assertEquals(fast, hostname);
+        }
+
+        stats = api.getCephPrimaryStorageMonStatistics(ps.getUuid());
+        Assert.assertEquals(fast, stats.get(0).getHostname());
+        Assert.assertTrue(findStatistics(stats, slow).getLatency() > findStatistics(stats, fast).getLatency());
+
+        config.monDelays.clear();
+        config.monDelays.put(fast, 1000L);
+        CephGlobalConfig.MON_HEDGE_MIN_DELAY.updateValue(200);
+        config.initMonHostnames.clear();
+        api.reconnectPrimaryStorage(ps.getUuid());
+        Assert.assertEquals(1, config.initMonHostnames.size());
+        Assert.assertEquals(fast, config.initMonHostnames.get(0));
+
+        CountDownLatch pingLatch = new CountDownLatch(1);
+        bconfig.pingLatch = pingLatch;
+        bconfig.pingMonHostnames.clear();
+        PingBackupStorageMsg pmsg = new PingBackupStorageMsg();
+        pmsg.setBackupStorageUuid(bs.getUuid());
+        bus.makeTargetServiceIdByResourceUuid(pmsg, BackupStorageConstant.SERVICE_ID, bs.getUuid());
+        PingBackupStorageReply preply = (PingBackupStorageReply) bus.call(pmsg);
+        // the mon holding the ping hasn't answered yet
+        Assert.assertTrue(preply.isAvailable());
+        String held = bconfig.heldPingMonHostname;
+        Assert.assertNotNull(held);
+        Assert.assertEquals(2, bconfig.pingMonHostnames.size());
+        Assert.assertEquals(held, bconfig.pingMonHostnames.get(0));
+        Assert.assertFalse(held.equals(bconfig.pingMonHostnames.get(1)));
+        stats = api.getCephBackupStorageMonStatistics(bs.getUuid());
+        Assert.assertEquals(1, findStatistics(stats, held).getHedges());
+        pingLatch.countDown();
+
+        config.monDelays.clear();
+        CephGlobalConfig.MON_HEDGE_MIN_DELAY.updateValue(TimeUnit.SECONDS.toMillis(10));
+        CephGlobalConfig.MON_CIRCUIT_BREAKER_FAILURE_THRESHOLD.updateValue(1);
+        CephGlobalConfig.MON_CIRCUIT_BREAKER_OPEN_TIME.updateValue(TimeUnit.HOURS.toSeconds(1));
+        stats = api.getCephPrimaryStorageMonStatistics(ps.getUuid());
+        String failed = stats.get(0).getHostname();
+        String healthy = stats.get(1).getHostname();
+        config.failedMons.add(failed);
+        config.initMonHostnames.clear();
+        api.reconnectPrimaryStorage(ps.getUuid());
+        Assert.assertEquals(2, config.initMonHostnames.size());
+        Assert.assertEquals(failed, config.initMonHostnames.get(0));
+        Assert.assertEquals(healthy, config.initMonHostnames.get(1));
+
+        stats = api.getCephPrimaryStorageMonStatistics(ps.getUuid());
+        CephMonStatistics s = findStatistics(stats, failed);
+        Assert.assertEquals(CircuitState.Open.toString(), s.getCircuitState());
+        Assert.assertEquals(1, s.getConsecutiveFailures());
+        Assert.assertEquals(1, s.getFailures());
+        Assert.assertEquals(healthy, stats.get(0).getHostname());
+
+        config.failedMons.clear();
+        config.initMonHostnames.clear();
+        api.reconnectPrimaryStorage(ps.getUuid());
+        Assert.assertEquals(1, config.initMonHostnames.size());
+        Assert.assertEquals(healthy, config.initMonHostnames.get(0));
+
+        // the open time applies to circuits already open
+        CephGlobalConfig.MON_CIRCUIT_BREAKER_OPEN_TIME.updateValue(0);
+        stats = api.getCephPrimaryStorageMonStatistics(ps.getUuid());
+        Assert.assertEquals(CircuitState.HalfOpen.toString(), findStatistics(stats, failed).getCircuitState());
+
+        CephGlobalConfig.MON_CIRCUIT_BREAKER_OPEN_TIME.updateValue(TimeUnit.HOURS.toSeconds(1));
+        config.errorMons.add(healthy);
+        config.initMonHostnames.clear();
+        boolean success = false;
+        try {
+            api.reconnectPrimaryStorage(ps.getUuid());
+            success = true;
+        } catch (ApiSenderException e) {
+            // expected
+        }
+        Assert.assertFalse(success);
+        Assert.assertEquals(1, config.initMonHostnames.size());
+        Assert.assertEquals(healthy, config.initMonHostnames.get(0));
+
+        stats = api.getCephPrimaryStorageMonStatistics(ps.getUuid());
+        s = findStatistics(stats, healthy);
+        Assert.assertEquals(CircuitState.Closed.toString(), s.getCircuitState());
+        Assert.assertEquals(0, s.getConsecutiveFailures());
+        Assert.assertEquals(0, s.getFailures());
+    }
+}
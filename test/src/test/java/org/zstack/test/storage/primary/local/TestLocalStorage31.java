@@ -52,6 +52,7 @@ import org.zstack.utils.data.SizeUnit;
 import org.zstack.utils.function.Function;
 import org.zstack.utils.logging.CLogger;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -153,7 +154,8 @@ public class TestLocalStorage31 {
         Assert.assertEquals(vm.getAllVolumes().size(), config.createEmptyVolumeCmds.size());
         Assert.assertEquals(2, config.verifySnapshotChainCmds.size());
         Assert.assertEquals(1, config.rebaseSnapshotBackingFilesCmds.size());
-        Assert.assertEquals(1, config.copyBitsFromRemoteCmds.size());
+        // snapshots are copied one by one
+        Assert.assertEquals(snapshthots.size(), config.copyBitsFromRemoteCmds.size());
         VerifySnapshotChainCmd vcmd = config.verifySnapshotChainCmds.get(0);
         RebaseSnapshotBackingFilesCmd rcmd = config.rebaseSnapshotBackingFilesCmds.get(0);
         CopyBitsFromRemoteCmd ccmd = config.copyBitsFromRemoteCmds.get(0);
@@ -163,9 +165,15 @@ public class TestLocalStorage31 {
         Assert.assertEquals(kvm.getUsername(), ccmd.dstUsername);
         Assert.assertEquals(kvm.getPassword(), ccmd.dstPassword);
 
+        List<String> copyPaths = new ArrayList<String>();
+        for (CopyBitsFromRemoteCmd c : config.copyBitsFromRemoteCmds) {
+            Assert.assertEquals(1, c.paths.size());
+            copyPaths.addAll(c.paths);
+        }
+
         for (final VolumeSnapshotVO sp : snapshthots) {
             // snapshots are copied on dst host
-            String copyPath = CollectionUtils.find(ccmd.paths, new Function<String, String>() {
+            String copyPath = CollectionUtils.find(copyPaths, new Function<String, String>() {
                 @Override
                 public String call(String arg) {
                     return arg.equals(sp.getPrimaryStorageInstallPath()) ? arg : null;
@@ -188,17 +188,24 @@ public class TestLocalStorage43 {
             Assert.fail(sp.getUuid());
         }
 
-        Assert.assertEquals(1, config.copyBitsFromRemoteCmds.size());
-        LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd copyBitsFromRemoteCmd = config.copyBitsFromRemoteCmds.get(0);
+        // snapshots are copied and verified one by one
+        Assert.assertEquals(sps.size(), config.copyBitsFromRemoteCmds.size());
+        List<String> copyPaths = new ArrayList<String>();
+        for (LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd c : config.copyBitsFromRemoteCmds) {
+            copyPaths.addAll(c.paths);
+        }
         for (VolumeSnapshotInventory sp : sps) {
-            Assert.assertTrue(sp.getPrimaryStorageInstallPath(), copyBitsFromRemoteCmd.paths.contains(sp.getPrimaryStorageInstallPath()));
+            Assert.assertTrue(sp.getPrimaryStorageInstallPath(), copyPaths.contains(sp.getPrimaryStorageInstallPath()));
         }
 
-        Assert.assertEquals(1, config.checkMd5sumCmds.size());
-        LocalStorageKvmBackend.CheckMd5sumCmd checkMd5sumCmd = config.checkMd5sumCmds.get(0);
+        Assert.assertEquals(sps.size(), config.checkMd5sumCmds.size());
+        List<LocalStorageKvmBackend.Md5TO> checkedMd5s = new ArrayList<LocalStorageKvmBackend.Md5TO>();
+        for (LocalStorageKvmBackend.CheckMd5sumCmd c : config.checkMd5sumCmds) {
+            checkedMd5s.addAll(c.md5s);
+        }
         goOn:
         for (VolumeSnapshotInventory sp : sps) {
-            for (LocalStorageKvmBackend.Md5TO to :checkMd5sumCmd.md5s) {
+            for (LocalStorageKvmBackend.Md5TO to : checkedMd5s) {
                 if (to.path.equals(sp.getPrimaryStorageInstallPath())) {
                     break goOn;
                 }
@@ -0,0 +1,228 @@
+package org.zstack.test.storage.primary.local;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.gc.GCCompletion;
+import org.zstack.core.gc.GCFacade;
+import org.zstack.core.gc.TimeBasedGCPersistentContext;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.storage.snapshot.VolumeSnapshotInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.storage.primary.local.*;
+import org.zstack.storage.primary.local.LocalStorageKvmBackend.DeleteBitsCmd;
+import org.zstack.storage.primary.local.LocalStorageKvmBackend.Md5TO;
+import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd;
+import org.zstack.storage.primary.local.LocalStorageSimulatorConfig.Capacity;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.data.SizeUnit;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. delete the image, create snapshots of the root volume
+ * 2. make copying a file take a while and migrating the vm on the hypervisor fail
+ * 3. migrate the vm
+ *
+ * confirm the migration failed
+ * confirm the backing file and snapshots are copied one file a command, more than one at a time
+ * confirm the copied backing file is deleted, the copied snapshots are left to GC jobs
+ * confirm no migration progress left
+ *
+ * 4. migrate the vm again
+ *
+ * confirm the migration succeeded
+ * confirm the snapshots left on the dst host are verified but not copied again
+ * confirm no migration progress left
+ *
+ * 5. run the GC jobs
+ *
+ * confirm the snapshots now on the dst host are not deleted
+ */
+public class TestLocalStorage48 {
+    CLogger logger = Utils.getLogger(TestLocalStorage48.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    GCFacade gcf;
+    SessionInventory session;
+    KVMSimulatorConfig kconfig;
+    LocalStorageSimulatorConfig config;
+    long totalSize = SizeUnit.GIGABYTE.toByte(100);
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/localStorage/TestLocalStorage28.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("localStorageSimulator.xml");
+        deployer.addSpringConfig("localStorage.xml");
+        deployer.load();
+
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        gcf = loader.getComponent(GCFacade.class);
+        config = loader.getComponent(LocalStorageSimulatorConfig.class);
+        kconfig = loader.getComponent(KVMSimulatorConfig.class);
+
+        Capacity c = new Capacity();
+        c.total = totalSize;
+        c.avail = totalSize;
+
+        config.capacityMap.put("host1", c);
+        config.capacityMap.put("host2", c);
+
+        deployer.build();
+        api = deployer.getApi();
+        session = api.loginAsAdmin();
+    }
+
+    private List<String> copiedPaths() {
+        List<String> paths = new ArrayList<String>();
+        synchronized (config.copyBitsFromRemoteCmds) {
+            for (CopyBitsFromRemoteCmd cmd : config.copyBitsFromRemoteCmds) {
+                Assert.assertEquals(1, cmd.paths.size());
+                paths.addAll(cmd.paths);
+            }
+        }
+        return paths;
+    }
+
+    private List<String> deletedPaths() {
+        List<String> paths = new ArrayList<String>();
+        for (DeleteBitsCmd cmd : config.deleteBitsCmds) {
+            paths.add(cmd.getPath());
+        }
+        return paths;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        HostInventory host2 = deployer.hosts.get("host2");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+
+        ImageInventory image = deployer.images.get("TestImage");
+        api.deleteImage(image.getUuid());
+
+        config.backingFilePath = image.getBackupStorageRefs().get(0).getInstallPath();
+        config.backingFileSize = image.getSize();
+        config.checkBitsSuccess = false;
+
+        int snum = 6;
+        List<VolumeSnapshotInventory> sps = new ArrayList<VolumeSnapshotInventory>();
+        for (int i=0; i<snum; i++) {
+            sps.add(api.createSnapshot(vm.getRootVolumeUuid()));
+        }
+
+        config.copyBitsFromRemoteDelay = 500;
+        config.deleteBitsCmds.clear();
+        kconfig.migrateVmSuccess = false;
+        boolean s = false;
+        try {
+            api.migrateVmInstance(vm.getUuid(), host2.getUuid());
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+        Assert.assertNull(LocalStorageKvmMigrateVmFlow.getMigrationProgress(vm.getUuid()));
+        // the rollback doesn't wait for the deletion
+        TimeUnit.SECONDS.sleep(3);
+
+        List<String> copied = copiedPaths();
+        Assert.assertEquals(snum + 1, copied.size());
+        Assert.assertTrue(copied.contains(config.backingFilePath));
+        for (VolumeSnapshotInventory sp : sps) {
+            Assert.assertTrue(copied.contains(sp.getPrimaryStorageInstallPath()));
+        }
+        Assert.assertTrue(String.format("at most %s files copied at a time", config.maxCopyingBits), config.maxCopyingBits > 1);
+        Assert.assertTrue(config.maxCopyingBits <= LocalStorageGlobalProperty.MIGRATION_PARALLELISM_DEGREE);
+
+        List<String> deleted = deletedPaths();
+        Assert.assertTrue(deleted.contains(config.backingFilePath));
+        for (VolumeSnapshotInventory sp : sps) {
+            Assert.assertFalse(deleted.contains(sp.getPrimaryStorageInstallPath()));
+        }
+
+        List<GCDeleteBitsContext> ctxs = gcf.getPendingPersistentContexts(GCDeleteBitsRunner.class, GCDeleteBitsContext.class);
+        Assert.assertEquals(snum, ctxs.size());
+        for (GCDeleteBitsContext ctx : ctxs) {
+            Assert.assertEquals(host2.getUuid(), ctx.getHostUuid());
+        }
+
+        config.copyBitsFromRemoteCmds.clear();
+        config.checkMd5sumCmds.clear();
+        config.deleteBitsCmds.clear();
+        kconfig.migrateVmSuccess = true;
+        vm = api.migrateVmInstance(vm.getUuid(), host2.getUuid());
+        Assert.assertEquals(host2.getUuid(), vm.getHostUuid());
+        Assert.assertNull(LocalStorageKvmMigrateVmFlow.getMigrationProgress(vm.getUuid()));
+
+        // only the backing file deleted by the rollback is copied again
+        copied = copiedPaths();
+        Assert.assertEquals(1, copied.size());
+        Assert.assertEquals(config.backingFilePath, copied.get(0));
+
+        List<String> checked = new ArrayList<String>();
+        synchronized (config.checkMd5sumCmds) {
+            for (LocalStorageKvmBackend.CheckMd5sumCmd cmd : config.checkMd5sumCmds) {
+                for (Md5TO to : cmd.md5s) {
+                    checked.add(to.path);
+                }
+            }
+        }
+        for (VolumeSnapshotInventory sp : sps) {
+            Assert.assertTrue(checked.contains(sp.getPrimaryStorageInstallPath()));
+            LocalStorageResourceRefVO ref = dbf.findByUuid(sp.getUuid(), LocalStorageResourceRefVO.class);
+            Assert.assertEquals(host2.getUuid(), ref.getHostUuid());
+        }
+
+        config.deleteBitsCmds.clear();
+        final AtomicInteger done = new AtomicInteger();
+        for (GCDeleteBitsContext c : ctxs) {
+            TimeBasedGCPersistentContext<GCDeleteBitsContext> ctx = new TimeBasedGCPersistentContext<GCDeleteBitsContext>();
+            ctx.setContextClass(GCDeleteBitsContext.class);
+            ctx.setContext(c);
+            new GCDeleteBitsRunner().run(ctx, new GCCompletion() {
+                @Override
+                public void cancel() {
+                }
+
+                @Override
+                public void success() {
+                    done.incrementAndGet();
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    logger.warn(errorCode.toString());
+                }
+            });
+        }
+
+        Assert.assertEquals(snum, done.get());
+        deleted = deletedPaths();
+        for (VolumeSnapshotInventory sp : sps) {
+            Assert.assertFalse(deleted.contains(sp.getPrimaryStorageInstallPath()));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.zstack.test.storage.primary.local;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.gc.GCFacade;
+import org.zstack.core.gc.GCStatus;
+import org.zstack.core.gc.GarbageCollectorVO;
+import org.zstack.core.gc.GarbageCollectorVO_;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.storage.snapshot.VolumeSnapshotInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.storage.primary.local.*;
+import org.zstack.storage.primary.local.LocalStorageKvmBackend.DeleteBitsCmd;
+import org.zstack.storage.primary.local.LocalStorageKvmBackend.Md5TO;
+import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd;
+import org.zstack.storage.primary.local.LocalStorageSimulatorConfig.Capacity;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.data.SizeUnit;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.CollectionDSL.list;
+
+/**
+ * 1. delete the image, create snapshots of the root volume
+ * 2. make migrating the vm on the hypervisor fail and migrate the vm
+ *
+ * confirm the copied snapshots are left to GC jobs
+ *
+ * 3. mark the GC job of one snapshot started, as if it were deleting the file
+ * 4. migrate the vm again with a short resume window
+ *
+ * confirm the migration failed before copying or verifying any snapshot
+ * confirm the GC jobs cancelled by the migration are scheduled again by the rollback
+ *
+ * 5. finish the started GC job, make copying a file take longer than the resume window and migrate the vm again
+ *
+ * confirm the migration succeeded
+ * confirm only the backing file and the snapshot whose GC job finished are copied, others are verified
+ * confirm the GC jobs fired during the migration don't delete any snapshot on the dst host
+ * confirm no GC job is pending
+ */
+public class TestLocalStorage49 {
+    CLogger logger = Utils.getLogger(TestLocalStorage49.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    GCFacade gcf;
+    SessionInventory session;
+    KVMSimulatorConfig kconfig;
+    LocalStorageSimulatorConfig config;
+    long totalSize = SizeUnit.GIGABYTE.toByte(100);
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/localStorage/TestLocalStorage28.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("localStorageSimulator.xml");
+        deployer.addSpringConfig("localStorage.xml");
+        deployer.load();
+
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        gcf = loader.getComponent(GCFacade.class);
+        config = loader.getComponent(LocalStorageSimulatorConfig.class);
+        kconfig = loader.getComponent(KVMSimulatorConfig.class);
+
+        Capacity c = new Capacity();
+        c.total = totalSize;
+        c.avail = totalSize;
+
+        config.capacityMap.put("host1", c);
+        config.capacityMap.put("host2", c);
+
+        deployer.build();
+        api = deployer.getApi();
+        session = api.loginAsAdmin();
+    }
+
+    private List<String> copiedPaths() {
+        List<String> paths = new ArrayList<String>();
+        synchronized (config.copyBitsFromRemoteCmds) {
+            for (CopyBitsFromRemoteCmd cmd : config.copyBitsFromRemoteCmds) {
+                paths.addAll(cmd.paths);
+            }
+        }
+        return paths;
+    }
+
+    private List<String> checkedPaths() {
+        List<String> paths = new ArrayList<String>();
+        synchronized (config.checkMd5sumCmds) {
+            for (LocalStorageKvmBackend.CheckMd5sumCmd cmd : config.checkMd5sumCmds) {
+                for (Md5TO to : cmd.md5s) {
+                    paths.add(to.path);
+                }
+            }
+        }
+        return paths;
+    }
+
+    private List<String> deletedPathsOnHost(String hostUuid) {
+        List<String> paths = new ArrayList<String>();
+        synchronized (config) {
+            for (DeleteBitsCmd cmd : config.deleteBitsCmds) {
+                if (hostUuid.equals(cmd.getHostUuid())) {
+                    paths.add(cmd.getPath());
+                }
+            }
+        }
+        return paths;
+    }
+
+    private GarbageCollectorVO findPendingJob(String path) {
+        SimpleQuery<GarbageCollectorVO> q = dbf.createQuery(GarbageCollectorVO.class);
+        q.add(GarbageCollectorVO_.runnerClass, SimpleQuery.Op.EQ, GCDeleteBitsRunner.class.getName());
+        q.add(GarbageCollectorVO_.status, SimpleQuery.Op.IN, list(GCStatus.Idle, GCStatus.Processing));
+        for (GarbageCollectorVO vo : q.list()) {
+            if (vo.getContext().contains(path)) {
+                return vo;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        long resumeWindow = LocalStorageGlobalProperty.MIGRATION_RESUME_WINDOW;
+        try {
+            doTest();
+        } finally {
+            LocalStorageGlobalProperty.MIGRATION_RESUME_WINDOW = resumeWindow;
+        }
+    }
+
+    private void doTest() throws ApiSenderException, InterruptedException {
+        HostInventory host2 = deployer.hosts.get("host2");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+
+        ImageInventory image = deployer.images.get("TestImage");
+        api.deleteImage(image.getUuid());
+
+        config.backingFilePath = image.getBackupStorageRefs().get(0).getInstallPath();
+        config.backingFileSize = image.getSize();
+        config.checkBitsSuccess = false;
+
+        int snum = 4;
+        List<VolumeSnapshotInventory> sps = new ArrayList<VolumeSnapshotInventory>();
+        for (int i=0; i<snum; i++) {
+            sps.add(api.createSnapshot(vm.getRootVolumeUuid()));
+        }
+
+        kconfig.migrateVmSuccess = false;
+        boolean s = false;
+        try {
+            api.migrateVmInstance(vm.getUuid(), host2.getUuid());
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+        Assert.assertEquals(snum, gcf.getPendingPersistentContexts(GCDeleteBitsRunner.class, GCDeleteBitsContext.class).size());
+
+        // the GC job of the first snapshot is deleting the file
+        VolumeSnapshotInventory deleting = sps.get(0);
+        GarbageCollectorVO job = findPendingJob(deleting.getPrimaryStorageInstallPath());
+        Assert.assertNotNull(job);
+        job.setStatus(GCStatus.Processing);
+        job = dbf.updateAndRefresh(job);
+
+        // jobs scheduled from now on fire in a few seconds
+        LocalStorageGlobalProperty.MIGRATION_RESUME_WINDOW = 5;
+        config.copyBitsFromRemoteCmds.clear();
+        config.checkMd5sumCmds.clear();
+        kconfig.migrateVmSuccess = true;
+        s = false;
+        try {
+            api.migrateVmInstance(vm.getUuid(), host2.getUuid());
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+        for (VolumeSnapshotInventory sp : sps) {
+            Assert.assertFalse(copiedPaths().contains(sp.getPrimaryStorageInstallPath()));
+            Assert.assertFalse(checkedPaths().contains(sp.getPrimaryStorageInstallPath()));
+            Assert.assertNotNull(findPendingJob(sp.getPrimaryStorageInstallPath()));
+        }
+        Assert.assertEquals(snum, gcf.getPendingPersistentContexts(GCDeleteBitsRunner.class, GCDeleteBitsContext.class).size());
+
+        // the started job finished, the file is gone
+        job.setStatus(GCStatus.Done);
+        dbf.update(job);
+
+        // the jobs given back fire while the migration is copying
+        config.copyBitsFromRemoteDelay = TimeUnit.SECONDS.toMillis(LocalStorageGlobalProperty.MIGRATION_RESUME_WINDOW + 3);
+        config.copyBitsFromRemoteCmds.clear();
+        config.checkMd5sumCmds.clear();
+        config.deleteBitsCmds.clear();
+        vm = api.migrateVmInstance(vm.getUuid(), host2.getUuid());
+        Assert.assertEquals(host2.getUuid(), vm.getHostUuid());
+
+        List<String> copied = copiedPaths();
+        Assert.assertEquals(2, copied.size());
+        Assert.assertTrue(copied.contains(config.backingFilePath));
+        Assert.assertTrue(copied.contains(deleting.getPrimaryStorageInstallPath()));
+
+        List<String> checked = checkedPaths();
+        for (VolumeSnapshotInventory sp : sps) {
+            Assert.assertTrue(checked.contains(sp.getPrimaryStorageInstallPath()));
+            LocalStorageResourceRefVO ref = dbf.findByUuid(sp.getUuid(), LocalStorageResourceRefVO.class);
+            Assert.assertEquals(host2.getUuid(), ref.getHostUuid());
+        }
+
+        TimeUnit.SECONDS.sleep(2);
+        List<String> deleted = deletedPathsOnHost(host2.getUuid());
+        for (VolumeSnapshotInventory sp : sps) {
+            Assert.assertFalse(deleted.contains(sp.getPrimaryStorageInstallPath()));
+        }
+        Assert.assertTrue(gcf.getPendingPersistentContexts(GCDeleteBitsRunner.class, GCDeleteBitsContext.class).isEmpty());
+    }
+}
@@ -0,0 +1,145 @@
+package org.zstack.test.storage.primary.nfs;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.image.ImageConstant.ImageMediaType;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.storage.primary.ImageCacheVO;
+import org.zstack.header.storage.primary.ImageCacheVO_;
+import org.zstack.header.storage.primary.PrimaryStorageInventory;
+import org.zstack.simulator.storage.primary.nfs.NfsPrimaryStorageSimulatorConfig;
+import org.zstack.storage.primary.ImageCacheEvictionPolicy;
+import org.zstack.storage.primary.ImageCacheManager;
+import org.zstack.storage.primary.PrimaryStorageGlobalConfig;
+import org.zstack.storage.primary.nfs.NfsPrimaryStorageKVMBackendCommands.DeleteCmd;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.data.SizeUnit;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. create two vms from the same image
+ * 2. add two old image caches not used by any volume
+ * 3. set a capacity budget that only one of them fits in
+ * 4. evict with LRU, then with LFU
+ *
+ * confirm the hit of the image cache is recorded
+ * confirm the least recently used cache is evicted with LRU
+ * confirm the least frequently used cache is evicted with LFU
+ * confirm the cache used by the vms is never evicted
+ */
+public class TestImageCacheEviction {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    NfsPrimaryStorageSimulatorConfig config;
+    ImageCacheManager imageCacheMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/primaryStorage/TestImageCacheMissing.xml", con);
+        deployer.addSpringConfig("SftpBackupStorage.xml");
+        deployer.addSpringConfig("SftpBackupStorageSimulator.xml");
+        deployer.addSpringConfig("Kvm.xml");
+        deployer.addSpringConfig("KVMSimulator.xml");
+        deployer.addSpringConfig("NfsPrimaryStorage.xml");
+        deployer.addSpringConfig("NfsPrimaryStorageSimulator.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(NfsPrimaryStorageSimulatorConfig.class);
+        imageCacheMgr = loader.getComponent(ImageCacheManager.class);
+    }
+
+    @After
+    public void tearDown() {
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_CAPACITY_BUDGET.updateValue(0);
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_EVICTION_POLICY.updateValue(ImageCacheEvictionPolicy.LRU.toString());
+    }
+
+    private void createVm() throws ApiSenderException {
+        ImageInventory iinv = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("TestInstanceOffering");
+        L3NetworkInventory l3 = deployer.l3Networks.get("TestL3Network1");
+        VmCreator creator = new VmCreator(api);
+        creator.addL3Network(l3.getUuid());
+        creator.imageUuid = iinv.getUuid();
+        creator.instanceOfferingUuid = ioinv.getUuid();
+        creator.create();
+    }
+
+    private ImageCacheVO createCache(String psUuid, String installUrl, long hitCount, long daysAgo) {
+        Timestamp date = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(daysAgo));
+        ImageCacheVO vo = new ImageCacheVO();
+        vo.setPrimaryStorageUuid(psUuid);
+        vo.setInstallUrl(installUrl);
+        vo.setMediaType(ImageMediaType.RootVolumeTemplate);
+        vo.setSize(SizeUnit.GIGABYTE.toByte(1));
+        vo.setMd5sum("md5");
+        vo.setHitCount(hitCount);
+        vo.setLastUsedDate(date);
+        vo.setCreateDate(date);
+        return dbf.persistAndRefresh(vo);
+    }
+
+    private boolean isDeleted(String installUrl) {
+        for (DeleteCmd cmd : config.deleteCmds) {
+            if (installUrl.equals(cmd.getInstallPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        PrimaryStorageInventory ps = deployer.primaryStorages.get("nfs");
+        ImageInventory iinv = deployer.images.get("TestImage");
+
+        createVm();
+        createVm();
+        SimpleQuery<ImageCacheVO> q = dbf.createQuery(ImageCacheVO.class);
+        q.add(ImageCacheVO_.imageUuid, SimpleQuery.Op.EQ, iinv.getUuid());
+        ImageCacheVO cache = q.find();
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertNotNull(cache.getLastUsedDate());
+
+        ImageCacheVO old = createCache(ps.getUuid(), "/cache/old", 5, 3);
+        ImageCacheVO rare = createCache(ps.getUuid(), "/cache/rare", 0, 2);
+        long budget = cache.getSize() + SizeUnit.GIGABYTE.toByte(1);
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_CAPACITY_BUDGET.updateValue(budget);
+        Assert.assertEquals(budget, imageCacheMgr.getCapacityBudget(ps.getUuid()));
+
+        imageCacheMgr.evict(ps.getUuid());
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertTrue(isDeleted(old.getInstallUrl()));
+        Assert.assertFalse(isDeleted(rare.getInstallUrl()));
+        Assert.assertFalse(dbf.isExist(old.getId(), ImageCacheVO.class));
+        Assert.assertTrue(dbf.isExist(rare.getId(), ImageCacheVO.class));
+        Assert.assertTrue(dbf.isExist(cache.getId(), ImageCacheVO.class));
+
+        old = createCache(ps.getUuid(), "/cache/old1", 5, 3);
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_EVICTION_POLICY.updateValue(ImageCacheEvictionPolicy.LFU.toString());
+        imageCacheMgr.evict(ps.getUuid());
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertTrue(isDeleted(rare.getInstallUrl()));
+        Assert.assertFalse(isDeleted(old.getInstallUrl()));
+        Assert.assertFalse(dbf.isExist(rare.getId(), ImageCacheVO.class));
+        Assert.assertTrue(dbf.isExist(old.getId(), ImageCacheVO.class));
+        Assert.assertTrue(dbf.isExist(cache.getId(), ImageCacheVO.class));
+        Assert.assertFalse(isDeleted(cache.getInstallUrl()));
+    }
+}
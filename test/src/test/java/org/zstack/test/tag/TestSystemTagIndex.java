@@ -0,0 +1,115 @@
+package org.zstack.test.tag;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.tag.TagDefinition;
+import org.zstack.header.tag.TagInventory;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.header.zone.ZoneVO;
+import org.zstack.tag.PatternedSystemTag;
+import org.zstack.tag.SystemTag;
+import org.zstack.tag.TagGlobalProperty;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.zstack.utils.CollectionDSL.list;
+
+/**
+ * 1. enable the system tag index
+ * 2. read tags of a zone so they are indexed
+ * 3. create/update/delete system tags of the zone
+ *
+ * confirm reading tags after each change sees the change
+ *
+ * 4. read tags of several zones at once, copy tags from one zone to another
+ *
+ * confirm the results are the same as reading the database
+ */
+public class TestSystemTagIndex {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+
+    @TagDefinition
+    public static class TestSystemTags {
+        public static SystemTag big = new SystemTag("big", ZoneVO.class);
+        public static PatternedSystemTag size = new PatternedSystemTag("size::{size}", ZoneVO.class);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/tag/TestUserTag.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        TagGlobalProperty.INDEX_ENABLED = true;
+    }
+
+    @After
+    public void tearDown() {
+        TagGlobalProperty.INDEX_ENABLED = false;
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ZoneInventory zone1 = deployer.zones.get("Zone1");
+        Assert.assertFalse(TestSystemTags.big.hasTag(zone1.getUuid()));
+        Assert.assertNull(TestSystemTags.size.getTokenByResourceUuid(zone1.getUuid(), "size"));
+
+        TagInventory big = api.createSystemTag(zone1.getUuid(), "big", ZoneVO.class);
+        Assert.assertTrue(TestSystemTags.big.hasTag(zone1.getUuid()));
+        // the database compares case insensitively, so does the index
+        Assert.assertEquals("big", TestSystemTags.big.getTag(zone1.getUuid()));
+
+        TagInventory size = api.createSystemTag(zone1.getUuid(), "size::10", ZoneVO.class);
+        Assert.assertEquals("10", TestSystemTags.size.getTokenByResourceUuid(zone1.getUuid(), "size"));
+
+        api.updateSystemTag(size.getUuid(), "size::20", null);
+        Assert.assertEquals("20", TestSystemTags.size.getTokenByResourceUuid(zone1.getUuid(), "size"));
+
+        api.deleteTag(big.getUuid());
+        Assert.assertFalse(TestSystemTags.big.hasTag(zone1.getUuid()));
+        Assert.assertTrue(TestSystemTags.size.hasTag(zone1.getUuid()));
+
+        TestSystemTags.size.delete(zone1.getUuid());
+        Assert.assertFalse(TestSystemTags.size.hasTag(zone1.getUuid()));
+
+        // the results must be the same as reading the database
+        TestSystemTags.size.createTag(zone1.getUuid(), "size::30");
+        boolean indexed = TestSystemTags.size.hasTag(zone1.getUuid());
+        TagGlobalProperty.INDEX_ENABLED = false;
+        Assert.assertEquals(TestSystemTags.size.hasTag(zone1.getUuid()), indexed);
+
+        TagGlobalProperty.INDEX_ENABLED = true;
+        ZoneInventory zone2 = deployer.zones.get("Zone2");
+        ZoneInventory zone3 = deployer.zones.get("Zone3");
+        TestSystemTags.size.createTag(zone2.getUuid(), "size::40");
+        // zone1 is indexed, zone2 and zone3 are loaded together
+        Map<String, List<String>> tags = TestSystemTags.size.getTags(list(zone1.getUuid(), zone2.getUuid(), zone3.getUuid()));
+        TagGlobalProperty.INDEX_ENABLED = false;
+        Assert.assertEquals(TestSystemTags.size.getTags(list(zone1.getUuid(), zone2.getUuid(), zone3.getUuid())), tags);
+        Assert.assertEquals(2, tags.size());
+        Assert.assertEquals(list("size::40"), tags.get(zone2.getUuid()));
+
+        TagGlobalProperty.INDEX_ENABLED = true;
+        TestSystemTags.size.copy(zone2.getUuid(), ZoneVO.class, zone3.getUuid(), ZoneVO.class);
+        Assert.assertEquals("40", TestSystemTags.size.getTokenByResourceUuid(zone3.getUuid(), "size"));
+        TagGlobalProperty.INDEX_ENABLED = false;
+        Assert.assertEquals("40", TestSystemTags.size.getTokenByResourceUuid(zone3.getUuid(), "size"));
+    }
+}
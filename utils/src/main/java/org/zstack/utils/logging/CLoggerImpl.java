@@ -104,4 +104,8 @@ public class CLoggerImpl implements CLogger {
     public boolean isTraceEnabled() {
         return logger.isTraceEnabled();
     }
+
+    public boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    }
 }